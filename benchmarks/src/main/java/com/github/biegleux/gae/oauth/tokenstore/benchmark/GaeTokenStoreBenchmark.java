@@ -0,0 +1,171 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.benchmark;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import com.github.biegleux.gae.oauth.tokenstore.GaeTokenStore;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.BinaryTokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreRefreshTokenRepository;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * Measures {@link GaeTokenStore} operations end to end against the in-memory datastore stub of the App Engine SDK,
+ * with the low-level datastore repositories and with the JDO repositories of the default constructor. The stub has none of the latency of the production datastore, so the
+ * numbers show the cost of the token store itself: key extraction, encoding, entity mapping and the number and kind of
+ * datastore calls. They are meant for comparing releases, not for capacity planning.
+ * <p>
+ * The store holds {@value #TOKENS} tokens of distinct users, and a second client with {@value #LISTED_TOKENS} tokens
+ * is listed by {@link #findTokensByClientId()}. Run with a single thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GaeTokenStoreBenchmark {
+
+	static final int TOKENS = 1000;
+
+	static final int LISTED_TOKENS = 20;
+
+	private static final String CLIENT_ID = "client";
+
+	private static final String LISTED_CLIENT_ID = "listed-client";
+
+	/** Lookup by {@code tokenId} query, or by key name without the query fallback. */
+	@Param({ "query", "keyNames" })
+	private String lookup;
+
+	@Param({ "serialization", "binary" })
+	private String codec;
+
+	/** Low-level datastore repositories, or the JDO repositories of {@code new GaeTokenStore()}. */
+	@Param({ "datastore", "jdo" })
+	private String repositories;
+
+	private LocalServiceTestHelper helper;
+
+	private ApiProxy.Environment environment;
+
+	private GaeTokenStore tokenStore;
+
+	private OAuth2AccessToken[] accessTokens;
+
+	private OAuth2Authentication[] authentications;
+
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+		helper.setUp();
+		environment = ApiProxy.getCurrentEnvironment();
+
+		tokenStore = "jdo".equals(repositories) ? new GaeTokenStore()
+				: new GaeTokenStore(new DatastoreAccessTokenRepository(), new DatastoreRefreshTokenRepository());
+		if ("keyNames".equals(lookup)) {
+			tokenStore.setTokenKeyNames(true);
+			tokenStore.setLegacyLookup(false);
+		}
+		if ("binary".equals(codec)) {
+			tokenStore.setTokenCodec(new BinaryTokenCodec());
+		}
+
+		accessTokens = new OAuth2AccessToken[TOKENS];
+		authentications = new OAuth2Authentication[TOKENS];
+		for (int i = 0; i < TOKENS; i++) {
+			accessTokens[i] = Tokens.accessToken();
+			authentications[i] = Tokens.authentication(CLIENT_ID, "user" + i);
+			tokenStore.storeAccessToken(accessTokens[i], authentications[i]);
+		}
+		for (int i = 0; i < LISTED_TOKENS; i++) {
+			tokenStore.storeAccessToken(Tokens.accessToken(), Tokens.authentication(LISTED_CLIENT_ID, "user" + i));
+		}
+	}
+
+	/**
+	 * The stub services are reached through the API environment of the calling thread, which JMH may change between
+	 * iterations.
+	 */
+	@Setup(Level.Iteration)
+	public void setUpThread() {
+		if (ApiProxy.getCurrentEnvironment() == null) {
+			ApiProxy.setEnvironmentForCurrentThread(environment);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		setUpThread();
+		helper.tearDown();
+	}
+
+	private int next() {
+		int index = next;
+		next = index + 1 < TOKENS ? index + 1 : 0;
+		return index;
+	}
+
+	@Benchmark
+	public void storeAccessToken() {
+		int index = next();
+		tokenStore.storeAccessToken(accessTokens[index], authentications[index]);
+	}
+
+	@Benchmark
+	public OAuth2AccessToken readAccessToken() {
+		return tokenStore.readAccessToken(accessTokens[next()].getValue());
+	}
+
+	@Benchmark
+	public OAuth2Authentication readAuthentication() {
+		return tokenStore.readAuthentication(accessTokens[next()].getValue());
+	}
+
+	@Benchmark
+	public OAuth2AccessToken getAccessToken() {
+		return tokenStore.getAccessToken(authentications[next()]);
+	}
+
+	@Benchmark
+	public Collection<OAuth2AccessToken> findTokensByClientId() {
+		return tokenStore.findTokensByClientId(LISTED_CLIENT_ID);
+	}
+}
@@ -0,0 +1,514 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.benchmark;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import com.github.biegleux.gae.oauth.tokenstore.AsyncGaeTokenStore;
+import com.github.biegleux.gae.oauth.tokenstore.GaeTokenStore;
+import com.github.biegleux.gae.oauth.tokenstore.RefreshTokenRotation;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreRefreshTokenRepository;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * Multithreaded load and race harness driving {@link GaeTokenStore} against the datastore stub of the App Engine SDK.
+ * Worker threads run a weighted mix of the token flows of Spring's {@code DefaultTokenServices} on a small pool of
+ * authentications, so that concurrent calls for the same authentication are common:
+ * <ul>
+ * <li>{@code issue}: password grant, returning the stored token of the authentication or storing a new one,</li>
+ * <li>{@code read}: resource server reading an access token and its authentication,</li>
+ * <li>{@code refresh}: refresh grant issuing a new refresh token, or {@link GaeTokenStore#rotateRefreshToken} with
+ * {@code -rotation},</li>
+ * <li>{@code revoke}: removing an access token together with its refresh token.</li>
+ * </ul>
+ * The harness reports throughput and latency percentiles per flow, then scans the datastore for duplicate access
+ * tokens of one authentication and for access tokens referencing a missing refresh token, and exits with status 1 when
+ * it finds any. Run it from the benchmarks jar:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.github.biegleux.gae.oauth.tokenstore.benchmark.LoadHarness -threads 16 -mix issue=50,read=30,refresh=10,revoke=10
+ * </pre>
+ *
+ * Options are {@code -threads}, {@code -seconds}, {@code -warmup} (seconds not recorded), {@code -authentications},
+ * {@code -mix}, {@code -keyNames}, {@code -async}, {@code -indexEntities}, {@code -refreshTokenGroups},
+ * {@code -rotation} and {@code -unapplied} (percentage of datastore writes left unapplied, emulating eventually
+ * consistent queries; by default all writes apply at once).
+ */
+public class LoadHarness {
+
+	private static final Logger LOG = Logger.getLogger("com.github.biegleux.gae.oauth.tokenstore");
+
+	private static final String CLIENT_ID = "client";
+
+	private static final String ACCESS_TOKEN_KIND = "GaeOAuthAccessToken";
+
+	private static final String REFRESH_TOKEN_KIND = "GaeOAuthRefreshToken";
+
+	private static final long ACCESS_TOKEN_MILLIS = 12 * 60 * 60 * 1000L;
+
+	private static final long REFRESH_TOKEN_MILLIS = 30 * 24 * 60 * 60 * 1000L;
+
+	private static final String[] FLOWS = { "issue", "read", "refresh", "revoke" };
+
+	private static final int ISSUE = 0;
+	private static final int READ = 1;
+	private static final int REFRESH = 2;
+	private static final int REVOKE = 3;
+
+	private int threads = 8;
+	private int seconds = 30;
+	private int warmup = 5;
+	private int authenticationCount = 20;
+	private int[] weights = { 40, 40, 10, 10 };
+	private boolean keyNames;
+	private boolean async;
+	private boolean indexEntities;
+	private boolean refreshTokenGroups;
+	private boolean rotation;
+	private float unapplied;
+
+	private GaeTokenStore tokenStore;
+
+	private OAuth2Authentication[] authentications;
+
+	/** Last access token issued for each authentication, as seen by clients. */
+	private AtomicReferenceArray<OAuth2AccessToken> issued;
+
+	public static void main(String[] args) throws Exception {
+		LoadHarness harness = new LoadHarness();
+		harness.parse(args);
+		System.exit(harness.run() ? 0 : 1);
+	}
+
+	void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if ("-threads".equals(option)) {
+				threads = Integer.parseInt(args[++i]);
+			} else if ("-seconds".equals(option)) {
+				seconds = Integer.parseInt(args[++i]);
+			} else if ("-warmup".equals(option)) {
+				warmup = Integer.parseInt(args[++i]);
+			} else if ("-authentications".equals(option)) {
+				authenticationCount = Integer.parseInt(args[++i]);
+			} else if ("-mix".equals(option)) {
+				weights = parseMix(args[++i]);
+			} else if ("-keyNames".equals(option)) {
+				keyNames = true;
+			} else if ("-async".equals(option)) {
+				async = true;
+			} else if ("-indexEntities".equals(option)) {
+				indexEntities = true;
+			} else if ("-refreshTokenGroups".equals(option)) {
+				refreshTokenGroups = true;
+			} else if ("-rotation".equals(option)) {
+				rotation = true;
+			} else if ("-unapplied".equals(option)) {
+				unapplied = Float.parseFloat(args[++i]);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+	}
+
+	private static int[] parseMix(String mix) {
+		int[] weights = new int[FLOWS.length];
+		for (String part : mix.split(",")) {
+			String[] pair = part.split("=");
+			int flow = Arrays.asList(FLOWS).indexOf(pair[0].trim());
+			if (pair.length != 2 || flow < 0) {
+				throw new IllegalArgumentException("Invalid mix " + mix + ", expected e.g. issue=40,read=40,refresh=10,revoke=10");
+			}
+			weights[flow] = Integer.parseInt(pair[1].trim());
+		}
+		return weights;
+	}
+
+	boolean run() throws InterruptedException {
+		LOG.setLevel(Level.WARNING);
+		LocalDatastoreServiceTestConfig datastoreConfig = new LocalDatastoreServiceTestConfig();
+		if (unapplied > 0) {
+			datastoreConfig.setDefaultHighRepJobPolicyUnappliedJobPercentage(unapplied);
+		} else {
+			datastoreConfig.setApplyAllHighRepJobPolicy();
+		}
+		LocalServiceTestHelper helper = new LocalServiceTestHelper(datastoreConfig);
+		helper.setUp();
+		try {
+			ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+			setUpTokenStore();
+			Worker[] workers = runWorkers(environment);
+			report(workers);
+			return checkInvariants();
+		} finally {
+			helper.tearDown();
+		}
+	}
+
+	private void setUpTokenStore() {
+		DatastoreAccessTokenRepository accessTokens = new DatastoreAccessTokenRepository();
+		DatastoreRefreshTokenRepository refreshTokens = new DatastoreRefreshTokenRepository();
+		tokenStore = async ? new AsyncGaeTokenStore(accessTokens, refreshTokens)
+				: new GaeTokenStore(accessTokens, refreshTokens);
+		tokenStore.setTokenKeyNames(keyNames || indexEntities || refreshTokenGroups);
+		accessTokens.setIndexEntities(indexEntities);
+		accessTokens.setRefreshTokenGroups(refreshTokenGroups);
+
+		authentications = new OAuth2Authentication[authenticationCount];
+		for (int i = 0; i < authenticationCount; i++) {
+			authentications[i] = Tokens.authentication(CLIENT_ID, "user" + i);
+		}
+		issued = new AtomicReferenceArray<OAuth2AccessToken>(authenticationCount);
+	}
+
+	private Worker[] runWorkers(final ApiProxy.Environment environment) throws InterruptedException {
+		long start = System.nanoTime();
+		long measureStart = start + TimeUnit.SECONDS.toNanos(warmup);
+		long end = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+		final CountDownLatch done = new CountDownLatch(threads);
+		Worker[] workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(measureStart, end, environment, done);
+			new Thread(workers[i], "load-" + i).start();
+		}
+		System.out.println("Running " + threads + " threads for " + warmup + " s warmup and " + seconds + " s on "
+				+ authenticationCount + " authentications, mix " + Arrays.toString(weights) + " of "
+				+ Arrays.toString(FLOWS));
+		done.await();
+		return workers;
+	}
+
+	private void report(Worker[] workers) {
+		System.out.println();
+		System.out.println(String.format("%-8s %10s %10s %8s %10s %10s %10s %10s %10s", "flow", "ops", "ops/s",
+				"errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+		long total = 0;
+		for (int flow = 0; flow < FLOWS.length; flow++) {
+			Latencies latencies = new Latencies();
+			long errors = 0;
+			for (Worker worker : workers) {
+				latencies.addAll(worker.latencies[flow]);
+				errors += worker.errors[flow];
+			}
+			long[] sorted = latencies.sorted();
+			total += sorted.length;
+			System.out.println(String.format("%-8s %10d %10.1f %8d %10.2f %10.2f %10.2f %10.2f %10.2f", FLOWS[flow],
+					sorted.length, (double) sorted.length / seconds, errors, percentile(sorted, 0.5),
+					percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 0.999),
+					percentile(sorted, 1.0)));
+		}
+		System.out.println(String.format("%-8s %10d %10.1f", "total", total, (double) total / seconds));
+
+		Map<String, Integer> errors = new TreeMap<String, Integer>();
+		for (Worker worker : workers) {
+			for (Map.Entry<String, Integer> error : worker.errorTypes.entrySet()) {
+				Integer count = errors.get(error.getKey());
+				errors.put(error.getKey(), count == null ? error.getValue() : count + error.getValue());
+			}
+		}
+		if (!errors.isEmpty()) {
+			System.out.println();
+			System.out.println("Errors:");
+			for (Map.Entry<String, Integer> error : errors.entrySet()) {
+				System.out.println(String.format("%6d %s", error.getValue(), error.getKey()));
+			}
+		}
+	}
+
+	private static double percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(index, 0)] / 1000000.0;
+	}
+
+	/**
+	 * Scans all token entities for the invariants the token store should keep.
+	 * @return {@code true} if no violation was found.
+	 */
+	private boolean checkInvariants() {
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		Set<String> refreshTokenIds = new HashSet<String>();
+		for (Entity entity : datastore.prepare(new Query(REFRESH_TOKEN_KIND)).asIterable()) {
+			refreshTokenIds.add((String) entity.getProperty("tokenId"));
+		}
+
+		Map<String, Integer> byAuthenticationId = new HashMap<String, Integer>();
+		Set<String> referencedRefreshTokenIds = new HashSet<String>();
+		int accessTokens = 0;
+		int orphaned = 0;
+		for (Entity entity : datastore.prepare(new Query(ACCESS_TOKEN_KIND)).asIterable()) {
+			accessTokens++;
+			String authenticationId = (String) entity.getProperty("authenticationId");
+			Integer count = byAuthenticationId.get(authenticationId);
+			byAuthenticationId.put(authenticationId, count == null ? 1 : count + 1);
+			String refreshToken = (String) entity.getProperty("refreshToken");
+			if (refreshToken != null) {
+				referencedRefreshTokenIds.add(refreshToken);
+				if (!refreshTokenIds.contains(refreshToken)) {
+					orphaned++;
+				}
+			}
+		}
+
+		int duplicatedAuthentications = 0;
+		int duplicates = 0;
+		for (Integer count : byAuthenticationId.values()) {
+			if (count > 1) {
+				duplicatedAuthentications++;
+				duplicates += count - 1;
+			}
+		}
+		refreshTokenIds.removeAll(referencedRefreshTokenIds);
+
+		System.out.println();
+		System.out.println("Access tokens: " + accessTokens + ", refresh tokens: "
+				+ (refreshTokenIds.size() + referencedRefreshTokenIds.size()));
+		System.out.println("Duplicate access tokens: " + duplicates + " for " + duplicatedAuthentications
+				+ " authentications");
+		System.out.println("Access tokens with a missing refresh token: " + orphaned);
+		System.out.println("Refresh tokens without access tokens: " + refreshTokenIds.size());
+		if (unapplied > 0) {
+			System.out.println("Writes left unapplied are not seen by the scan.");
+		}
+		return duplicates == 0 && orphaned == 0;
+	}
+
+	private OAuth2AccessToken issue(int index) {
+		OAuth2Authentication authentication = authentications[index];
+		OAuth2AccessToken existing = tokenStore.getAccessToken(authentication);
+		if (existing != null) {
+			if (!existing.isExpired()) {
+				tokenStore.storeAccessToken(existing, authentication);
+				return existing;
+			}
+			if (existing.getRefreshToken() != null) {
+				tokenStore.removeRefreshToken(existing.getRefreshToken());
+			}
+			tokenStore.removeAccessToken(existing);
+		}
+		OAuth2RefreshToken refreshToken = createRefreshToken();
+		OAuth2AccessToken accessToken = createAccessToken(refreshToken);
+		tokenStore.storeAccessToken(accessToken, authentication);
+		tokenStore.storeRefreshToken(refreshToken, authentication);
+		return accessToken;
+	}
+
+	private void read(OAuth2AccessToken issued) {
+		if (tokenStore.readAccessToken(issued.getValue()) != null) {
+			tokenStore.readAuthentication(issued.getValue());
+		}
+	}
+
+	private OAuth2AccessToken refresh(OAuth2AccessToken issued) {
+		if (rotation) {
+			return tokenStore.rotateRefreshToken(issued.getRefreshToken().getValue(), new RefreshTokenRotation() {
+
+				@Override
+				public OAuth2Authentication refreshAuthentication(OAuth2RefreshToken refreshToken,
+						OAuth2Authentication authentication) {
+					return authentication;
+				}
+
+				@Override
+				public OAuth2AccessToken createAccessToken(OAuth2Authentication authentication,
+						OAuth2RefreshToken refreshToken) {
+					return LoadHarness.this.createAccessToken(createRefreshToken());
+				}
+			});
+		}
+
+		OAuth2RefreshToken refreshToken = tokenStore.readRefreshToken(issued.getRefreshToken().getValue());
+		if (refreshToken == null) {
+			return null;
+		}
+		OAuth2Authentication authentication = tokenStore.readAuthenticationForRefreshToken(refreshToken);
+		if (authentication == null) {
+			return null;
+		}
+		tokenStore.removeAccessTokenUsingRefreshToken(refreshToken);
+		tokenStore.removeRefreshToken(refreshToken);
+		OAuth2RefreshToken newRefreshToken = createRefreshToken();
+		OAuth2AccessToken accessToken = createAccessToken(newRefreshToken);
+		tokenStore.storeAccessToken(accessToken, authentication);
+		tokenStore.storeRefreshToken(newRefreshToken, authentication);
+		return accessToken;
+	}
+
+	private void revoke(OAuth2AccessToken issued) {
+		OAuth2AccessToken accessToken = tokenStore.readAccessToken(issued.getValue());
+		if (accessToken == null) {
+			return;
+		}
+		if (accessToken.getRefreshToken() != null) {
+			tokenStore.removeRefreshToken(accessToken.getRefreshToken());
+		}
+		tokenStore.removeAccessToken(accessToken);
+	}
+
+	private OAuth2RefreshToken createRefreshToken() {
+		return new DefaultExpiringOAuth2RefreshToken(UUID.randomUUID().toString(),
+				new Date(System.currentTimeMillis() + REFRESH_TOKEN_MILLIS));
+	}
+
+	private OAuth2AccessToken createAccessToken(OAuth2RefreshToken refreshToken) {
+		DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(UUID.randomUUID().toString());
+		accessToken.setExpiration(new Date(System.currentTimeMillis() + ACCESS_TOKEN_MILLIS));
+		accessToken.setRefreshToken(refreshToken);
+		accessToken.setScope(authentications[0].getOAuth2Request().getScope());
+		return accessToken;
+	}
+
+	/**
+	 * Thread running flows until the end of the run.
+	 */
+	private final class Worker implements Runnable {
+
+		final Latencies[] latencies = new Latencies[FLOWS.length];
+		final long[] errors = new long[FLOWS.length];
+		private final long measureStart;
+		private final long end;
+		private final ApiProxy.Environment environment;
+		private final CountDownLatch done;
+		private final Random random = new Random();
+		private int totalWeight;
+		final Map<String, Integer> errorTypes = new HashMap<String, Integer>();
+
+		Worker(long measureStart, long end, ApiProxy.Environment environment, CountDownLatch done) {
+			this.measureStart = measureStart;
+			this.end = end;
+			this.environment = environment;
+			this.done = done;
+			for (int flow = 0; flow < FLOWS.length; flow++) {
+				latencies[flow] = new Latencies();
+				totalWeight += weights[flow];
+			}
+		}
+
+		@Override
+		public void run() {
+			ApiProxy.setEnvironmentForCurrentThread(environment);
+			try {
+				long now;
+				while ((now = System.nanoTime()) < end) {
+					int flow = nextFlow();
+					int index = random.nextInt(authenticationCount);
+					try {
+						perform(flow, index);
+					} catch (RuntimeException e) {
+						if (now >= measureStart) {
+							errors[flow]++;
+							String type = FLOWS[flow] + ": " + e;
+							Integer count = errorTypes.get(type);
+							errorTypes.put(type, count == null ? 1 : count + 1);
+						}
+					}
+					if (now >= measureStart) {
+						latencies[flow].add(System.nanoTime() - now);
+					}
+				}
+			} finally {
+				ApiProxy.clearEnvironmentForCurrentThread();
+				done.countDown();
+			}
+		}
+
+		private int nextFlow() {
+			int value = random.nextInt(totalWeight);
+			for (int flow = 0; flow < FLOWS.length; flow++) {
+				value -= weights[flow];
+				if (value < 0) {
+					return flow;
+				}
+			}
+			return ISSUE;
+		}
+
+		private void perform(int flow, int index) {
+			OAuth2AccessToken current = issued.get(index);
+			if (current == null || flow == ISSUE) {
+				issued.set(index, issue(index));
+			} else if (flow == READ) {
+				read(current);
+			} else if (flow == REFRESH) {
+				OAuth2AccessToken accessToken = refresh(current);
+				if (accessToken != null) {
+					issued.set(index, accessToken);
+				}
+			} else if (flow == REVOKE) {
+				revoke(current);
+				issued.compareAndSet(index, current, null);
+			}
+		}
+	}
+
+	/**
+	 * Growable array of latencies in nanoseconds.
+	 */
+	private static final class Latencies {
+
+		private long[] values = new long[1024];
+		private int size;
+
+		void add(long value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		void addAll(Latencies latencies) {
+			for (int i = 0; i < latencies.size; i++) {
+				add(latencies.values[i]);
+			}
+		}
+
+		long[] sorted() {
+			long[] sorted = Arrays.copyOf(values, size);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+}
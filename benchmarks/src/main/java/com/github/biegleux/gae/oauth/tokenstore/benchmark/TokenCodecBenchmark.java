@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.BinaryTokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.SerializationTokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.TokenCodec;
+
+/**
+ * Measures encoding and decoding of the access token and authentication blobs by each codec.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenCodecBenchmark {
+
+	@Param({ "serialization", "binary" })
+	private String codec;
+
+	private TokenCodec tokenCodec;
+
+	private OAuth2AccessToken accessToken;
+
+	private OAuth2Authentication authentication;
+
+	private byte[] accessTokenBytes;
+
+	private byte[] authenticationBytes;
+
+	@Setup
+	public void setUp() {
+		tokenCodec = "binary".equals(codec) ? new BinaryTokenCodec() : new SerializationTokenCodec();
+		accessToken = Tokens.accessToken();
+		authentication = Tokens.authentication("client", "user");
+		accessTokenBytes = tokenCodec.encodeAccessToken(accessToken);
+		authenticationBytes = tokenCodec.encodeAuthentication(authentication);
+	}
+
+	@Benchmark
+	public byte[] encodeAccessToken() {
+		return tokenCodec.encodeAccessToken(accessToken);
+	}
+
+	@Benchmark
+	public OAuth2AccessToken decodeAccessToken() {
+		return tokenCodec.decodeAccessToken(accessTokenBytes);
+	}
+
+	@Benchmark
+	public byte[] encodeAuthentication() {
+		return tokenCodec.encodeAuthentication(authentication);
+	}
+
+	@Benchmark
+	public OAuth2Authentication decodeAuthentication() {
+		return tokenCodec.decodeAuthentication(authenticationBytes);
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.benchmark;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.biegleux.gae.oauth.tokenstore.DigestTokenKeyExtractor;
+
+/**
+ * Compares token key extraction of 0.2 with {@link DigestTokenKeyExtractor}. Run with {@code -prof gc} to see the
+ * allocation rate per operation as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenKeyExtractorBenchmark {
+
+	private final String tokenValue = UUID.randomUUID().toString();
+
+	private final DigestTokenKeyExtractor md5 = new DigestTokenKeyExtractor(DigestTokenKeyExtractor.MD5);
+
+	private final DigestTokenKeyExtractor sha256 = new DigestTokenKeyExtractor(DigestTokenKeyExtractor.SHA_256);
+
+	@Benchmark
+	public String legacyMd5() {
+		return extractTokenKey(tokenValue);
+	}
+
+	@Benchmark
+	public String md5() {
+		return md5.extractKey(tokenValue);
+	}
+
+	@Benchmark
+	public String sha256() {
+		return sha256.extractKey(tokenValue);
+	}
+
+	/**
+	 * Token key extraction as implemented by GaeTokenStore 0.2.
+	 */
+	static String extractTokenKey(String value) {
+		if (value == null) {
+			return null;
+		}
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 algorithm not available.  Fatal (should be in the JDK).");
+		}
+
+		try {
+			byte[] bytes = digest.digest(value.getBytes("UTF-8"));
+			return String.format("%032x", new BigInteger(1, bytes));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 encoding not available.  Fatal (should be in the JDK).");
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.benchmark;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+/**
+ * Tokens and authentications shaped like the ones issued by a password grant of the Spring authorization server.
+ */
+final class Tokens {
+
+	private static final long ACCESS_TOKEN_MILLIS = 12 * 60 * 60 * 1000L;
+
+	private static final long REFRESH_TOKEN_MILLIS = 30 * 24 * 60 * 60 * 1000L;
+
+	private Tokens() {
+	}
+
+	static DefaultOAuth2AccessToken accessToken() {
+		long now = System.currentTimeMillis();
+		DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(UUID.randomUUID().toString());
+		accessToken.setExpiration(new Date(now + ACCESS_TOKEN_MILLIS));
+		accessToken.setRefreshToken(new DefaultExpiringOAuth2RefreshToken(UUID.randomUUID().toString(),
+				new Date(now + REFRESH_TOKEN_MILLIS)));
+		accessToken.setScope(scope());
+		return accessToken;
+	}
+
+	static OAuth2Authentication authentication(String clientId, String username) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("grant_type", "password");
+		parameters.put("client_id", clientId);
+		parameters.put("scope", "read write");
+		parameters.put("username", username);
+		List<GrantedAuthority> clientAuthorities = Arrays.<GrantedAuthority> asList(
+				new SimpleGrantedAuthority("ROLE_CLIENT"), new SimpleGrantedAuthority("ROLE_TRUSTED_CLIENT"));
+		OAuth2Request request = new OAuth2Request(parameters, clientId, clientAuthorities, true, scope(),
+				new LinkedHashSet<String>(Arrays.asList("api")), null, new LinkedHashSet<String>(),
+				new HashMap<String, Serializable>());
+
+		List<GrantedAuthority> userAuthorities = Arrays.<GrantedAuthority> asList(new SimpleGrantedAuthority("ROLE_USER"));
+		User user = new User(username, "", userAuthorities);
+		return new OAuth2Authentication(request, new UsernamePasswordAuthenticationToken(user, null, userAuthorities));
+	}
+
+	private static Set<String> scope() {
+		return new LinkedHashSet<String>(Arrays.asList("read", "write"));
+	}
+}
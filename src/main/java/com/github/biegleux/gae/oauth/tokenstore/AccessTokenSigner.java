@@ -0,0 +1,355 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.TokenEnhancer;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.TokenDeserializationException;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.BinaryTokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.TokenCodec;
+
+/**
+ * {@link TokenEnhancer} replacing the value of issued access tokens with a self-contained value signed by HMAC-SHA256,
+ * which {@link GaeTokenStore} verifies and decodes without a datastore call (see
+ * {@link GaeTokenStore#setAccessTokenSigner(AccessTokenSigner)}).
+ * <p>
+ * The value is the URL-safe Base64 encoded payload and signature separated by a dot. The payload holds the ID of the
+ * signing key, the original random value of the token, the token without its value and refresh token, and the
+ * authentication, all encoded by the token codec. It is signed, not encrypted: anyone holding the token can read the
+ * authentication. The value of the refresh token is never part of it.
+ * <p>
+ * Keys are configured locally and must be identical on all instances. To rotate keys, add the new key for verification
+ * on all instances first, then sign with it; the previous key is removed once the tokens signed with it expired.
+ * Enhancers adding information to the token must run before this one.
+ */
+public class AccessTokenSigner implements TokenEnhancer {
+
+	private static final Log LOG = LogFactory.getLog(AccessTokenSigner.class);
+
+	public static final String ALGORITHM = "HmacSHA256";
+
+	private static final int FORMAT = 1;
+
+	private static final char SEPARATOR = '.';
+
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+	private static final int[] BASE64_VALUES = new int[128];
+
+	static {
+		Arrays.fill(BASE64_VALUES, -1);
+		for (int i = 0; i < BASE64.length; i++) {
+			BASE64_VALUES[BASE64[i]] = i;
+		}
+	}
+
+	private final Map<String, SecretKeySpec> keys = new ConcurrentHashMap<String, SecretKeySpec>();
+
+	private volatile String signingKeyId;
+
+	private TokenCodec codec = new BinaryTokenCodec();
+
+	private final ThreadLocal<Map<SecretKeySpec, Mac>> macs = new ThreadLocal<Map<SecretKeySpec, Mac>>() {
+		@Override
+		protected Map<SecretKeySpec, Mac> initialValue() {
+			return new HashMap<SecretKeySpec, Mac>();
+		}
+	};
+
+	/**
+	 * Creates the signer.
+	 * @param keyId ID of the signing key, stored in every token.
+	 * @param key Signing key, at least 32 random bytes.
+	 * @throws IllegalArgumentException if the key is shorter than 32 bytes.
+	 */
+	public AccessTokenSigner(String keyId, byte[] key) {
+		addVerificationKey(keyId, key);
+		this.signingKeyId = keyId;
+	}
+
+	/**
+	 * Adds a key accepted when verifying tokens, such as the previous or the next signing key.
+	 * @param keyId Key ID.
+	 * @param key Key, at least 32 random bytes.
+	 * @throws IllegalArgumentException if the key is shorter than 32 bytes.
+	 */
+	public void addVerificationKey(String keyId, byte[] key) {
+		if (key == null || key.length < 32) {
+			throw new IllegalArgumentException("HMAC key " + keyId + " must have at least 32 bytes.");
+		}
+		SecretKeySpec spec = new SecretKeySpec(key.clone(), ALGORITHM);
+		// fails early if the algorithm is not available or rejects the key
+		initMac(spec);
+		keys.put(keyId, spec);
+	}
+
+	/**
+	 * Stops accepting tokens signed with the given key.
+	 * @param keyId Key ID, other than the one of the signing key.
+	 */
+	public void removeVerificationKey(String keyId) {
+		if (keyId.equals(signingKeyId)) {
+			throw new IllegalArgumentException("Cannot remove the signing key " + keyId + ".");
+		}
+		keys.remove(keyId);
+	}
+
+	/**
+	 * Signs new tokens with another key already added by {@link #addVerificationKey(String, byte[])}.
+	 * @param keyId Key ID.
+	 */
+	public void setSigningKeyId(String keyId) {
+		if (!keys.containsKey(keyId)) {
+			throw new IllegalArgumentException("Unknown HMAC key " + keyId + ".");
+		}
+		this.signingKeyId = keyId;
+	}
+
+	/**
+	 * Sets the codec of the token and authentication in the payload. All instances must decode what the others
+	 * encode.
+	 * @param codec Token codec, {@link BinaryTokenCodec} by default.
+	 */
+	public void setTokenCodec(TokenCodec codec) {
+		this.codec = codec;
+	}
+
+	@Override
+	public OAuth2AccessToken enhance(OAuth2AccessToken accessToken, OAuth2Authentication authentication) {
+		DefaultOAuth2AccessToken body = new DefaultOAuth2AccessToken(accessToken);
+		body.setValue("");
+		body.setRefreshToken(null);
+
+		String keyId = signingKeyId;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(FORMAT);
+			out.writeUTF(keyId);
+			out.writeUTF(accessToken.getValue());
+			out.writeBoolean(accessToken.getRefreshToken() != null);
+			writeBlock(out, codec.encodeAccessToken(body));
+			writeBlock(out, codec.encodeAuthentication(authentication));
+			out.flush();
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to encode access token.", e);
+		}
+		byte[] payload = bytes.toByteArray();
+		byte[] signature = mac(keys.get(keyId)).doFinal(payload);
+
+		StringBuilder value = new StringBuilder((payload.length + signature.length) * 4 / 3 + 4);
+		encode(payload, value);
+		value.append(SEPARATOR);
+		encode(signature, value);
+
+		DefaultOAuth2AccessToken result = new DefaultOAuth2AccessToken(accessToken);
+		result.setValue(value.toString());
+		return result;
+	}
+
+	/**
+	 * Tells whether the value has the form of a signed token, without verifying it. Values generated by
+	 * {@link org.springframework.security.oauth2.provider.token.DefaultTokenServices} never have it.
+	 * @param value Access token value.
+	 * @return {@code true} if the value may be a signed token.
+	 */
+	public boolean isSigned(String value) {
+		return value != null && value.indexOf(SEPARATOR) > 0;
+	}
+
+	/**
+	 * Verifies the signature of the value and decodes the token and its authentication.
+	 * @param value Access token value.
+	 * @return Decoded token or {@code null} if the value is malformed, signed by an unknown key or the signature does
+	 *         not match.
+	 */
+	public SignedAccessToken verify(String value) {
+		int separator = value.indexOf(SEPARATOR);
+		if (separator <= 0) {
+			return null;
+		}
+		byte[] payload = decode(value, 0, separator);
+		byte[] signature = decode(value, separator + 1, value.length());
+		if (payload == null || signature == null) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			if (in.readUnsignedByte() != FORMAT) {
+				return null;
+			}
+			SecretKeySpec key = keys.get(in.readUTF());
+			if (key == null || !MessageDigest.isEqual(signature, mac(key).doFinal(payload))) {
+				return null;
+			}
+			in.readUTF();
+			boolean refreshToken = in.readBoolean();
+			DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(codec.decodeAccessToken(readBlock(in)));
+			accessToken.setValue(value);
+			OAuth2Authentication authentication = codec.decodeAuthentication(readBlock(in));
+			return new SignedAccessToken(accessToken, refreshToken, authentication);
+		} catch (IOException | TokenDeserializationException e) {
+			// correctly signed by a key of ours, so the codecs of the instances disagree
+			LOG.warn("Failed to decode signed access token", e);
+			return null;
+		}
+	}
+
+	private Mac mac(SecretKeySpec key) {
+		Map<SecretKeySpec, Mac> macs = this.macs.get();
+		Mac mac = macs.get(key);
+		if (mac == null) {
+			if (macs.size() >= keys.size()) {
+				macs.keySet().retainAll(keys.values());
+			}
+			mac = initMac(key);
+			macs.put(key, mac);
+		}
+		return mac;
+	}
+
+	private static Mac initMac(SecretKeySpec key) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			return mac;
+		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+			throw new IllegalStateException(ALGORITHM + " not available.", e);
+		}
+	}
+
+	private static void writeBlock(DataOutputStream out, byte[] block) throws IOException {
+		out.writeInt(block.length);
+		out.write(block);
+	}
+
+	private static byte[] readBlock(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > in.available()) {
+			throw new IOException("Invalid block length " + length);
+		}
+		byte[] block = new byte[length];
+		in.readFully(block);
+		return block;
+	}
+
+	/**
+	 * Appends the bytes in URL-safe Base64 without padding.
+	 */
+	private static void encode(byte[] bytes, StringBuilder out) {
+		int i = 0;
+		for (; i + 2 < bytes.length; i += 3) {
+			int b = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+			out.append(BASE64[b >>> 18]).append(BASE64[(b >>> 12) & 0x3f]).append(BASE64[(b >>> 6) & 0x3f])
+					.append(BASE64[b & 0x3f]);
+		}
+		if (i < bytes.length) {
+			int b = (bytes[i] & 0xff) << 16 | (i + 1 < bytes.length ? (bytes[i + 1] & 0xff) << 8 : 0);
+			out.append(BASE64[b >>> 18]).append(BASE64[(b >>> 12) & 0x3f]);
+			if (i + 1 < bytes.length) {
+				out.append(BASE64[(b >>> 6) & 0x3f]);
+			}
+		}
+	}
+
+	/**
+	 * Decodes URL-safe Base64 without padding. Only the encoding produced by {@link #encode} is accepted, so that no
+	 * other value carries the same payload and signature.
+	 * @return Decoded bytes or {@code null} if the characters are not valid Base64.
+	 */
+	private static byte[] decode(String value, int from, int to) {
+		int length = to - from;
+		if (length % 4 == 1) {
+			return null;
+		}
+		byte[] bytes = new byte[length * 3 / 4];
+		int bits = 0;
+		int count = 0;
+		int j = 0;
+		for (int i = from; i < to; i++) {
+			char c = value.charAt(i);
+			int v = c < 128 ? BASE64_VALUES[c] : -1;
+			if (v < 0) {
+				return null;
+			}
+			bits = bits << 6 | v;
+			count += 6;
+			if (count >= 8) {
+				count -= 8;
+				bytes[j++] = (byte) (bits >>> count);
+			}
+		}
+		return (bits & ((1 << count) - 1)) == 0 ? bytes : null;
+	}
+
+	/**
+	 * Access token and authentication decoded from a verified token value.
+	 */
+	public static final class SignedAccessToken {
+
+		private final DefaultOAuth2AccessToken accessToken;
+		private final boolean refreshToken;
+		private final OAuth2Authentication authentication;
+
+		SignedAccessToken(DefaultOAuth2AccessToken accessToken, boolean refreshToken,
+				OAuth2Authentication authentication) {
+			this.accessToken = accessToken;
+			this.refreshToken = refreshToken;
+			this.authentication = authentication;
+		}
+
+		/**
+		 * @return Access token with the signed value and without its refresh token.
+		 */
+		public DefaultOAuth2AccessToken getAccessToken() {
+			return accessToken;
+		}
+
+		/**
+		 * @return {@code true} if the token was issued with a refresh token.
+		 */
+		public boolean hasRefreshToken() {
+			return refreshToken;
+		}
+
+		public OAuth2Authentication getAuthentication() {
+			return authentication;
+		}
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import java.util.Collections;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import com.github.biegleux.gae.oauth.tokenstore.cache.AccessTokenCache;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.TokenDeserializationException;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreRefreshTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DeferredFuture;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthAccessToken;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthRefreshToken;
+import com.google.appengine.api.utils.FutureWrapper;
+
+/**
+ * Token store offering, next to the blocking {@link org.springframework.security.oauth2.provider.token.TokenStore}
+ * methods, asynchronous variants built on the {@link com.google.appengine.api.datastore.AsyncDatastoreService}.
+ * <p>
+ * The {@code *Async} methods issue their datastore calls and return immediately, so independent lookups and writes,
+ * such as reading an access token and a refresh token, run concurrently and are joined by calling {@link Future#get()}.
+ * Work depending on the results of those calls runs in {@link Future#get()}: removing copies stored under allocated
+ * IDs and index entities, removing the access tokens of a refresh token, repairing the authentication of an access
+ * token, removing tokens that cannot be deserialized, and invalidating cached tokens. Callers must therefore call
+ * {@link Future#get()} on every returned future before the request ends, otherwise that work is not done.
+ */
+public class AsyncGaeTokenStore extends GaeTokenStore {
+
+	private static final Log LOG = LogFactory.getLog(AsyncGaeTokenStore.class);
+
+	private final DatastoreAccessTokenRepository accessTokens;
+	private final DatastoreRefreshTokenRepository refreshTokens;
+
+	public AsyncGaeTokenStore() {
+		this(new DatastoreAccessTokenRepository(), new DatastoreRefreshTokenRepository());
+	}
+
+	public AsyncGaeTokenStore(DatastoreAccessTokenRepository accessTokens, DatastoreRefreshTokenRepository refreshTokens) {
+		super(accessTokens, refreshTokens);
+		this.accessTokens = accessTokens;
+		this.refreshTokens = refreshTokens;
+	}
+
+	public Future<OAuth2AccessToken> getAccessTokenAsync(final OAuth2Authentication authentication) {
+		final String key = getAuthenticationKeyGenerator().extractKey(authentication);
+		return new Result<GaeOAuthAccessToken, OAuth2AccessToken>(accessTokens.findByAuthenticationIdAsync(key)) {
+
+			@Override
+			protected OAuth2AccessToken wrap(GaeOAuthAccessToken gaeOAuthAccessToken) {
+				if (gaeOAuthAccessToken == null) {
+					return null;
+				}
+				OAuth2AccessToken accessToken;
+				OAuth2Authentication storedAuthentication;
+				try {
+					accessToken = gaeOAuthAccessToken.getToken();
+					storedAuthentication = gaeOAuthAccessToken.getAuthentication();
+				} catch (TokenDeserializationException e) {
+					LOG.error("Could not extract access token for authentication " + authentication, e);
+					return null;
+				}
+				if (accessToken != null && (storedAuthentication == null
+						|| !key.equals(getAuthenticationKeyGenerator().extractKey(storedAuthentication)))) {
+					GaeOAuthAccessToken updated = createGaeOAuthAccessToken(accessToken, authentication);
+					updated.setKey(gaeOAuthAccessToken.getKey());
+					DeferredFuture.getResult(accessTokens.upsertAsync(updated));
+					invalidateCachedAccessToken(updated.getTokenId());
+				}
+				return accessToken;
+			}
+		};
+	}
+
+	public Future<OAuth2AccessToken> readAccessTokenAsync(final String tokenValue) {
+		final String tokenKey = extractTokenKey(tokenValue);
+		AccessTokenSigner.SignedAccessToken signed = verifySignedAccessToken(tokenValue);
+		if (signed != null) {
+			return DeferredFuture.of(isRevokedAccessToken(tokenKey) ? null : toAccessToken(signed, tokenKey));
+		}
+		AccessTokenCache.Entry cached = getCachedAccessToken(tokenKey);
+		if (cached != null) {
+			return DeferredFuture.of(cached.getAccessToken());
+		}
+		if (isUnknownTokenKey(tokenKey)) {
+			return DeferredFuture.of(null);
+		}
+		final long cacheVersion = getAccessTokenCacheVersion(tokenKey);
+		return new Result<GaeOAuthAccessToken, OAuth2AccessToken>(accessTokens.findByTokenIdAsync(tokenKey)) {
+
+			@Override
+			protected OAuth2AccessToken wrap(GaeOAuthAccessToken gaeOAuthAccessToken) {
+				if (gaeOAuthAccessToken == null) {
+					cacheMissingAccessToken(tokenKey, cacheVersion);
+					return null;
+				}
+				try {
+					OAuth2AccessToken accessToken = gaeOAuthAccessToken.getToken();
+					cacheAccessToken(gaeOAuthAccessToken, cacheVersion);
+					return accessToken;
+				} catch (TokenDeserializationException e) {
+					LOG.warn("Failed to deserialize access token for " + tokenValue, e);
+					DeferredFuture.getResult(removeAccessTokenAsync(tokenValue));
+					return null;
+				}
+			}
+		};
+	}
+
+	public Future<OAuth2Authentication> readAuthenticationAsync(final String tokenValue) {
+		final String tokenKey = extractTokenKey(tokenValue);
+		AccessTokenSigner.SignedAccessToken signed = verifySignedAccessToken(tokenValue);
+		if (signed != null) {
+			return DeferredFuture.of(isRevokedAccessToken(tokenKey) ? null : signed.getAuthentication());
+		}
+		AccessTokenCache.Entry cached = getCachedAccessToken(tokenKey);
+		if (cached != null) {
+			return DeferredFuture.of(cached.getAuthentication());
+		}
+		if (isUnknownTokenKey(tokenKey)) {
+			return DeferredFuture.of(null);
+		}
+		final long cacheVersion = getAccessTokenCacheVersion(tokenKey);
+		return new Result<GaeOAuthAccessToken, OAuth2Authentication>(accessTokens.findByTokenIdAsync(tokenKey)) {
+
+			@Override
+			protected OAuth2Authentication wrap(GaeOAuthAccessToken gaeOAuthAccessToken) {
+				if (gaeOAuthAccessToken == null) {
+					cacheMissingAccessToken(tokenKey, cacheVersion);
+					return null;
+				}
+				try {
+					OAuth2Authentication authentication = gaeOAuthAccessToken.getAuthentication();
+					cacheAccessToken(gaeOAuthAccessToken, cacheVersion);
+					return authentication;
+				} catch (TokenDeserializationException e) {
+					LOG.warn("Failed to deserialize authentication for " + tokenValue, e);
+					DeferredFuture.getResult(removeAccessTokenAsync(tokenValue));
+					return null;
+				}
+			}
+		};
+	}
+
+	public Future<Void> storeAccessTokenAsync(OAuth2AccessToken token, OAuth2Authentication authentication) {
+		final GaeOAuthAccessToken gaeOAuthAccessToken = createGaeOAuthAccessToken(token, authentication);
+		addTokenKey(gaeOAuthAccessToken.getTokenId());
+		invalidateCachedAccessToken(gaeOAuthAccessToken.getTokenId());
+		return new Result<GaeOAuthAccessToken, Void>(accessTokens.upsertAsync(gaeOAuthAccessToken)) {
+
+			@Override
+			protected Void wrap(GaeOAuthAccessToken result) {
+				invalidateCachedAccessToken(gaeOAuthAccessToken.getTokenId());
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Removes the access token without waiting for the delete. The revocation of a signed token is recorded before
+	 * returning, copies stored under allocated IDs are removed in {@link Future#get()}.
+	 */
+	public Future<Void> removeAccessTokenAsync(String tokenValue) {
+		final String tokenKey = extractTokenKey(tokenValue);
+		revokeSignedAccessTokens(Collections.singletonMap(tokenKey, tokenValue));
+		invalidateCachedAccessToken(tokenKey);
+		return new Result<Long, Void>(accessTokens.deleteByTokenIdAsync(tokenKey)) {
+
+			@Override
+			protected Void wrap(Long count) {
+				invalidateCachedAccessToken(tokenKey);
+				return null;
+			}
+		};
+	}
+
+	public Future<Void> storeRefreshTokenAsync(OAuth2RefreshToken refreshToken, OAuth2Authentication authentication) {
+		GaeOAuthRefreshToken gaeOAuthRefreshToken = createGaeOAuthRefreshToken(refreshToken, authentication);
+		addTokenKey(gaeOAuthRefreshToken.getTokenId());
+		return new Result<GaeOAuthRefreshToken, Void>(refreshTokens.saveAsync(gaeOAuthRefreshToken)) {
+
+			@Override
+			protected Void wrap(GaeOAuthRefreshToken result) {
+				return null;
+			}
+		};
+	}
+
+	public Future<OAuth2RefreshToken> readRefreshTokenAsync(final String tokenValue) {
+		String tokenKey = extractTokenKey(tokenValue);
+		if (isUnknownTokenKey(tokenKey)) {
+			return DeferredFuture.of(null);
+		}
+		return new Result<GaeOAuthRefreshToken, OAuth2RefreshToken>(refreshTokens.findByTokenIdAsync(tokenKey)) {
+
+			@Override
+			protected OAuth2RefreshToken wrap(GaeOAuthRefreshToken gaeOAuthRefreshToken) {
+				try {
+					return gaeOAuthRefreshToken != null ? gaeOAuthRefreshToken.getToken() : null;
+				} catch (TokenDeserializationException e) {
+					LOG.warn("Failed to deserialize refresh token for token " + tokenValue, e);
+					DeferredFuture.getResult(removeRefreshTokenAsync(tokenValue));
+					return null;
+				}
+			}
+		};
+	}
+
+	public Future<OAuth2Authentication> readAuthenticationForRefreshTokenAsync(final String tokenValue) {
+		String tokenKey = extractTokenKey(tokenValue);
+		if (isUnknownTokenKey(tokenKey)) {
+			return DeferredFuture.of(null);
+		}
+		return new Result<GaeOAuthRefreshToken, OAuth2Authentication>(refreshTokens.findByTokenIdAsync(tokenKey)) {
+
+			@Override
+			protected OAuth2Authentication wrap(GaeOAuthRefreshToken gaeOAuthRefreshToken) {
+				try {
+					return gaeOAuthRefreshToken != null ? gaeOAuthRefreshToken.getAuthentication() : null;
+				} catch (TokenDeserializationException e) {
+					LOG.warn("Failed to deserialize access token for " + tokenValue, e);
+					DeferredFuture.getResult(removeRefreshTokenAsync(tokenValue));
+					return null;
+				}
+			}
+		};
+	}
+
+	public Future<Void> removeRefreshTokenAsync(String tokenValue) {
+		return new Result<Long, Void>(refreshTokens.deleteByTokenIdAsync(extractTokenKey(tokenValue))) {
+
+			@Override
+			protected Void wrap(Long count) {
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Removes the access tokens of the refresh token without waiting for the delete. Revocations of signed tokens are
+	 * recorded before returning, the access tokens and their index entities are looked up in the background and
+	 * removed in {@link Future#get()}.
+	 */
+	public Future<Void> removeAccessTokenUsingRefreshTokenAsync(String refreshToken) {
+		final String refreshTokenKey = extractTokenKey(refreshToken);
+		revokeAccessTokens(refreshTokenKey);
+		return new Result<Long, Void>(accessTokens.deleteByRefreshTokenAsync(refreshTokenKey)) {
+
+			@Override
+			protected Void wrap(Long count) {
+				invalidateCachedAccessTokens(refreshTokenKey);
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Converts the result of a repository future, passing its failures through unchanged.
+	 */
+	private abstract static class Result<K, V> extends FutureWrapper<K, V> {
+
+		Result(Future<K> parent) {
+			super(parent);
+		}
+
+		@Override
+		protected Throwable convertException(Throwable cause) {
+			return cause;
+		}
+	}
+}
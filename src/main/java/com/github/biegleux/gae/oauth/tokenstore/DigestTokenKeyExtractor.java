@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * {@link TokenKeyExtractor} which hashes the UTF-8 bytes of the token value and encodes the digest as lower case hex.
+ * <p>
+ * Digests and buffers are kept per thread, so extracting a key allocates little more than the resulting string. With
+ * {@link #MD5} the keys are identical to the ones produced by 0.2, {@link #SHA_256} is meant for new deployments only
+ * since switching the algorithm makes tokens stored earlier unreachable.
+ */
+public class DigestTokenKeyExtractor implements TokenKeyExtractor {
+
+	public static final String MD5 = "MD5";
+
+	public static final String SHA_256 = "SHA-256";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final String algorithm;
+
+	private final ThreadLocal<State> state = new ThreadLocal<State>() {
+		@Override
+		protected State initialValue() {
+			return new State(newDigest(algorithm));
+		}
+	};
+
+	public DigestTokenKeyExtractor() {
+		this(MD5);
+	}
+
+	/**
+	 * Creates the extractor.
+	 * @param algorithm Name of the message digest algorithm, such as {@link #MD5} or {@link #SHA_256}.
+	 * @throws IllegalStateException if the algorithm is not available.
+	 */
+	public DigestTokenKeyExtractor(String algorithm) {
+		this.algorithm = algorithm;
+		newDigest(algorithm);
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	@Override
+	public String extractKey(String value) {
+		State state = this.state.get();
+		MessageDigest digest = state.digest;
+		int length = value.length();
+		byte[] input = state.input(length);
+		int i = 0;
+		for (; i < length; i++) {
+			char c = value.charAt(i);
+			if (c >= 0x80) {
+				break;
+			}
+			input[i] = (byte) c;
+		}
+		if (i == length) {
+			digest.update(input, 0, length);
+		} else {
+			digest.update(value.getBytes(StandardCharsets.UTF_8));
+		}
+
+		byte[] output = state.output;
+		try {
+			digest.digest(output, 0, output.length);
+		} catch (DigestException e) {
+			digest.reset();
+			throw new IllegalStateException(algorithm + " digest failed.", e);
+		}
+
+		char[] hex = state.hex;
+		for (int j = 0; j < output.length; j++) {
+			int b = output[j] & 0xff;
+			hex[2 * j] = HEX[b >>> 4];
+			hex[2 * j + 1] = HEX[b & 0x0f];
+		}
+		return new String(hex);
+	}
+
+	private static MessageDigest newDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(algorithm + " algorithm not available.");
+		}
+	}
+
+	/**
+	 * Digest and buffers owned by a single thread.
+	 */
+	private static final class State {
+
+		private static final int MAX_RETAINED_INPUT = 4096;
+
+		final MessageDigest digest;
+		final byte[] output;
+		final char[] hex;
+		private byte[] input = new byte[64];
+
+		State(MessageDigest digest) {
+			this.digest = digest;
+			this.output = new byte[digest.getDigestLength()];
+			this.hex = new char[2 * output.length];
+		}
+
+		byte[] input(int length) {
+			if (length <= input.length) {
+				return input;
+			}
+			byte[] buffer = new byte[length];
+			if (length <= MAX_RETAINED_INPUT) {
+				input = buffer;
+			}
+			return buffer;
+		}
+	}
+}
@@ -18,88 +18,309 @@
 
 package com.github.biegleux.gae.oauth.tokenstore;
 
-import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Future;
 
 import javax.jdo.JDOException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.ExpiringOAuth2RefreshToken;
 import org.springframework.security.oauth2.common.OAuth2AccessToken;
 import org.springframework.security.oauth2.common.OAuth2RefreshToken;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
 import org.springframework.security.oauth2.provider.token.AuthenticationKeyGenerator;
 import org.springframework.security.oauth2.provider.token.DefaultAuthenticationKeyGenerator;
 import org.springframework.security.oauth2.provider.token.TokenStore;
 
+import com.github.biegleux.gae.oauth.tokenstore.cache.AccessTokenCache;
+import com.github.biegleux.gae.oauth.tokenstore.cache.LookupCoalescer;
+import com.github.biegleux.gae.oauth.tokenstore.metrics.Counter;
+import com.github.biegleux.gae.oauth.tokenstore.metrics.JmxMetricsSink;
+import com.github.biegleux.gae.oauth.tokenstore.metrics.Metrics;
+import com.github.biegleux.gae.oauth.tokenstore.metrics.MetricsSink;
+import com.github.biegleux.gae.oauth.tokenstore.metrics.Operation;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.AccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.BatchResult;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.Batches;
 import com.github.biegleux.gae.oauth.tokenstore.persistence.GaeOAuthAccessTokenRepository;
 import com.github.biegleux.gae.oauth.tokenstore.persistence.GaeOAuthRefreshTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.Page;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.RefreshTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.TokenDeserializationException;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.TransactionalAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.TransactionalRefreshTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.BinaryTokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.SerializationTokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.TokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DeferredFuture;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.TokenKeyFilter;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.TokenRevocationList;
 import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthAccessToken;
 import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthRefreshToken;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
 
 /**
  * Implementation of token services that stores OAuth tokens in GAE Datastore.
+ * <p>
+ * By default tokens are persisted through JDO. Other {@link AccessTokenRepository} and {@link RefreshTokenRepository}
+ * implementations, such as the ones built on the low-level datastore API, can be provided to the constructor.
  */
 public class GaeTokenStore implements TokenStore {
 
 	private static final Log LOG = LogFactory.getLog(GaeTokenStore.class);
 
+	/**
+	 * Client ID and user name of the throwaway tokens written by {@link #warmUp()}.
+	 */
+	public static final String WARMUP_CLIENT_ID = "gae-tokenstore-warmup";
+
+	private static final long WARMUP_TOKEN_MILLIS = 60 * 1000;
+
 	private AuthenticationKeyGenerator authenticationKeyGenerator = new DefaultAuthenticationKeyGenerator();
 
-	private final GaeOAuthAccessTokenRepository accessTokens;
-	private final GaeOAuthRefreshTokenRepository refreshTokens;
+	private TokenKeyExtractor tokenKeyExtractor = new DigestTokenKeyExtractor();
+
+	private final AccessTokenRepository accessTokens;
+	private final RefreshTokenRepository refreshTokens;
+
+	private AccessTokenCache accessTokenCache;
+
+	private int batchSize = Batches.DEFAULT_BATCH_SIZE;
+
+	private TokenCodec tokenCodec = new SerializationTokenCodec();
+
+	private MetricsSink metricsSink;
+
+	private TokenKeyFilter tokenKeyFilter;
+
+	private LookupCoalescer lookupCoalescer;
+
+	private AccessTokenSigner accessTokenSigner;
+
+	private TokenRevocationList tokenRevocationList;
+
+	private boolean warmupWrites = true;
 
 	public GaeTokenStore() {
-		accessTokens = new GaeOAuthAccessTokenRepository();
-		refreshTokens = new GaeOAuthRefreshTokenRepository();
+		this(new GaeOAuthAccessTokenRepository(), new GaeOAuthRefreshTokenRepository());
+	}
+
+	public GaeTokenStore(AccessTokenRepository accessTokens, RefreshTokenRepository refreshTokens) {
+		this.accessTokens = accessTokens;
+		this.refreshTokens = refreshTokens;
 	}
 
 	public void setAuthenticationKeyGenerator(AuthenticationKeyGenerator authenticationKeyGenerator) {
 		this.authenticationKeyGenerator = authenticationKeyGenerator;
 	}
 
+	protected AuthenticationKeyGenerator getAuthenticationKeyGenerator() {
+		return authenticationKeyGenerator;
+	}
+
+	/**
+	 * Sets the strategy deriving token keys from token values. Changing it makes previously stored tokens unreachable.
+	 * @param tokenKeyExtractor Token key extractor, MD5 based {@link DigestTokenKeyExtractor} by default.
+	 */
+	public void setTokenKeyExtractor(TokenKeyExtractor tokenKeyExtractor) {
+		this.tokenKeyExtractor = tokenKeyExtractor;
+	}
+
+	/**
+	 * Sets the per instance cache of access tokens and their authentications consulted by {@link #readAccessToken}
+	 * and {@link #readAuthentication} before the datastore.
+	 * @param accessTokenCache Cache of access tokens, {@code null} (the default) disables caching.
+	 */
+	public void setAccessTokenCache(AccessTokenCache accessTokenCache) {
+		this.accessTokenCache = accessTokenCache;
+	}
+
+	/**
+	 * Stores new access and refresh tokens with their token key as the entity key name, turning lookups and deletes
+	 * by token value into key operations.
+	 * @param tokenKeyNames {@code true} to address tokens by key name, {@code false} by default.
+	 */
+	public void setTokenKeyNames(boolean tokenKeyNames) {
+		accessTokens.setTokenKeyNames(tokenKeyNames);
+		refreshTokens.setTokenKeyNames(tokenKeyNames);
+	}
+
+	/**
+	 * Controls whether token lookups fall back to a query for tokens stored without key names (0.2 and earlier).
+	 * Together with token key names, disabling it makes {@link #storeAccessToken} a single put; new deployments
+	 * without such tokens can disable it from the start.
+	 * @param legacyLookup {@code false} once all such tokens are gone, {@code true} by default.
+	 */
+	public void setLegacyLookup(boolean legacyLookup) {
+		accessTokens.setLegacyLookup(legacyLookup);
+		refreshTokens.setLegacyLookup(legacyLookup);
+	}
+
+	/**
+	 * Sets the codec of the stored token and authentication blobs. Blobs written by any codec shipped with the token
+	 * store remain readable by {@link BinaryTokenCodec}, so the codec can be switched without migrating entities.
+	 * @param tokenCodec Token codec, {@link SerializationTokenCodec} by default.
+	 */
+	public void setTokenCodec(TokenCodec tokenCodec) {
+		this.tokenCodec = tokenCodec;
+		accessTokens.setCodec(tokenCodec);
+		refreshTokens.setCodec(tokenCodec);
+	}
+
+	/**
+	 * Sets the maximum number of tokens read, written or deleted by one datastore call of the batch operations.
+	 * @param batchSize Batch size, {@link Batches#DEFAULT_BATCH_SIZE} by default.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		accessTokens.setBatchSize(batchSize);
+		refreshTokens.setBatchSize(batchSize);
+	}
+
+	/**
+	 * Sets the sink receiving call latencies and counters of the {@link TokenStore} methods, such as datastore RPCs,
+	 * bytes decoded and cache hits. Counting costs a volatile read per counted event while no store has a sink.
+	 * @param metricsSink Metrics sink, {@code null} (the default) disables metrics.
+	 * @see JmxMetricsSink
+	 */
+	public void setMetricsSink(MetricsSink metricsSink) {
+		this.metricsSink = metricsSink;
+	}
+
+	/**
+	 * Sets a filter of the keys of all stored tokens, letting lookups of tokens that were never stored return
+	 * {@code null} without a datastore call. Every token store writing tokens must use a filter with the same name.
+	 * @param tokenKeyFilter Token key filter, {@code null} (the default) looks up every token.
+	 */
+	public void setTokenKeyFilter(TokenKeyFilter tokenKeyFilter) {
+		this.tokenKeyFilter = tokenKeyFilter;
+	}
+
+	/**
+	 * Lets concurrent {@link #readAccessToken} and {@link #readAuthentication} calls for the same token share one
+	 * datastore lookup and deserialization, after the access token cache was missed.
+	 * @param lookupCoalescer Lookup coalescer, {@code null} (the default) disables coalescing.
+	 */
+	public void setLookupCoalescer(LookupCoalescer lookupCoalescer) {
+		this.lookupCoalescer = lookupCoalescer;
+	}
+
+	/**
+	 * Sets the signer of the access tokens issued by the token services, which must also be their token enhancer.
+	 * Together with a {@link #setTokenRevocationList(TokenRevocationList) revocation list}, {@link #readAccessToken}
+	 * and {@link #readAuthentication} verify and decode signed tokens locally instead of looking them up; the tokens
+	 * are still stored for listing, refresh and revocation. Tokens that cannot be verified, such as ones issued before
+	 * signing was enabled, are looked up as usual. Signed values do not carry the refresh token, so the refresh token
+	 * of a token returned by {@link #readAccessToken} is looked up when it is first asked for.
+	 * @param accessTokenSigner Access token signer, {@code null} (the default) looks up every token.
+	 */
+	public void setAccessTokenSigner(AccessTokenSigner accessTokenSigner) {
+		this.accessTokenSigner = accessTokenSigner;
+	}
+
+	/**
+	 * Sets the list recording the revocation of signed access tokens and consulted when verifying them. Every token
+	 * store removing tokens must use one.
+	 * @param tokenRevocationList Revocation list, {@code null} (the default) looks up every token.
+	 */
+	public void setTokenRevocationList(TokenRevocationList tokenRevocationList) {
+		this.tokenRevocationList = tokenRevocationList;
+	}
+
+	/**
+	 * Sets whether {@link #warmUp()} stores, reads and removes throwaway tokens, which also initializes the write
+	 * path. Without writes it only encodes sample tokens and looks up a token that does not exist.
+	 * @param warmupWrites {@code false} to warm up without writing to the datastore, {@code true} by default.
+	 */
+	public void setWarmupWrites(boolean warmupWrites) {
+		this.warmupWrites = warmupWrites;
+	}
+
 	@Override
 	public OAuth2AccessToken getAccessToken(OAuth2Authentication authentication) {
-		OAuth2AccessToken accessToken = null;
-
-		String key = authenticationKeyGenerator.extractKey(authentication);
+		long start = beginCall(Operation.GET_ACCESS_TOKEN);
 		try {
-			GaeOAuthAccessToken gaeOAuthAccessToken = accessTokens.findByAuthenticationId(key);
-			if (gaeOAuthAccessToken != null) {
-				accessToken = gaeOAuthAccessToken.getToken();
-			} else {
-				if (LOG.isDebugEnabled()) {
-					LOG.debug("Failed to find access token for authentication " + authentication);
+			OAuth2AccessToken accessToken = null;
+			OAuth2Authentication storedAuthentication = null;
+			GaeOAuthAccessToken gaeOAuthAccessToken = null;
+
+			String key = authenticationKeyGenerator.extractKey(authentication);
+			try {
+				gaeOAuthAccessToken = accessTokens.findByAuthenticationId(key);
+				if (gaeOAuthAccessToken != null) {
+					accessToken = gaeOAuthAccessToken.getToken();
+					storedAuthentication = gaeOAuthAccessToken.getAuthentication();
+				} else {
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("Failed to find access token for authentication " + authentication);
+					}
 				}
+			} catch (JDOException | TokenDeserializationException e) {
+				Metrics.count(Counter.DESERIALIZATION_FAILURES, 1);
+				LOG.error("Could not extract access token for authentication " + authentication, e);
 			}
-		} catch (JDOException e) {
-			LOG.error("Could not extract access token for authentication " + authentication, e);
-		}
 
-		if (accessToken != null && !key.equals(authenticationKeyGenerator.extractKey(readAuthentication(accessToken.getValue())))) {
-			removeAccessToken(accessToken.getValue());
-			// Keep the store consistent (maybe the same user is represented by this authentication but the details have changed)
-			storeAccessToken(accessToken, authentication);
+			if (accessToken != null && (storedAuthentication == null
+					|| !key.equals(authenticationKeyGenerator.extractKey(storedAuthentication)))) {
+				// Keep the store consistent (maybe the same user is represented by this authentication but the details have changed),
+				// overwriting the loaded entity in place takes a single write
+				GaeOAuthAccessToken updated = createGaeOAuthAccessToken(accessToken, authentication);
+				updated.setKey(gaeOAuthAccessToken.getKey());
+				accessTokens.upsert(updated);
+				invalidateCachedAccessToken(updated.getTokenId());
+			}
+			return accessToken;
+		} finally {
+			endCall(start);
 		}
-		return accessToken;
 	}
 
+	/**
+	 * Stores the access token in place of any token with the same value. The previous token is not read. With token
+	 * key names enabled and legacy lookup disabled this is a single put. In the default configuration the put is
+	 * followed by a keys-only query and, when it finds a copy stored under an allocated ID, a delete.
+	 */
 	@Override
 	public void storeAccessToken(OAuth2AccessToken token, OAuth2Authentication authentication) {
+		long start = beginCall(Operation.STORE_ACCESS_TOKEN);
+		try {
+			GaeOAuthAccessToken gaeOAuthAccessToken = createGaeOAuthAccessToken(token, authentication);
+			addTokenKey(gaeOAuthAccessToken.getTokenId());
+			accessTokens.upsert(gaeOAuthAccessToken);
+			invalidateCachedAccessToken(gaeOAuthAccessToken.getTokenId());
+		} finally {
+			endCall(start);
+		}
+	}
+
+	protected GaeOAuthAccessToken createGaeOAuthAccessToken(OAuth2AccessToken token, OAuth2Authentication authentication) {
 		String refreshToken = null;
 		if (token.getRefreshToken() != null) {
 			refreshToken = token.getRefreshToken().getValue();
 		}
 
-		if (readAccessToken(token.getValue()) != null) {
-			removeAccessToken(token.getValue());
-		}
-
 		GaeOAuthAccessToken gaeOAuthAccessToken = new GaeOAuthAccessToken();
 		gaeOAuthAccessToken.setTokenId(extractTokenKey(token.getValue()));
 		gaeOAuthAccessToken.setToken(token);
@@ -108,23 +329,60 @@ public class GaeTokenStore implements TokenStore {
 		gaeOAuthAccessToken.setClientId(authentication.getOAuth2Request().getClientId());
 		gaeOAuthAccessToken.setAuthentication(authentication);
 		gaeOAuthAccessToken.setRefreshToken(extractTokenKey(refreshToken));
-		accessTokens.save(gaeOAuthAccessToken);
+		return gaeOAuthAccessToken;
 	}
 
 	@Override
-	public OAuth2AccessToken readAccessToken(String tokenValue) {
+	public OAuth2AccessToken readAccessToken(final String tokenValue) {
+		long start = beginCall(Operation.READ_ACCESS_TOKEN);
+		try {
+			final String tokenKey = extractTokenKey(tokenValue);
+			AccessTokenSigner.SignedAccessToken signed = verifySignedAccessToken(tokenValue);
+			if (signed != null) {
+				return isRevokedAccessToken(tokenKey) ? null : toAccessToken(signed, tokenKey);
+			}
+			return readStoredAccessToken(tokenValue, tokenKey);
+		} finally {
+			endCall(start);
+		}
+	}
+
+	private OAuth2AccessToken readStoredAccessToken(final String tokenValue, final String tokenKey) {
+		AccessTokenCache.Entry cached = getCachedAccessToken(tokenKey);
+		if (cached != null) {
+			return cached.getAccessToken();
+		}
+		if (isUnknownTokenKey(tokenKey)) {
+			return null;
+		}
+
+		return coalesce("token:" + tokenKey, new LookupCoalescer.Lookup<OAuth2AccessToken>() {
+
+			@Override
+			public OAuth2AccessToken lookup() {
+				return findAccessToken(tokenValue, tokenKey);
+			}
+		});
+	}
+
+	private OAuth2AccessToken findAccessToken(String tokenValue, String tokenKey) {
 		OAuth2AccessToken accessToken = null;
 
+		long cacheVersion = getAccessTokenCacheVersion(tokenKey);
 		try {
-			GaeOAuthAccessToken gaeOAuthAccessToken = accessTokens.findByTokenId(extractTokenKey(tokenValue));
+			GaeOAuthAccessToken gaeOAuthAccessToken = accessTokens.findByTokenId(tokenKey);
 			if (gaeOAuthAccessToken != null) {
 				accessToken = gaeOAuthAccessToken.getToken();
+				cacheAccessToken(gaeOAuthAccessToken, cacheVersion);
 			} else {
-				if (LOG.isInfoEnabled()) {
-					LOG.info("Failed to find access token for token " + tokenValue);
+				cacheMissingAccessToken(tokenKey, cacheVersion);
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Failed to find access token for token " + tokenValue);
 				}
 			}
-		} catch (JDOException e) {
+		} catch (JDOException | TokenDeserializationException e) {
+			Metrics.count(Counter.DESERIALIZATION_FAILURES, 1);
+			Metrics.count(Counter.SELF_HEALING_DELETES, 1);
 			LOG.warn("Failed to deserialize access token for " + tokenValue, e);
 			removeAccessToken(tokenValue);
 		}
@@ -138,7 +396,15 @@ public class GaeTokenStore implements TokenStore {
 	}
 
 	public void removeAccessToken(String tokenValue) {
-		accessTokens.deleteByTokenId(extractTokenKey(tokenValue));
+		long start = beginCall(Operation.REMOVE_ACCESS_TOKEN);
+		try {
+			String tokenKey = extractTokenKey(tokenValue);
+			revokeSignedAccessTokens(Collections.singletonMap(tokenKey, tokenValue));
+			accessTokens.deleteByTokenId(tokenKey);
+			invalidateCachedAccessToken(tokenKey);
+		} finally {
+			endCall(start);
+		}
 	}
 
 	@Override
@@ -147,19 +413,52 @@ public class GaeTokenStore implements TokenStore {
 	}
 
 	@Override
-	public OAuth2Authentication readAuthentication(String token) {
+	public OAuth2Authentication readAuthentication(final String token) {
+		long start = beginCall(Operation.READ_AUTHENTICATION);
+		try {
+			final String tokenKey = extractTokenKey(token);
+			AccessTokenSigner.SignedAccessToken signed = verifySignedAccessToken(token);
+			if (signed != null) {
+				return isRevokedAccessToken(tokenKey) ? null : signed.getAuthentication();
+			}
+			AccessTokenCache.Entry cached = getCachedAccessToken(tokenKey);
+			if (cached != null) {
+				return cached.getAuthentication();
+			}
+			if (isUnknownTokenKey(tokenKey)) {
+				return null;
+			}
+
+			return coalesce("authentication:" + tokenKey, new LookupCoalescer.Lookup<OAuth2Authentication>() {
+
+				@Override
+				public OAuth2Authentication lookup() {
+					return findAuthentication(token, tokenKey);
+				}
+			});
+		} finally {
+			endCall(start);
+		}
+	}
+
+	private OAuth2Authentication findAuthentication(String token, String tokenKey) {
 		OAuth2Authentication authentication = null;
 
+		long cacheVersion = getAccessTokenCacheVersion(tokenKey);
 		try {
-			GaeOAuthAccessToken gaeOAuthAccessToken = accessTokens.findByTokenId(extractTokenKey(token));
+			GaeOAuthAccessToken gaeOAuthAccessToken = accessTokens.findByTokenId(tokenKey);
 			if (gaeOAuthAccessToken != null) {
 				authentication = gaeOAuthAccessToken.getAuthentication();
+				cacheAccessToken(gaeOAuthAccessToken, cacheVersion);
 			} else {
-				if (LOG.isInfoEnabled()) {
-					LOG.info("Failed to find access token for token " + token);
+				cacheMissingAccessToken(tokenKey, cacheVersion);
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Failed to find access token for token " + token);
 				}
 			}
-		} catch (JDOException e) {
+		} catch (JDOException | TokenDeserializationException e) {
+			Metrics.count(Counter.DESERIALIZATION_FAILURES, 1);
+			Metrics.count(Counter.SELF_HEALING_DELETES, 1);
 			LOG.warn("Failed to deserialize authentication for " + token, e);
 			removeAccessToken(token);
 		}
@@ -169,32 +468,54 @@ public class GaeTokenStore implements TokenStore {
 
 	@Override
 	public void storeRefreshToken(OAuth2RefreshToken refreshToken, OAuth2Authentication authentication) {
+		long start = beginCall(Operation.STORE_REFRESH_TOKEN);
+		try {
+			GaeOAuthRefreshToken gaeOAuthRefreshToken = createGaeOAuthRefreshToken(refreshToken, authentication);
+			addTokenKey(gaeOAuthRefreshToken.getTokenId());
+			refreshTokens.save(gaeOAuthRefreshToken);
+		} finally {
+			endCall(start);
+		}
+	}
+
+	protected GaeOAuthRefreshToken createGaeOAuthRefreshToken(OAuth2RefreshToken refreshToken, OAuth2Authentication authentication) {
 		GaeOAuthRefreshToken gaeOAuthRefreshToken = new GaeOAuthRefreshToken();
 		gaeOAuthRefreshToken.setTokenId(extractTokenKey(refreshToken.getValue()));
 		gaeOAuthRefreshToken.setToken(refreshToken);
 		gaeOAuthRefreshToken.setAuthentication(authentication);
-		refreshTokens.save(gaeOAuthRefreshToken);
+		return gaeOAuthRefreshToken;
 	}
 
 	@Override
 	public OAuth2RefreshToken readRefreshToken(String tokenValue) {
-		OAuth2RefreshToken refreshToken = null;
-
+		long start = beginCall(Operation.READ_REFRESH_TOKEN);
 		try {
-			GaeOAuthRefreshToken gaeOAuthRefreshToken = refreshTokens.findByTokenId(extractTokenKey(tokenValue));
-			if (gaeOAuthRefreshToken != null) {
-				refreshToken = gaeOAuthRefreshToken.getToken();
-			} else {
-				if (LOG.isInfoEnabled()) {
-					LOG.info("Failed to find refresh token for token " + tokenValue);
+			OAuth2RefreshToken refreshToken = null;
+
+			String tokenKey = extractTokenKey(tokenValue);
+			if (isUnknownTokenKey(tokenKey)) {
+				return null;
+			}
+			try {
+				GaeOAuthRefreshToken gaeOAuthRefreshToken = refreshTokens.findByTokenId(tokenKey);
+				if (gaeOAuthRefreshToken != null) {
+					refreshToken = gaeOAuthRefreshToken.getToken();
+				} else {
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("Failed to find refresh token for token " + tokenValue);
+					}
 				}
+			} catch (JDOException | TokenDeserializationException e) {
+				Metrics.count(Counter.DESERIALIZATION_FAILURES, 1);
+				Metrics.count(Counter.SELF_HEALING_DELETES, 1);
+				LOG.warn("Failed to deserialize refresh token for token " + tokenValue, e);
+				removeRefreshToken(tokenValue);
 			}
-		} catch (JDOException e) {
-			LOG.warn("Failed to deserialize refresh token for token " + tokenValue, e);
-			removeRefreshToken(tokenValue);
-		}
 
-		return refreshToken;
+			return refreshToken;
+		} finally {
+			endCall(start);
+		}
 	}
 
 	@Override
@@ -203,7 +524,12 @@ public class GaeTokenStore implements TokenStore {
 	}
 
 	public void removeRefreshToken(String token) {
-		refreshTokens.deleteByTokenId(extractTokenKey(token));
+		long start = beginCall(Operation.REMOVE_REFRESH_TOKEN);
+		try {
+			refreshTokens.deleteByTokenId(extractTokenKey(token));
+		} finally {
+			endCall(start);
+		}
 	}
 
 	@Override
@@ -212,23 +538,34 @@ public class GaeTokenStore implements TokenStore {
 	}
 
 	public OAuth2Authentication readAuthenticationForRefreshToken(String value) {
-		OAuth2Authentication authentication = null;
-
+		long start = beginCall(Operation.READ_AUTHENTICATION_FOR_REFRESH_TOKEN);
 		try {
-			GaeOAuthRefreshToken gaeOAuthRefreshToken = refreshTokens.findByTokenId(extractTokenKey(value));
-			if (gaeOAuthRefreshToken != null) {
-				authentication = gaeOAuthRefreshToken.getAuthentication();
-			} else {
-				if (LOG.isInfoEnabled()) {
-					LOG.info("Failed to find access token for token " + value);
+			OAuth2Authentication authentication = null;
+
+			String tokenKey = extractTokenKey(value);
+			if (isUnknownTokenKey(tokenKey)) {
+				return null;
+			}
+			try {
+				GaeOAuthRefreshToken gaeOAuthRefreshToken = refreshTokens.findByTokenId(tokenKey);
+				if (gaeOAuthRefreshToken != null) {
+					authentication = gaeOAuthRefreshToken.getAuthentication();
+				} else {
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("Failed to find access token for token " + value);
+					}
 				}
+			} catch (JDOException | TokenDeserializationException e) {
+				Metrics.count(Counter.DESERIALIZATION_FAILURES, 1);
+				Metrics.count(Counter.SELF_HEALING_DELETES, 1);
+				LOG.warn("Failed to deserialize access token for " + value, e);
+				removeRefreshToken(value);
 			}
-		} catch (JDOException e) {
-			LOG.warn("Failed to deserialize access token for " + value, e);
-			removeRefreshToken(value);
-		}
 
-		return authentication;
+			return authentication;
+		} finally {
+			endCall(start);
+		}
 	}
 
 	@Override
@@ -237,84 +574,878 @@ public class GaeTokenStore implements TokenStore {
 	}
 
 	public void removeAccessTokenUsingRefreshToken(String refreshToken) {
-		accessTokens.deleteByRefreshToken(extractTokenKey(refreshToken));
+		long start = beginCall(Operation.REMOVE_ACCESS_TOKEN_USING_REFRESH_TOKEN);
+		try {
+			String refreshTokenKey = extractTokenKey(refreshToken);
+			revokeAccessTokens(refreshTokenKey);
+			accessTokens.deleteByRefreshToken(refreshTokenKey);
+			invalidateCachedAccessTokens(refreshTokenKey);
+		} finally {
+			endCall(start);
+		}
 	}
 
-	@Override
-	public Collection<OAuth2AccessToken> findTokensByClientId(String clientId) {
-		List<OAuth2AccessToken> accessTokens = new ArrayList<OAuth2AccessToken>();
+	/**
+	 * Performs a refresh grant in one call: reads the refresh token with its authentication, lets the rotation issue
+	 * the new access token, removes the access tokens of the refresh token and stores the new tokens. The refresh
+	 * token is replaced when the new access token carries another one. Expired refresh tokens are removed together
+	 * with their access tokens.
+	 * <p>
+	 * With transactional repositories the writes form one cross-group transaction, which reads the refresh token again,
+	 * see {@link #rotate(String, boolean, GaeOAuthRefreshToken, GaeOAuthAccessToken)}. Of concurrent rotations of the
+	 * same refresh token only one succeeds.
+	 * @param refreshTokenValue Value of the presented refresh token.
+	 * @param rotation Callback issuing the new tokens.
+	 * @return The new access token or {@code null} if the refresh token is unknown or expired.
+	 * @throws ConcurrentModificationException if a concurrent request rotated or removed the refresh token, in which
+	 *             case nothing is written.
+	 */
+	public OAuth2AccessToken rotateRefreshToken(String refreshTokenValue, RefreshTokenRotation rotation) {
+		long start = beginCall(Operation.ROTATE_REFRESH_TOKEN);
+		try {
+			String refreshTokenKey = extractTokenKey(refreshTokenValue);
+			if (isUnknownTokenKey(refreshTokenKey)) {
+				return null;
+			}
+			OAuth2RefreshToken refreshToken;
+			OAuth2Authentication authentication;
+			try {
+				GaeOAuthRefreshToken gaeOAuthRefreshToken = refreshTokens.findByTokenId(refreshTokenKey);
+				if (gaeOAuthRefreshToken == null) {
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("Failed to find refresh token for token " + refreshTokenValue);
+					}
+					return null;
+				}
+				refreshToken = gaeOAuthRefreshToken.getToken();
+				authentication = gaeOAuthRefreshToken.getAuthentication();
+			} catch (JDOException | TokenDeserializationException e) {
+				Metrics.count(Counter.DESERIALIZATION_FAILURES, 1);
+				Metrics.count(Counter.SELF_HEALING_DELETES, 1);
+				LOG.warn("Failed to deserialize refresh token for token " + refreshTokenValue, e);
+				revokeAccessTokens(refreshTokenKey);
+				rotate(refreshTokenKey, false, null, null);
+				return null;
+			}
 
-		List<GaeOAuthAccessToken> gaeOAuthAccessTokens = this.accessTokens.findByClientId(clientId);
+			if (isExpired(refreshToken)) {
+				revokeAccessTokens(refreshTokenKey);
+				rotate(refreshTokenKey, false, null, null);
+				return null;
+			}
 
-		if (gaeOAuthAccessTokens.isEmpty()) {
-			if (LOG.isInfoEnabled()) {
-				LOG.info("Failed to find access token for clientId " + clientId);
+			authentication = rotation.refreshAuthentication(refreshToken, authentication);
+			OAuth2AccessToken accessToken = rotation.createAccessToken(authentication, refreshToken);
+			OAuth2RefreshToken newRefreshToken = accessToken.getRefreshToken();
+			boolean reused = newRefreshToken != null && refreshToken.getValue().equals(newRefreshToken.getValue());
+			GaeOAuthRefreshToken gaeOAuthRefreshToken = newRefreshToken != null && !reused
+					? createGaeOAuthRefreshToken(newRefreshToken, authentication) : null;
+			GaeOAuthAccessToken gaeOAuthAccessToken = createGaeOAuthAccessToken(accessToken, authentication);
+			if (gaeOAuthRefreshToken != null) {
+				addTokenKey(gaeOAuthRefreshToken.getTokenId());
 			}
+			addTokenKey(gaeOAuthAccessToken.getTokenId());
+			revokeAccessTokens(refreshTokenKey);
+			rotate(refreshTokenKey, reused, gaeOAuthRefreshToken, gaeOAuthAccessToken);
+			return accessToken;
+		} finally {
+			endCall(start);
 		}
+	}
+
+	/**
+	 * Writes the outcome of a refresh grant: removes the access tokens of the refresh token, removes the refresh token
+	 * unless it is kept, and stores the new tokens.
+	 * <p>
+	 * When both repositories are transactional, the writes run in one cross-group transaction. It reads the refresh
+	 * token by its key, and the access tokens to remove are read in it as well, so its commit fails if a concurrent
+	 * request modified them. Reads in a transaction see the entities as they were when it began, so the read of the
+	 * refresh token is issued together with the deletes and puts and all of them run concurrently. Either all of it is
+	 * applied or nothing. The rotation callbacks run before the transaction begins, so the datastore calls they make
+	 * do not join it. Only if the transaction spans more entity groups than allowed, which takes more than 20 access
+	 * tokens issued with the refresh token, are the writes repeated without a transaction.
+	 * <p>
+	 * The JDO repositories are not transactional. With them the writes run one after another without a transaction,
+	 * so a failure may leave the refresh token removed before the new one is stored, and concurrent rotations of the
+	 * same refresh token may all succeed.
+	 * @param refreshTokenKey Token ID of the presented refresh token.
+	 * @param keepRefreshToken {@code true} if the presented refresh token stays valid.
+	 * @param refreshToken New refresh token to store or {@code null}.
+	 * @param accessToken New access token to store or {@code null}.
+	 * @throws ConcurrentModificationException if a concurrent request removed the refresh token before the new tokens
+	 *             are stored or modified the tokens read by the transaction.
+	 */
+	protected void rotate(String refreshTokenKey, boolean keepRefreshToken, GaeOAuthRefreshToken refreshToken,
+			GaeOAuthAccessToken accessToken) {
+		invalidateCachedAccessTokens(refreshTokenKey);
+		if (isTransactional()) {
+			TransactionalRefreshTokenRepository transactional = (TransactionalRefreshTokenRepository) refreshTokens;
+			Transaction txn = transactional.beginTransaction();
+			try {
+				Future<GaeOAuthRefreshToken> current = transactional.findByTokenIdAsync(txn, refreshTokenKey);
+				List<Future<?>> calls = write(txn, refreshTokenKey, keepRefreshToken, refreshToken, accessToken);
+				calls.add(current);
+				join(calls);
+				if (DeferredFuture.getResult(current) == null && accessToken != null) {
+					throw new ConcurrentModificationException("Refresh token " + refreshTokenKey
+							+ " was removed by a concurrent request.");
+				}
+				txn.commit();
+			} catch (IllegalArgumentException e) {
+				if (!isTooManyEntityGroups(e)) {
+					throw e;
+				}
+				LOG.warn("Failed to rotate refresh token " + refreshTokenKey + " in a transaction", e);
+				rollbackQuietly(txn);
+				join(write(null, refreshTokenKey, keepRefreshToken, refreshToken, accessToken));
+			} finally {
+				rollbackQuietly(txn);
+			}
+		} else {
+			accessTokens.deleteByRefreshToken(refreshTokenKey);
+			if (!keepRefreshToken) {
+				refreshTokens.deleteByTokenId(refreshTokenKey);
+			}
+			if (refreshToken != null) {
+				refreshTokens.save(refreshToken);
+			}
+			if (accessToken != null) {
+				accessTokens.save(accessToken);
+			}
+		}
+		invalidateCachedAccessTokens(refreshTokenKey);
+		if (accessToken != null) {
+			invalidateCachedAccessToken(accessToken.getTokenId());
+		}
+	}
+
+	private boolean isTransactional() {
+		return accessTokens instanceof TransactionalAccessTokenRepository
+				&& refreshTokens instanceof TransactionalRefreshTokenRepository;
+	}
+
+	private List<Future<?>> write(Transaction txn, String refreshTokenKey, boolean keepRefreshToken,
+			GaeOAuthRefreshToken refreshToken, GaeOAuthAccessToken accessToken) {
+		TransactionalAccessTokenRepository accessTokens = (TransactionalAccessTokenRepository) this.accessTokens;
+		TransactionalRefreshTokenRepository refreshTokens = (TransactionalRefreshTokenRepository) this.refreshTokens;
+		List<Future<?>> writes = new ArrayList<Future<?>>(5);
+		writes.add(accessTokens.deleteByRefreshTokenAsync(txn, refreshTokenKey));
+		if (!keepRefreshToken) {
+			writes.add(refreshTokens.deleteByTokenIdAsync(txn, refreshTokenKey));
+		}
+		if (refreshToken != null) {
+			writes.add(refreshTokens.saveAsync(txn, refreshToken));
+		}
+		if (accessToken != null) {
+			writes.add(accessTokens.saveAsync(txn, accessToken));
+		}
+		return writes;
+	}
+
+	private static void join(List<Future<?>> calls) {
+		// a conflict with a concurrent commit fails the transaction, and its other calls then fail as closed
+		RuntimeException failure = null;
+		for (Future<?> call : calls) {
+			try {
+				DeferredFuture.getResult(call);
+			} catch (RuntimeException e) {
+				if (failure == null || e instanceof ConcurrentModificationException) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private static boolean isTooManyEntityGroups(IllegalArgumentException e) {
+		return e.getMessage() != null && e.getMessage().contains("too many entity groups");
+	}
 
-		for (GaeOAuthAccessToken gaeOAuthAccessToken : gaeOAuthAccessTokens) {
+	/**
+	 * Rolls back a transaction that is still active, without masking the failure that left it open. The datastore
+	 * closes transactions that lost against a concurrent commit, and rolling those back fails as well.
+	 */
+	private static void rollbackQuietly(Transaction txn) {
+		if (txn.isActive()) {
 			try {
-				accessTokens.add(gaeOAuthAccessToken.getToken());
-			} catch (JDOException e) {
-				this.accessTokens.deleteByTokenId(gaeOAuthAccessToken.getTokenId());
+				txn.rollback();
+			} catch (RuntimeException e) {
+				LOG.debug("Failed to roll back transaction", e);
 			}
 		}
+	}
+
+	private static boolean isExpired(OAuth2RefreshToken refreshToken) {
+		if (refreshToken instanceof ExpiringOAuth2RefreshToken) {
+			Date expiration = ((ExpiringOAuth2RefreshToken) refreshToken).getExpiration();
+			return expiration == null || System.currentTimeMillis() > expiration.getTime();
+		}
+		return false;
+	}
+
+	/**
+	 * Lists the access tokens with the given client ID by keys-only queries, getting the tokens not found in the access
+	 * token cache by batch gets of the batch size.
+	 */
+	@Override
+	public Collection<OAuth2AccessToken> findTokensByClientId(String clientId) {
+		long start = beginCall(Operation.FIND_TOKENS_BY_CLIENT_ID);
+		try {
+			List<OAuth2AccessToken> accessTokens = new ArrayList<OAuth2AccessToken>();
+			for (Iterator<OAuth2AccessToken> tokens = iterateTokensByClientId(clientId, batchSize); tokens.hasNext();) {
+				accessTokens.add(tokens.next());
+			}
 
-		accessTokens = removeNulls(accessTokens);
+			if (accessTokens.isEmpty()) {
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Failed to find access token for clientId " + clientId);
+				}
+			}
 
-		return accessTokens;
+			return accessTokens;
+		} finally {
+			endCall(start);
+		}
 	}
 
+	/**
+	 * Lists the access tokens with the given client ID and user name by keys-only queries, getting the tokens not
+	 * found in the access token cache by batch gets of the batch size.
+	 */
 	@Override
 	public Collection<OAuth2AccessToken> findTokensByClientIdAndUserName(String clientId, String userName) {
-		List<OAuth2AccessToken> accessTokens = new ArrayList<OAuth2AccessToken>();
+		long start = beginCall(Operation.FIND_TOKENS_BY_CLIENT_ID_AND_USER_NAME);
+		try {
+			List<OAuth2AccessToken> accessTokens = new ArrayList<OAuth2AccessToken>();
+			for (Iterator<OAuth2AccessToken> tokens = iterateTokensByClientIdAndUserName(clientId, userName, batchSize); tokens.hasNext();) {
+				accessTokens.add(tokens.next());
+			}
+
+			if (accessTokens.isEmpty()) {
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Failed to find access token for userName " + userName);
+				}
+			}
+
+			return accessTokens;
+		} finally {
+			endCall(start);
+		}
+	}
+
+	/**
+	 * Looks up one page of the access tokens with the given client ID.
+	 * @param clientId Client ID.
+	 * @param pageSize Maximum number of tokens in the page.
+	 * @param cursor Cursor of the previous page or {@code null} for the first page.
+	 * @return Page of access tokens with the cursor of the next page.
+	 */
+	public Page<OAuth2AccessToken> findTokensByClientId(String clientId, int pageSize, String cursor) {
+		return getAccessTokens(accessTokens.findKeysByClientId(clientId, pageSize, cursor));
+	}
+
+	/**
+	 * Looks up one page of the access tokens with the given client ID and user name.
+	 * @param clientId Client ID.
+	 * @param userName User name.
+	 * @param pageSize Maximum number of tokens in the page.
+	 * @param cursor Cursor of the previous page or {@code null} for the first page.
+	 * @return Page of access tokens with the cursor of the next page.
+	 */
+	public Page<OAuth2AccessToken> findTokensByClientIdAndUserName(String clientId, String userName, int pageSize, String cursor) {
+		return getAccessTokens(accessTokens.findKeysByUsernameAndClientId(userName, clientId, pageSize, cursor));
+	}
+
+	/**
+	 * Walks the access tokens with the given client ID, fetching them in chunks, so that only one chunk is held in
+	 * memory at a time.
+	 * @param clientId Client ID.
+	 * @param chunkSize Number of tokens fetched at once.
+	 * @return Iterator over the access tokens.
+	 */
+	public Iterator<OAuth2AccessToken> iterateTokensByClientId(final String clientId, final int chunkSize) {
+		return new PageIterator<OAuth2AccessToken>() {
+
+			@Override
+			protected Page<OAuth2AccessToken> fetch(String cursor) {
+				return findTokensByClientId(clientId, chunkSize, cursor);
+			}
+		};
+	}
+
+	/**
+	 * Walks the access tokens with the given client ID and user name, fetching them in chunks, so that only one chunk
+	 * is held in memory at a time.
+	 * @param clientId Client ID.
+	 * @param userName User name.
+	 * @param chunkSize Number of tokens fetched at once.
+	 * @return Iterator over the access tokens.
+	 */
+	public Iterator<OAuth2AccessToken> iterateTokensByClientIdAndUserName(final String clientId, final String userName, final int chunkSize) {
+		return new PageIterator<OAuth2AccessToken>() {
+
+			@Override
+			protected Page<OAuth2AccessToken> fetch(String cursor) {
+				return findTokensByClientIdAndUserName(clientId, userName, chunkSize, cursor);
+			}
+		};
+	}
+
+	/**
+	 * Gets the access tokens with the given keys, taking the ones stored under key names from the access token cache
+	 * and the others by one batch get. Only the tokens are decoded; entities whose token cannot be deserialized are
+	 * removed.
+	 */
+	private Page<OAuth2AccessToken> getAccessTokens(Page<Key> keys) {
+		Map<Key, OAuth2AccessToken> found = new HashMap<Key, OAuth2AccessToken>();
+		List<Key> missed = new ArrayList<Key>();
+		for (Key key : keys.getItems()) {
+			AccessTokenCache.Entry cached = key.getName() != null ? getCachedAccessToken(key.getName()) : null;
+			if (cached != null && !cached.isMissing()) {
+				found.put(key, cached.getAccessToken());
+			} else {
+				missed.add(key);
+			}
+		}
+
+		if (!missed.isEmpty()) {
+			for (GaeOAuthAccessToken gaeOAuthAccessToken : this.accessTokens.findTokensByKeys(missed)) {
+				try {
+					found.put(gaeOAuthAccessToken.getKey(), gaeOAuthAccessToken.getToken());
+				} catch (JDOException | TokenDeserializationException e) {
+					Metrics.count(Counter.DESERIALIZATION_FAILURES, 1);
+					Metrics.count(Counter.SELF_HEALING_DELETES, 1);
+					this.accessTokens.deleteByTokenId(gaeOAuthAccessToken.getTokenId());
+				}
+			}
+		}
+
+		List<OAuth2AccessToken> accessTokens = new ArrayList<OAuth2AccessToken>(found.size());
+		for (Key key : keys.getItems()) {
+			OAuth2AccessToken accessToken = found.get(key);
+			if (accessToken != null) {
+				accessTokens.add(accessToken);
+			}
+		}
+		return new Page<OAuth2AccessToken>(accessTokens, keys.getCursor());
+	}
+
+	/**
+	 * Stores the access tokens in place of any tokens with the same values, by batched puts.
+	 * @param tokens Access tokens with their authentications.
+	 * @return Stored access tokens and failures by token value.
+	 */
+	public BatchResult<String, OAuth2AccessToken> storeAccessTokens(Map<OAuth2AccessToken, OAuth2Authentication> tokens) {
+		Map<String, String> values = new HashMap<String, String>();
+		List<GaeOAuthAccessToken> gaeOAuthAccessTokens = new ArrayList<GaeOAuthAccessToken>(tokens.size());
+		for (Map.Entry<OAuth2AccessToken, OAuth2Authentication> entry : tokens.entrySet()) {
+			GaeOAuthAccessToken gaeOAuthAccessToken = createGaeOAuthAccessToken(entry.getKey(), entry.getValue());
+			values.put(gaeOAuthAccessToken.getTokenId(), entry.getKey().getValue());
+			gaeOAuthAccessTokens.add(gaeOAuthAccessToken);
+		}
+
+		addTokenKeys(values.keySet());
+		BatchResult<String, GaeOAuthAccessToken> stored = accessTokens.upsertAll(gaeOAuthAccessTokens);
+		for (String tokenKey : values.keySet()) {
+			invalidateCachedAccessToken(tokenKey);
+		}
+
+		BatchResult<String, OAuth2AccessToken> result = new BatchResult<String, OAuth2AccessToken>();
+		for (Map.Entry<String, GaeOAuthAccessToken> entry : stored.getResults().entrySet()) {
+			result.succeeded(values.get(entry.getKey()), entry.getValue().getToken());
+		}
+		for (Map.Entry<String, RuntimeException> entry : stored.getFailures().entrySet()) {
+			LOG.warn("Failed to store access token " + values.get(entry.getKey()), entry.getValue());
+			result.failed(values.get(entry.getKey()), entry.getValue());
+		}
+		return result;
+	}
 
-		List<GaeOAuthAccessToken> gaeOAuthAccessTokens = this.accessTokens.findByUsernameAndClientId(userName, clientId);
+	/**
+	 * Reads the access tokens with the given values, by batched gets for the ones not found in the access token cache.
+	 * Tokens that cannot be deserialized are reported as failures and removed.
+	 * @param tokenValues Access token values.
+	 * @return Access tokens and failures by token value, values of unknown tokens are left out.
+	 */
+	public BatchResult<String, OAuth2AccessToken> readAccessTokens(Collection<String> tokenValues) {
+		BatchResult<String, OAuth2AccessToken> result = new BatchResult<String, OAuth2AccessToken>();
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		Map<String, Long> cacheVersions = new HashMap<String, Long>();
+		for (String tokenValue : tokenValues) {
+			String tokenKey = extractTokenKey(tokenValue);
+			AccessTokenCache.Entry cached = getCachedAccessToken(tokenKey);
+			if (cached == null) {
+				values.put(tokenKey, tokenValue);
+				cacheVersions.put(tokenKey, getAccessTokenCacheVersion(tokenKey));
+			} else if (!cached.isMissing()) {
+				result.succeeded(tokenValue, cached.getAccessToken());
+			}
+		}
+		if (values.isEmpty()) {
+			return result;
+		}
 
-		if (gaeOAuthAccessTokens.isEmpty()) {
-			if (LOG.isInfoEnabled()) {
-				LOG.info("Failed to find access token for userName " + userName);
+		BatchResult<String, GaeOAuthAccessToken> found = accessTokens.findByTokenIds(values.keySet());
+		List<String> unreadable = new ArrayList<String>();
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			String tokenKey = entry.getKey();
+			GaeOAuthAccessToken gaeOAuthAccessToken = found.getResults().get(tokenKey);
+			if (gaeOAuthAccessToken != null) {
+				try {
+					result.succeeded(entry.getValue(), gaeOAuthAccessToken.getToken());
+					cacheAccessToken(gaeOAuthAccessToken, cacheVersions.get(tokenKey));
+				} catch (TokenDeserializationException e) {
+					LOG.warn("Failed to deserialize access token for " + entry.getValue(), e);
+					result.failed(entry.getValue(), e);
+					unreadable.add(tokenKey);
+				}
+			} else if (found.getFailures().containsKey(tokenKey)) {
+				result.failed(entry.getValue(), found.getFailures().get(tokenKey));
+			} else {
+				cacheMissingAccessToken(tokenKey, cacheVersions.get(tokenKey));
+			}
+		}
+		if (!unreadable.isEmpty()) {
+			accessTokens.deleteByTokenIds(unreadable);
+			for (String tokenKey : unreadable) {
+				invalidateCachedAccessToken(tokenKey);
 			}
 		}
+		return result;
+	}
+
+	/**
+	 * Removes the access tokens with the given values, by batched deletes.
+	 * @param tokenValues Access token values.
+	 * @return Numbers of deleted entities and failures by token value.
+	 */
+	public BatchResult<String, Long> removeAccessTokens(Collection<String> tokenValues) {
+		Map<String, String> values = extractTokenKeys(tokenValues);
+		revokeSignedAccessTokens(values);
+		BatchResult<String, Long> removed = accessTokens.deleteByTokenIds(values.keySet());
+		for (String tokenKey : values.keySet()) {
+			invalidateCachedAccessToken(tokenKey);
+		}
+		return toTokenValues(removed, values);
+	}
+
+	/**
+	 * Stores the refresh tokens in place of any tokens with the same values, by batched puts.
+	 * @param tokens Refresh tokens with their authentications.
+	 * @return Stored refresh tokens and failures by token value.
+	 */
+	public BatchResult<String, OAuth2RefreshToken> storeRefreshTokens(Map<OAuth2RefreshToken, OAuth2Authentication> tokens) {
+		Map<String, String> values = new HashMap<String, String>();
+		List<GaeOAuthRefreshToken> gaeOAuthRefreshTokens = new ArrayList<GaeOAuthRefreshToken>(tokens.size());
+		for (Map.Entry<OAuth2RefreshToken, OAuth2Authentication> entry : tokens.entrySet()) {
+			GaeOAuthRefreshToken gaeOAuthRefreshToken = createGaeOAuthRefreshToken(entry.getKey(), entry.getValue());
+			values.put(gaeOAuthRefreshToken.getTokenId(), entry.getKey().getValue());
+			gaeOAuthRefreshTokens.add(gaeOAuthRefreshToken);
+		}
+
+		addTokenKeys(values.keySet());
+		BatchResult<String, GaeOAuthRefreshToken> stored = refreshTokens.upsertAll(gaeOAuthRefreshTokens);
+
+		BatchResult<String, OAuth2RefreshToken> result = new BatchResult<String, OAuth2RefreshToken>();
+		for (Map.Entry<String, GaeOAuthRefreshToken> entry : stored.getResults().entrySet()) {
+			result.succeeded(values.get(entry.getKey()), entry.getValue().getToken());
+		}
+		for (Map.Entry<String, RuntimeException> entry : stored.getFailures().entrySet()) {
+			LOG.warn("Failed to store refresh token " + values.get(entry.getKey()), entry.getValue());
+			result.failed(values.get(entry.getKey()), entry.getValue());
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the refresh tokens with the given values, by batched gets. Tokens that cannot be deserialized are reported
+	 * as failures and removed.
+	 * @param tokenValues Refresh token values.
+	 * @return Refresh tokens and failures by token value, values of unknown tokens are left out.
+	 */
+	public BatchResult<String, OAuth2RefreshToken> readRefreshTokens(Collection<String> tokenValues) {
+		Map<String, String> values = extractTokenKeys(tokenValues);
+		BatchResult<String, GaeOAuthRefreshToken> found = refreshTokens.findByTokenIds(values.keySet());
 
-		for (GaeOAuthAccessToken gaeOAuthAccessToken : gaeOAuthAccessTokens) {
+		BatchResult<String, OAuth2RefreshToken> result = new BatchResult<String, OAuth2RefreshToken>();
+		List<String> unreadable = new ArrayList<String>();
+		for (Map.Entry<String, GaeOAuthRefreshToken> entry : found.getResults().entrySet()) {
+			String tokenValue = values.get(entry.getKey());
 			try {
-				accessTokens.add(gaeOAuthAccessToken.getToken());
-			} catch (JDOException e) {
-				this.accessTokens.deleteByTokenId(gaeOAuthAccessToken.getTokenId());
+				result.succeeded(tokenValue, entry.getValue().getToken());
+			} catch (TokenDeserializationException e) {
+				LOG.warn("Failed to deserialize refresh token for token " + tokenValue, e);
+				result.failed(tokenValue, e);
+				unreadable.add(entry.getKey());
 			}
 		}
-		accessTokens = removeNulls(accessTokens);
+		for (Map.Entry<String, RuntimeException> entry : found.getFailures().entrySet()) {
+			result.failed(values.get(entry.getKey()), entry.getValue());
+		}
+		if (!unreadable.isEmpty()) {
+			refreshTokens.deleteByTokenIds(unreadable);
+		}
+		return result;
+	}
+
+	/**
+	 * Removes the refresh tokens with the given values, by batched deletes.
+	 * @param tokenValues Refresh token values.
+	 * @return Numbers of deleted entities and failures by token value.
+	 */
+	public BatchResult<String, Long> removeRefreshTokens(Collection<String> tokenValues) {
+		Map<String, String> values = extractTokenKeys(tokenValues);
+		return toTokenValues(refreshTokens.deleteByTokenIds(values.keySet()), values);
+	}
 
-		return accessTokens;
+	private Map<String, String> extractTokenKeys(Collection<String> tokenValues) {
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for (String tokenValue : tokenValues) {
+			values.put(extractTokenKey(tokenValue), tokenValue);
+		}
+		return values;
+	}
+
+	private static <V> BatchResult<String, V> toTokenValues(BatchResult<String, V> byTokenKey, Map<String, String> values) {
+		BatchResult<String, V> result = new BatchResult<String, V>();
+		for (Map.Entry<String, V> entry : byTokenKey.getResults().entrySet()) {
+			result.succeeded(values.get(entry.getKey()), entry.getValue());
+		}
+		for (Map.Entry<String, RuntimeException> entry : byTokenKey.getFailures().entrySet()) {
+			result.failed(values.get(entry.getKey()), entry.getValue());
+		}
+		return result;
 	}
 
-	private List<OAuth2AccessToken> removeNulls(List<OAuth2AccessToken> accessTokens) {
-		List<OAuth2AccessToken> tokens = new ArrayList<OAuth2AccessToken>();
-		for (OAuth2AccessToken token : accessTokens) {
-			if (token != null) {
-				tokens.add(token);
+	/**
+	 * Initializes everything the first token request of an instance would otherwise pay for, meant to be called by
+	 * the App Engine warmup request (see {@link TokenStoreWarmupServlet}). The phases are:
+	 * <ul>
+	 * <li>{@code persistence}: the persistence layer of the repositories, e.g. the JDO persistence manager factory and
+	 * the metadata of the model classes,</li>
+	 * <li>{@code filter}: loading the snapshot of the token key filter, if the store has one,</li>
+	 * <li>{@code revocations}: loading the revoked access tokens, if the store has a revocation list,</li>
+	 * <li>{@code keys}: the message digests deriving token and authentication keys,</li>
+	 * <li>{@code write}: storing a throwaway access and refresh token, which encodes them with the token codec,</li>
+	 * <li>{@code read}: reading both tokens and their authentications back,</li>
+	 * <li>{@code remove}: removing both tokens again.</li>
+	 * </ul>
+	 * The throwaway tokens belong to the client {@value #WARMUP_CLIENT_ID} and expire after a minute, so the
+	 * {@link com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.ExpiredTokenReaper} collects any left behind
+	 * by a failed warmup. With {@link #setWarmupWrites(boolean) writes disabled}, nothing is written: the write and
+	 * remove phases are replaced by a {@code codec} phase encoding and decoding the tokens and their authentication with
+	 * the token codec, and the {@code read} phase looks up a token key that does not exist, by token ID and by
+	 * authentication ID.
+	 * @return Duration of each phase in milliseconds, in the order the phases ran.
+	 */
+	public Map<String, Long> warmUp() {
+		Map<String, Long> phases = new LinkedHashMap<String, Long>();
+		long start = System.nanoTime();
+		accessTokens.warmUp();
+		refreshTokens.warmUp();
+		start = endPhase(phases, "persistence", start);
+
+		if (tokenKeyFilter != null) {
+			tokenKeyFilter.reload();
+			start = endPhase(phases, "filter", start);
+		}
+
+		if (tokenRevocationList != null) {
+			tokenRevocationList.refresh();
+			start = endPhase(phases, "revocations", start);
+		}
+
+		String value = WARMUP_CLIENT_ID + "-" + UUID.randomUUID();
+		OAuth2Authentication authentication = createWarmupAuthentication();
+		String tokenKey = extractTokenKey(value);
+		String authenticationKey = authenticationKeyGenerator.extractKey(authentication);
+		start = endPhase(phases, "keys", start);
+
+		Date expiration = new Date(System.currentTimeMillis() + WARMUP_TOKEN_MILLIS);
+		DefaultExpiringOAuth2RefreshToken refreshToken = new DefaultExpiringOAuth2RefreshToken(value + "-refresh",
+				expiration);
+		DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(value);
+		accessToken.setExpiration(expiration);
+		accessToken.setRefreshToken(refreshToken);
+		accessToken.setScope(authentication.getOAuth2Request().getScope());
+		if (warmupWrites) {
+			try {
+				storeRefreshToken(refreshToken, authentication);
+				storeAccessToken(accessToken, authentication);
+				start = endPhase(phases, "write", start);
+
+				readAccessToken(value);
+				readAuthentication(value);
+				readRefreshToken(refreshToken.getValue());
+				readAuthenticationForRefreshToken(refreshToken.getValue());
+				start = endPhase(phases, "read", start);
+			} finally {
+				removeAccessToken(value);
+				removeRefreshToken(refreshToken.getValue());
 			}
+			endPhase(phases, "remove", start);
+		} else {
+			tokenCodec.decodeAccessToken(tokenCodec.encodeAccessToken(accessToken));
+			tokenCodec.decodeRefreshToken(tokenCodec.encodeRefreshToken(refreshToken));
+			tokenCodec.decodeAuthentication(tokenCodec.encodeAuthentication(authentication));
+			start = endPhase(phases, "codec", start);
+
+			accessTokens.findByTokenId(tokenKey);
+			accessTokens.findByAuthenticationId(authenticationKey);
+			refreshTokens.findByTokenId(tokenKey);
+			endPhase(phases, "read", start);
+		}
+
+		if (LOG.isInfoEnabled()) {
+			LOG.info("Token store warmed up, phase durations in ms: " + phases);
+		}
+		return phases;
+	}
+
+	private static long endPhase(Map<String, Long> phases, String phase, long start) {
+		long end = System.nanoTime();
+		phases.put(phase, (end - start) / 1000000);
+		return end;
+	}
+
+	private static OAuth2Authentication createWarmupAuthentication() {
+		Set<String> scope = Collections.singleton("read");
+		List<GrantedAuthority> authorities = Collections.<GrantedAuthority> singletonList(
+				new SimpleGrantedAuthority("ROLE_USER"));
+		OAuth2Request request = new OAuth2Request(Collections.singletonMap("grant_type", "password"),
+				WARMUP_CLIENT_ID, authorities, true, scope, Collections.<String> emptySet(), null,
+				Collections.<String> emptySet(), Collections.<String, Serializable> emptyMap());
+		Authentication user = new UsernamePasswordAuthenticationToken(WARMUP_CLIENT_ID, null, authorities);
+		return new OAuth2Authentication(request, user);
+	}
+
+	/**
+	 * Tells whether the token key filter proves that no token with the key was stored.
+	 * @param tokenKey Token key.
+	 * @return {@code true} if the token is unknown, {@code false} if it has to be looked up.
+	 */
+	protected boolean isUnknownTokenKey(String tokenKey) {
+		if (tokenKeyFilter == null || tokenKeyFilter.mightContain(tokenKey)) {
+			return false;
+		}
+		Metrics.count(Counter.FILTERED_LOOKUPS, 1);
+		return true;
+	}
+
+	/**
+	 * Adds the key of a token about to be stored to the token key filter.
+	 * @param tokenKey Token key.
+	 */
+	protected void addTokenKey(String tokenKey) {
+		if (tokenKeyFilter != null) {
+			tokenKeyFilter.add(tokenKey);
+		}
+	}
+
+	private void addTokenKeys(Collection<String> tokenKeys) {
+		if (tokenKeyFilter != null) {
+			tokenKeyFilter.addAll(tokenKeys);
+		}
+	}
+
+	/**
+	 * Verifies a signed access token if the store verifies tokens locally and its revocation list is current.
+	 * @param tokenValue Access token value.
+	 * @return Decoded token, which still has to be checked against the revocation list, or {@code null} if the token
+	 *         has to be looked up.
+	 */
+	protected AccessTokenSigner.SignedAccessToken verifySignedAccessToken(String tokenValue) {
+		if (accessTokenSigner == null || tokenRevocationList == null || !accessTokenSigner.isSigned(tokenValue)
+				|| !tokenRevocationList.isCurrent()) {
+			return null;
+		}
+		AccessTokenSigner.SignedAccessToken signed = accessTokenSigner.verify(tokenValue);
+		if (signed != null) {
+			Metrics.count(Counter.VERIFIED_LOOKUPS, 1);
+		}
+		return signed;
+	}
+
+	/**
+	 * Returns the access token of a verified value. Signed values do not carry the refresh token, so the refresh token
+	 * of a token issued with one is read from the stored access token when it is first asked for.
+	 * @param signed Verified token.
+	 * @param tokenKey Token key of the value.
+	 * @return Access token with the signed value.
+	 */
+	protected OAuth2AccessToken toAccessToken(AccessTokenSigner.SignedAccessToken signed, String tokenKey) {
+		if (!signed.hasRefreshToken()) {
+			return signed.getAccessToken();
+		}
+		return new VerifiedAccessToken(signed.getAccessToken(), tokenKey);
+	}
+
+	/**
+	 * Tells whether a verified access token was revoked.
+	 * @param tokenKey Token key.
+	 * @return {@code true} if the token must not be accepted.
+	 */
+	protected boolean isRevokedAccessToken(String tokenKey) {
+		return tokenRevocationList.isRevoked(tokenKey);
+	}
+
+	/**
+	 * Records the revocation of the signed access tokens among the given ones that did not expire yet.
+	 * @param tokenValues Access token values by token key.
+	 */
+	protected void revokeSignedAccessTokens(Map<String, String> tokenValues) {
+		if (accessTokenSigner == null || tokenRevocationList == null) {
+			return;
+		}
+		Map<String, Date> expirations = new HashMap<String, Date>();
+		for (Map.Entry<String, String> entry : tokenValues.entrySet()) {
+			AccessTokenSigner.SignedAccessToken signed = accessTokenSigner.isSigned(entry.getValue())
+					? accessTokenSigner.verify(entry.getValue()) : null;
+			if (signed != null && !signed.getAccessToken().isExpired()) {
+				expirations.put(entry.getKey(), signed.getAccessToken().getExpiration());
+			}
+		}
+		tokenRevocationList.revokeAll(expirations);
+	}
+
+	/**
+	 * Records the revocation of the access tokens issued with the given refresh token, which costs a query for them.
+	 * @param refreshTokenKey Token key of the refresh token.
+	 */
+	protected void revokeAccessTokens(String refreshTokenKey) {
+		if (accessTokenSigner == null || tokenRevocationList == null) {
+			return;
+		}
+		Map<String, Date> expirations = new HashMap<String, Date>();
+		for (GaeOAuthAccessToken gaeOAuthAccessToken : accessTokens.findByRefreshToken(refreshTokenKey)) {
+			expirations.put(gaeOAuthAccessToken.getTokenId(), gaeOAuthAccessToken.getExpiration());
+		}
+		tokenRevocationList.revokeAll(expirations);
+	}
+
+	private <V> V coalesce(String key, LookupCoalescer.Lookup<V> lookup) {
+		return lookupCoalescer != null ? lookupCoalescer.get(key, lookup) : lookup.lookup();
+	}
+
+	private long beginCall(Operation operation) {
+		return metricsSink != null ? Metrics.begin(metricsSink, operation) : 0;
+	}
+
+	private void endCall(long start) {
+		if (metricsSink != null) {
+			Metrics.end(start);
+		}
+	}
+
+	protected AccessTokenCache.Entry getCachedAccessToken(String tokenKey) {
+		return accessTokenCache != null && tokenKey != null ? accessTokenCache.get(tokenKey) : null;
+	}
+
+	protected long getAccessTokenCacheVersion(String tokenKey) {
+		return accessTokenCache != null && tokenKey != null ? accessTokenCache.version(tokenKey) : 0;
+	}
+
+	protected void cacheAccessToken(GaeOAuthAccessToken gaeOAuthAccessToken, long cacheVersion) {
+		if (accessTokenCache != null) {
+			accessTokenCache.put(gaeOAuthAccessToken.getTokenId(), gaeOAuthAccessToken.getToken(),
+					gaeOAuthAccessToken.getAuthentication(), gaeOAuthAccessToken.getRefreshToken(), cacheVersion);
+		}
+	}
+
+	protected void cacheMissingAccessToken(String tokenKey, long cacheVersion) {
+		if (accessTokenCache != null && tokenKey != null) {
+			accessTokenCache.putMissing(tokenKey, cacheVersion);
+		}
+	}
+
+	protected void invalidateCachedAccessToken(String tokenKey) {
+		if (accessTokenCache != null) {
+			accessTokenCache.invalidate(tokenKey);
+		}
+	}
+
+	protected void invalidateCachedAccessTokens(String refreshTokenKey) {
+		if (accessTokenCache != null) {
+			accessTokenCache.invalidateByRefreshToken(refreshTokenKey);
 		}
-		return tokens;
 	}
 
 	protected String extractTokenKey(String value) {
 		if (value == null) {
 			return null;
 		}
-		MessageDigest digest;
-		try {
-			digest = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			throw new IllegalStateException("MD5 algorithm not available.  Fatal (should be in the JDK).");
+		return tokenKeyExtractor.extractKey(value);
+	}
+
+	/**
+	 * Verified access token reading its refresh token from the stored access token when it is first asked for. It is
+	 * serialized as a plain {@link DefaultOAuth2AccessToken} with the refresh token resolved.
+	 */
+	private class VerifiedAccessToken extends DefaultOAuth2AccessToken {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String tokenKey;
+
+		private boolean resolved;
+
+		VerifiedAccessToken(OAuth2AccessToken accessToken, String tokenKey) {
+			super(accessToken);
+			this.tokenKey = tokenKey;
 		}
 
-		try {
-			byte[] bytes = digest.digest(value.getBytes("UTF-8"));
-			return String.format("%032x", new BigInteger(1, bytes));
-		} catch (UnsupportedEncodingException e) {
-			throw new IllegalStateException("UTF-8 encoding not available.  Fatal (should be in the JDK).");
+		@Override
+		public synchronized OAuth2RefreshToken getRefreshToken() {
+			if (!resolved) {
+				OAuth2AccessToken stored = readStoredAccessToken(getValue(), tokenKey);
+				setRefreshToken(stored != null ? stored.getRefreshToken() : null);
+				resolved = true;
+			}
+			return super.getRefreshToken();
+		}
+
+		private Object writeReplace() {
+			return new DefaultOAuth2AccessToken(this);
+		}
+	}
+
+	/**
+	 * Iterates over the items of consecutive pages, fetching the next page when the current one is exhausted.
+	 */
+	private abstract static class PageIterator<T> implements Iterator<T> {
+
+		private Iterator<T> items;
+
+		private String cursor;
+
+		private boolean last;
+
+		protected abstract Page<T> fetch(String cursor);
+
+		@Override
+		public boolean hasNext() {
+			while ((items == null || !items.hasNext()) && !last) {
+				Page<T> page = fetch(cursor);
+				items = page.getItems().iterator();
+				cursor = page.getCursor();
+				last = cursor == null;
+			}
+			return items.hasNext();
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return items.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
 		}
 	}
 }
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.PersistenceScope;
+
+/**
+ * Servlet filter running each request in a {@link PersistenceScope}, so that the JDO repositories share one
+ * persistence manager for all token store calls of the request. Map it in front of the token endpoint and the
+ * protected resources.
+ */
+public class PersistenceScopeFilter implements Filter {
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+			ServletException {
+		PersistenceScope.begin();
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			PersistenceScope.end();
+		}
+	}
+
+	@Override
+	public void destroy() {
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+/**
+ * Callback issuing the tokens of a refresh grant, see {@link GaeTokenStore#rotateRefreshToken(String, RefreshTokenRotation)}.
+ * Exceptions thrown by the callback abort the rotation before anything is written.
+ */
+public interface RefreshTokenRotation {
+
+	/**
+	 * Returns the authentication the new tokens are issued for, e.g. with a narrowed scope.
+	 * @param refreshToken The stored refresh token, not expired.
+	 * @param authentication The authentication stored with the refresh token.
+	 * @return Authentication to store with the new tokens.
+	 */
+	OAuth2Authentication refreshAuthentication(OAuth2RefreshToken refreshToken, OAuth2Authentication authentication);
+
+	/**
+	 * Creates the new access token.
+	 * @param authentication Authentication returned by {@link #refreshAuthentication(OAuth2RefreshToken, OAuth2Authentication)}.
+	 * @param refreshToken The stored refresh token.
+	 * @return Access token carrying the given refresh token to keep it, or a new one to replace it.
+	 */
+	OAuth2AccessToken createAccessToken(OAuth2Authentication authentication, OAuth2RefreshToken refreshToken);
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore;
+
+/**
+ * Strategy for deriving the key under which a token is stored from the token value.
+ */
+public interface TokenKeyExtractor {
+
+	/**
+	 * Extracts the key of the given token value.
+	 * @param value Token value, never {@code null}.
+	 * @return Token key.
+	 */
+	String extractKey(String value);
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.BeansException;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+/**
+ * Servlet for the App Engine warmup request, mapped to {@code /_ah/warmup}. It runs {@link GaeTokenStore#warmUp()} on
+ * the token store of the root web application context and responds with the duration of each phase as plain text.
+ * <p>
+ * The token store bean is looked up by the {@code tokenStoreBean} init parameter, or by type when the parameter is
+ * not set. Applications without a root context override {@link #getTokenStore()}.
+ */
+public class TokenStoreWarmupServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String TOKEN_STORE_BEAN = "tokenStoreBean";
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		long start = System.nanoTime();
+		GaeTokenStore tokenStore = getTokenStore();
+		long lookup = (System.nanoTime() - start) / 1000000;
+		Map<String, Long> phases = tokenStore.warmUp();
+
+		resp.setContentType("text/plain");
+		resp.setCharacterEncoding("UTF-8");
+		PrintWriter writer = resp.getWriter();
+		writer.println("lookup: " + lookup + " ms");
+		for (Map.Entry<String, Long> phase : phases.entrySet()) {
+			writer.println(phase.getKey() + ": " + phase.getValue() + " ms");
+		}
+	}
+
+	/**
+	 * Returns the token store to warm up.
+	 * @return Token store.
+	 * @throws ServletException if there is no root web application context or the bean cannot be found.
+	 */
+	protected GaeTokenStore getTokenStore() throws ServletException {
+		WebApplicationContext context = WebApplicationContextUtils.getWebApplicationContext(getServletContext());
+		if (context == null) {
+			throw new ServletException("No root web application context to look up the token store in.");
+		}
+		String name = getInitParameter(TOKEN_STORE_BEAN);
+		try {
+			return name != null ? context.getBean(name, GaeTokenStore.class) : context.getBean(GaeTokenStore.class);
+		} catch (BeansException e) {
+			throw new ServletException("Failed to look up the token store.", e);
+		}
+	}
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.cache;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import com.github.biegleux.gae.oauth.tokenstore.metrics.Counter;
+
+/**
+ * Per instance cache of access tokens and their authentications keyed by token key.
+ * <p>
+ * Entries live for a short time only, so that tokens revoked on another instance stop being served quickly. Token
+ * keys that were not found are remembered as well, for a separate (usually shorter) time, which keeps unknown or
+ * forged tokens away from the datastore. The cache is bounded by the estimated heap size of its entries and evicts
+ * the least recently used ones first; entries larger than a segment's budget are never cached.
+ * <p>
+ * The cache is split into independently locked segments and is safe for concurrent use.
+ */
+public class AccessTokenCache {
+
+	private static final int SEGMENTS = 16;
+
+	private static final long DEFAULT_MAX_WEIGHT = 8L * 1024 * 1024;
+	private static final long DEFAULT_TTL_MILLIS = 30 * 1000;
+	private static final long DEFAULT_MISSING_TTL_MILLIS = 10 * 1000;
+
+	private final Segment[] segments;
+
+	private final long ttlNanos;
+	private final long missingTtlNanos;
+
+	private final CacheStatistics statistics = new CacheStatistics(Counter.CACHE_HITS, Counter.CACHE_MISSES);
+
+	public AccessTokenCache() {
+		this(DEFAULT_MAX_WEIGHT, DEFAULT_TTL_MILLIS, DEFAULT_MISSING_TTL_MILLIS);
+	}
+
+	/**
+	 * Creates the cache.
+	 * @param maxWeight Upper bound of the estimated heap size of all entries in bytes.
+	 * @param ttlMillis Time to live of cached tokens in milliseconds.
+	 * @param missingTtlMillis Time to live of token keys that were not found in milliseconds, 0 disables caching them.
+	 */
+	public AccessTokenCache(long maxWeight, long ttlMillis, long missingTtlMillis) {
+		this.segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(maxWeight / SEGMENTS);
+		}
+		this.ttlNanos = ttlMillis * 1000000L;
+		this.missingTtlNanos = missingTtlMillis * 1000000L;
+	}
+
+	/**
+	 * Looks up the cached entry for the given token key.
+	 * @param tokenKey Token key.
+	 * @return Cached entry, possibly one for a missing token, or {@code null} if the key is not cached.
+	 */
+	public Entry get(String tokenKey) {
+		Entry entry = segmentFor(tokenKey).get(tokenKey, System.nanoTime());
+		if (entry != null) {
+			statistics.hit();
+		} else {
+			statistics.miss();
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the version of the cache segment holding the given token key. It is taken before loading the token, so
+	 * that a value loaded before a concurrent invalidation is not cached.
+	 * @param tokenKey Token key.
+	 * @return Version to pass to {@link #put} or {@link #putMissing}.
+	 */
+	public long version(String tokenKey) {
+		return segmentFor(tokenKey).version();
+	}
+
+	/**
+	 * Caches the access token and its authentication.
+	 * @param tokenKey Token key.
+	 * @param accessToken Access token.
+	 * @param authentication Authentication of the access token.
+	 * @param refreshTokenKey Token key of the refresh token, may be {@code null}.
+	 * @param version Version obtained before the token was loaded.
+	 */
+	public void put(String tokenKey, OAuth2AccessToken accessToken, OAuth2Authentication authentication,
+			String refreshTokenKey, long version) {
+		Entry entry = new Entry(accessToken, authentication, refreshTokenKey, System.nanoTime() + ttlNanos,
+				estimateWeight(tokenKey, accessToken, authentication));
+		segmentFor(tokenKey).put(tokenKey, entry, version);
+	}
+
+	/**
+	 * Remembers that no access token exists for the given token key.
+	 * @param tokenKey Token key.
+	 * @param version Version obtained before the token was looked up.
+	 */
+	public void putMissing(String tokenKey, long version) {
+		if (missingTtlNanos > 0) {
+			Entry entry = new Entry(null, null, null, System.nanoTime() + missingTtlNanos, estimateWeight(tokenKey, null, null));
+			segmentFor(tokenKey).put(tokenKey, entry, version);
+		}
+	}
+
+	/**
+	 * Removes the entry for the given token key.
+	 * @param tokenKey Token key.
+	 */
+	public void invalidate(String tokenKey) {
+		if (tokenKey != null) {
+			segmentFor(tokenKey).invalidate(tokenKey);
+		}
+	}
+
+	/**
+	 * Removes the entries of all access tokens issued with the given refresh token.
+	 * @param refreshTokenKey Token key of the refresh token.
+	 */
+	public void invalidateByRefreshToken(String refreshTokenKey) {
+		if (refreshTokenKey != null) {
+			for (Segment segment : segments) {
+				segment.invalidateByRefreshToken(refreshTokenKey);
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of entries, including expired ones not evicted yet.
+	 * @return Number of entries.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the estimated heap size of all entries.
+	 * @return Weight in bytes.
+	 */
+	public long weight() {
+		long weight = 0;
+		for (Segment segment : segments) {
+			weight += segment.weight();
+		}
+		return weight;
+	}
+
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+
+	private Segment segmentFor(String tokenKey) {
+		int h = tokenKey.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * Roughly estimates the heap size of a cache entry from the strings it holds.
+	 */
+	static long estimateWeight(String tokenKey, OAuth2AccessToken accessToken, OAuth2Authentication authentication) {
+		long weight = 128 + weight(tokenKey);
+		if (accessToken != null) {
+			weight += 128 + weight(accessToken.getValue()) + weight(accessToken.getScope());
+			if (accessToken.getRefreshToken() != null) {
+				weight += 64 + weight(accessToken.getRefreshToken().getValue());
+			}
+			if (accessToken.getAdditionalInformation() != null) {
+				weight += 128 * accessToken.getAdditionalInformation().size();
+			}
+		}
+		if (authentication != null) {
+			weight += 256 + weightOfAuthorities(authentication.getAuthorities());
+			OAuth2Request request = authentication.getOAuth2Request();
+			if (request != null) {
+				weight += 256 + weight(request.getClientId()) + weight(request.getRedirectUri())
+						+ weight(request.getScope()) + weight(request.getResourceIds())
+						+ weight(request.getResponseTypes()) + weightOfAuthorities(request.getAuthorities())
+						+ weight(request.getRequestParameters());
+			}
+			if (!authentication.isClientOnly()) {
+				weight += 512 + weight(authentication.getName());
+			}
+		}
+		return weight;
+	}
+
+	private static long weight(String value) {
+		return value == null ? 0 : 40 + 2L * value.length();
+	}
+
+	private static long weight(Collection<String> values) {
+		long weight = 0;
+		if (values != null) {
+			for (String value : values) {
+				weight += 16 + weight(value);
+			}
+		}
+		return weight;
+	}
+
+	private static long weight(Map<String, String> values) {
+		long weight = 0;
+		if (values != null) {
+			for (Map.Entry<String, String> value : values.entrySet()) {
+				weight += 32 + weight(value.getKey()) + weight(value.getValue());
+			}
+		}
+		return weight;
+	}
+
+	private static long weightOfAuthorities(Collection<? extends GrantedAuthority> authorities) {
+		long weight = 0;
+		if (authorities != null) {
+			for (GrantedAuthority authority : authorities) {
+				weight += 32 + weight(authority.getAuthority());
+			}
+		}
+		return weight;
+	}
+
+	/**
+	 * Cached access token and authentication, or a token key known to be missing.
+	 */
+	public static final class Entry {
+
+		private final OAuth2AccessToken accessToken;
+		private final OAuth2Authentication authentication;
+		private final String refreshTokenKey;
+		private final long expiresAt;
+		private final long weight;
+
+		Entry(OAuth2AccessToken accessToken, OAuth2Authentication authentication, String refreshTokenKey,
+				long expiresAt, long weight) {
+			this.accessToken = accessToken;
+			this.authentication = authentication;
+			this.refreshTokenKey = refreshTokenKey;
+			this.expiresAt = expiresAt;
+			this.weight = weight;
+		}
+
+		/**
+		 * @return Cached access token or {@code null} if the token is missing.
+		 */
+		public OAuth2AccessToken getAccessToken() {
+			return accessToken;
+		}
+
+		/**
+		 * @return Cached authentication or {@code null} if the token is missing.
+		 */
+		public OAuth2Authentication getAuthentication() {
+			return authentication;
+		}
+
+		public boolean isMissing() {
+			return accessToken == null;
+		}
+	}
+
+	/**
+	 * Access ordered map guarded by its own monitor.
+	 */
+	private static final class Segment {
+
+		private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+		private final long maxWeight;
+
+		private long weight;
+
+		private long version;
+
+		Segment(long maxWeight) {
+			this.maxWeight = maxWeight;
+		}
+
+		synchronized Entry get(String tokenKey, long now) {
+			Entry entry = entries.get(tokenKey);
+			if (entry != null && now - entry.expiresAt >= 0) {
+				remove(tokenKey);
+				return null;
+			}
+			return entry;
+		}
+
+		synchronized long version() {
+			return version;
+		}
+
+		synchronized void put(String tokenKey, Entry entry, long expectedVersion) {
+			if (version != expectedVersion || entry.weight > maxWeight) {
+				return;
+			}
+			remove(tokenKey);
+			entries.put(tokenKey, entry);
+			weight += entry.weight;
+			Iterator<Entry> eldest = entries.values().iterator();
+			while (weight > maxWeight && eldest.hasNext()) {
+				weight -= eldest.next().weight;
+				eldest.remove();
+			}
+		}
+
+		synchronized void invalidate(String tokenKey) {
+			version++;
+			remove(tokenKey);
+		}
+
+		synchronized void invalidateByRefreshToken(String refreshTokenKey) {
+			version++;
+			Iterator<Entry> iterator = entries.values().iterator();
+			while (iterator.hasNext()) {
+				Entry entry = iterator.next();
+				if (refreshTokenKey.equals(entry.refreshTokenKey)) {
+					weight -= entry.weight;
+					iterator.remove();
+				}
+			}
+		}
+
+		synchronized void clear() {
+			version++;
+			entries.clear();
+			weight = 0;
+		}
+
+		synchronized int size() {
+			return entries.size();
+		}
+
+		synchronized long weight() {
+			return weight;
+		}
+
+		private void remove(String tokenKey) {
+			Entry removed = entries.remove(tokenKey);
+			if (removed != null) {
+				weight -= removed.weight;
+			}
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.biegleux.gae.oauth.tokenstore.metrics.Counter;
+import com.github.biegleux.gae.oauth.tokenstore.metrics.Metrics;
+
+/**
+ * Thread safe hit and miss counters of a token cache.
+ */
+public class CacheStatistics {
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private final Counter hitCounter;
+	private final Counter missCounter;
+
+	public CacheStatistics() {
+		this(null, null);
+	}
+
+	/**
+	 * @param hitCounter Counter of the token store call in progress incremented on hits, or {@code null}.
+	 * @param missCounter Counter of the token store call in progress incremented on misses, or {@code null}.
+	 * @see Metrics#count(Counter, long)
+	 */
+	public CacheStatistics(Counter hitCounter, Counter missCounter) {
+		this.hitCounter = hitCounter;
+		this.missCounter = missCounter;
+	}
+
+	public void hit() {
+		hits.incrementAndGet();
+		if (hitCounter != null) {
+			Metrics.count(hitCounter, 1);
+		}
+	}
+
+	public void miss() {
+		misses.incrementAndGet();
+		if (missCounter != null) {
+			Metrics.count(missCounter, 1);
+		}
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the ratio of lookups served from the cache.
+	 * @return Hit ratio between 0 and 1, or 0 if there were no lookups yet.
+	 */
+	public double getHitRatio() {
+		long hitCount = hits.get();
+		long total = hitCount + misses.get();
+		return total == 0 ? 0 : (double) hitCount / total;
+	}
+
+	public void reset() {
+		hits.set(0);
+		misses.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStatistics [hits=" + hits + ", misses=" + misses + "]";
+	}
+}
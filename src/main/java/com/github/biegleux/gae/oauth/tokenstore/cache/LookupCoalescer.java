@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.biegleux.gae.oauth.tokenstore.metrics.Counter;
+
+/**
+ * Coalesces concurrent lookups of the same key on an instance: the first thread performs the lookup while threads
+ * asking for the key in the meantime wait for its result, or its failure, instead of repeating it.
+ * <p>
+ * Waiting is bounded; a thread that waited longer than the maximum wait performs the lookup itself. Values are shared
+ * between the threads, so they must not be modified by their callers, as with the {@link AccessTokenCache}.
+ */
+public class LookupCoalescer {
+
+	private static final long DEFAULT_MAX_WAIT_MILLIS = 1000;
+
+	private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+	private final long maxWaitNanos;
+
+	private final CacheStatistics statistics = new CacheStatistics(Counter.COALESCED_LOOKUPS, null);
+
+	private final AtomicLong timeouts = new AtomicLong();
+
+	public LookupCoalescer() {
+		this(DEFAULT_MAX_WAIT_MILLIS);
+	}
+
+	/**
+	 * @param maxWaitMillis Maximum time in milliseconds a thread waits for the lookup of another thread.
+	 */
+	public LookupCoalescer(long maxWaitMillis) {
+		if (maxWaitMillis < 0) {
+			throw new IllegalArgumentException("Maximum wait must not be negative.");
+		}
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+	}
+
+	/**
+	 * Performs the lookup unless another thread is performing it for the same key, in which case its result is
+	 * returned or its failure rethrown.
+	 * @param key Key of the lookup, distinguishing lookups with different results.
+	 * @param lookup Lookup.
+	 * @return Value of the lookup.
+	 */
+	@SuppressWarnings("unchecked")
+	public <V> V get(String key, Lookup<V> lookup) {
+		Flight flight = new Flight();
+		Flight inFlight = flights.putIfAbsent(key, flight);
+		if (inFlight == null) {
+			statistics.miss();
+			try {
+				V value = lookup.lookup();
+				flight.complete(value, null);
+				return value;
+			} catch (RuntimeException | Error e) {
+				flight.complete(null, e);
+				throw e;
+			} finally {
+				flights.remove(key, flight);
+			}
+		}
+
+		if (!inFlight.await(maxWaitNanos)) {
+			timeouts.incrementAndGet();
+			return lookup.lookup();
+		}
+		statistics.hit();
+		if (inFlight.failure instanceof RuntimeException) {
+			throw (RuntimeException) inFlight.failure;
+		} else if (inFlight.failure instanceof Error) {
+			throw (Error) inFlight.failure;
+		}
+		return (V) inFlight.value;
+	}
+
+	/**
+	 * Returns the number of lookups that joined the lookup of another thread (hits) and that were performed (misses).
+	 * @return Coalescing statistics.
+	 */
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Returns the number of lookups performed after waiting for another thread for longer than the maximum wait.
+	 * @return Number of timed out waits.
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/**
+	 * Lookup whose concurrent calls can be coalesced.
+	 * @param <V> Type of the looked up value.
+	 */
+	public interface Lookup<V> {
+
+		V lookup();
+	}
+
+	/**
+	 * Lookup in progress.
+	 */
+	private static final class Flight {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private volatile Object value;
+
+		private volatile Throwable failure;
+
+		void complete(Object value, Throwable failure) {
+			this.value = value;
+			this.failure = failure;
+			done.countDown();
+		}
+
+		boolean await(long timeoutNanos) {
+			try {
+				return done.await(timeoutNanos, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.metrics;
+
+/**
+ * Quantities counted during token store calls.
+ */
+public enum Counter {
+
+	/** Datastore {@code Get} RPCs, each fetching one or more entities. */
+	DATASTORE_GETS,
+	/** Datastore {@code Put} RPCs. */
+	DATASTORE_PUTS,
+	/** Datastore {@code Delete} RPCs. */
+	DATASTORE_DELETES,
+	/** Datastore queries started ({@code RunQuery} RPCs). */
+	DATASTORE_QUERIES,
+	/** Further result batches fetched by queries ({@code Next} RPCs). */
+	DATASTORE_QUERY_BATCHES,
+	/** Datastore transaction commits. */
+	DATASTORE_COMMITS,
+	/** Memcache RPCs. */
+	MEMCACHE_CALLS,
+	/** Bytes of token and authentication blobs written by the token codec. */
+	BYTES_ENCODED,
+	/** Bytes of token and authentication blobs read by the token codec. */
+	BYTES_DECODED,
+	/** Stored tokens or authentications that could not be decoded. */
+	DESERIALIZATION_FAILURES,
+	/** Removals of tokens that could not be decoded. */
+	SELF_HEALING_DELETES,
+	/** Lookups served by the {@link com.github.biegleux.gae.oauth.tokenstore.cache.AccessTokenCache}. */
+	CACHE_HITS,
+	/** Lookups missing the {@link com.github.biegleux.gae.oauth.tokenstore.cache.AccessTokenCache}. */
+	CACHE_MISSES,
+	/** Lookups by token ID served from memcache. */
+	MEMCACHE_HITS,
+	/** Lookups by token ID missing memcache. */
+	MEMCACHE_MISSES,
+	/** Lookups of unknown tokens answered by the {@link com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.TokenKeyFilter}. */
+	FILTERED_LOOKUPS,
+	/** Lookups answered by a concurrent lookup of the same token on the instance. */
+	COALESCED_LOOKUPS,
+	/** Lookups answered by verifying a signed access token, see {@link com.github.biegleux.gae.oauth.tokenstore.AccessTokenSigner}. */
+	VERIFIED_LOOKUPS
+}
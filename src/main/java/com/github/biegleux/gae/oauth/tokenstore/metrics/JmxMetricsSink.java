@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * {@link MetricsSink} aggregating call counts, latency histograms and counters per token store method, exposed as a
+ * {@link TokenStoreMetricsMXBean}. Recording a call or a counter allocates nothing.
+ * <p>
+ * Statistics can be read through {@link #getStatistics(Operation)} or, once {@link #register(String) registered},
+ * through JMX. The App Engine runtime does not permit access to the platform MBean server, in which case registration
+ * fails and the statistics are still available programmatically.
+ */
+public class JmxMetricsSink implements MetricsSink, TokenStoreMetricsMXBean {
+
+	/** JMX domain the sinks are registered under. */
+	public static final String DOMAIN = "com.github.biegleux.gae.oauth.tokenstore";
+
+	private static final Operation[] OPERATIONS = Operation.values();
+
+	private static final Counter[] COUNTERS = Counter.values();
+
+	/** Latency buckets, bucket {@code i > 0} holding calls of {@code [2^(i-1), 2^i)} microseconds. */
+	private static final int BUCKETS = 32;
+
+	private final OperationMetrics[] operations = new OperationMetrics[OPERATIONS.length];
+
+	private ObjectName objectName;
+
+	public JmxMetricsSink() {
+		for (int i = 0; i < operations.length; i++) {
+			operations[i] = new OperationMetrics();
+		}
+	}
+
+	@Override
+	public void recordCall(Operation operation, long nanos) {
+		OperationMetrics metrics = operations[operation.ordinal()];
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		metrics.calls.incrementAndGet();
+		metrics.totalMicros.addAndGet(micros);
+		metrics.histogram.incrementAndGet(bucketOf(micros));
+		long max = metrics.maxMicros.get();
+		while (micros > max && !metrics.maxMicros.compareAndSet(max, micros)) {
+			max = metrics.maxMicros.get();
+		}
+	}
+
+	@Override
+	public void increment(Operation operation, Counter counter, long delta) {
+		operations[operation.ordinal()].counters.addAndGet(counter.ordinal(), delta);
+	}
+
+	/**
+	 * @param operation Token store method.
+	 * @return Statistics of the method.
+	 */
+	public OperationStatistics getStatistics(Operation operation) {
+		OperationMetrics metrics = operations[operation.ordinal()];
+		long calls = metrics.calls.get();
+		long[] histogram = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			histogram[i] = metrics.histogram.get(i);
+		}
+		Map<String, Long> counters = new LinkedHashMap<String, Long>();
+		for (Counter counter : COUNTERS) {
+			long value = metrics.counters.get(counter.ordinal());
+			if (value != 0) {
+				counters.put(counter.name(), value);
+			}
+		}
+		double mean = calls == 0 ? 0 : (double) metrics.totalMicros.get() / calls;
+		long max = metrics.maxMicros.get();
+		return new OperationStatistics(calls, mean, Math.min(max, percentile(histogram, 0.5)), Math.min(max,
+				percentile(histogram, 0.9)), Math.min(max, percentile(histogram, 0.99)), max, counters);
+	}
+
+	/**
+	 * @param counter Counted quantity.
+	 * @return Counter summed over all token store methods.
+	 */
+	public long getCounter(Counter counter) {
+		long total = 0;
+		for (OperationMetrics metrics : operations) {
+			total += metrics.counters.get(counter.ordinal());
+		}
+		return total;
+	}
+
+	@Override
+	public Map<String, OperationStatistics> getOperations() {
+		Map<String, OperationStatistics> statistics = new LinkedHashMap<String, OperationStatistics>();
+		for (Operation operation : OPERATIONS) {
+			if (operations[operation.ordinal()].calls.get() != 0) {
+				statistics.put(operation.name(), getStatistics(operation));
+			}
+		}
+		return statistics;
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		Map<String, Long> counters = new LinkedHashMap<String, Long>();
+		for (Counter counter : COUNTERS) {
+			counters.put(counter.name(), getCounter(counter));
+		}
+		return counters;
+	}
+
+	@Override
+	public void reset() {
+		for (OperationMetrics metrics : operations) {
+			metrics.calls.set(0);
+			metrics.totalMicros.set(0);
+			metrics.maxMicros.set(0);
+			for (int i = 0; i < BUCKETS; i++) {
+				metrics.histogram.set(i, 0);
+			}
+			for (int i = 0; i < COUNTERS.length; i++) {
+				metrics.counters.set(i, 0);
+			}
+		}
+	}
+
+	/**
+	 * Registers the sink with the platform MBean server.
+	 * @param name Value of the {@code name} key of the object name, distinguishing token stores.
+	 * @throws IllegalStateException If the registration failed or is not permitted.
+	 */
+	public synchronized void register(String name) {
+		try {
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=TokenStoreMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			this.objectName = objectName;
+		} catch (JMException | SecurityException | NoClassDefFoundError e) {
+			throw new IllegalStateException("Failed to register token store metrics " + name, e);
+		}
+	}
+
+	/**
+	 * Unregisters the sink from the platform MBean server, if registered.
+	 */
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.unregisterMBean(objectName);
+		} catch (JMException e) {
+			throw new IllegalStateException("Failed to unregister token store metrics " + objectName, e);
+		} finally {
+			objectName = null;
+		}
+	}
+
+	private static int bucketOf(long micros) {
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	private static long percentile(long[] histogram, double fraction) {
+		long total = 0;
+		for (long count : histogram) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * fraction);
+		long seen = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			seen += histogram[i];
+			if (seen >= rank) {
+				return i == 0 ? 0 : 1L << i;
+			}
+		}
+		return 1L << (histogram.length - 1);
+	}
+
+	/**
+	 * Statistics of a token store method.
+	 */
+	private static final class OperationMetrics {
+
+		final AtomicLong calls = new AtomicLong();
+		final AtomicLong totalMicros = new AtomicLong();
+		final AtomicLong maxMicros = new AtomicLong();
+		final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+		final AtomicLongArray counters = new AtomicLongArray(COUNTERS.length);
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.metrics;
+
+/**
+ * Attributes the work done by the current thread to the token store call in progress, so that repositories, codecs
+ * and the datastore RPC counter can report to the {@link MetricsSink} of the store without knowing it.
+ * <p>
+ * Until a store is given a sink, {@link #count} returns after reading a static flag and nothing is allocated. Calls
+ * nested in another call of the same thread are part of the outermost call.
+ */
+public final class Metrics {
+
+	private static volatile boolean enabled;
+
+	private static final ThreadLocal<Call> CALL = new ThreadLocal<Call>() {
+		@Override
+		protected Call initialValue() {
+			return new Call();
+		}
+	};
+
+	private Metrics() {
+	}
+
+	/**
+	 * Starts a call on the current thread, unless one is in progress already.
+	 * @param sink Sink receiving the metrics of the call.
+	 * @param operation Token store method.
+	 * @return Start time to be passed to {@link #end(long)}.
+	 */
+	public static long begin(MetricsSink sink, Operation operation) {
+		if (!enabled) {
+			enabled = true;
+		}
+		RpcCounter.install();
+		Call call = CALL.get();
+		if (call.depth++ == 0) {
+			call.sink = sink;
+			call.operation = operation;
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * Ends a call started by {@link #begin}, recording it when it is the outermost one.
+	 * @param start Start time returned by {@link #begin}.
+	 */
+	public static void end(long start) {
+		if (!enabled) {
+			return;
+		}
+		Call call = CALL.get();
+		if (call.depth == 0 || --call.depth > 0) {
+			return;
+		}
+		MetricsSink sink = call.sink;
+		Operation operation = call.operation;
+		call.sink = null;
+		call.operation = null;
+		sink.recordCall(operation, System.nanoTime() - start);
+	}
+
+	/**
+	 * Adds to a counter of the call in progress on the current thread. Does nothing outside of calls.
+	 * @param counter Counted quantity.
+	 * @param delta Amount to add.
+	 */
+	public static void count(Counter counter, long delta) {
+		if (!enabled) {
+			return;
+		}
+		Call call = CALL.get();
+		if (call.sink != null) {
+			call.sink.increment(call.operation, counter, delta);
+		}
+	}
+
+	/**
+	 * Restores the API delegate wrapped for counting datastore RPCs, for tests tearing down the App Engine local
+	 * services. The delegate is wrapped again by the next call to a token store with a sink.
+	 */
+	public static void uninstallRpcCounter() {
+		RpcCounter.uninstall();
+	}
+
+	/**
+	 * Token store call in progress on a thread.
+	 */
+	private static final class Call {
+
+		MetricsSink sink;
+		Operation operation;
+		int depth;
+	}
+}
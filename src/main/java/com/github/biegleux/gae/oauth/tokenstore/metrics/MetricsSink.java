@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.metrics;
+
+/**
+ * Receives the metrics of token store calls. Implementations are called on the request threads and must be thread
+ * safe and fast; {@link JmxMetricsSink} aggregates into atomic counters and latency histograms.
+ */
+public interface MetricsSink {
+
+	/**
+	 * Records a completed call.
+	 * @param operation Token store method.
+	 * @param nanos Duration of the call in nanoseconds.
+	 */
+	void recordCall(Operation operation, long nanos);
+
+	/**
+	 * Adds to a counter of the call in progress.
+	 * @param operation Token store method.
+	 * @param counter Counted quantity.
+	 * @param delta Amount to add.
+	 */
+	void increment(Operation operation, Counter counter, long delta);
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.metrics;
+
+/**
+ * Token store methods calls are recorded for. Work done by a method on behalf of another, such as
+ * {@code storeAccessToken} called by {@code getAccessToken}, is recorded for the outermost one.
+ */
+public enum Operation {
+
+	GET_ACCESS_TOKEN,
+	STORE_ACCESS_TOKEN,
+	READ_ACCESS_TOKEN,
+	READ_AUTHENTICATION,
+	REMOVE_ACCESS_TOKEN,
+	STORE_REFRESH_TOKEN,
+	READ_REFRESH_TOKEN,
+	READ_AUTHENTICATION_FOR_REFRESH_TOKEN,
+	REMOVE_REFRESH_TOKEN,
+	REMOVE_ACCESS_TOKEN_USING_REFRESH_TOKEN,
+	ROTATE_REFRESH_TOKEN,
+	FIND_TOKENS_BY_CLIENT_ID,
+	FIND_TOKENS_BY_CLIENT_ID_AND_USER_NAME
+}
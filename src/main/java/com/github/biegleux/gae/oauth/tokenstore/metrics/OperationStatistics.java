@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.metrics;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+
+/**
+ * Snapshot of the statistics of a token store method. Percentiles are upper bounds of power of two latency buckets,
+ * capped by the maximum.
+ */
+public class OperationStatistics {
+
+	private final long calls;
+	private final double meanMicros;
+	private final long p50Micros;
+	private final long p90Micros;
+	private final long p99Micros;
+	private final long maxMicros;
+	private final Map<String, Long> counters;
+
+	@ConstructorProperties({ "calls", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "maxMicros", "counters" })
+	public OperationStatistics(long calls, double meanMicros, long p50Micros, long p90Micros, long p99Micros,
+			long maxMicros, Map<String, Long> counters) {
+		this.calls = calls;
+		this.meanMicros = meanMicros;
+		this.p50Micros = p50Micros;
+		this.p90Micros = p90Micros;
+		this.p99Micros = p99Micros;
+		this.maxMicros = maxMicros;
+		this.counters = counters;
+	}
+
+	public long getCalls() {
+		return calls;
+	}
+
+	public double getMeanMicros() {
+		return meanMicros;
+	}
+
+	public long getP50Micros() {
+		return p50Micros;
+	}
+
+	public long getP90Micros() {
+		return p90Micros;
+	}
+
+	public long getP99Micros() {
+		return p99Micros;
+	}
+
+	public long getMaxMicros() {
+		return maxMicros;
+	}
+
+	/**
+	 * @return Non-zero counters of the method by {@link Counter} name.
+	 */
+	public Map<String, Long> getCounters() {
+		return counters;
+	}
+
+	@Override
+	public String toString() {
+		return "calls=" + calls + ", mean=" + meanMicros + "us, p50=" + p50Micros + "us, p90=" + p90Micros
+				+ "us, p99=" + p99Micros + "us, max=" + maxMicros + "us, counters=" + counters;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.metrics;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+
+/**
+ * {@link Delegate} counting the datastore and memcache RPCs issued during token store calls, then passing them on to
+ * the wrapped delegate. Both the JDO and the low-level backends are counted, including asynchronous calls, which are
+ * attributed to the call that issued them.
+ */
+final class RpcCounter implements Delegate<Environment> {
+
+	private static final String DATASTORE = "datastore_v3";
+
+	private static final String MEMCACHE = "memcache";
+
+	private final Delegate<Environment> delegate;
+
+	private RpcCounter(Delegate<Environment> delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Wraps the current delegate unless it is wrapped already. The delegate is replaced by the App Engine test helpers,
+	 * so this is checked on every call.
+	 */
+	@SuppressWarnings("unchecked")
+	static void install() {
+		Delegate<?> current = ApiProxy.getDelegate();
+		if (current == null || current instanceof RpcCounter) {
+			return;
+		}
+		synchronized (RpcCounter.class) {
+			current = ApiProxy.getDelegate();
+			if (current != null && !(current instanceof RpcCounter)) {
+				ApiProxy.setDelegate(new RpcCounter((Delegate<Environment>) current));
+			}
+		}
+	}
+
+	static void uninstall() {
+		synchronized (RpcCounter.class) {
+			Delegate<?> current = ApiProxy.getDelegate();
+			if (current instanceof RpcCounter) {
+				ApiProxy.setDelegate(((RpcCounter) current).delegate);
+			}
+		}
+	}
+
+	@Override
+	public byte[] makeSyncCall(Environment environment, String packageName, String methodName, byte[] request)
+			throws ApiProxyException {
+		count(packageName, methodName);
+		return delegate.makeSyncCall(environment, packageName, methodName, request);
+	}
+
+	@Override
+	public Future<byte[]> makeAsyncCall(Environment environment, String packageName, String methodName,
+			byte[] request, ApiConfig apiConfig) {
+		count(packageName, methodName);
+		return delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+	}
+
+	@Override
+	public void log(Environment environment, LogRecord record) {
+		delegate.log(environment, record);
+	}
+
+	@Override
+	public void flushLogs(Environment environment) {
+		delegate.flushLogs(environment);
+	}
+
+	@Override
+	public List<Thread> getRequestThreads(Environment environment) {
+		return delegate.getRequestThreads(environment);
+	}
+
+	private static void count(String packageName, String methodName) {
+		Counter counter = counterOf(packageName, methodName);
+		if (counter != null) {
+			Metrics.count(counter, 1);
+		}
+	}
+
+	static Counter counterOf(String packageName, String methodName) {
+		if (MEMCACHE.equals(packageName)) {
+			return Counter.MEMCACHE_CALLS;
+		}
+		if (!DATASTORE.equals(packageName)) {
+			return null;
+		}
+		switch (methodName) {
+		case "Get":
+			return Counter.DATASTORE_GETS;
+		case "Put":
+			return Counter.DATASTORE_PUTS;
+		case "Delete":
+			return Counter.DATASTORE_DELETES;
+		case "RunQuery":
+			return Counter.DATASTORE_QUERIES;
+		case "Next":
+			return Counter.DATASTORE_QUERY_BATCHES;
+		case "Commit":
+			return Counter.DATASTORE_COMMITS;
+		default:
+			return null;
+		}
+	}
+}
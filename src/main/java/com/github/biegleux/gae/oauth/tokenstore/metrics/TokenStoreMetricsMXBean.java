@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link JmxMetricsSink}.
+ */
+public interface TokenStoreMetricsMXBean {
+
+	/**
+	 * @return Statistics by token store method name, for the methods called at least once.
+	 */
+	Map<String, OperationStatistics> getOperations();
+
+	/**
+	 * @return Counters summed over all token store methods.
+	 */
+	Map<String, Long> getCounters();
+
+	/**
+	 * Clears all statistics.
+	 */
+	void reset();
+}
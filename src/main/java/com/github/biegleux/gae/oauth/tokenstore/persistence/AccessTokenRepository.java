@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence;
+
+import java.util.List;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthAccessToken;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Operations for managing {@link GaeOAuthAccessToken} entities.
+ */
+public interface AccessTokenRepository extends TokenRepository<GaeOAuthAccessToken> {
+
+	/**
+	 * Looks up the {@link GaeOAuthAccessToken} entities with the given client ID.
+	 * @param clientId Client ID.
+	 * @return List of the corresponding {@link GaeOAuthAccessToken} entities.
+	 */
+	List<GaeOAuthAccessToken> findByClientId(String clientId);
+
+	/**
+	 * Looks up the {@link GaeOAuthAccessToken} entities with the given user name and client ID.
+	 * @param username User name.
+	 * @param clientId Client ID.
+	 * @return List of the corresponding {@link GaeOAuthAccessToken} entities.
+	 */
+	List<GaeOAuthAccessToken> findByUsernameAndClientId(String username, String clientId);
+
+	/**
+	 * Looks up one page of the {@link GaeOAuthAccessToken} entities with the given client ID.
+	 * @param clientId Client ID.
+	 * @param pageSize Maximum number of entities in the page.
+	 * @param cursor Cursor of a previous page or {@code null} for the first page.
+	 * @return Page of the corresponding {@link GaeOAuthAccessToken} entities.
+	 * @throws IllegalArgumentException if the cursor is not valid.
+	 */
+	Page<GaeOAuthAccessToken> findByClientId(String clientId, int pageSize, String cursor);
+
+	/**
+	 * Looks up one page of the {@link GaeOAuthAccessToken} entities with the given user name and client ID.
+	 * @param username User name.
+	 * @param clientId Client ID.
+	 * @param pageSize Maximum number of entities in the page.
+	 * @param cursor Cursor of a previous page or {@code null} for the first page.
+	 * @return Page of the corresponding {@link GaeOAuthAccessToken} entities.
+	 * @throws IllegalArgumentException if the cursor is not valid.
+	 */
+	Page<GaeOAuthAccessToken> findByUsernameAndClientId(String username, String clientId, int pageSize, String cursor);
+
+	/**
+	 * Looks up one page of the keys of the {@link GaeOAuthAccessToken} entities with the given client ID by a keys-only
+	 * query.
+	 * @param clientId Client ID.
+	 * @param pageSize Maximum number of keys in the page.
+	 * @param cursor Cursor of a previous page or {@code null} for the first page.
+	 * @return Page of keys.
+	 * @throws IllegalArgumentException if the cursor is not valid.
+	 */
+	Page<Key> findKeysByClientId(String clientId, int pageSize, String cursor);
+
+	/**
+	 * Looks up one page of the keys of the {@link GaeOAuthAccessToken} entities with the given user name and client ID
+	 * by a keys-only query.
+	 * @param username User name.
+	 * @param clientId Client ID.
+	 * @param pageSize Maximum number of keys in the page.
+	 * @param cursor Cursor of a previous page or {@code null} for the first page.
+	 * @return Page of keys.
+	 * @throws IllegalArgumentException if the cursor is not valid.
+	 */
+	Page<Key> findKeysByUsernameAndClientId(String username, String clientId, int pageSize, String cursor);
+
+	/**
+	 * Looks up the {@link GaeOAuthAccessToken} entities with the given refresh token.
+	 * @param refreshToken Refresh token.
+	 * @return List of the corresponding {@link GaeOAuthAccessToken} entities.
+	 */
+	List<GaeOAuthAccessToken> findByRefreshToken(String refreshToken);
+
+	/**
+	 * Deletes the {@link GaeOAuthAccessToken} entities with the given refresh token.
+	 * @param refreshToken Refresh token.
+	 * @return Number of {@link GaeOAuthAccessToken} entities that were deleted.
+	 */
+	long deleteByRefreshToken(String refreshToken);
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome of a batch operation, reported per item.
+ * <p>
+ * Items that were processed are mapped to their result, items that failed to the exception they failed with. Items
+ * that were not found by a lookup appear in neither map.
+ *
+ * @param <K> The type identifying an item.
+ * @param <V> The type of an item's result.
+ */
+public class BatchResult<K, V> {
+
+	private final Map<K, V> results = new LinkedHashMap<K, V>();
+
+	private final Map<K, RuntimeException> failures = new LinkedHashMap<K, RuntimeException>();
+
+	public void succeeded(K item, V result) {
+		results.put(item, result);
+	}
+
+	public void failed(K item, RuntimeException failure) {
+		failures.put(item, failure);
+	}
+
+	/**
+	 * Adds the results and failures of another batch.
+	 * @param other Batch result.
+	 */
+	public void addAll(BatchResult<K, ? extends V> other) {
+		results.putAll(other.results);
+		failures.putAll(other.failures);
+	}
+
+	public Map<K, V> getResults() {
+		return Collections.unmodifiableMap(results);
+	}
+
+	public Map<K, RuntimeException> getFailures() {
+		return Collections.unmodifiableMap(failures);
+	}
+
+	public boolean hasFailures() {
+		return !failures.isEmpty();
+	}
+}
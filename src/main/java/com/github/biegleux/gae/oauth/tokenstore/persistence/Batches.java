@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Helpers for splitting bulk operations into datastore calls of bounded size.
+ */
+public final class Batches {
+
+	/**
+	 * Default number of tokens handled by one datastore call. Together with their shared authentications the
+	 * entities of a batch stay within the limit of 500 entities per put.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 200;
+
+	private Batches() {
+	}
+
+	/**
+	 * Splits the items into consecutive batches.
+	 * @param items Items to split.
+	 * @param batchSize Maximum number of items in a batch.
+	 * @return Batches in the iteration order of the items.
+	 */
+	public static <E> List<List<E>> partition(Collection<E> items, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+		}
+		List<List<E>> batches = new ArrayList<List<E>>();
+		List<E> batch = null;
+		for (E item : items) {
+			if (batch == null || batch.size() == batchSize) {
+				batch = new ArrayList<E>(Math.min(batchSize, items.size()));
+				batches.add(batch);
+			}
+			batch.add(item);
+		}
+		return batches;
+	}
+}
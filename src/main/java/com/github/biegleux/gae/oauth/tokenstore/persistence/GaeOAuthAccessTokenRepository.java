@@ -25,16 +25,26 @@ import javax.jdo.PersistenceManager;
 import javax.jdo.Query;
 
 import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthAccessToken;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
 
 /**
  * This class provides operations for managing {@link GaeOAuthTokenRepository} entities.
  */
-public class GaeOAuthAccessTokenRepository extends GaeOAuthTokenRepository<GaeOAuthAccessToken> {
+public class GaeOAuthAccessTokenRepository extends GaeOAuthTokenRepository<GaeOAuthAccessToken> implements AccessTokenRepository {
 
 	public GaeOAuthAccessTokenRepository() {
 		super(GaeOAuthAccessToken.class);
 	}
 
+	public GaeOAuthAccessTokenRepository(DatastoreService datastore, AsyncDatastoreService asyncDatastore) {
+		super(datastore, asyncDatastore, GaeOAuthAccessToken.class);
+	}
+
 	/**
 	 * Looks up the {@link GaeOAuthAccessToken} entities with the given client ID.
 	 * @param clientId Client ID.
@@ -42,18 +52,18 @@ public class GaeOAuthAccessTokenRepository extends GaeOAuthTokenRepository<GaeOA
 	 */
 	@SuppressWarnings("unchecked")
 	public List<GaeOAuthAccessToken> findByClientId(String clientId) {
-		PersistenceManager pm = PMF.get().getPersistenceManager();
+		PersistenceManager pm = PersistenceScope.getPersistenceManager();
 		Query query = null;
 		try {
 			query = pm.newQuery(GaeOAuthAccessToken.class);
 			query.setFilter("clientId == param");
 			query.declareParameters("String param");
-			return new ArrayList<GaeOAuthAccessToken> ((Collection<GaeOAuthAccessToken>) query.execute(clientId));
+			return resolve(withCodec(new ArrayList<GaeOAuthAccessToken> ((Collection<GaeOAuthAccessToken>) query.execute(clientId))));
 		} finally {
 			if (query != null) {
 				query.closeAll();
 			}
-			pm.close();
+			PersistenceScope.release(pm);
 		}
 	}
 
@@ -65,18 +75,64 @@ public class GaeOAuthAccessTokenRepository extends GaeOAuthTokenRepository<GaeOA
 	 */
 	@SuppressWarnings("unchecked")
 	public List<GaeOAuthAccessToken> findByUsernameAndClientId(String username, String clientId) {
-		PersistenceManager pm = PMF.get().getPersistenceManager();
+		PersistenceManager pm = PersistenceScope.getPersistenceManager();
 		Query query = null;
 		try {
 			query = pm.newQuery(GaeOAuthAccessToken.class);
 			query.setFilter("username == param1 && clientId == param2");
 			query.declareParameters("String param1, String param2");
-			return new ArrayList<GaeOAuthAccessToken> ((Collection<GaeOAuthAccessToken>) query.execute(username, clientId));
+			return resolve(withCodec(new ArrayList<GaeOAuthAccessToken> ((Collection<GaeOAuthAccessToken>) query.execute(username, clientId))));
 		} finally {
 			if (query != null) {
 				query.closeAll();
 			}
-			pm.close();
+			PersistenceScope.release(pm);
+		}
+	}
+
+	@Override
+	public Page<GaeOAuthAccessToken> findByClientId(String clientId, int pageSize, String cursor) {
+		return find(new FilterPredicate("clientId", FilterOperator.EQUAL, clientId), pageSize, cursor);
+	}
+
+	@Override
+	public Page<GaeOAuthAccessToken> findByUsernameAndClientId(String username, String clientId, int pageSize, String cursor) {
+		return find(CompositeFilterOperator.and(
+				new FilterPredicate("username", FilterOperator.EQUAL, username),
+				new FilterPredicate("clientId", FilterOperator.EQUAL, clientId)), pageSize, cursor);
+	}
+
+	@Override
+	public Page<Key> findKeysByClientId(String clientId, int pageSize, String cursor) {
+		return findKeys(new FilterPredicate("clientId", FilterOperator.EQUAL, clientId), pageSize, cursor);
+	}
+
+	@Override
+	public Page<Key> findKeysByUsernameAndClientId(String username, String clientId, int pageSize, String cursor) {
+		return findKeys(CompositeFilterOperator.and(
+				new FilterPredicate("username", FilterOperator.EQUAL, username),
+				new FilterPredicate("clientId", FilterOperator.EQUAL, clientId)), pageSize, cursor);
+	}
+
+	/**
+	 * Looks up the {@link GaeOAuthAccessToken} entities with the given refresh token.
+	 * @param refreshToken Refresh token.
+	 * @return List of the corresponding {@link GaeOAuthAccessToken} entities.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<GaeOAuthAccessToken> findByRefreshToken(String refreshToken) {
+		PersistenceManager pm = PersistenceScope.getPersistenceManager();
+		Query query = null;
+		try {
+			query = pm.newQuery(GaeOAuthAccessToken.class);
+			query.setFilter("refreshToken == param");
+			query.declareParameters("String param");
+			return resolve(withCodec(new ArrayList<GaeOAuthAccessToken> ((Collection<GaeOAuthAccessToken>) query.execute(refreshToken))));
+		} finally {
+			if (query != null) {
+				query.closeAll();
+			}
+			PersistenceScope.release(pm);
 		}
 	}
 
@@ -86,6 +142,7 @@ public class GaeOAuthAccessTokenRepository extends GaeOAuthTokenRepository<GaeOA
 	 * @return Number of {@link GaeOAuthAccessToken} entities that were deleted.
 	 */
 	public long deleteByRefreshToken(String refreshToken) {
+		PersistenceScope.invalidate();
 		PersistenceManager pm = PMF.get().getPersistenceManager();
 		Query query = null;
 		try {
@@ -18,13 +18,19 @@
 package com.github.biegleux.gae.oauth.tokenstore.persistence;
 
 import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthRefreshToken;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
 
 /**
  * This class provides operations for managing {@link GaeOAuthRefreshToken} entities.
  */
-public class GaeOAuthRefreshTokenRepository extends GaeOAuthTokenRepository<GaeOAuthRefreshToken> {
+public class GaeOAuthRefreshTokenRepository extends GaeOAuthTokenRepository<GaeOAuthRefreshToken> implements RefreshTokenRepository {
 
 	public GaeOAuthRefreshTokenRepository() {
 		super(GaeOAuthRefreshToken.class);
 	}
+
+	public GaeOAuthRefreshTokenRepository(DatastoreService datastore, AsyncDatastoreService asyncDatastore) {
+		super(datastore, asyncDatastore, GaeOAuthRefreshToken.class);
+	}
 }
@@ -16,23 +16,310 @@
  */
 package com.github.biegleux.gae.oauth.tokenstore.persistence;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
 import javax.jdo.Query;
 
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.SerializationTokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.TokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreAuthenticationRepository;
 import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthToken;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
 
 /**
  * This base class provides additional operations for managing {@link GaeOAuthToken} entities.
+ * <p>
+ * When token key names are enabled, new entities are stored with the token ID as their key name, so that looking up
+ * and deleting a token is a single key operation instead of a query. Entities written with datastore allocated IDs
+ * (0.2 and earlier) are still found through the legacy {@code tokenId} query unless legacy lookup is disabled.
+ * <p>
+ * Tokens stored by the low-level repositories with shared authentications reference their authentication through the
+ * {@code authenticationKey} property. Loaded tokens get it resolved from the {@link DatastoreAuthenticationRepository}
+ * kind, in one batch get for queries.
+ * <p>
+ * Deletes by key and keys-only queries, which JDO cannot express without loading the entities, go through the
+ * low-level datastore services given at construction. They end the shared persistence manager of the current
+ * {@link PersistenceScope} first, so its first-level cache never returns an entity deleted this way.
+ * <p>
+ * The repository is not transactional: JDO writes cannot join a low-level datastore transaction, so the
+ * {@code *Async} methods run their write without a transaction when their future is first waited for.
  *
  * @param <T> Subclass of {@link GaeOAuthToken} stored by the repository.
  */
-abstract class GaeOAuthTokenRepository<T extends GaeOAuthToken<?>> extends JDORepository<T, Key> {
+abstract class GaeOAuthTokenRepository<T extends GaeOAuthToken<?>> extends JDORepository<T, Key> implements TokenRepository<T> {
 
-	public GaeOAuthTokenRepository(Class<T> clazz) {
+	private boolean tokenKeyNames;
+
+	private boolean legacyLookup = true;
+
+	private TokenCodec codec = new SerializationTokenCodec();
+
+	private int batchSize = Batches.DEFAULT_BATCH_SIZE;
+
+	private DatastoreAuthenticationRepository authentications;
+
+	protected final DatastoreService datastore;
+
+	protected final AsyncDatastoreService asyncDatastore;
+
+	public GaeOAuthTokenRepository(DatastoreService datastore, AsyncDatastoreService asyncDatastore, Class<T> clazz) {
 		super(clazz);
+		this.datastore = datastore;
+		this.asyncDatastore = asyncDatastore;
+	}
+
+	public GaeOAuthTokenRepository(Class<T> clazz) {
+		this(DatastoreServiceFactory.getDatastoreService(), DatastoreServiceFactory.getAsyncDatastoreService(), clazz);
+	}
+
+	/**
+	 * Enables storing new entities with the token ID as their key name.
+	 * @param tokenKeyNames {@code true} to address entities by key name, {@code false} by default.
+	 */
+	public void setTokenKeyNames(boolean tokenKeyNames) {
+		this.tokenKeyNames = tokenKeyNames;
+	}
+
+	public boolean isTokenKeyNames() {
+		return tokenKeyNames;
+	}
+
+	/**
+	 * Controls whether lookups by token ID fall back to the {@code tokenId} query when no entity exists under the key
+	 * name. Only relevant when token key names are enabled, it can be turned off once no entities with datastore
+	 * allocated IDs are left.
+	 * @param legacyLookup {@code false} to rely on key names only, {@code true} by default.
+	 */
+	public void setLegacyLookup(boolean legacyLookup) {
+		this.legacyLookup = legacyLookup;
+	}
+
+	public boolean isLegacyLookup() {
+		return legacyLookup;
+	}
+
+	/**
+	 * Sets the codec of the token and authentication blobs.
+	 * @param codec Token codec, {@link SerializationTokenCodec} by default.
+	 */
+	public void setCodec(TokenCodec codec) {
+		this.codec = codec;
+	}
+
+	public TokenCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the maximum number of tokens read, written or deleted by one datastore call of the batch operations.
+	 * @param batchSize Batch size, {@link Batches#DEFAULT_BATCH_SIZE} by default.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the repository the shared authentications of loaded tokens are looked up in.
+	 * @param authentications Authentication repository, one over the datastore service of this repository when not
+	 *            set.
+	 */
+	public void setAuthentications(DatastoreAuthenticationRepository authentications) {
+		this.authentications = authentications;
+	}
+
+	public DatastoreAuthenticationRepository getAuthentications() {
+		if (authentications == null) {
+			authentications = new DatastoreAuthenticationRepository(datastore);
+		}
+		return authentications;
+	}
+
+	/**
+	 * Creates the key of the entity stored under the given token ID.
+	 * @param tokenId Token ID.
+	 * @return Datastore key with the token ID as its key name.
+	 */
+	public Key createKey(String tokenId) {
+		return KeyFactory.createKey(clazz.getSimpleName(), tokenId);
+	}
+
+	/**
+	 * Makes the given entity persistent, assigning it the key named after its token ID if token key names are
+	 * enabled and the entity has no key yet.
+	 */
+	@Override
+	public T save(T entity) {
+		if (tokenKeyNames && entity.getKey() == null && entity.getTokenId() != null) {
+			entity.setKey(createKey(entity.getTokenId()));
+		}
+		entity.setCodec(codec);
+		entity.encode();
+		return super.save(entity);
+	}
+
+	/**
+	 * Makes the given entity persistent outside of a transaction, so that it is written by a single put, and removes
+	 * other entities with the same token ID where they may exist.
+	 * <p>
+	 * The put is the only RPC when token key names are enabled and legacy lookup is disabled. In any other
+	 * configuration, including the default one, a keys-only query for the token ID follows the put, and a delete
+	 * follows when it finds copies. The put and the delete are not atomic; until the delete, lookups may find a copy
+	 * that is about to be removed.
+	 */
+	@Override
+	public T upsert(T entity) {
+		PersistenceScope.invalidate();
+		if (tokenKeyNames && entity.getKey() == null && entity.getTokenId() != null) {
+			entity.setKey(createKey(entity.getTokenId()));
+		}
+		entity.setCodec(codec);
+		entity.encode();
+		T result;
+		PersistenceManager pm = PMF.get().getPersistenceManager();
+		try {
+			result = pm.makePersistent(entity);
+		} finally {
+			pm.close();
+		}
+		if ((!tokenKeyNames || legacyLookup) && entity.getTokenId() != null) {
+			deleteOthers(entity.getTokenId(), entity.getKey());
+		}
+		return result;
+	}
+
+	private void deleteOthers(String tokenId, Key key) {
+		Map<String, Key> written = new HashMap<String, Key>();
+		written.put(tokenId, key);
+		deleteOthers(written);
+	}
+
+	/**
+	 * Deletes the entities with the given token IDs except for the ones just written, found by keys-only queries
+	 * running concurrently.
+	 * @param written Keys of the written entities by token ID.
+	 */
+	private void deleteOthers(Map<String, Key> written) {
+		PersistenceScope.invalidate();
+		List<Key> keys = new ArrayList<Key>();
+		Set<Key> kept = new HashSet<Key>(written.values());
+		for (Iterable<Entity> entities : queryKeys(written.keySet()).values()) {
+			for (Entity entity : entities) {
+				if (!kept.contains(entity.getKey())) {
+					keys.add(entity.getKey());
+				}
+			}
+		}
+		if (!keys.isEmpty()) {
+			datastore.delete(keys);
+		}
+	}
+
+	/**
+	 * Starts keys-only queries for the entities with the given token IDs. The first batch of each query is fetched in
+	 * the background.
+	 * @param tokenIds Token IDs.
+	 * @return Entities holding the keys only by token ID.
+	 */
+	private Map<String, Iterable<Entity>> queryKeys(Collection<String> tokenIds) {
+		Map<String, Iterable<Entity>> queries = new LinkedHashMap<String, Iterable<Entity>>();
+		for (String tokenId : tokenIds) {
+			com.google.appengine.api.datastore.Query query = new com.google.appengine.api.datastore.Query(clazz.getSimpleName())
+					.setFilter(new FilterPredicate("tokenId", FilterOperator.EQUAL, tokenId)).setKeysOnly();
+			queries.put(tokenId, asyncDatastore.prepare(query).asList(FetchOptions.Builder.withDefaults()));
+		}
+		return queries;
+	}
+
+	/**
+	 * Looks up the entity with the given key.
+	 */
+	@Override
+	public T get(Key id) {
+		return resolve(withCodec(super.get(id)));
+	}
+
+	/**
+	 * Assigns the codec of this repository to a loaded entity.
+	 * @param token Loaded entity, may be {@code null}.
+	 * @return The given entity.
+	 */
+	protected T withCodec(T token) {
+		if (token != null) {
+			token.setCodec(codec);
+		}
+		return token;
+	}
+
+	/**
+	 * Assigns the codec of this repository to loaded entities.
+	 * @param tokens Loaded entities.
+	 * @return The given entities.
+	 */
+	protected <C extends Collection<T>> C withCodec(C tokens) {
+		for (T token : tokens) {
+			token.setCodec(codec);
+		}
+		return tokens;
+	}
+
+	/**
+	 * Fetches the shared authentication referenced by a loaded entity.
+	 * @param token Loaded entity, may be {@code null}.
+	 * @return The given entity.
+	 */
+	protected T resolve(T token) {
+		if (token != null && token.getAuthenticationKey() != null && token.getAuthenticationBlob() == null) {
+			token.setResolvedAuthenticationBlob(getAuthentications().get(token.getAuthenticationKey()));
+		}
+		return token;
+	}
+
+	/**
+	 * Fetches the shared authentications referenced by loaded entities in one batch get.
+	 * @param tokens Loaded entities.
+	 * @return The given entities.
+	 */
+	protected <C extends Collection<T>> C resolve(C tokens) {
+		Set<Key> keys = new HashSet<Key>();
+		for (T token : tokens) {
+			if (token.getAuthenticationKey() != null && token.getAuthenticationBlob() == null) {
+				keys.add(token.getAuthenticationKey());
+			}
+		}
+		if (!keys.isEmpty()) {
+			Map<Key, Blob> blobs = getAuthentications().get(keys);
+			for (T token : tokens) {
+				if (token.getAuthenticationKey() != null && token.getAuthenticationBlob() == null) {
+					token.setResolvedAuthenticationBlob(blobs.get(token.getAuthenticationKey()));
+				}
+			}
+		}
+		return tokens;
 	}
 
 	/**
@@ -42,19 +329,19 @@ abstract class GaeOAuthTokenRepository<T extends GaeOAuthToken<?>> extends JDORe
 	 */
 	@SuppressWarnings("unchecked")
 	public T findByAuthenticationId(String authenticationId) {
-		PersistenceManager pm = PMF.get().getPersistenceManager();
+		PersistenceManager pm = PersistenceScope.getPersistenceManager();
 		Query query = null;
 		try {
 			query = pm.newQuery(clazz);
 			query.setFilter("authenticationId == param");
 			query.declareParameters("String param");
 			Collection<T> tokens = (Collection<T>) query.execute(authenticationId);
-			return tokens.isEmpty() ? null : tokens.iterator().next();
+			return tokens.isEmpty() ? null : resolve(withCodec(tokens.iterator().next()));
 		} finally {
 			if (query != null) {
 				query.closeAll();
 			}
-			pm.close();
+			PersistenceScope.release(pm);
 		}
 	}
 
@@ -63,30 +350,65 @@ abstract class GaeOAuthTokenRepository<T extends GaeOAuthToken<?>> extends JDORe
 	 * @param tokenId Token ID.
 	 * @return The corresponding {@link GaeOAuthToken} entity.
 	 */
-	@SuppressWarnings("unchecked")
 	public T findByTokenId(String tokenId) {
-		PersistenceManager pm = PMF.get().getPersistenceManager();
+		if (tokenKeyNames && tokenId != null) {
+			T token = findByTokenKey(tokenId);
+			if (token != null || !legacyLookup) {
+				return token;
+			}
+		}
+		return queryByTokenId(tokenId);
+	}
+
+	/**
+	 * Looks up the {@link GaeOAuthToken} entity stored under the key named after the given token ID.
+	 * @param tokenId Token ID.
+	 * @return The corresponding {@link GaeOAuthToken} entity or {@code null} if there is none.
+	 */
+	public T findByTokenKey(String tokenId) {
+		try {
+			return get(createKey(tokenId));
+		} catch (JDOObjectNotFoundException e) {
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private T queryByTokenId(String tokenId) {
+		PersistenceManager pm = PersistenceScope.getPersistenceManager();
 		Query query = null;
 		try {
 			query = pm.newQuery(clazz);
 			query.setFilter("tokenId == param");
 			query.declareParameters("String param");
 			Collection<T> tokens = (Collection<T>) query.execute(tokenId);
-			return tokens.isEmpty() ? null : tokens.iterator().next();
+			return tokens.isEmpty() ? null : resolve(withCodec(tokens.iterator().next()));
 		} finally {
 			if (query != null) {
 				query.closeAll();
 			}
-			pm.close();
+			PersistenceScope.release(pm);
 		}
 	}
 
 	/**
 	 * Deletes the {@link GaeOAuthToken} entities with the given token ID.
+	 * <p>
+	 * With token key names enabled the entity is deleted by its key, which does not report whether it existed. Such
+	 * a delete is counted as one entity.
 	 * @param tokenId Token ID.
 	 * @return Number of {@link GaeOAuthToken} entities that were deleted.
 	 */
 	public long deleteByTokenId(String tokenId) {
+		PersistenceScope.invalidate();
+		if (tokenKeyNames && tokenId != null) {
+			datastore.delete(createKey(tokenId));
+			return legacyLookup ? Math.max(1, deleteByTokenIdQuery(tokenId)) : 1;
+		}
+		return deleteByTokenIdQuery(tokenId);
+	}
+
+	private long deleteByTokenIdQuery(String tokenId) {
 		PersistenceManager pm = PMF.get().getPersistenceManager();
 		Query query = null;
 		try {
@@ -101,4 +423,233 @@ abstract class GaeOAuthTokenRepository<T extends GaeOAuthToken<?>> extends JDORe
 			pm.close();
 		}
 	}
+
+	/**
+	 * Looks up the entities with the given token IDs, by a batch get of their keys when key names are enabled and by
+	 * queries otherwise.
+	 */
+	public BatchResult<String, T> findByTokenIds(Collection<String> tokenIds) {
+		BatchResult<String, T> result = new BatchResult<String, T>();
+		for (List<String> batch : Batches.partition(tokenIds, batchSize)) {
+			try {
+				result.addAll(findBatch(batch));
+			} catch (RuntimeException e) {
+				for (String tokenId : batch) {
+					try {
+						T token = findByTokenId(tokenId);
+						if (token != null) {
+							result.succeeded(tokenId, token);
+						}
+					} catch (RuntimeException failure) {
+						result.failed(tokenId, failure);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private BatchResult<String, T> findBatch(List<String> tokenIds) {
+		Map<String, T> found = new HashMap<String, T>();
+		if (tokenKeyNames) {
+			List<Key> keys = new ArrayList<Key>(tokenIds.size());
+			for (String tokenId : tokenIds) {
+				keys.add(createKey(tokenId));
+			}
+			for (T token : resolve(getAll(keys))) {
+				found.put(token.getTokenId(), token);
+			}
+		}
+		BatchResult<String, T> result = new BatchResult<String, T>();
+		for (String tokenId : tokenIds) {
+			T token = found.get(tokenId);
+			if (token == null && (!tokenKeyNames || legacyLookup)) {
+				token = queryByTokenId(tokenId);
+			}
+			if (token != null) {
+				result.succeeded(tokenId, token);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Makes the entities persistent by one batch put per batch, outside of a transaction.
+	 */
+	public BatchResult<String, T> upsertAll(Collection<T> entities) {
+		BatchResult<String, T> result = new BatchResult<String, T>();
+		for (List<T> batch : Batches.partition(entities, batchSize)) {
+			try {
+				result.addAll(upsertBatch(batch));
+			} catch (RuntimeException e) {
+				for (T entity : batch) {
+					try {
+						result.succeeded(entity.getTokenId(), upsert(entity));
+					} catch (RuntimeException failure) {
+						result.failed(entity.getTokenId(), failure);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private BatchResult<String, T> upsertBatch(List<T> entities) {
+		PersistenceScope.invalidate();
+		for (T entity : entities) {
+			if (tokenKeyNames && entity.getKey() == null && entity.getTokenId() != null) {
+				entity.setKey(createKey(entity.getTokenId()));
+			}
+			entity.setCodec(codec);
+			entity.encode();
+		}
+		PersistenceManager pm = PMF.get().getPersistenceManager();
+		try {
+			pm.makePersistentAll(entities);
+		} finally {
+			pm.close();
+		}
+		BatchResult<String, T> result = new BatchResult<String, T>();
+		Map<String, Key> written = new HashMap<String, Key>();
+		for (T entity : entities) {
+			if (entity.getTokenId() != null) {
+				written.put(entity.getTokenId(), entity.getKey());
+			}
+			result.succeeded(entity.getTokenId(), entity);
+		}
+		if (!tokenKeyNames || legacyLookup) {
+			deleteOthers(written);
+		}
+		return result;
+	}
+
+	/**
+	 * Deletes the entities with the given token IDs by one batch delete per batch, finding them by keys-only queries
+	 * running concurrently when key names are disabled or legacy lookup is enabled.
+	 */
+	public BatchResult<String, Long> deleteByTokenIds(Collection<String> tokenIds) {
+		BatchResult<String, Long> result = new BatchResult<String, Long>();
+		for (List<String> batch : Batches.partition(tokenIds, batchSize)) {
+			try {
+				result.addAll(deleteBatch(batch));
+			} catch (RuntimeException e) {
+				for (String tokenId : batch) {
+					try {
+						result.succeeded(tokenId, deleteByTokenId(tokenId));
+					} catch (RuntimeException failure) {
+						result.failed(tokenId, failure);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private BatchResult<String, Long> deleteBatch(List<String> tokenIds) {
+		PersistenceScope.invalidate();
+		Map<String, Iterable<Entity>> queries = !tokenKeyNames || legacyLookup
+				? queryKeys(tokenIds) : new HashMap<String, Iterable<Entity>>();
+		Set<Key> keys = new HashSet<Key>();
+		BatchResult<String, Long> result = new BatchResult<String, Long>();
+		for (String tokenId : tokenIds) {
+			long count = 0;
+			if (tokenKeyNames && tokenId != null) {
+				keys.add(createKey(tokenId));
+				count = 1;
+			}
+			if (queries.containsKey(tokenId)) {
+				long queried = 0;
+				for (Entity entity : queries.get(tokenId)) {
+					if (keys.add(entity.getKey())) {
+						queried++;
+					}
+				}
+				count = Math.max(count, queried);
+			}
+			result.succeeded(tokenId, count);
+		}
+		if (!keys.isEmpty()) {
+			datastore.delete(keys);
+		}
+		return result;
+	}
+
+	/**
+	 * Looks up the entities with the given keys by one batch get.
+	 * @param keys Datastore keys.
+	 * @return Entities found, in the order of their keys.
+	 */
+	@SuppressWarnings("unchecked")
+	protected List<T> getAll(List<Key> keys) {
+		if (keys.isEmpty()) {
+			return new ArrayList<T>();
+		}
+		Map<Key, T> found = new HashMap<Key, T>();
+		PersistenceManager pm = PersistenceScope.getPersistenceManager();
+		Query query = null;
+		try {
+			query = pm.newQuery(clazz);
+			query.setFilter("param.contains(key)");
+			query.declareParameters("java.util.List param");
+			for (T token : (Collection<T>) query.execute(keys)) {
+				found.put(token.getKey(), withCodec(token));
+			}
+		} finally {
+			if (query != null) {
+				query.closeAll();
+			}
+			PersistenceScope.release(pm);
+		}
+		List<T> tokens = new ArrayList<T>(found.size());
+		for (Key key : keys) {
+			if (found.containsKey(key)) {
+				tokens.add(found.get(key));
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Looks up the entities with the given keys by one batch get. JDO loads the authentication blobs along with the
+	 * tokens, but they are only decoded on access, and shared authentications are not fetched.
+	 */
+	public List<T> findTokensByKeys(List<Key> keys) {
+		return getAll(keys);
+	}
+
+	/**
+	 * Looks up one page of the entities matching the filter. JDO queries cannot resume from a cursor without the
+	 * datastore plugin's extensions, so the page is found by a keys-only datastore query and its entities are then
+	 * looked up by one batch get.
+	 * @param filter Datastore query filter.
+	 * @param pageSize Maximum number of entities in the page.
+	 * @param cursor Web safe cursor of a previous page or {@code null} for the first page.
+	 * @return Page of entities.
+	 */
+	protected Page<T> find(Filter filter, int pageSize, String cursor) {
+		Page<Key> keys = findKeys(filter, pageSize, cursor);
+		return new Page<T>(resolve(getAll(keys.getItems())), keys.getCursor());
+	}
+
+	/**
+	 * Looks up one page of the keys of the entities matching the filter by a keys-only datastore query.
+	 * @param filter Datastore query filter.
+	 * @param pageSize Maximum number of keys in the page.
+	 * @param cursor Web safe cursor of a previous page or {@code null} for the first page.
+	 * @return Page of keys.
+	 */
+	protected Page<Key> findKeys(Filter filter, int pageSize, String cursor) {
+		FetchOptions options = FetchOptions.Builder.withLimit(pageSize).prefetchSize(pageSize).chunkSize(pageSize);
+		if (cursor != null) {
+			options.startCursor(Cursor.fromWebSafeString(cursor));
+		}
+		com.google.appengine.api.datastore.Query query = new com.google.appengine.api.datastore.Query(clazz.getSimpleName())
+				.setFilter(filter).setKeysOnly();
+		QueryResultList<Entity> entities = datastore.prepare(query).asQueryResultList(options);
+		List<Key> keys = new ArrayList<Key>(entities.size());
+		for (Entity entity : entities) {
+			keys.add(entity.getKey());
+		}
+		return new Page<Key>(keys, entities.size() < pageSize ? null : entities.getCursor().toWebSafeString());
+	}
 }
@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 
 import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
 import javax.jdo.Query;
 import javax.jdo.Transaction;
 
@@ -38,18 +39,27 @@ abstract class JDORepository<T, ID> {
 		this.clazz = clazz;
 	}
 
+	/**
+	 * Initializes the persistence manager factory and loads the metadata of the stored class.
+	 */
+	public void warmUp() {
+		PersistenceManagerFactory pmf = PMF.get();
+		pmf.getPersistenceManager().close();
+		pmf.getMetadata(clazz.getName());
+	}
+
 	/**
 	 * Looks up the entity with the given key.
 	 * @param id An object representation of a single field identity key.
 	 * @return The corresponding persistent entity.
 	 */
 	public T get(ID id) {
-		PersistenceManager pm = PMF.get().getPersistenceManager();
+		PersistenceManager pm = PersistenceScope.getPersistenceManager();
 		try {
 			T object = pm.getObjectById(clazz, id);
 			return object;
 		} finally {
-			pm.close();
+			PersistenceScope.release(pm);
 		}
 	}
 
@@ -59,7 +69,7 @@ abstract class JDORepository<T, ID> {
 	 */
 	@SuppressWarnings("unchecked")
 	public Collection<T> getAll() {
-		PersistenceManager pm = PMF.get().getPersistenceManager();
+		PersistenceManager pm = PersistenceScope.getPersistenceManager();
 		Query query = null;
 		try {
 			query = pm.newQuery(clazz);
@@ -68,7 +78,7 @@ abstract class JDORepository<T, ID> {
 			if (query != null) {
 				query.closeAll();
 			}
-			pm.close();
+			PersistenceScope.release(pm);
 		}
 	}
 
@@ -78,6 +88,7 @@ abstract class JDORepository<T, ID> {
 	 * @return Corresponding persistent entity.
 	 */
 	public T save(T entity) {
+		PersistenceScope.invalidate();
 		PersistenceManager pm = PMF.get().getPersistenceManager();
 		Transaction tx = pm.currentTransaction();
 		try {
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of a listing, with the cursor where the next page starts.
+ *
+ * @param <T> The type of the listed items.
+ */
+public class Page<T> {
+
+	private final List<T> items;
+
+	private final String cursor;
+
+	/**
+	 * Creates the page.
+	 * @param items Items of the page.
+	 * @param cursor Opaque cursor of the next page, {@code null} if there are no more items.
+	 */
+	public Page(List<T> items, String cursor) {
+		this.items = Collections.unmodifiableList(items);
+		this.cursor = cursor;
+	}
+
+	public List<T> getItems() {
+		return items;
+	}
+
+	/**
+	 * Returns the opaque, web safe cursor to pass when requesting the next page. A full page may be followed by an
+	 * empty one.
+	 * @return Cursor of the next page or {@code null} if this is the last page.
+	 */
+	public String getCursor() {
+		return cursor;
+	}
+
+	public boolean hasNext() {
+		return cursor != null;
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence;
+
+import javax.jdo.PersistenceManager;
+
+/**
+ * Unit of work sharing one {@link PersistenceManager} among the reads of the JDO repositories made by the current
+ * thread, e.g. during one HTTP request (see
+ * {@link com.github.biegleux.gae.oauth.tokenstore.PersistenceScopeFilter}) or one sequence of token store calls.
+ * <p>
+ * Entities loaded within the scope stay in the first-level cache of the shared persistence manager and are returned
+ * again by later lookups of the same key. Writes and deletes run in their own persistence manager and end the shared
+ * one, so that reads following them see their effects. Scopes may be nested; the outermost one closes the persistence
+ * manager.
+ */
+public final class PersistenceScope {
+
+	private static final ThreadLocal<PersistenceScope> current = new ThreadLocal<PersistenceScope>();
+
+	private PersistenceManager pm;
+
+	private int depth;
+
+	private PersistenceScope() {
+	}
+
+	/**
+	 * Begins a scope on the current thread or joins the active one. Every call must be paired with {@link #end()}.
+	 */
+	public static void begin() {
+		PersistenceScope scope = current.get();
+		if (scope == null) {
+			scope = new PersistenceScope();
+			current.set(scope);
+		}
+		scope.depth++;
+	}
+
+	/**
+	 * Ends the scope begun by the matching {@link #begin()} call, closing the shared persistence manager when the
+	 * outermost scope ends.
+	 */
+	public static void end() {
+		PersistenceScope scope = current.get();
+		if (scope == null) {
+			throw new IllegalStateException("No persistence scope is active.");
+		}
+		if (--scope.depth == 0) {
+			current.remove();
+			scope.close();
+		}
+	}
+
+	public static boolean isActive() {
+		return current.get() != null;
+	}
+
+	/**
+	 * Returns the persistence manager for a read: the shared one within a scope, a new one otherwise.
+	 * @return Persistence manager to be passed to {@link #release(PersistenceManager)}.
+	 */
+	static PersistenceManager getPersistenceManager() {
+		PersistenceScope scope = current.get();
+		if (scope == null) {
+			return PMF.get().getPersistenceManager();
+		}
+		if (scope.pm == null || scope.pm.isClosed()) {
+			scope.pm = PMF.get().getPersistenceManager();
+		}
+		return scope.pm;
+	}
+
+	/**
+	 * Releases the persistence manager of a read, closing it unless it is shared by the scope.
+	 * @param pm Persistence manager returned by {@link #getPersistenceManager()}.
+	 */
+	static void release(PersistenceManager pm) {
+		PersistenceScope scope = current.get();
+		if (scope == null || scope.pm != pm) {
+			pm.close();
+		}
+	}
+
+	/**
+	 * Ends the shared persistence manager after a write or delete, so that the following reads load fresh entities.
+	 */
+	static void invalidate() {
+		PersistenceScope scope = current.get();
+		if (scope != null) {
+			scope.close();
+		}
+	}
+
+	private void close() {
+		if (pm != null) {
+			PersistenceManager closed = pm;
+			pm = null;
+			closed.close();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.TokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthToken;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Operations {@link com.github.biegleux.gae.oauth.tokenstore.GaeTokenStore} needs for managing {@link GaeOAuthToken}
+ * entities. Implementations differ in how they talk to the datastore but read and write the same kinds and
+ * properties, so they can be used side by side.
+ *
+ * @param <T> Subclass of {@link GaeOAuthToken} stored by the repository.
+ */
+public interface TokenRepository<T extends GaeOAuthToken<?>> {
+
+	/**
+	 * Enables storing new entities with the token ID as their key name.
+	 * @param tokenKeyNames {@code true} to address entities by key name.
+	 */
+	void setTokenKeyNames(boolean tokenKeyNames);
+
+	/**
+	 * Controls whether lookups by token ID fall back to the {@code tokenId} query when no entity exists under the key
+	 * name.
+	 * @param legacyLookup {@code false} to rely on key names only.
+	 */
+	void setLegacyLookup(boolean legacyLookup);
+
+	/**
+	 * Sets the codec encoding the token and authentication blobs of saved entities and decoding the ones of loaded
+	 * entities.
+	 * @param codec Token codec.
+	 */
+	void setCodec(TokenCodec codec);
+
+	/**
+	 * Sets the maximum number of tokens read, written or deleted by one datastore call of the batch operations.
+	 * @param batchSize Batch size.
+	 */
+	void setBatchSize(int batchSize);
+
+	/**
+	 * Initializes what the first datastore call of the repository would otherwise initialize, such as the JDO
+	 * persistence manager factory and the metadata of the stored class.
+	 */
+	void warmUp();
+
+	/**
+	 * Looks up the {@link GaeOAuthToken} entity with the given authentication ID.
+	 * @param authenticationId Authentication ID.
+	 * @return The corresponding {@link GaeOAuthToken} entity.
+	 */
+	T findByAuthenticationId(String authenticationId);
+
+	/**
+	 * Looks up the {@link GaeOAuthToken} entity with the given token ID.
+	 * @param tokenId Token ID.
+	 * @return The corresponding {@link GaeOAuthToken} entity.
+	 */
+	T findByTokenId(String tokenId);
+
+	/**
+	 * Looks up the {@link GaeOAuthToken} entities with the given token IDs in batches. When a batch fails, its token
+	 * IDs are looked up one by one, so that failures are reported for the affected tokens only.
+	 * @param tokenIds Token IDs.
+	 * @return Entities found by token ID and failures by token ID.
+	 */
+	BatchResult<String, T> findByTokenIds(Collection<String> tokenIds);
+
+	/**
+	 * Looks up the {@link GaeOAuthToken} entities with the given keys by one batch get, for reading their tokens.
+	 * Authentications stored in their own kind are not fetched.
+	 * @param keys Datastore keys.
+	 * @return Entities found, in the order of their keys.
+	 */
+	List<T> findTokensByKeys(List<Key> keys);
+
+	/**
+	 * Makes the given entity persistent.
+	 * @param entity Token entity.
+	 * @return Corresponding persistent entity.
+	 */
+	T save(T entity);
+
+	/**
+	 * Saves the given entity in place of any entity with the same token ID. With token key names enabled the entity is
+	 * put under its key name, which overwrites the previous entity without reading it; unless legacy lookup is disabled
+	 * a keys-only query then removes any copy stored with a datastore allocated ID. Only with key names enabled and
+	 * legacy lookup disabled is the put the single RPC. The put and the removal of copies are not atomic.
+	 * @param entity Token entity.
+	 * @return Corresponding persistent entity.
+	 */
+	T upsert(T entity);
+
+	/**
+	 * Upserts the given entities in batches. When a batch fails, its entities are upserted one by one, so that
+	 * failures are reported for the affected tokens only.
+	 * @param entities Token entities.
+	 * @return Persistent entities by token ID and failures by token ID.
+	 */
+	BatchResult<String, T> upsertAll(Collection<T> entities);
+
+	/**
+	 * Deletes the {@link GaeOAuthToken} entities with the given token ID.
+	 * @param tokenId Token ID.
+	 * @return Number of {@link GaeOAuthToken} entities that were deleted.
+	 */
+	long deleteByTokenId(String tokenId);
+
+	/**
+	 * Deletes the {@link GaeOAuthToken} entities with the given token IDs in batches. When a batch fails, its token
+	 * IDs are deleted one by one, so that failures are reported for the affected tokens only.
+	 * @param tokenIds Token IDs.
+	 * @return Numbers of deleted entities by token ID and failures by token ID.
+	 */
+	BatchResult<String, Long> deleteByTokenIds(Collection<String> tokenIds);
+}
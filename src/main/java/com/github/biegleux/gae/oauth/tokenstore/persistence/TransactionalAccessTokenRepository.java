@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence;
+
+import java.util.concurrent.Future;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthAccessToken;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Operations for managing {@link GaeOAuthAccessToken} entities within datastore transactions.
+ */
+public interface TransactionalAccessTokenRepository extends AccessTokenRepository, TransactionalTokenRepository<GaeOAuthAccessToken> {
+
+	/**
+	 * Deletes the {@link GaeOAuthAccessToken} entities with the given refresh token in the transaction without waiting
+	 * for the delete. The deleted entities are read within the transaction.
+	 * @param txn Transaction begun by {@link #beginTransaction()} or {@code null} to delete without a transaction.
+	 * @param refreshToken Refresh token.
+	 * @return Future of the number of deleted entities.
+	 */
+	Future<Long> deleteByRefreshTokenAsync(Transaction txn, String refreshToken);
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence;
+
+import java.util.concurrent.Future;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthToken;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * {@link TokenRepository} whose reads and writes can join a datastore transaction. Reads within the transaction add
+ * the entity groups they touch to the transaction, so its commit fails if a concurrent commit modified them.
+ *
+ * @param <T> Subclass of {@link GaeOAuthToken} stored by the repository.
+ */
+public interface TransactionalTokenRepository<T extends GaeOAuthToken<?>> extends TokenRepository<T> {
+
+	/**
+	 * Begins a cross-group transaction that the methods taking a transaction of this and other transactional
+	 * repositories can join. Entities of up to 25 entity groups can be read and written in one transaction.
+	 * @return New transaction.
+	 */
+	Transaction beginTransaction();
+
+	/**
+	 * Looks up the {@link GaeOAuthToken} entity with the given token ID in the transaction without waiting for the
+	 * read. Reads within a transaction see the entities as they were when it began, so the read can overlap the
+	 * writes of the same transaction.
+	 * @param txn Transaction begun by {@link #beginTransaction()} or {@code null} to read without a transaction.
+	 * @param tokenId Token ID.
+	 * @return Future of the corresponding {@link GaeOAuthToken} entity or {@code null}.
+	 */
+	Future<T> findByTokenIdAsync(Transaction txn, String tokenId);
+
+	/**
+	 * Makes the given entity persistent in the transaction without waiting for the put.
+	 * @param txn Transaction begun by {@link #beginTransaction()} or {@code null} to write without a transaction.
+	 * @param entity Token entity.
+	 * @return Future of the persistent entity.
+	 */
+	Future<T> saveAsync(Transaction txn, T entity);
+
+	/**
+	 * Deletes the {@link GaeOAuthToken} entities with the given token ID in the transaction without waiting for the
+	 * delete.
+	 * @param txn Transaction begun by {@link #beginTransaction()} or {@code null} to delete without a transaction.
+	 * @param tokenId Token ID.
+	 * @return Future of the number of deleted entities.
+	 */
+	Future<Long> deleteByTokenIdAsync(Transaction txn, String tokenId);
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.codec;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+/**
+ * Reads the primitives written by {@link BinaryOutput}. Malformed input results in an
+ * {@link IllegalArgumentException}.
+ */
+final class BinaryInput {
+
+	private final byte[] buffer;
+	private int position;
+
+	BinaryInput(byte[] buffer, int position) {
+		this.buffer = buffer;
+		this.position = position;
+	}
+
+	int readByte() {
+		if (position >= buffer.length) {
+			throw new IllegalArgumentException("Unexpected end of input");
+		}
+		return buffer[position++] & 0xff;
+	}
+
+	boolean readBoolean() {
+		return readByte() != 0;
+	}
+
+	long readVarLong() {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed variable length integer");
+	}
+
+	long readSignedVarLong() {
+		long value = readVarLong();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Reads a length or count.
+	 * @return Length or -1 for {@code null}.
+	 */
+	int readLength() {
+		long length = readVarLong() - 1;
+		// every byte or element takes at least one byte of input
+		if (length < -1 || length > buffer.length - position) {
+			throw new IllegalArgumentException("Invalid length " + length);
+		}
+		return (int) length;
+	}
+
+	byte[] readBytes() {
+		int length = readLength();
+		if (length < 0) {
+			return null;
+		}
+		checkAvailable(length);
+		byte[] bytes = new byte[length];
+		System.arraycopy(buffer, position, bytes, 0, length);
+		position += length;
+		return bytes;
+	}
+
+	String readString() {
+		int length = readLength();
+		if (length < 0) {
+			return null;
+		}
+		checkAvailable(length);
+		String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+		position += length;
+		return value;
+	}
+
+	Date readDate() {
+		return readBoolean() ? new Date(readSignedVarLong()) : null;
+	}
+
+	Set<String> readStringSet() {
+		int size = readLength();
+		if (size < 0) {
+			return null;
+		}
+		Set<String> values = new LinkedHashSet<String>(capacity(size));
+		for (int i = 0; i < size; i++) {
+			values.add(readString());
+		}
+		return values;
+	}
+
+	Map<String, String> readStringMap() {
+		int size = readLength();
+		if (size < 0) {
+			return null;
+		}
+		Map<String, String> values = new LinkedHashMap<String, String>(capacity(size));
+		for (int i = 0; i < size; i++) {
+			values.put(readString(), readString());
+		}
+		return values;
+	}
+
+	Collection<GrantedAuthority> readAuthorities() {
+		int size = readLength();
+		if (size < 0) {
+			return null;
+		}
+		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>(Math.min(size, 64));
+		for (int i = 0; i < size; i++) {
+			int kind = readByte();
+			if (kind == BinaryOutput.AUTHORITY_SIMPLE) {
+				authorities.add(new SimpleGrantedAuthority(readString()));
+			} else if (kind == BinaryOutput.AUTHORITY_SERIALIZED) {
+				authorities.add((GrantedAuthority) readSerialized());
+			} else {
+				throw new IllegalArgumentException("Unknown authority kind " + kind);
+			}
+		}
+		return authorities;
+	}
+
+	Object readValue() {
+		int tag = readByte();
+		switch (tag) {
+		case BinaryOutput.VALUE_NULL:
+			return null;
+		case BinaryOutput.VALUE_STRING:
+			return readString();
+		case BinaryOutput.VALUE_INTEGER:
+			return (int) readSignedVarLong();
+		case BinaryOutput.VALUE_LONG:
+			return readSignedVarLong();
+		case BinaryOutput.VALUE_TRUE:
+			return Boolean.TRUE;
+		case BinaryOutput.VALUE_FALSE:
+			return Boolean.FALSE;
+		case BinaryOutput.VALUE_DOUBLE:
+			return Double.longBitsToDouble(readFixedLong());
+		case BinaryOutput.VALUE_DATE:
+			return new Date(readSignedVarLong());
+		case BinaryOutput.VALUE_LIST:
+			return readValues(new ArrayList<Object>());
+		case BinaryOutput.VALUE_SET:
+			return readValues(new LinkedHashSet<Object>());
+		case BinaryOutput.VALUE_MAP:
+			return readValueMap();
+		case BinaryOutput.VALUE_SERIALIZED:
+			return readSerialized();
+		default:
+			throw new IllegalArgumentException("Unknown value tag " + tag);
+		}
+	}
+
+	Map<String, Object> readValueMap() {
+		int size = readLength();
+		if (size < 0) {
+			return null;
+		}
+		Map<String, Object> values = new LinkedHashMap<String, Object>(capacity(size));
+		for (int i = 0; i < size; i++) {
+			values.put(readString(), readValue());
+		}
+		return values;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	Map<String, Serializable> readSerializableMap() {
+		return (Map) readValueMap();
+	}
+
+	Object readSerialized() {
+		int length = readLength();
+		if (length < 0) {
+			return null;
+		}
+		checkAvailable(length);
+		Object value = JavaSerialization.deserialize(buffer, position, length);
+		position += length;
+		return value;
+	}
+
+	private <C extends Collection<Object>> C readValues(C values) {
+		int size = readLength();
+		for (int i = 0; i < size; i++) {
+			values.add(readValue());
+		}
+		return values;
+	}
+
+	private long readFixedLong() {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | readByte();
+		}
+		return value;
+	}
+
+	private void checkAvailable(int length) {
+		if (length > buffer.length - position) {
+			throw new IllegalArgumentException("Unexpected end of input");
+		}
+	}
+
+	private static int capacity(int size) {
+		return Math.min(size, 64) * 4 / 3 + 1;
+	}
+}
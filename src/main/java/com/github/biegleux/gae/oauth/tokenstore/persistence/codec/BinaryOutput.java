@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+/**
+ * Growable buffer writing the primitives of the binary token format. Lengths and counts are written as unsigned
+ * variable length integers shifted by one, so that zero stands for {@code null}.
+ */
+final class BinaryOutput {
+
+	static final int VALUE_NULL = 0;
+	static final int VALUE_STRING = 1;
+	static final int VALUE_INTEGER = 2;
+	static final int VALUE_LONG = 3;
+	static final int VALUE_TRUE = 4;
+	static final int VALUE_FALSE = 5;
+	static final int VALUE_DOUBLE = 6;
+	static final int VALUE_DATE = 7;
+	static final int VALUE_LIST = 8;
+	static final int VALUE_SET = 9;
+	static final int VALUE_MAP = 10;
+	static final int VALUE_SERIALIZED = 15;
+
+	static final int AUTHORITY_SIMPLE = 0;
+	static final int AUTHORITY_SERIALIZED = 1;
+
+	private byte[] buffer;
+	private int position;
+
+	BinaryOutput(int capacity) {
+		buffer = new byte[capacity];
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(buffer, position);
+	}
+
+	void writeByte(int value) {
+		ensureCapacity(1);
+		buffer[position++] = (byte) value;
+	}
+
+	void writeBoolean(boolean value) {
+		writeByte(value ? 1 : 0);
+	}
+
+	void writeVarLong(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7fL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+	}
+
+	void writeSignedVarLong(long value) {
+		writeVarLong((value << 1) ^ (value >> 63));
+	}
+
+	void writeLength(int length) {
+		writeVarLong(length + 1L);
+	}
+
+	void writeNull() {
+		writeVarLong(0);
+	}
+
+	void writeBytes(byte[] bytes) {
+		if (bytes == null) {
+			writeNull();
+			return;
+		}
+		writeLength(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, position, bytes.length);
+		position += bytes.length;
+	}
+
+	void writeString(String value) {
+		writeBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	void writeDate(Date value) {
+		if (value == null) {
+			writeBoolean(false);
+		} else {
+			writeBoolean(true);
+			writeSignedVarLong(value.getTime());
+		}
+	}
+
+	void writeStrings(Collection<String> values) {
+		if (values == null) {
+			writeNull();
+			return;
+		}
+		writeLength(values.size());
+		for (String value : values) {
+			writeString(value);
+		}
+	}
+
+	void writeStringMap(Map<String, String> values) {
+		if (values == null) {
+			writeNull();
+			return;
+		}
+		writeLength(values.size());
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			writeString(entry.getKey());
+			writeString(entry.getValue());
+		}
+	}
+
+	void writeAuthorities(Collection<? extends GrantedAuthority> authorities) {
+		if (authorities == null) {
+			writeNull();
+			return;
+		}
+		writeLength(authorities.size());
+		for (GrantedAuthority authority : authorities) {
+			if (authority != null && authority.getClass() == SimpleGrantedAuthority.class) {
+				writeByte(AUTHORITY_SIMPLE);
+				writeString(authority.getAuthority());
+			} else {
+				writeByte(AUTHORITY_SERIALIZED);
+				writeBytes(JavaSerialization.serialize(authority));
+			}
+		}
+	}
+
+	/**
+	 * Writes a tagged value. Strings, numbers, booleans, dates and {@code java.util} collections of those are written
+	 * natively, anything else is Java serialized.
+	 */
+	void writeValue(Object value) {
+		if (value == null) {
+			writeByte(VALUE_NULL);
+		} else if (value instanceof String) {
+			writeByte(VALUE_STRING);
+			writeString((String) value);
+		} else if (value instanceof Integer) {
+			writeByte(VALUE_INTEGER);
+			writeSignedVarLong((Integer) value);
+		} else if (value instanceof Long) {
+			writeByte(VALUE_LONG);
+			writeSignedVarLong((Long) value);
+		} else if (value instanceof Boolean) {
+			writeByte((Boolean) value ? VALUE_TRUE : VALUE_FALSE);
+		} else if (value instanceof Double) {
+			writeByte(VALUE_DOUBLE);
+			writeFixedLong(Double.doubleToLongBits((Double) value));
+		} else if (value.getClass() == Date.class) {
+			writeByte(VALUE_DATE);
+			writeSignedVarLong(((Date) value).getTime());
+		} else if (value instanceof List && isJavaUtil(value)) {
+			writeByte(VALUE_LIST);
+			writeValues((List<?>) value);
+		} else if (value instanceof Set && isJavaUtil(value)) {
+			writeByte(VALUE_SET);
+			writeValues((Set<?>) value);
+		} else if (value instanceof Map && isJavaUtil(value) && hasStringKeys((Map<?, ?>) value)) {
+			writeByte(VALUE_MAP);
+			writeValueMap((Map<?, ?>) value);
+		} else {
+			writeByte(VALUE_SERIALIZED);
+			writeBytes(JavaSerialization.serialize(value));
+		}
+	}
+
+	void writeValueMap(Map<?, ?> values) {
+		if (values == null) {
+			writeNull();
+			return;
+		}
+		writeLength(values.size());
+		for (Map.Entry<?, ?> entry : values.entrySet()) {
+			writeString((String) entry.getKey());
+			writeValue(entry.getValue());
+		}
+	}
+
+	private void writeValues(Collection<?> values) {
+		writeLength(values.size());
+		for (Object value : values) {
+			writeValue(value);
+		}
+	}
+
+	private void writeFixedLong(long value) {
+		ensureCapacity(8);
+		for (int i = 56; i >= 0; i -= 8) {
+			buffer[position++] = (byte) (value >>> i);
+		}
+	}
+
+	private static boolean isJavaUtil(Object value) {
+		return value.getClass().getName().startsWith("java.util.");
+	}
+
+	static boolean hasStringKeys(Map<?, ?> values) {
+		for (Object key : values.keySet()) {
+			if (!(key instanceof String)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void ensureCapacity(int length) {
+		if (position + length > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+		}
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.codec;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.TokenDeserializationException;
+
+/**
+ * {@link TokenCodec} with a compact, versioned binary encoding.
+ * <p>
+ * Every blob starts with a marker byte, the format version and the type of the encoded object. The default Spring
+ * token classes, {@link OAuth2Authentication} with its {@link OAuth2Request}, and user authentications of type
+ * {@link UsernamePasswordAuthenticationToken} with a {@link String} or {@link User} principal are encoded field by
+ * field. Other classes, and values in maps or details which are not strings, numbers, booleans, dates or collections
+ * of those, are embedded in Java serialized form.
+ * <p>
+ * Decoding accepts Java serialized blobs as well, so entities written by 0.2 or with {@link SerializationTokenCodec}
+ * stay readable.
+ */
+public class BinaryTokenCodec implements TokenCodec {
+
+	/** Marker of binary blobs, never the first byte of a Java serialization stream. */
+	static final int MAGIC = 0xb7;
+
+	static final int VERSION = 1;
+
+	private static final int TYPE_ACCESS_TOKEN = 'A';
+	private static final int TYPE_REFRESH_TOKEN = 'R';
+	private static final int TYPE_AUTHENTICATION = 'U';
+
+	private static final int REFRESH_TOKEN_NONE = 0;
+	private static final int REFRESH_TOKEN_DEFAULT = 1;
+	private static final int REFRESH_TOKEN_EXPIRING = 2;
+	private static final int REFRESH_TOKEN_SERIALIZED = 3;
+
+	private static final int USER_NONE = 0;
+	private static final int USER_USERNAME_PASSWORD = 1;
+	private static final int USER_SERIALIZED = 2;
+
+	private static final int PRINCIPAL_STRING = 0;
+	private static final int PRINCIPAL_USER = 1;
+	private static final int PRINCIPAL_VALUE = 2;
+
+	@Override
+	public byte[] encodeAccessToken(OAuth2AccessToken accessToken) {
+		if (accessToken.getClass() != DefaultOAuth2AccessToken.class) {
+			return JavaSerialization.serialize(accessToken);
+		}
+		BinaryOutput out = header(TYPE_ACCESS_TOKEN);
+		out.writeString(accessToken.getValue());
+		out.writeDate(accessToken.getExpiration());
+		out.writeString(accessToken.getTokenType());
+		writeRefreshToken(out, accessToken.getRefreshToken());
+		out.writeStrings(accessToken.getScope());
+		out.writeValueMap(accessToken.getAdditionalInformation());
+		return out.toByteArray();
+	}
+
+	@Override
+	public OAuth2AccessToken decodeAccessToken(byte[] bytes) {
+		if (JavaSerialization.isSerialized(bytes)) {
+			return cast(JavaSerialization.deserialize(bytes), OAuth2AccessToken.class);
+		}
+		try {
+			BinaryInput in = readHeader(bytes, TYPE_ACCESS_TOKEN);
+			DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(in.readString());
+			accessToken.setExpiration(in.readDate());
+			accessToken.setTokenType(in.readString());
+			accessToken.setRefreshToken(readRefreshToken(in));
+			accessToken.setScope(in.readStringSet());
+			Map<String, Object> additionalInformation = in.readValueMap();
+			if (additionalInformation != null) {
+				accessToken.setAdditionalInformation(additionalInformation);
+			}
+			return accessToken;
+		} catch (IllegalArgumentException | ClassCastException e) {
+			throw new TokenDeserializationException("Failed to decode access token", e);
+		}
+	}
+
+	@Override
+	public byte[] encodeRefreshToken(OAuth2RefreshToken refreshToken) {
+		BinaryOutput out = header(TYPE_REFRESH_TOKEN);
+		writeRefreshToken(out, refreshToken);
+		return out.toByteArray();
+	}
+
+	@Override
+	public OAuth2RefreshToken decodeRefreshToken(byte[] bytes) {
+		if (JavaSerialization.isSerialized(bytes)) {
+			return cast(JavaSerialization.deserialize(bytes), OAuth2RefreshToken.class);
+		}
+		try {
+			return readRefreshToken(readHeader(bytes, TYPE_REFRESH_TOKEN));
+		} catch (IllegalArgumentException | ClassCastException e) {
+			throw new TokenDeserializationException("Failed to decode refresh token", e);
+		}
+	}
+
+	@Override
+	public byte[] encodeAuthentication(OAuth2Authentication authentication) {
+		OAuth2Request request = authentication.getOAuth2Request();
+		if (authentication.getClass() != OAuth2Authentication.class || request == null
+				|| request.getClass() != OAuth2Request.class) {
+			return JavaSerialization.serialize(authentication);
+		}
+		BinaryOutput out = header(TYPE_AUTHENTICATION);
+		out.writeString(request.getClientId());
+		out.writeStringMap(request.getRequestParameters());
+		out.writeAuthorities(request.getAuthorities());
+		out.writeBoolean(request.isApproved());
+		out.writeStrings(request.getScope());
+		out.writeStrings(request.getResourceIds());
+		out.writeString(request.getRedirectUri());
+		out.writeStrings(request.getResponseTypes());
+		out.writeValueMap(request.getExtensions());
+		writeUserAuthentication(out, authentication.getUserAuthentication());
+		out.writeValue(authentication.getDetails());
+		return out.toByteArray();
+	}
+
+	@Override
+	public OAuth2Authentication decodeAuthentication(byte[] bytes) {
+		if (JavaSerialization.isSerialized(bytes)) {
+			return cast(JavaSerialization.deserialize(bytes), OAuth2Authentication.class);
+		}
+		try {
+			BinaryInput in = readHeader(bytes, TYPE_AUTHENTICATION);
+			String clientId = in.readString();
+			Map<String, String> requestParameters = in.readStringMap();
+			Collection<GrantedAuthority> authorities = in.readAuthorities();
+			boolean approved = in.readBoolean();
+			OAuth2Request request = new OAuth2Request(requestParameters, clientId, authorities, approved,
+					in.readStringSet(), in.readStringSet(), in.readString(), in.readStringSet(), in.readSerializableMap());
+			OAuth2Authentication authentication = new OAuth2Authentication(request, readUserAuthentication(in));
+			authentication.setDetails(in.readValue());
+			return authentication;
+		} catch (IllegalArgumentException | ClassCastException e) {
+			throw new TokenDeserializationException("Failed to decode authentication", e);
+		}
+	}
+
+	private static BinaryOutput header(int type) {
+		BinaryOutput out = new BinaryOutput(256);
+		out.writeByte(MAGIC);
+		out.writeByte(VERSION);
+		out.writeByte(type);
+		return out;
+	}
+
+	private static BinaryInput readHeader(byte[] bytes, int expectedType) {
+		BinaryInput in = new BinaryInput(bytes, 0);
+		if (in.readByte() != MAGIC) {
+			throw new IllegalArgumentException("Unknown blob format");
+		}
+		int version = in.readByte();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported blob version " + version);
+		}
+		int type = in.readByte();
+		if (type != expectedType) {
+			throw new IllegalArgumentException("Unexpected blob type " + (char) type);
+		}
+		return in;
+	}
+
+	private static void writeRefreshToken(BinaryOutput out, OAuth2RefreshToken refreshToken) {
+		if (refreshToken == null) {
+			out.writeByte(REFRESH_TOKEN_NONE);
+		} else if (refreshToken.getClass() == DefaultOAuth2RefreshToken.class) {
+			out.writeByte(REFRESH_TOKEN_DEFAULT);
+			out.writeString(refreshToken.getValue());
+		} else if (refreshToken.getClass() == DefaultExpiringOAuth2RefreshToken.class) {
+			out.writeByte(REFRESH_TOKEN_EXPIRING);
+			out.writeString(refreshToken.getValue());
+			out.writeDate(((DefaultExpiringOAuth2RefreshToken) refreshToken).getExpiration());
+		} else {
+			out.writeByte(REFRESH_TOKEN_SERIALIZED);
+			out.writeBytes(JavaSerialization.serialize(refreshToken));
+		}
+	}
+
+	private static OAuth2RefreshToken readRefreshToken(BinaryInput in) {
+		int kind = in.readByte();
+		switch (kind) {
+		case REFRESH_TOKEN_NONE:
+			return null;
+		case REFRESH_TOKEN_DEFAULT:
+			return new DefaultOAuth2RefreshToken(in.readString());
+		case REFRESH_TOKEN_EXPIRING:
+			return new DefaultExpiringOAuth2RefreshToken(in.readString(), in.readDate());
+		case REFRESH_TOKEN_SERIALIZED:
+			return (OAuth2RefreshToken) in.readSerialized();
+		default:
+			throw new IllegalArgumentException("Unknown refresh token kind " + kind);
+		}
+	}
+
+	private static void writeUserAuthentication(BinaryOutput out, Authentication userAuthentication) {
+		if (userAuthentication == null) {
+			out.writeByte(USER_NONE);
+		} else if (userAuthentication.getClass() == UsernamePasswordAuthenticationToken.class) {
+			out.writeByte(USER_USERNAME_PASSWORD);
+			Object principal = userAuthentication.getPrincipal();
+			if (principal instanceof String) {
+				out.writeByte(PRINCIPAL_STRING);
+				out.writeString((String) principal);
+			} else if (principal != null && principal.getClass() == User.class) {
+				User user = (User) principal;
+				out.writeByte(PRINCIPAL_USER);
+				out.writeString(user.getUsername());
+				out.writeString(user.getPassword());
+				out.writeBoolean(user.isEnabled());
+				out.writeBoolean(user.isAccountNonExpired());
+				out.writeBoolean(user.isCredentialsNonExpired());
+				out.writeBoolean(user.isAccountNonLocked());
+				out.writeAuthorities(user.getAuthorities());
+			} else {
+				out.writeByte(PRINCIPAL_VALUE);
+				out.writeValue(principal);
+			}
+			out.writeValue(userAuthentication.getCredentials());
+			out.writeAuthorities(userAuthentication.getAuthorities());
+			out.writeBoolean(userAuthentication.isAuthenticated());
+			out.writeValue(userAuthentication.getDetails());
+		} else {
+			out.writeByte(USER_SERIALIZED);
+			out.writeBytes(JavaSerialization.serialize(userAuthentication));
+		}
+	}
+
+	private static Authentication readUserAuthentication(BinaryInput in) {
+		int kind = in.readByte();
+		switch (kind) {
+		case USER_NONE:
+			return null;
+		case USER_USERNAME_PASSWORD:
+			Object principal = readPrincipal(in);
+			Object credentials = in.readValue();
+			Collection<GrantedAuthority> authorities = in.readAuthorities();
+			boolean authenticated = in.readBoolean();
+			UsernamePasswordAuthenticationToken userAuthentication = new UsernamePasswordAuthenticationToken(principal,
+					credentials, authorities);
+			if (!authenticated) {
+				userAuthentication.setAuthenticated(false);
+			}
+			userAuthentication.setDetails(in.readValue());
+			return userAuthentication;
+		case USER_SERIALIZED:
+			return (Authentication) in.readSerialized();
+		default:
+			throw new IllegalArgumentException("Unknown user authentication kind " + kind);
+		}
+	}
+
+	private static Object readPrincipal(BinaryInput in) {
+		int kind = in.readByte();
+		switch (kind) {
+		case PRINCIPAL_STRING:
+			return in.readString();
+		case PRINCIPAL_USER:
+			String username = in.readString();
+			String password = in.readString();
+			boolean enabled = in.readBoolean();
+			boolean accountNonExpired = in.readBoolean();
+			boolean credentialsNonExpired = in.readBoolean();
+			boolean accountNonLocked = in.readBoolean();
+			Collection<GrantedAuthority> authorities = in.readAuthorities();
+			// User rejects a null password, erased credentials are restored by erasing them again
+			User user = new User(username, password != null ? password : "", enabled, accountNonExpired,
+					credentialsNonExpired, accountNonLocked, authorities);
+			if (password == null) {
+				user.eraseCredentials();
+			}
+			return user;
+		case PRINCIPAL_VALUE:
+			return in.readValue();
+		default:
+			throw new IllegalArgumentException("Unknown principal kind " + kind);
+		}
+	}
+
+	private static <T> T cast(Object value, Class<T> clazz) {
+		if (value != null && !clazz.isInstance(value)) {
+			throw new TokenDeserializationException("Expected " + clazz.getName() + " but found "
+					+ value.getClass().getName(), null);
+		}
+		return clazz.cast(value);
+	}
+}
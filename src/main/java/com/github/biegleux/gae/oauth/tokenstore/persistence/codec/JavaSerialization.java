@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.TokenDeserializationException;
+
+/**
+ * Plain Java serialization, the format of JDO fields declared with {@code serialized = "true"}.
+ */
+final class JavaSerialization {
+
+	private JavaSerialization() {
+	}
+
+	static boolean isSerialized(byte[] bytes) {
+		return bytes.length >= 2 && bytes[0] == (byte) 0xac && bytes[1] == (byte) 0xed;
+	}
+
+	static byte[] serialize(Object value) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(value);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Failed to serialize " + value.getClass().getName(), e);
+		}
+	}
+
+	static Object deserialize(byte[] bytes) {
+		return deserialize(bytes, 0, bytes.length);
+	}
+
+	static Object deserialize(byte[] bytes, int offset, int length) {
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, length));
+			try {
+				return in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			throw new TokenDeserializationException("Failed to deserialize object", e);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.codec;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+/**
+ * {@link TokenCodec} writing plain Java serialization, the format used by 0.2. It keeps newly stored entities readable
+ * by older versions of the library. Blobs written by {@link BinaryTokenCodec} are decoded as well.
+ */
+public class SerializationTokenCodec implements TokenCodec {
+
+	private final BinaryTokenCodec decoder = new BinaryTokenCodec();
+
+	@Override
+	public byte[] encodeAccessToken(OAuth2AccessToken accessToken) {
+		return JavaSerialization.serialize(accessToken);
+	}
+
+	@Override
+	public OAuth2AccessToken decodeAccessToken(byte[] bytes) {
+		return decoder.decodeAccessToken(bytes);
+	}
+
+	@Override
+	public byte[] encodeRefreshToken(OAuth2RefreshToken refreshToken) {
+		return JavaSerialization.serialize(refreshToken);
+	}
+
+	@Override
+	public OAuth2RefreshToken decodeRefreshToken(byte[] bytes) {
+		return decoder.decodeRefreshToken(bytes);
+	}
+
+	@Override
+	public byte[] encodeAuthentication(OAuth2Authentication authentication) {
+		return JavaSerialization.serialize(authentication);
+	}
+
+	@Override
+	public OAuth2Authentication decodeAuthentication(byte[] bytes) {
+		return decoder.decodeAuthentication(bytes);
+	}
+}
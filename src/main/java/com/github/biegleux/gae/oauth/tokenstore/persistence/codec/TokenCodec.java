@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.codec;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+/**
+ * Encoding of tokens and authentications into the blobs stored with token entities.
+ */
+public interface TokenCodec {
+
+	byte[] encodeAccessToken(OAuth2AccessToken accessToken);
+
+	/**
+	 * Decodes an access token.
+	 * @param bytes Encoded access token.
+	 * @return Access token.
+	 * @throws com.github.biegleux.gae.oauth.tokenstore.persistence.TokenDeserializationException if the bytes cannot be
+	 *             decoded.
+	 */
+	OAuth2AccessToken decodeAccessToken(byte[] bytes);
+
+	byte[] encodeRefreshToken(OAuth2RefreshToken refreshToken);
+
+	/**
+	 * Decodes a refresh token.
+	 * @param bytes Encoded refresh token.
+	 * @return Refresh token.
+	 * @throws com.github.biegleux.gae.oauth.tokenstore.persistence.TokenDeserializationException if the bytes cannot be
+	 *             decoded.
+	 */
+	OAuth2RefreshToken decodeRefreshToken(byte[] bytes);
+
+	byte[] encodeAuthentication(OAuth2Authentication authentication);
+
+	/**
+	 * Decodes an authentication.
+	 * @param bytes Encoded authentication.
+	 * @return Authentication.
+	 * @throws com.github.biegleux.gae.oauth.tokenstore.persistence.TokenDeserializationException if the bytes cannot be
+	 *             decoded.
+	 */
+	OAuth2Authentication decodeAuthentication(byte[] bytes);
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe Bloom filter of strings. Bits are set by compare and swap, so adding never blocks lookups. The hash
+ * functions depend on the characters of the strings only, so the bits can be persisted and loaded by other instances.
+ */
+final class BloomFilter {
+
+	private static final double LN2 = Math.log(2);
+
+	private final AtomicLongArray words;
+
+	private final long bits;
+
+	private final int hashes;
+
+	BloomFilter(long bits, int hashes) {
+		this(bits, hashes, new long[wordsOf(bits)]);
+	}
+
+	private BloomFilter(long bits, int hashes, long[] words) {
+		this.bits = bits;
+		this.hashes = hashes;
+		this.words = new AtomicLongArray(words);
+	}
+
+	/**
+	 * Creates a filter sized for the expected number of strings.
+	 * @param expectedInsertions Expected number of strings.
+	 * @param falsePositiveRate False positive rate at the expected number of strings.
+	 * @return Empty filter.
+	 */
+	static BloomFilter create(long expectedInsertions, double falsePositiveRate) {
+		if (expectedInsertions < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("Invalid expected insertions or false positive rate.");
+		}
+		long bits = Math.max(64, (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (LN2 * LN2)));
+		int hashes = Math.max(1, (int) Math.round((double) bits / expectedInsertions * LN2));
+		return new BloomFilter(bits, hashes);
+	}
+
+	/**
+	 * Restores a filter from the bytes returned by {@link #toByteArray()}.
+	 */
+	static BloomFilter fromByteArray(long bits, int hashes, byte[] bytes) {
+		long[] words = new long[wordsOf(bits)];
+		if (bytes.length != words.length * 8) {
+			throw new IllegalArgumentException("Expected " + words.length * 8 + " bytes, got " + bytes.length);
+		}
+		ByteBuffer.wrap(bytes).asLongBuffer().get(words);
+		return new BloomFilter(bits, hashes, words);
+	}
+
+	void add(String value) {
+		long hash = hash(value);
+		long h1 = mix(hash);
+		long h2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+		for (int i = 0; i < hashes; i++) {
+			long index = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+			int word = (int) (index >>> 6);
+			long mask = 1L << index;
+			long current = words.get(word);
+			while ((current & mask) == 0 && !words.compareAndSet(word, current, current | mask)) {
+				current = words.get(word);
+			}
+		}
+	}
+
+	boolean mightContain(String value) {
+		long hash = hash(value);
+		long h1 = mix(hash);
+		long h2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+		for (int i = 0; i < hashes; i++) {
+			long index = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+			if ((words.get((int) (index >>> 6)) & (1L << index)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	long getBits() {
+		return bits;
+	}
+
+	int getHashes() {
+		return hashes;
+	}
+
+	byte[] toByteArray() {
+		ByteBuffer buffer = ByteBuffer.allocate(words.length() * 8);
+		for (int i = 0; i < words.length(); i++) {
+			buffer.putLong(words.get(i));
+		}
+		return buffer.array();
+	}
+
+	private static int wordsOf(long bits) {
+		long words = (bits + 63) >>> 6;
+		if (words > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many bits: " + bits);
+		}
+		return (int) words;
+	}
+
+	/**
+	 * FNV-1a hash of the characters.
+	 */
+	private static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Finalization step of MurmurHash3, spreading the bits of the FNV hash.
+	 */
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,521 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.Page;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.TransactionalAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthAccessToken;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthRefreshToken;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.utils.FutureWrapper;
+
+/**
+ * This class provides operations for managing {@link GaeOAuthAccessToken} entities through the low-level datastore API.
+ * <p>
+ * With index entities enabled, every access token stored under its key name is put together with two key-named index
+ * entities: one of the {@value #AUTHENTICATION_INDEX_KIND} kind named after the authentication ID, referencing the
+ * token, and one of the {@value #REFRESH_TOKEN_INDEX_KIND} kind named after the token, child of the key named after
+ * the refresh token. Lookups by authentication ID become key gets and deletes by refresh token an ancestor query, both
+ * strongly consistent. Index entities outliving their token are ignored and deleted with the expired tokens.
+ * <p>
+ * With refresh token groups enabled, access tokens issued with a refresh token are stored under their key name as
+ * children of the refresh token's key, so the access tokens of a refresh token form one entity group found by an
+ * ancestor query. Each child is put with an index entity of the {@value #TOKEN_INDEX_KIND} kind named after the
+ * token, through which it is looked up by its token ID. Writes to an entity group are rate limited, which the default
+ * flat layout avoids.
+ * <p>
+ * Both layouts require token key names; enabling either of them without key names fails.
+ */
+public class DatastoreAccessTokenRepository extends DatastoreTokenRepository<GaeOAuthAccessToken> implements TransactionalAccessTokenRepository {
+
+	/**
+	 * Kind of the index entities referencing access tokens stored as children of their refresh token's key.
+	 */
+	public static final String TOKEN_INDEX_KIND = "GaeOAuthAccessTokenIndex";
+
+	/**
+	 * Kind of the index entities referencing the access token of an authentication ID.
+	 */
+	public static final String AUTHENTICATION_INDEX_KIND = "GaeOAuthAuthenticationIndex";
+
+	/**
+	 * Kind of the index entities recording the access tokens issued with a refresh token.
+	 */
+	public static final String REFRESH_TOKEN_INDEX_KIND = "GaeOAuthRefreshTokenIndex";
+
+	static final String USERNAME = "username";
+	static final String CLIENT_ID = "clientId";
+	static final String REFRESH_TOKEN = "refreshToken";
+	static final String ACCESS_TOKEN = "accessToken";
+
+	private boolean indexEntities;
+
+	private boolean refreshTokenGroups;
+
+	public DatastoreAccessTokenRepository() {
+		super(GaeOAuthAccessToken.class);
+	}
+
+	public DatastoreAccessTokenRepository(DatastoreService datastore) {
+		super(datastore, GaeOAuthAccessToken.class);
+	}
+
+	public DatastoreAccessTokenRepository(DatastoreService datastore, AsyncDatastoreService asyncDatastore) {
+		super(datastore, asyncDatastore, GaeOAuthAccessToken.class);
+	}
+
+	/**
+	 * Enables maintaining index entities for the lookups by authentication ID and refresh token. Tokens without index
+	 * entities, stored before or rewritten under an allocated ID, are found by the property queries as long as legacy
+	 * lookup is enabled.
+	 * @param indexEntities {@code true} to write and use index entities, {@code false} by default.
+	 * @throws IllegalStateException if index entities are enabled while token key names are disabled.
+	 */
+	public void setIndexEntities(boolean indexEntities) {
+		if (indexEntities && !isTokenKeyNames()) {
+			throw new IllegalStateException("Index entities require token key names.");
+		}
+		this.indexEntities = indexEntities;
+	}
+
+	public boolean isIndexEntities() {
+		return indexEntities;
+	}
+
+	/**
+	 * Enables storing access tokens as children of their refresh token's key. Requires token key names. Children can
+	 * only be looked up by token ID while the layout is enabled.
+	 * @param refreshTokenGroups {@code true} to group access tokens by refresh token, {@code false} by default.
+	 * @throws IllegalStateException if refresh token groups are enabled while token key names are disabled.
+	 */
+	public void setRefreshTokenGroups(boolean refreshTokenGroups) {
+		if (refreshTokenGroups && !isTokenKeyNames()) {
+			throw new IllegalStateException("Refresh token groups require token key names.");
+		}
+		this.refreshTokenGroups = refreshTokenGroups;
+	}
+
+	/**
+	 * Enables storing new entities with the token ID as their key name.
+	 * @param tokenKeyNames {@code true} to address entities by key name, {@code false} by default.
+	 * @throws IllegalStateException if key names are disabled while index entities or refresh token groups are enabled.
+	 */
+	@Override
+	public void setTokenKeyNames(boolean tokenKeyNames) {
+		if (!tokenKeyNames && (indexEntities || refreshTokenGroups)) {
+			throw new IllegalStateException("Index entities and refresh token groups require token key names.");
+		}
+		super.setTokenKeyNames(tokenKeyNames);
+	}
+
+	public boolean isRefreshTokenGroups() {
+		return refreshTokenGroups;
+	}
+
+	@Override
+	public GaeOAuthAccessToken findByAuthenticationId(String authenticationId) {
+		if (!indexEntities || authenticationId == null) {
+			return super.findByAuthenticationId(authenticationId);
+		}
+		GaeOAuthAccessToken token;
+		try {
+			token = findIndexed((Key) datastore.get(createAuthenticationIndexKey(authenticationId)).getProperty(ACCESS_TOKEN), authenticationId);
+		} catch (EntityNotFoundException e) {
+			token = null;
+		}
+		return token != null || !isLegacyLookup() ? token : super.findByAuthenticationId(authenticationId);
+	}
+
+	@Override
+	public Future<GaeOAuthAccessToken> findByAuthenticationIdAsync(final String authenticationId) {
+		if (!indexEntities || authenticationId == null) {
+			return super.findByAuthenticationIdAsync(authenticationId);
+		}
+		return new FutureWrapper<Entity, GaeOAuthAccessToken>(asyncDatastore.get(createAuthenticationIndexKey(authenticationId))) {
+
+			@Override
+			protected GaeOAuthAccessToken wrap(Entity index) {
+				GaeOAuthAccessToken token = findIndexed((Key) index.getProperty(ACCESS_TOKEN), authenticationId);
+				return token != null || !isLegacyLookup() ? token : DatastoreAccessTokenRepository.super.findByAuthenticationId(authenticationId);
+			}
+
+			@Override
+			protected GaeOAuthAccessToken absorbParentException(Throwable cause) throws Throwable {
+				if (!(cause instanceof EntityNotFoundException)) {
+					throw cause;
+				}
+				return isLegacyLookup() ? DatastoreAccessTokenRepository.super.findByAuthenticationId(authenticationId) : null;
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
+			}
+		};
+	}
+
+	private GaeOAuthAccessToken findIndexed(Key key, String authenticationId) {
+		try {
+			GaeOAuthAccessToken token = toModel(datastore.get(key));
+			return authenticationId.equals(token.getAuthenticationId()) ? resolve(token) : null;
+		} catch (EntityNotFoundException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public List<GaeOAuthAccessToken> findByClientId(String clientId) {
+		return find(new FilterPredicate(CLIENT_ID, FilterOperator.EQUAL, clientId));
+	}
+
+	@Override
+	public List<GaeOAuthAccessToken> findByUsernameAndClientId(String username, String clientId) {
+		return find(CompositeFilterOperator.and(
+				new FilterPredicate(USERNAME, FilterOperator.EQUAL, username),
+				new FilterPredicate(CLIENT_ID, FilterOperator.EQUAL, clientId)));
+	}
+
+	@Override
+	public Page<GaeOAuthAccessToken> findByClientId(String clientId, int pageSize, String cursor) {
+		return find(new FilterPredicate(CLIENT_ID, FilterOperator.EQUAL, clientId), pageSize, cursor);
+	}
+
+	@Override
+	public Page<GaeOAuthAccessToken> findByUsernameAndClientId(String username, String clientId, int pageSize, String cursor) {
+		return find(CompositeFilterOperator.and(
+				new FilterPredicate(USERNAME, FilterOperator.EQUAL, username),
+				new FilterPredicate(CLIENT_ID, FilterOperator.EQUAL, clientId)), pageSize, cursor);
+	}
+
+	@Override
+	public Page<Key> findKeysByClientId(String clientId, int pageSize, String cursor) {
+		return findKeys(new FilterPredicate(CLIENT_ID, FilterOperator.EQUAL, clientId), pageSize, cursor);
+	}
+
+	@Override
+	public Page<Key> findKeysByUsernameAndClientId(String username, String clientId, int pageSize, String cursor) {
+		return findKeys(CompositeFilterOperator.and(
+				new FilterPredicate(USERNAME, FilterOperator.EQUAL, username),
+				new FilterPredicate(CLIENT_ID, FilterOperator.EQUAL, clientId)), pageSize, cursor);
+	}
+
+	@Override
+	public List<GaeOAuthAccessToken> findByRefreshToken(String refreshToken) {
+		if (!indexEntities && !refreshTokenGroups || refreshToken == null) {
+			return find(new FilterPredicate(REFRESH_TOKEN, FilterOperator.EQUAL, refreshToken));
+		}
+		Iterable<Entity> group = refreshTokenGroups ? queryGroup(null, refreshToken, false) : null;
+		Iterable<Entity> index = indexEntities ? queryRefreshTokenIndex(null, refreshToken) : null;
+		Iterable<Entity> others = isLegacyLookup() ? queryKeys(new FilterPredicate(REFRESH_TOKEN, FilterOperator.EQUAL, refreshToken)) : null;
+		Map<Key, GaeOAuthAccessToken> tokens = new LinkedHashMap<Key, GaeOAuthAccessToken>();
+		if (group != null) {
+			for (Entity entity : group) {
+				tokens.put(entity.getKey(), toModel(entity));
+			}
+		}
+		Set<Key> keys = indexedKeys(index, others);
+		keys.removeAll(tokens.keySet());
+		for (Entity entity : datastore.get(keys).values()) {
+			GaeOAuthAccessToken token = toModel(entity);
+			if (refreshToken.equals(token.getRefreshToken())) {
+				tokens.put(entity.getKey(), token);
+			}
+		}
+		return resolve(new ArrayList<GaeOAuthAccessToken>(tokens.values()));
+	}
+
+	@Override
+	public long deleteByRefreshToken(String refreshToken) {
+		return DeferredFuture.getResult(deleteByRefreshTokenAsync(refreshToken));
+	}
+
+	/**
+	 * Deletes the access tokens issued with the given refresh token without waiting for the delete.
+	 * <p>
+	 * The children of the refresh token's key are deleted along with their index entities. Tokens found through index
+	 * entities are read by one batch get, so that tokens stored again with another refresh token are kept, and deleted
+	 * together with the index entities.
+	 * @param refreshToken Token ID of the refresh token.
+	 * @return Future of the number of deleted entities.
+	 */
+	public Future<Long> deleteByRefreshTokenAsync(String refreshToken) {
+		return deleteByRefreshTokenAsync(null, refreshToken);
+	}
+
+	/**
+	 * Deletes the access tokens issued with the given refresh token in the transaction without waiting for the delete.
+	 * <p>
+	 * The ancestor queries for the children of the refresh token's key and for its index entities run in the
+	 * transaction, and so does the get of the tokens found through them. Tokens found by the property query, which
+	 * cannot run in a cross-group transaction, are read by their keys in the transaction as well and deleted if they
+	 * still carry the refresh token. Every token read this way is one more entity group of the transaction.
+	 */
+	@Override
+	public Future<Long> deleteByRefreshTokenAsync(final Transaction txn, final String refreshToken) {
+		FilterPredicate filter = new FilterPredicate(REFRESH_TOKEN, FilterOperator.EQUAL, refreshToken);
+		boolean indexed = indexEntities || refreshTokenGroups;
+		if (refreshToken == null || !indexed && txn == null) {
+			return deleteAsync(txn, filter);
+		}
+		final Iterable<Entity> group = refreshTokenGroups ? queryGroup(txn, refreshToken, true) : null;
+		final Iterable<Entity> index = indexEntities ? queryRefreshTokenIndex(txn, refreshToken) : null;
+		final Iterable<Entity> others = !indexed || isLegacyLookup() ? queryKeys(filter) : null;
+		return new DeferredFuture<Long>() {
+
+			@Override
+			protected Long compute() {
+				Set<Key> deleted = new LinkedHashSet<Key>();
+				if (group != null) {
+					for (Entity entity : group) {
+						deleted.add(entity.getKey());
+					}
+				}
+				Set<Key> keys = indexedKeys(index, txn != null ? others : null);
+				keys.removeAll(deleted);
+				for (Map.Entry<Key, Entity> entry : datastore.get(txn, keys).entrySet()) {
+					if (refreshToken.equals(entry.getValue().getProperty(REFRESH_TOKEN))) {
+						deleted.add(entry.getKey());
+					}
+				}
+				if (others != null && txn == null) {
+					for (Entity entity : others) {
+						deleted.add(entity.getKey());
+					}
+				}
+				long count = deleted.size();
+				List<Key> indexKeys = new ArrayList<Key>();
+				for (Key key : deleted) {
+					if (key.getParent() != null) {
+						indexKeys.add(createTokenIndexKey(key.getName()));
+					}
+				}
+				if (index != null) {
+					for (Entity entity : index) {
+						indexKeys.add(entity.getKey());
+					}
+				}
+				deleted.addAll(indexKeys);
+				if (!deleted.isEmpty()) {
+					datastore.delete(txn, deleted);
+				}
+				return count;
+			}
+		};
+	}
+
+	/**
+	 * Creates the key of the entity group of the access tokens issued with the given refresh token.
+	 * @param refreshToken Token ID of the refresh token.
+	 * @return Key of the refresh token entity stored under its key name.
+	 */
+	public static Key createRefreshTokenGroupKey(String refreshToken) {
+		return KeyFactory.createKey(GaeOAuthRefreshToken.class.getSimpleName(), refreshToken);
+	}
+
+	/**
+	 * Creates the key of the index entity referencing the access token stored as a child of its refresh token's key.
+	 * @param tokenId Token ID of the access token.
+	 * @return Key of the index entity.
+	 */
+	public static Key createTokenIndexKey(String tokenId) {
+		return KeyFactory.createKey(TOKEN_INDEX_KIND, tokenId);
+	}
+
+	/**
+	 * Creates the key of the index entity referencing the access token with the given authentication ID.
+	 * @param authenticationId Authentication ID.
+	 * @return Key of the index entity.
+	 */
+	public static Key createAuthenticationIndexKey(String authenticationId) {
+		return KeyFactory.createKey(AUTHENTICATION_INDEX_KIND, authenticationId);
+	}
+
+	/**
+	 * Creates the key of the index entity recording that the access token was issued with the refresh token.
+	 * @param refreshToken Token ID of the refresh token.
+	 * @param tokenId Token ID of the access token.
+	 * @return Key of the index entity.
+	 */
+	public static Key createRefreshTokenIndexKey(String refreshToken, String tokenId) {
+		return KeyFactory.createKey(createRefreshTokenIndexAncestor(refreshToken), REFRESH_TOKEN_INDEX_KIND, tokenId);
+	}
+
+	private static Key createRefreshTokenIndexAncestor(String refreshToken) {
+		return KeyFactory.createKey(REFRESH_TOKEN_INDEX_KIND, refreshToken);
+	}
+
+	private Iterable<Entity> queryGroup(Transaction txn, String refreshToken, boolean keysOnly) {
+		Query query = new Query(kind).setAncestor(createRefreshTokenGroupKey(refreshToken));
+		if (keysOnly) {
+			query.setKeysOnly();
+		}
+		return asyncDatastore.prepare(txn, query).asList(FetchOptions.Builder.withDefaults());
+	}
+
+	private Iterable<Entity> queryRefreshTokenIndex(Transaction txn, String refreshToken) {
+		Query query = new Query(REFRESH_TOKEN_INDEX_KIND).setAncestor(createRefreshTokenIndexAncestor(refreshToken))
+				.setKeysOnly();
+		return asyncDatastore.prepare(txn, query).asList(FetchOptions.Builder.withDefaults());
+	}
+
+	private Set<Key> indexedKeys(Iterable<Entity> index, Iterable<Entity> others) {
+		Set<Key> keys = new LinkedHashSet<Key>();
+		if (index != null) {
+			for (Entity entity : index) {
+				keys.add(createKey(entity.getKey().getName()));
+			}
+		}
+		if (others != null) {
+			for (Entity entity : others) {
+				keys.add(entity.getKey());
+			}
+		}
+		return keys;
+	}
+
+	@Override
+	protected GaeOAuthAccessToken newModel() {
+		return new GaeOAuthAccessToken();
+	}
+
+	@Override
+	protected void writeProperties(GaeOAuthAccessToken token, Entity entity) {
+		entity.setProperty(AUTHENTICATION_ID, token.getAuthenticationId());
+		entity.setProperty(USERNAME, token.getUsername());
+		entity.setProperty(CLIENT_ID, token.getClientId());
+		entity.setProperty(REFRESH_TOKEN, token.getRefreshToken());
+	}
+
+	@Override
+	protected Key keyOf(GaeOAuthAccessToken token) {
+		if (!refreshTokenGroups || token.getRefreshToken() == null) {
+			return super.keyOf(token);
+		}
+		return KeyFactory.createKey(createRefreshTokenGroupKey(token.getRefreshToken()), kind, token.getTokenId());
+	}
+
+	@Override
+	protected List<Key> lookupKeys(Collection<String> tokenIds) {
+		List<Key> keys = super.lookupKeys(tokenIds);
+		if (refreshTokenGroups) {
+			for (String tokenId : tokenIds) {
+				keys.add(createTokenIndexKey(tokenId));
+			}
+		}
+		return keys;
+	}
+
+	@Override
+	protected Map<String, Entity> lookedUp(Transaction txn, Collection<String> tokenIds, Map<Key, Entity> entities) {
+		Map<String, Entity> found = super.lookedUp(txn, tokenIds, entities);
+		if (refreshTokenGroups) {
+			List<Key> children = childKeys(tokenIds, found, entities);
+			if (!children.isEmpty()) {
+				for (Entity entity : datastore.get(txn, children).values()) {
+					found.put(entity.getKey().getName(), entity);
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Looks up the index entities of the tokens stored as children to delete them with the tokens.
+	 */
+	@Override
+	protected List<Key> deletedKeys(Collection<String> tokenIds) {
+		List<Key> keys = super.deletedKeys(tokenIds);
+		if (refreshTokenGroups && !tokenIds.isEmpty()) {
+			List<Key> indexKeys = new ArrayList<Key>(tokenIds.size());
+			for (String tokenId : tokenIds) {
+				indexKeys.add(createTokenIndexKey(tokenId));
+			}
+			keys.addAll(childKeys(tokenIds, Collections.<String, Entity> emptyMap(), datastore.get(indexKeys)));
+			keys.addAll(indexKeys);
+		}
+		return keys;
+	}
+
+	private List<Key> childKeys(Collection<String> tokenIds, Map<String, Entity> found, Map<Key, Entity> entities) {
+		List<Key> children = new ArrayList<Key>();
+		for (String tokenId : tokenIds) {
+			Entity index = entities.get(createTokenIndexKey(tokenId));
+			if (!found.containsKey(tokenId) && index != null) {
+				children.add((Key) index.getProperty(ACCESS_TOKEN));
+			}
+		}
+		return children;
+	}
+
+	@Override
+	protected List<Entity> indexEntities(GaeOAuthAccessToken token, Key key) {
+		// tokens rewritten in place under an allocated ID are found by the legacy queries
+		if (key.getName() == null) {
+			return super.indexEntities(token, key);
+		}
+		List<Entity> entities = new ArrayList<Entity>(3);
+		if (key.getParent() != null) {
+			Entity entity = new Entity(createTokenIndexKey(key.getName()));
+			entity.setUnindexedProperty(ACCESS_TOKEN, key);
+			entity.setProperty(EXPIRATION, token.getExpiration());
+			entities.add(entity);
+		}
+		if (indexEntities && token.getAuthenticationId() != null) {
+			Entity entity = new Entity(createAuthenticationIndexKey(token.getAuthenticationId()));
+			entity.setUnindexedProperty(ACCESS_TOKEN, key);
+			entity.setProperty(EXPIRATION, token.getExpiration());
+			entities.add(entity);
+		}
+		// children of the refresh token's key are found by an ancestor query already
+		if (indexEntities && token.getRefreshToken() != null && key.getParent() == null) {
+			Entity entity = new Entity(createRefreshTokenIndexKey(token.getRefreshToken(), key.getName()));
+			entity.setProperty(EXPIRATION, token.getExpiration());
+			entities.add(entity);
+		}
+		return entities;
+	}
+
+	@Override
+	protected void readProperties(Entity entity, GaeOAuthAccessToken token) {
+		token.setAuthenticationId((String) entity.getProperty(AUTHENTICATION_ID));
+		token.setUsername((String) entity.getProperty(USERNAME));
+		token.setClientId((String) entity.getProperty(CLIENT_ID));
+		token.setRefreshToken((String) entity.getProperty(REFRESH_TOKEN));
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * This class provides operations for managing authentications stored once in their own kind and shared by the access
+ * and refresh tokens of a grant.
+ * <p>
+ * Authentication entities are keyed by the SHA-256 digest of the encoded authentication, so storing the same
+ * authentication again resolves to the same entity. Authentications written by this instance recently are not
+ * written again; the {@code written} property of an entity is refreshed at least once per rewrite period while tokens
+ * referencing it are being stored.
+ */
+public class DatastoreAuthenticationRepository {
+
+	public static final String KIND = "GaeOAuthAuthentication";
+
+	static final String AUTHENTICATION = "authentication";
+	static final String WRITTEN = "written";
+
+	private static final int MAX_RECENT = 1024;
+
+	private static final long DEFAULT_REWRITE_MILLIS = 10 * 60 * 1000;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	protected final DatastoreService datastore;
+
+	private final Map<Key, Long> recent = Collections.synchronizedMap(new LinkedHashMap<Key, Long>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+			return size() > MAX_RECENT;
+		}
+	});
+
+	private long rewriteMillis = DEFAULT_REWRITE_MILLIS;
+
+	public DatastoreAuthenticationRepository(DatastoreService datastore) {
+		this.datastore = datastore;
+	}
+
+	public DatastoreAuthenticationRepository() {
+		this(DatastoreServiceFactory.getDatastoreService());
+	}
+
+	/**
+	 * Sets for how long an authentication written by this instance is not written again.
+	 * @param rewriteMillis Period in milliseconds, 10 minutes by default, 0 to write on every save.
+	 */
+	public void setRewriteMillis(long rewriteMillis) {
+		this.rewriteMillis = rewriteMillis;
+	}
+
+	public long getRewriteMillis() {
+		return rewriteMillis;
+	}
+
+	/**
+	 * Creates the key of the entity storing the given encoded authentication.
+	 * @param authentication Encoded authentication.
+	 * @return Datastore key named after the digest of the authentication.
+	 */
+	public Key createKey(Blob authentication) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(authentication.getBytes());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 algorithm not available.", e);
+		}
+		char[] name = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			name[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+			name[i * 2 + 1] = HEX[digest[i] & 0xf];
+		}
+		return KeyFactory.createKey(KIND, new String(name));
+	}
+
+	/**
+	 * Creates the entity storing the given encoded authentication unless this instance has written it recently.
+	 * @param key Key created by {@link #createKey(Blob)}.
+	 * @param authentication Encoded authentication.
+	 * @return Entity to be put along with the token or {@code null} if there is no need to write it.
+	 */
+	public Entity createEntity(Key key, Blob authentication) {
+		long now = System.currentTimeMillis();
+		Long written = recent.get(key);
+		if (written != null && now - written < rewriteMillis) {
+			return null;
+		}
+		Entity entity = new Entity(key);
+		entity.setUnindexedProperty(AUTHENTICATION, authentication);
+		entity.setUnindexedProperty(WRITTEN, new Date(now));
+		return entity;
+	}
+
+	/**
+	 * Records that the entity created by {@link #createEntity(Key, Blob)} was put.
+	 * @param entity Entity that was put.
+	 */
+	public void written(Entity entity) {
+		recent.put(entity.getKey(), ((Date) entity.getProperty(WRITTEN)).getTime());
+	}
+
+	/**
+	 * Looks up an encoded authentication.
+	 * @param key Key of the authentication entity.
+	 * @return Encoded authentication or {@code null} if there is none.
+	 */
+	public Blob get(Key key) {
+		return get(Collections.singleton(key)).get(key);
+	}
+
+	/**
+	 * Looks up encoded authentications in one batch get.
+	 * @param keys Keys of the authentication entities.
+	 * @return Encoded authentications by key, missing entities are left out.
+	 */
+	public Map<Key, Blob> get(Collection<Key> keys) {
+		Map<Key, Blob> authentications = new HashMap<Key, Blob>();
+		if (keys.isEmpty()) {
+			return authentications;
+		}
+		for (Map.Entry<Key, Entity> entry : datastore.get(keys).entrySet()) {
+			authentications.put(entry.getKey(), (Blob) entry.getValue().getProperty(AUTHENTICATION));
+		}
+		return authentications;
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.TransactionalRefreshTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthRefreshToken;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+
+/**
+ * This class provides operations for managing {@link GaeOAuthRefreshToken} entities through the low-level datastore
+ * API.
+ */
+public class DatastoreRefreshTokenRepository extends DatastoreTokenRepository<GaeOAuthRefreshToken> implements TransactionalRefreshTokenRepository {
+
+	public DatastoreRefreshTokenRepository() {
+		super(GaeOAuthRefreshToken.class);
+	}
+
+	public DatastoreRefreshTokenRepository(DatastoreService datastore) {
+		super(datastore, GaeOAuthRefreshToken.class);
+	}
+
+	public DatastoreRefreshTokenRepository(DatastoreService datastore, AsyncDatastoreService asyncDatastore) {
+		super(datastore, asyncDatastore, GaeOAuthRefreshToken.class);
+	}
+
+	@Override
+	protected GaeOAuthRefreshToken newModel() {
+		return new GaeOAuthRefreshToken();
+	}
+}
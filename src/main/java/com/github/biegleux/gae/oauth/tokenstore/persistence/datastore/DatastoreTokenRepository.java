@@ -0,0 +1,983 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.BatchResult;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.Batches;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.Page;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.TransactionalTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.SerializationTokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.TokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthToken;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.utils.FutureWrapper;
+
+/**
+ * This base class provides operations for managing {@link GaeOAuthToken} entities directly through the low-level
+ * {@link DatastoreService}, without JDO. Entities are read and written with the same kind and properties as the JDO
+ * model classes.
+ * <p>
+ * When a {@link DatastoreAuthenticationRepository} is set, authentications are stored once in their own kind and token
+ * entities only reference them through the {@code authenticationKey} property. Authentications of tokens read by a
+ * query are fetched in one batch get. Token entities with an embedded authentication remain readable.
+ * <p>
+ * The {@code *Async} methods issue their datastore calls through the {@link AsyncDatastoreService} and return without
+ * waiting for them. Blocking upserts and deletes use them to overlap the write with the query for legacy entities.
+ *
+ * @param <T> Subclass of {@link GaeOAuthToken} stored by the repository.
+ */
+public abstract class DatastoreTokenRepository<T extends GaeOAuthToken<?>> implements TransactionalTokenRepository<T> {
+
+	static final String TOKEN_ID = "tokenId";
+	static final String TOKEN = "token";
+	static final String AUTHENTICATION = "authentication";
+	static final String AUTHENTICATION_ID = "authenticationId";
+	static final String AUTHENTICATION_KEY = "authenticationKey";
+	static final String EXPIRATION = "expiration";
+
+	protected final DatastoreService datastore;
+
+	protected final AsyncDatastoreService asyncDatastore;
+
+	protected final String kind;
+
+	private boolean tokenKeyNames;
+
+	private boolean legacyLookup = true;
+
+	private TokenCodec codec = new SerializationTokenCodec();
+
+	private DatastoreAuthenticationRepository authentications;
+
+	private int batchSize = Batches.DEFAULT_BATCH_SIZE;
+
+	public DatastoreTokenRepository(DatastoreService datastore, AsyncDatastoreService asyncDatastore, Class<T> clazz) {
+		this.datastore = datastore;
+		this.asyncDatastore = asyncDatastore;
+		this.kind = clazz.getSimpleName();
+	}
+
+	public DatastoreTokenRepository(DatastoreService datastore, Class<T> clazz) {
+		this(datastore, DatastoreServiceFactory.getAsyncDatastoreService(), clazz);
+	}
+
+	public DatastoreTokenRepository(Class<T> clazz) {
+		this(DatastoreServiceFactory.getDatastoreService(), clazz);
+	}
+
+	/**
+	 * Enables storing new entities with the token ID as their key name.
+	 * @param tokenKeyNames {@code true} to address entities by key name, {@code false} by default.
+	 */
+	@Override
+	public void setTokenKeyNames(boolean tokenKeyNames) {
+		this.tokenKeyNames = tokenKeyNames;
+	}
+
+	public boolean isTokenKeyNames() {
+		return tokenKeyNames;
+	}
+
+	/**
+	 * Controls whether lookups by token ID fall back to the {@code tokenId} query when no entity exists under the key
+	 * name.
+	 * @param legacyLookup {@code false} to rely on key names only, {@code true} by default.
+	 */
+	@Override
+	public void setLegacyLookup(boolean legacyLookup) {
+		this.legacyLookup = legacyLookup;
+	}
+
+	public boolean isLegacyLookup() {
+		return legacyLookup;
+	}
+
+	/**
+	 * Sets the codec of the token and authentication blobs.
+	 * @param codec Token codec, {@link SerializationTokenCodec} by default.
+	 */
+	@Override
+	public void setCodec(TokenCodec codec) {
+		this.codec = codec;
+	}
+
+	public TokenCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Enables storing authentications in their own kind, shared by all tokens with the same authentication.
+	 * @param authentications Repository of shared authentications, {@code null} (default) to embed authentications
+	 *            in token entities.
+	 */
+	public void setAuthentications(DatastoreAuthenticationRepository authentications) {
+		this.authentications = authentications;
+	}
+
+	public DatastoreAuthenticationRepository getAuthentications() {
+		return authentications;
+	}
+
+	/**
+	 * Sets the maximum number of tokens read, written or deleted by one datastore call of the batch operations.
+	 * @param batchSize Batch size, {@link Batches#DEFAULT_BATCH_SIZE} by default.
+	 */
+	@Override
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Does nothing, the datastore services are obtained by the constructor and need no further initialization.
+	 */
+	@Override
+	public void warmUp() {
+	}
+
+	/**
+	 * Creates the key of the entity stored under the given token ID.
+	 * @param tokenId Token ID.
+	 * @return Datastore key with the token ID as its key name.
+	 */
+	public Key createKey(String tokenId) {
+		return KeyFactory.createKey(kind, tokenId);
+	}
+
+	@Override
+	public Transaction beginTransaction() {
+		return datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+	}
+
+	@Override
+	public T findByAuthenticationId(String authenticationId) {
+		return findFirst(new FilterPredicate(AUTHENTICATION_ID, FilterOperator.EQUAL, authenticationId));
+	}
+
+	@Override
+	public T findByTokenId(String tokenId) {
+		if (tokenKeyNames && tokenId != null) {
+			List<String> tokenIds = Collections.singletonList(tokenId);
+			Entity entity = lookedUp(null, tokenIds, datastore.get(lookupKeys(tokenIds))).get(tokenId);
+			if (entity != null) {
+				return resolve(toModel(entity));
+			}
+			if (!legacyLookup) {
+				return null;
+			}
+		}
+		return findFirst(new FilterPredicate(TOKEN_ID, FilterOperator.EQUAL, tokenId));
+	}
+
+	/**
+	 * Looks up the {@link GaeOAuthToken} entity with the given authentication ID without waiting for the query.
+	 * @param authenticationId Authentication ID.
+	 * @return Future of the corresponding entity or {@code null}.
+	 */
+	public Future<T> findByAuthenticationIdAsync(String authenticationId) {
+		return findFirstAsync(new FilterPredicate(AUTHENTICATION_ID, FilterOperator.EQUAL, authenticationId));
+	}
+
+	/**
+	 * Looks up the {@link GaeOAuthToken} entity with the given token ID without waiting for the get or the query.
+	 * @param tokenId Token ID.
+	 * @return Future of the corresponding entity or {@code null}.
+	 */
+	public Future<T> findByTokenIdAsync(String tokenId) {
+		return findByTokenIdAsync(null, tokenId);
+	}
+
+	/**
+	 * Looks up the entity with the given token ID by a get in the transaction. An entity stored under an allocated ID
+	 * is found by a keys-only query, which cannot run in a cross-group transaction, and then read by its key in the
+	 * transaction.
+	 */
+	@Override
+	public Future<T> findByTokenIdAsync(final Transaction txn, final String tokenId) {
+		if (tokenKeyNames && tokenId != null) {
+			final List<String> tokenIds = Collections.singletonList(tokenId);
+			return new FutureWrapper<Map<Key, Entity>, T>(asyncDatastore.get(txn, lookupKeys(tokenIds))) {
+
+				@Override
+				protected T wrap(Map<Key, Entity> entities) {
+					Entity entity = lookedUp(txn, tokenIds, entities).get(tokenId);
+					if (entity != null) {
+						return resolve(toModel(entity));
+					}
+					return legacyLookup ? findLegacy(txn, tokenId) : null;
+				}
+
+				@Override
+				protected Throwable convertException(Throwable cause) {
+					return cause;
+				}
+			};
+		}
+		if (txn == null) {
+			return findFirstAsync(new FilterPredicate(TOKEN_ID, FilterOperator.EQUAL, tokenId));
+		}
+		return new DeferredFuture<T>() {
+
+			@Override
+			protected T compute() {
+				return findLegacy(txn, tokenId);
+			}
+		};
+	}
+
+	private T findLegacy(Transaction txn, String tokenId) {
+		Filter filter = new FilterPredicate(TOKEN_ID, FilterOperator.EQUAL, tokenId);
+		if (txn == null) {
+			return findFirst(filter);
+		}
+		List<Entity> keys = datastore.prepare(new Query(kind).setFilter(filter).setKeysOnly())
+				.asList(FetchOptions.Builder.withLimit(1));
+		if (keys.isEmpty()) {
+			return null;
+		}
+		Key key = keys.get(0).getKey();
+		Entity entity = datastore.get(txn, Collections.singletonList(key)).get(key);
+		return entity != null ? resolve(toModel(entity)) : null;
+	}
+
+	@Override
+	public T save(T token) {
+		List<Entity> entities = toEntities(token);
+		return saved(token, entities, datastore.put(entities));
+	}
+
+	/**
+	 * Puts the given entity without waiting for the put.
+	 * @param token Token entity.
+	 * @return Future of the saved entity.
+	 */
+	public Future<T> saveAsync(T token) {
+		return saveAsync(null, token);
+	}
+
+	@Override
+	public Future<T> saveAsync(Transaction txn, final T token) {
+		final List<Entity> entities = toEntities(token);
+		return new FutureWrapper<List<Key>, T>(asyncDatastore.put(txn, entities)) {
+
+			@Override
+			protected T wrap(List<Key> keys) {
+				return saved(token, entities, keys);
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
+			}
+		};
+	}
+
+	/**
+	 * Puts the given entity and removes other entities with the same token ID where they may exist. The keys-only
+	 * query for such entities runs while the entity is being put.
+	 */
+	@Override
+	public T upsert(T token) {
+		return DeferredFuture.getResult(upsertAsync(token));
+	}
+
+	/**
+	 * Puts the given entity in place of any entity with the same token ID without waiting for the put.
+	 * @param token Token entity.
+	 * @return Future of the saved entity, completed once other entities with the same token ID are deleted.
+	 */
+	public Future<T> upsertAsync(final T token) {
+		final List<Entity> entities = toEntities(token);
+		final Iterable<Entity> others = (!tokenKeyNames || legacyLookup) && token.getTokenId() != null
+				? queryKeys(new FilterPredicate(TOKEN_ID, FilterOperator.EQUAL, token.getTokenId())) : null;
+		return new FutureWrapper<List<Key>, T>(asyncDatastore.put(entities)) {
+
+			@Override
+			protected T wrap(List<Key> keys) {
+				saved(token, entities, keys);
+				if (others != null) {
+					deleteKeys(others, token.getKey());
+				}
+				return token;
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
+			}
+		};
+	}
+
+	/**
+	 * Deletes the {@link GaeOAuthToken} entities with the given token ID.
+	 * <p>
+	 * With token key names enabled the entity is deleted by its key, which does not report whether it existed. Such
+	 * a delete is counted as one entity.
+	 * @param tokenId Token ID.
+	 * @return Number of {@link GaeOAuthToken} entities that were deleted.
+	 */
+	@Override
+	public long deleteByTokenId(String tokenId) {
+		return DeferredFuture.getResult(deleteByTokenIdAsync(tokenId));
+	}
+
+	/**
+	 * Deletes the {@link GaeOAuthToken} entities with the given token ID without waiting for the delete.
+	 * @param tokenId Token ID.
+	 * @return Future of the number of deleted entities.
+	 */
+	public Future<Long> deleteByTokenIdAsync(String tokenId) {
+		return deleteByTokenIdAsync(null, tokenId);
+	}
+
+	/**
+	 * Deletes the {@link GaeOAuthToken} entities with the given token ID in the transaction without waiting for the
+	 * delete. Entities stored under allocated IDs are found by a query outside of the transaction.
+	 */
+	@Override
+	public Future<Long> deleteByTokenIdAsync(final Transaction txn, String tokenId) {
+		final Filter filter = new FilterPredicate(TOKEN_ID, FilterOperator.EQUAL, tokenId);
+		if (tokenKeyNames && tokenId != null) {
+			final Iterable<Entity> others = legacyLookup ? queryKeys(filter) : null;
+			final List<Key> keys = deletedKeys(Collections.singletonList(tokenId));
+			return new FutureWrapper<Void, Long>(asyncDatastore.delete(txn, keys)) {
+
+				@Override
+				protected Long wrap(Void result) {
+					return others != null ? Math.max(1, deleteKeys(txn, others, keys)) : 1L;
+				}
+
+				@Override
+				protected Throwable convertException(Throwable cause) {
+					return cause;
+				}
+			};
+		}
+		return deleteAsync(txn, filter);
+	}
+
+	/**
+	 * Looks up the entities with the given token IDs by one batch get per batch. Token IDs not found under their key
+	 * name, or all of them when key names are disabled, are looked up by queries running concurrently.
+	 */
+	@Override
+	public BatchResult<String, T> findByTokenIds(Collection<String> tokenIds) {
+		BatchResult<String, T> result = new BatchResult<String, T>();
+		for (List<String> batch : Batches.partition(tokenIds, batchSize)) {
+			try {
+				result.addAll(findBatch(batch));
+			} catch (RuntimeException e) {
+				for (String tokenId : batch) {
+					try {
+						T token = findByTokenId(tokenId);
+						if (token != null) {
+							result.succeeded(tokenId, token);
+						}
+					} catch (RuntimeException failure) {
+						result.failed(tokenId, failure);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private BatchResult<String, T> findBatch(List<String> tokenIds) {
+		Map<String, T> found = new LinkedHashMap<String, T>();
+		List<String> queried = tokenIds;
+		if (tokenKeyNames) {
+			Map<String, Entity> entities = lookedUp(null, tokenIds, datastore.get(lookupKeys(tokenIds)));
+			queried = new ArrayList<String>();
+			for (String tokenId : tokenIds) {
+				Entity entity = entities.get(tokenId);
+				if (entity != null) {
+					found.put(tokenId, toModel(entity));
+				} else if (legacyLookup) {
+					queried.add(tokenId);
+				}
+			}
+		}
+		Map<String, List<Entity>> queries = new LinkedHashMap<String, List<Entity>>();
+		for (String tokenId : queried) {
+			Query query = new Query(kind).setFilter(new FilterPredicate(TOKEN_ID, FilterOperator.EQUAL, tokenId));
+			queries.put(tokenId, asyncDatastore.prepare(query).asList(FetchOptions.Builder.withLimit(1)));
+		}
+		for (Map.Entry<String, List<Entity>> query : queries.entrySet()) {
+			if (!query.getValue().isEmpty()) {
+				found.put(query.getKey(), toModel(query.getValue().get(0)));
+			}
+		}
+		resolve(new ArrayList<T>(found.values()));
+		BatchResult<String, T> result = new BatchResult<String, T>();
+		for (String tokenId : tokenIds) {
+			if (found.containsKey(tokenId)) {
+				result.succeeded(tokenId, found.get(tokenId));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Puts the entities by one batch put per batch, while the keys-only queries for other entities with the same
+	 * token IDs run concurrently where they are needed.
+	 */
+	@Override
+	public BatchResult<String, T> upsertAll(Collection<T> tokens) {
+		BatchResult<String, T> result = new BatchResult<String, T>();
+		for (List<T> batch : Batches.partition(tokens, batchSize)) {
+			try {
+				result.addAll(upsertBatch(batch));
+			} catch (RuntimeException e) {
+				for (T token : batch) {
+					try {
+						result.succeeded(token.getTokenId(), upsert(token));
+					} catch (RuntimeException failure) {
+						result.failed(token.getTokenId(), failure);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private BatchResult<String, T> upsertBatch(List<T> tokens) {
+		Map<Key, Entity> authenticationEntities = new LinkedHashMap<Key, Entity>();
+		Map<Key, Entity> indexEntities = new LinkedHashMap<Key, Entity>();
+		List<Entity> entities = new ArrayList<Entity>();
+		List<Iterable<Entity>> others = new ArrayList<Iterable<Entity>>();
+		for (T token : tokens) {
+			List<Entity> tokenEntities = toEntities(token);
+			for (Entity entity : tokenEntities.subList(0, tokenEntities.size() - 1)) {
+				if (DatastoreAuthenticationRepository.KIND.equals(entity.getKind())) {
+					authenticationEntities.put(entity.getKey(), entity);
+				} else {
+					indexEntities.put(entity.getKey(), entity);
+				}
+			}
+			entities.add(tokenEntities.get(tokenEntities.size() - 1));
+			if ((!tokenKeyNames || legacyLookup) && token.getTokenId() != null) {
+				others.add(queryKeys(new FilterPredicate(TOKEN_ID, FilterOperator.EQUAL, token.getTokenId())));
+			}
+		}
+		List<Entity> put = new ArrayList<Entity>(authenticationEntities.values());
+		put.addAll(indexEntities.values());
+		put.addAll(entities);
+		List<Key> keys = datastore.put(put);
+		for (Entity entity : authenticationEntities.values()) {
+			authentications.written(entity);
+		}
+		BatchResult<String, T> result = new BatchResult<String, T>();
+		Set<Key> written = new HashSet<Key>();
+		for (int i = 0; i < tokens.size(); i++) {
+			T token = tokens.get(i);
+			token.setKey(keys.get(put.size() - tokens.size() + i));
+			written.add(token.getKey());
+			result.succeeded(token.getTokenId(), token);
+		}
+		List<Key> deleted = new ArrayList<Key>();
+		for (Iterable<Entity> query : others) {
+			for (Entity entity : query) {
+				if (!written.contains(entity.getKey())) {
+					deleted.add(entity.getKey());
+				}
+			}
+		}
+		if (!deleted.isEmpty()) {
+			datastore.delete(deleted);
+		}
+		return result;
+	}
+
+	/**
+	 * Deletes the entities by one batch delete per batch. With key names disabled, or legacy lookup enabled, the
+	 * entities are found by keys-only queries running concurrently.
+	 */
+	@Override
+	public BatchResult<String, Long> deleteByTokenIds(Collection<String> tokenIds) {
+		BatchResult<String, Long> result = new BatchResult<String, Long>();
+		for (List<String> batch : Batches.partition(tokenIds, batchSize)) {
+			try {
+				result.addAll(deleteBatch(batch));
+			} catch (RuntimeException e) {
+				for (String tokenId : batch) {
+					try {
+						result.succeeded(tokenId, deleteByTokenId(tokenId));
+					} catch (RuntimeException failure) {
+						result.failed(tokenId, failure);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private BatchResult<String, Long> deleteBatch(List<String> tokenIds) {
+		Map<String, Iterable<Entity>> queries = new LinkedHashMap<String, Iterable<Entity>>();
+		if (!tokenKeyNames || legacyLookup) {
+			for (String tokenId : tokenIds) {
+				queries.put(tokenId, queryKeys(new FilterPredicate(TOKEN_ID, FilterOperator.EQUAL, tokenId)));
+			}
+		}
+		Set<String> named = new HashSet<String>();
+		if (tokenKeyNames) {
+			for (String tokenId : tokenIds) {
+				if (tokenId != null) {
+					named.add(tokenId);
+				}
+			}
+		}
+		Set<Key> keys = new HashSet<Key>(deletedKeys(named));
+		BatchResult<String, Long> result = new BatchResult<String, Long>();
+		for (String tokenId : tokenIds) {
+			long count = named.contains(tokenId) ? 1 : 0;
+			if (queries.containsKey(tokenId)) {
+				long queried = 0;
+				for (Entity entity : queries.get(tokenId)) {
+					if (keys.add(entity.getKey())) {
+						queried++;
+					}
+				}
+				count = Math.max(count, queried);
+			}
+			result.succeeded(tokenId, count);
+		}
+		if (!keys.isEmpty()) {
+			datastore.delete(keys);
+		}
+		return result;
+	}
+
+	/**
+	 * Creates an empty model instance.
+	 * @return New model instance.
+	 */
+	protected abstract T newModel();
+
+	/**
+	 * Copies the properties specific to the model subclass to the entity.
+	 * @param token Model being saved.
+	 * @param entity Entity to be put.
+	 */
+	protected void writeProperties(T token, Entity entity) {
+	}
+
+	/**
+	 * Copies the properties specific to the model subclass from the entity.
+	 * @param entity Entity that was read.
+	 * @param token Model being populated.
+	 */
+	protected void readProperties(Entity entity, T token) {
+	}
+
+	/**
+	 * Returns the key the token entity is stored under when token key names are enabled.
+	 * @param token Model being saved.
+	 * @return Key with the token ID as its key name, {@link #createKey(String)} by default.
+	 */
+	protected Key keyOf(T token) {
+		return createKey(token.getTokenId());
+	}
+
+	/**
+	 * Returns the keys to get when looking up entities by their key names.
+	 * @param tokenIds Token IDs.
+	 * @return Keys to be fetched by one batch get, the keys created by {@link #createKey(String)} by default.
+	 */
+	protected List<Key> lookupKeys(Collection<String> tokenIds) {
+		List<Key> keys = new ArrayList<Key>(tokenIds.size());
+		for (String tokenId : tokenIds) {
+			keys.add(createKey(tokenId));
+		}
+		return keys;
+	}
+
+	/**
+	 * Picks the token entities from the entities fetched by the keys returned from {@link #lookupKeys(Collection)}.
+	 * @param txn Transaction the entities were fetched in, for any further gets, or {@code null}.
+	 * @param tokenIds Token IDs.
+	 * @param entities Fetched entities by key.
+	 * @return Token entities by token ID, missing entities are left out.
+	 */
+	protected Map<String, Entity> lookedUp(Transaction txn, Collection<String> tokenIds, Map<Key, Entity> entities) {
+		Map<String, Entity> found = new HashMap<String, Entity>();
+		for (String tokenId : tokenIds) {
+			Entity entity = entities.get(createKey(tokenId));
+			if (entity != null) {
+				found.put(tokenId, entity);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the keys to delete when deleting entities by their key names.
+	 * @param tokenIds Token IDs.
+	 * @return Keys to be deleted, the keys created by {@link #createKey(String)} by default.
+	 */
+	protected List<Key> deletedKeys(Collection<String> tokenIds) {
+		List<Key> keys = new ArrayList<Key>(tokenIds.size());
+		for (String tokenId : tokenIds) {
+			keys.add(createKey(tokenId));
+		}
+		return keys;
+	}
+
+	/**
+	 * Creates the index entities to be put along with the token entity.
+	 * @param token Model being saved.
+	 * @param key Key of the token entity, incomplete if the datastore is to allocate its ID.
+	 * @return Index entities, empty by default.
+	 */
+	protected List<Entity> indexEntities(T token, Key key) {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Converts the model to the entities to be put: the shared authentication, if it needs to be written, the index
+	 * entities and the token entity, always last.
+	 * @param token Model being saved.
+	 * @return Entities to be put.
+	 */
+	protected List<Entity> toEntities(T token) {
+		Entity entity;
+		if (token.getKey() != null) {
+			entity = new Entity(token.getKey());
+		} else if (tokenKeyNames && token.getTokenId() != null) {
+			entity = new Entity(keyOf(token));
+		} else {
+			entity = new Entity(kind);
+		}
+		token.setCodec(codec);
+		entity.setProperty(TOKEN_ID, token.getTokenId());
+		entity.setProperty(TOKEN, token.getTokenBlob());
+		entity.setProperty(EXPIRATION, token.getExpiration());
+		writeProperties(token, entity);
+		List<Entity> entities = new ArrayList<Entity>(2);
+		Blob authentication = token.getAuthenticationBlob();
+		if (authentications == null || authentication == null) {
+			entity.setProperty(AUTHENTICATION, authentication);
+		} else {
+			Key authenticationKey = authentications.createKey(authentication);
+			entity.setProperty(AUTHENTICATION_KEY, authenticationKey);
+			Entity authenticationEntity = authentications.createEntity(authenticationKey, authentication);
+			if (authenticationEntity != null) {
+				entities.add(authenticationEntity);
+			}
+		}
+		entities.addAll(indexEntities(token, entity.getKey()));
+		entities.add(entity);
+		return entities;
+	}
+
+	private T saved(T token, List<Entity> entities, List<Key> keys) {
+		token.setKey(keys.get(keys.size() - 1));
+		if (DatastoreAuthenticationRepository.KIND.equals(entities.get(0).getKind())) {
+			authentications.written(entities.get(0));
+		}
+		return token;
+	}
+
+	/**
+	 * Converts the entity to its model. The token and the authentication are decoded on first access.
+	 * @param entity Entity of this repository's kind.
+	 * @return Populated model.
+	 */
+	protected T toModel(Entity entity) {
+		T token = newModel();
+		token.setKey(entity.getKey());
+		token.setTokenId((String) entity.getProperty(TOKEN_ID));
+		token.setCodec(codec);
+		token.setTokenBlob((Blob) entity.getProperty(TOKEN));
+		token.setExpiration((Date) entity.getProperty(EXPIRATION));
+		token.setAuthenticationBlob((Blob) entity.getProperty(AUTHENTICATION));
+		token.setAuthenticationKey((Key) entity.getProperty(AUTHENTICATION_KEY));
+		readProperties(entity, token);
+		return token;
+	}
+
+	/**
+	 * Fetches the shared authentication referenced by the model.
+	 * @param token Model converted by {@link #toModel(Entity)}.
+	 * @return The given model.
+	 */
+	protected T resolve(T token) {
+		if (token.getAuthenticationKey() != null && token.getAuthenticationBlob() == null) {
+			token.setAuthenticationBlob(authentications().get(token.getAuthenticationKey()));
+		}
+		return token;
+	}
+
+	/**
+	 * Fetches the shared authentications referenced by the models in one batch get.
+	 * @param tokens Models converted by {@link #toModel(Entity)}.
+	 * @return The given models.
+	 */
+	protected List<T> resolve(List<T> tokens) {
+		Set<Key> keys = new HashSet<Key>();
+		for (T token : tokens) {
+			if (token.getAuthenticationKey() != null && token.getAuthenticationBlob() == null) {
+				keys.add(token.getAuthenticationKey());
+			}
+		}
+		if (!keys.isEmpty()) {
+			Map<Key, Blob> blobs = authentications().get(keys);
+			for (T token : tokens) {
+				if (token.getAuthenticationKey() != null && token.getAuthenticationBlob() == null) {
+					token.setAuthenticationBlob(blobs.get(token.getAuthenticationKey()));
+				}
+			}
+		}
+		return tokens;
+	}
+
+	private DatastoreAuthenticationRepository authentications() {
+		return authentications != null ? authentications : new DatastoreAuthenticationRepository(datastore);
+	}
+
+	/**
+	 * Runs a query for the entities matching the filter.
+	 * @param filter Query filter.
+	 * @return Models of all matching entities.
+	 */
+	protected List<T> find(Filter filter) {
+		List<T> tokens = new ArrayList<T>();
+		for (Entity entity : datastore.prepare(new Query(kind).setFilter(filter)).asIterable()) {
+			tokens.add(toModel(entity));
+		}
+		return resolve(tokens);
+	}
+
+	/**
+	 * Runs a query for one page of the entities matching the filter.
+	 * @param filter Query filter.
+	 * @param pageSize Maximum number of entities in the page.
+	 * @param cursor Web safe cursor of a previous page or {@code null} for the first page.
+	 * @return Page of models.
+	 */
+	protected Page<T> find(Filter filter, int pageSize, String cursor) {
+		QueryResultList<Entity> entities = datastore.prepare(new Query(kind).setFilter(filter)).asQueryResultList(fetchOptions(pageSize, cursor));
+		List<T> tokens = new ArrayList<T>(entities.size());
+		for (Entity entity : entities) {
+			tokens.add(toModel(entity));
+		}
+		return new Page<T>(resolve(tokens), nextCursor(entities, pageSize));
+	}
+
+	/**
+	 * Runs a keys-only query for one page of the keys of the entities matching the filter.
+	 * @param filter Query filter.
+	 * @param pageSize Maximum number of keys in the page.
+	 * @param cursor Web safe cursor of a previous page or {@code null} for the first page.
+	 * @return Page of keys.
+	 */
+	protected Page<Key> findKeys(Filter filter, int pageSize, String cursor) {
+		Query query = new Query(kind).setFilter(filter).setKeysOnly();
+		QueryResultList<Entity> entities = datastore.prepare(query).asQueryResultList(fetchOptions(pageSize, cursor));
+		List<Key> keys = new ArrayList<Key>(entities.size());
+		for (Entity entity : entities) {
+			keys.add(entity.getKey());
+		}
+		return new Page<Key>(keys, nextCursor(entities, pageSize));
+	}
+
+	/**
+	 * Gets the entities by one batch get. The authentication blobs are not decoded and shared authentications are not
+	 * fetched.
+	 */
+	@Override
+	public List<T> findTokensByKeys(List<Key> keys) {
+		List<T> tokens = new ArrayList<T>(keys.size());
+		if (keys.isEmpty()) {
+			return tokens;
+		}
+		Map<Key, Entity> entities = datastore.get(keys);
+		for (Key key : keys) {
+			Entity entity = entities.get(key);
+			if (entity != null) {
+				tokens.add(toModel(entity));
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Creates the fetch options of a page.
+	 * @param pageSize Maximum number of entities in the page.
+	 * @param cursor Web safe cursor of a previous page or {@code null} for the first page.
+	 * @return Fetch options.
+	 */
+	protected static FetchOptions fetchOptions(int pageSize, String cursor) {
+		FetchOptions options = FetchOptions.Builder.withLimit(pageSize).prefetchSize(pageSize).chunkSize(pageSize);
+		if (cursor != null) {
+			options.startCursor(Cursor.fromWebSafeString(cursor));
+		}
+		return options;
+	}
+
+	/**
+	 * Returns the web safe cursor of the page following the query results.
+	 * @param results Results of a page query.
+	 * @param pageSize Maximum number of entities in the page.
+	 * @return Cursor or {@code null} if the page was not full.
+	 */
+	protected static String nextCursor(QueryResultList<?> results, int pageSize) {
+		return results.size() < pageSize ? null : results.getCursor().toWebSafeString();
+	}
+
+	/**
+	 * Runs a query for the first entity matching the filter.
+	 * @param filter Query filter.
+	 * @return Model of the first matching entity or {@code null} if there is none.
+	 */
+	protected T findFirst(Filter filter) {
+		List<Entity> entities = datastore.prepare(new Query(kind).setFilter(filter)).asList(FetchOptions.Builder.withLimit(1));
+		return entities.isEmpty() ? null : resolve(toModel(entities.get(0)));
+	}
+
+	/**
+	 * Starts a query for the first entity matching the filter.
+	 * @param filter Query filter.
+	 * @return Future of the model of the first matching entity or {@code null} if there is none.
+	 */
+	protected Future<T> findFirstAsync(Filter filter) {
+		final List<Entity> entities = asyncDatastore.prepare(new Query(kind).setFilter(filter)).asList(FetchOptions.Builder.withLimit(1));
+		return new DeferredFuture<T>() {
+
+			@Override
+			protected T compute() {
+				return entities.isEmpty() ? null : resolve(toModel(entities.get(0)));
+			}
+		};
+	}
+
+	/**
+	 * Deletes the entities matching the filter, found through a keys-only query.
+	 * @param filter Query filter.
+	 * @return Number of deleted entities.
+	 */
+	protected long delete(Filter filter) {
+		return DeferredFuture.getResult(deleteAsync(filter));
+	}
+
+	/**
+	 * Starts a keys-only query for the entities matching the filter and deletes them without waiting for the delete.
+	 * @param filter Query filter.
+	 * @return Future of the number of deleted entities.
+	 */
+	protected Future<Long> deleteAsync(Filter filter) {
+		return deleteAsync(null, filter);
+	}
+
+	/**
+	 * Starts a keys-only query for the entities matching the filter and deletes them in the transaction without
+	 * waiting for the delete.
+	 * @param txn Transaction or {@code null} to delete without a transaction.
+	 * @param filter Query filter.
+	 * @return Future of the number of deleted entities.
+	 */
+	protected Future<Long> deleteAsync(Transaction txn, Filter filter) {
+		final List<Key> keys = new ArrayList<Key>();
+		for (Entity entity : queryKeys(filter)) {
+			keys.add(entity.getKey());
+		}
+		if (keys.isEmpty()) {
+			return DeferredFuture.of(0L);
+		}
+		return new FutureWrapper<Void, Long>(asyncDatastore.delete(txn, keys)) {
+
+			@Override
+			protected Long wrap(Void result) {
+				return (long) keys.size();
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
+			}
+		};
+	}
+
+	/**
+	 * Starts a keys-only query for the entities matching the filter. The first batch is fetched in the background.
+	 * @param filter Query filter.
+	 * @return Entities holding the keys only.
+	 */
+	protected Iterable<Entity> queryKeys(Filter filter) {
+		return asyncDatastore.prepare(new Query(kind).setFilter(filter).setKeysOnly()).asList(FetchOptions.Builder.withDefaults());
+	}
+
+	/**
+	 * Deletes the keys of the given entities except for the one to keep.
+	 * @param entities Entities holding the keys.
+	 * @param keep Key not to be deleted, may be {@code null}.
+	 * @return Number of deleted entities.
+	 */
+	protected long deleteKeys(Iterable<Entity> entities, Key keep) {
+		return deleteKeys(null, entities, Collections.singleton(keep));
+	}
+
+	/**
+	 * Deletes the keys of the given entities except for the ones to keep.
+	 * @param txn Transaction or {@code null} to delete without a transaction.
+	 * @param entities Entities holding the keys.
+	 * @param keep Keys not to be deleted.
+	 * @return Number of deleted entities.
+	 */
+	protected long deleteKeys(Transaction txn, Iterable<Entity> entities, Collection<Key> keep) {
+		List<Key> keys = new ArrayList<Key>();
+		for (Entity entity : entities) {
+			if (!keep.contains(entity.getKey())) {
+				keys.add(entity.getKey());
+			}
+		}
+		if (!keys.isEmpty()) {
+			datastore.delete(txn, keys);
+		}
+		return keys.size();
+	}
+}
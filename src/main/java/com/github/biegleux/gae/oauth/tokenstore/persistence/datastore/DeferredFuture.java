@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+
+/**
+ * {@link Future} whose value is computed by the thread calling {@link #get()} for the first time. It represents
+ * results that depend on datastore calls already running in the background, such as a query whose first batch is
+ * being prefetched, and lets them be joined like the futures returned by the async datastore API.
+ *
+ * @param <V> The type of the result.
+ */
+public abstract class DeferredFuture<V> implements Future<V> {
+
+	private boolean done;
+
+	private V value;
+
+	private Throwable failure;
+
+	/**
+	 * Computes the result.
+	 * @return The result.
+	 * @throws Exception if the result cannot be computed.
+	 */
+	protected abstract V compute() throws Exception;
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public synchronized V get() throws ExecutionException {
+		if (!done) {
+			run();
+		}
+		return result();
+	}
+
+	/**
+	 * Computes the result unless it is available already. The computation cannot be interrupted once it started, so a
+	 * timeout that has elapsed when no result is available fails without starting it, and a result computed past the
+	 * timeout is kept for the next call after failing this one.
+	 * @throws TimeoutException if the result was not available within the timeout.
+	 */
+	@Override
+	public synchronized V get(long timeout, TimeUnit unit) throws ExecutionException, TimeoutException {
+		if (!done) {
+			if (timeout <= 0) {
+				throw new TimeoutException();
+			}
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			run();
+			if (System.nanoTime() - deadline > 0) {
+				throw new TimeoutException();
+			}
+		}
+		return result();
+	}
+
+	private void run() {
+		try {
+			value = compute();
+		} catch (Exception | Error e) {
+			failure = e;
+		}
+		done = true;
+	}
+
+	private V result() throws ExecutionException {
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+
+	/**
+	 * Creates a future holding the given value.
+	 * @param value The result.
+	 * @return Completed future.
+	 */
+	public static <V> Future<V> of(final V value) {
+		return new DeferredFuture<V>() {
+
+			@Override
+			protected V compute() {
+				return value;
+			}
+		};
+	}
+
+	/**
+	 * Waits for the result of the future, rethrowing runtime exceptions it failed with as they are.
+	 * @param future Future to wait for.
+	 * @return The result.
+	 * @throws DatastoreFailureException if the future failed with a checked exception or the thread was interrupted.
+	 */
+	public static <V> V getResult(Future<V> future) {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new DatastoreFailureException(cause.getMessage(), cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DatastoreFailureException("Interrupted while waiting for the datastore.", e);
+		}
+	}
+}
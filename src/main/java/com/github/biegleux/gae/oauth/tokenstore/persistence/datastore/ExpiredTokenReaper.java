@@ -0,0 +1,411 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.oauth2.common.ExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.TokenDeserializationException;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.BinaryTokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.TokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthAccessToken;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthRefreshToken;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * This class deletes expired tokens, their index entities, revocations and unreferenced shared authentications in
+ * batches, typically from a cron or task queue handler.
+ * <p>
+ * Expired tokens are found by a keys-only query on the indexed {@code expiration} property and deleted by batch
+ * deletes of at most the batch size. A run stops when the time budget is spent and returns a cursor to resume from;
+ * the cursor keeps the cutoff time of the first run, so resumed runs page through the same query.
+ * <p>
+ * Tokens stored without the {@code expiration} property, by versions before it was introduced, are never deleted by
+ * the reap runs. {@link #backfillAccessTokens(String)} and {@link #backfillRefreshTokens(String)} migrate them once by
+ * decoding their token blobs and setting the property.
+ */
+public class ExpiredTokenReaper {
+
+	private static final Log LOG = LogFactory.getLog(ExpiredTokenReaper.class);
+
+	private static final int DEFAULT_BATCH_SIZE = 500;
+
+	private static final long DEFAULT_TIME_BUDGET_MILLIS = 30 * 1000;
+
+	private static final String SEPARATOR = ":";
+
+	private static final String[] INDEX_KINDS = { DatastoreAccessTokenRepository.AUTHENTICATION_INDEX_KIND,
+			DatastoreAccessTokenRepository.REFRESH_TOKEN_INDEX_KIND, DatastoreAccessTokenRepository.TOKEN_INDEX_KIND };
+
+	private final DatastoreService datastore;
+
+	private final AsyncDatastoreService asyncDatastore;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private long timeBudgetMillis = DEFAULT_TIME_BUDGET_MILLIS;
+
+	private long authenticationGraceMillis;
+
+	private TokenCodec codec = new BinaryTokenCodec();
+
+	public ExpiredTokenReaper(DatastoreService datastore, AsyncDatastoreService asyncDatastore) {
+		this.datastore = datastore;
+		this.asyncDatastore = asyncDatastore;
+		this.authenticationGraceMillis = 2 * new DatastoreAuthenticationRepository(datastore).getRewriteMillis();
+	}
+
+	public ExpiredTokenReaper() {
+		this(DatastoreServiceFactory.getDatastoreService(), DatastoreServiceFactory.getAsyncDatastoreService());
+	}
+
+	/**
+	 * Sets the maximum number of entities deleted by one batch delete.
+	 * @param batchSize Batch size, 500 by default.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be positive.");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the time after which a run stops starting new batches.
+	 * @param timeBudgetMillis Time budget in milliseconds, 30 seconds by default.
+	 */
+	public void setTimeBudgetMillis(long timeBudgetMillis) {
+		this.timeBudgetMillis = timeBudgetMillis;
+	}
+
+	/**
+	 * Sets the time since an authentication was last written before it is considered for deletion. It must exceed the
+	 * rewrite period of the {@link DatastoreAuthenticationRepository} in use, so authentications of tokens being stored
+	 * are never deleted.
+	 * @param authenticationGraceMillis Grace period in milliseconds, twice the default rewrite period by default.
+	 */
+	public void setAuthenticationGraceMillis(long authenticationGraceMillis) {
+		this.authenticationGraceMillis = authenticationGraceMillis;
+	}
+
+	/**
+	 * Sets the codec decoding the token blobs during a backfill.
+	 * @param codec Token codec, {@link BinaryTokenCodec} by default, which reads the blobs of every codec shipped with
+	 *            the token store.
+	 */
+	public void setCodec(TokenCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Deletes expired access tokens.
+	 * @param cursor Cursor of a previous unfinished run or {@code null} to start a new run.
+	 * @return Result of the run.
+	 */
+	public Result reapAccessTokens(String cursor) {
+		return reapExpired(GaeOAuthAccessToken.class.getSimpleName(), cursor);
+	}
+
+	/**
+	 * Deletes expired refresh tokens. Refresh tokens without an expiration never expire and are not deleted.
+	 * @param cursor Cursor of a previous unfinished run or {@code null} to start a new run.
+	 * @return Result of the run.
+	 */
+	public Result reapRefreshTokens(String cursor) {
+		return reapExpired(GaeOAuthRefreshToken.class.getSimpleName(), cursor);
+	}
+
+	/**
+	 * Deletes the index entities of expired access tokens, one index kind after the other.
+	 * @param cursor Cursor of a previous unfinished run or {@code null} to start a new run.
+	 * @return Result of the run.
+	 * @see DatastoreAccessTokenRepository#setIndexEntities(boolean)
+	 * @see DatastoreAccessTokenRepository#setRefreshTokenGroups(boolean)
+	 */
+	public Result reapIndexEntities(String cursor) {
+		long deadline = System.currentTimeMillis() + timeBudgetMillis;
+		int kind = cursor != null ? Integer.parseInt(cursor.substring(0, cursor.indexOf(SEPARATOR))) : 0;
+		String kindCursor = cursor != null ? cursor.substring(cursor.indexOf(SEPARATOR) + 1) : "";
+		long deleted = 0;
+		for (; kind < INDEX_KINDS.length; kind++) {
+			Result result = reapExpired(INDEX_KINDS[kind], kindCursor.isEmpty() ? null : kindCursor, deadline);
+			deleted += result.getDeleted();
+			if (!result.isDone()) {
+				return new Result(deleted, kind + SEPARATOR + result.getCursor());
+			}
+			kindCursor = "";
+			if (kind + 1 < INDEX_KINDS.length && System.currentTimeMillis() >= deadline) {
+				return new Result(deleted, (kind + 1) + SEPARATOR);
+			}
+		}
+		return new Result(deleted, null);
+	}
+
+	/**
+	 * Deletes the revocations of expired access tokens.
+	 * @param cursor Cursor of a previous unfinished run or {@code null} to start a new run.
+	 * @return Result of the run.
+	 * @see TokenRevocationList
+	 */
+	public Result reapRevokedTokens(String cursor) {
+		return reapExpired(TokenRevocationList.KIND, cursor);
+	}
+
+	/**
+	 * Deletes shared authentications not written within the grace period and not referenced by any access or refresh
+	 * token.
+	 * @param cursor Cursor of a previous unfinished run or {@code null} to start a new run.
+	 * @return Result of the run.
+	 */
+	public Result reapAuthentications(String cursor) {
+		long deadline = System.currentTimeMillis() + timeBudgetMillis;
+		long cutoff = cutoffOf(cursor, System.currentTimeMillis() - authenticationGraceMillis);
+		String queryCursor = queryCursorOf(cursor);
+		Query query = new Query(DatastoreAuthenticationRepository.KIND);
+		long deleted = 0;
+		do {
+			QueryResultList<Entity> entities = datastore.prepare(query).asQueryResultList(
+					DatastoreTokenRepository.fetchOptions(batchSize, queryCursor));
+			List<Key> candidates = new ArrayList<Key>();
+			for (Entity entity : entities) {
+				Date written = (Date) entity.getProperty(DatastoreAuthenticationRepository.WRITTEN);
+				if (written == null || written.getTime() < cutoff) {
+					candidates.add(entity.getKey());
+				}
+			}
+			List<Key> orphans = unreferenced(candidates);
+			datastore.delete(orphans);
+			deleted += orphans.size();
+			queryCursor = DatastoreTokenRepository.nextCursor(entities, batchSize);
+		} while (queryCursor != null && System.currentTimeMillis() < deadline);
+		return new Result(deleted, cursorOf(cutoff, queryCursor));
+	}
+
+	/**
+	 * Sets the {@code expiration} property of access tokens stored without it, so that reap runs find them once they
+	 * expire. Every access token entity is read; the ones lacking the property are updated in a transaction each, so
+	 * a token stored again in the meantime is not overwritten. Tokens whose blob cannot be decoded are skipped.
+	 * @param cursor Cursor of a previous unfinished run or {@code null} to start a new run.
+	 * @return Result of the run, with the number of updated entities.
+	 */
+	public Result backfillAccessTokens(String cursor) {
+		return backfill(GaeOAuthAccessToken.class.getSimpleName(), cursor);
+	}
+
+	/**
+	 * Sets the {@code expiration} property of refresh tokens stored without it, like
+	 * {@link #backfillAccessTokens(String)}. Refresh tokens that do not expire get a {@code null} expiration, so later
+	 * runs skip them and reap runs leave them alone.
+	 * @param cursor Cursor of a previous unfinished run or {@code null} to start a new run.
+	 * @return Result of the run, with the number of updated entities.
+	 */
+	public Result backfillRefreshTokens(String cursor) {
+		return backfill(GaeOAuthRefreshToken.class.getSimpleName(), cursor);
+	}
+
+	private Result backfill(String kind, String cursor) {
+		long deadline = System.currentTimeMillis() + timeBudgetMillis;
+		String queryCursor = queryCursorOf(cursor);
+		Query query = new Query(kind);
+		long updated = 0;
+		do {
+			QueryResultList<Entity> entities = datastore.prepare(query).asQueryResultList(
+					DatastoreTokenRepository.fetchOptions(batchSize, queryCursor));
+			for (Entity entity : entities) {
+				if (!entity.hasProperty(DatastoreTokenRepository.EXPIRATION) && backfill(entity.getKey())) {
+					updated++;
+				}
+			}
+			queryCursor = DatastoreTokenRepository.nextCursor(entities, batchSize);
+		} while (queryCursor != null && System.currentTimeMillis() < deadline);
+		return new Result(0, updated, cursorOf(0, queryCursor));
+	}
+
+	private boolean backfill(Key key) {
+		Transaction txn = datastore.beginTransaction();
+		try {
+			Entity entity = datastore.get(txn, key);
+			Blob token = (Blob) entity.getProperty(DatastoreTokenRepository.TOKEN);
+			if (entity.hasProperty(DatastoreTokenRepository.EXPIRATION) || token == null) {
+				return false;
+			}
+			entity.setProperty(DatastoreTokenRepository.EXPIRATION, expirationOf(key.getKind(), token.getBytes()));
+			datastore.put(txn, entity);
+			txn.commit();
+			return true;
+		} catch (EntityNotFoundException e) {
+			return false;
+		} catch (TokenDeserializationException e) {
+			LOG.warn("Failed to decode token " + key + ", its expiration is left unset", e);
+			return false;
+		} catch (ConcurrentModificationException e) {
+			LOG.warn("Token " + key + " was modified concurrently, its expiration is left unset", e);
+			return false;
+		} finally {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		}
+	}
+
+	private Date expirationOf(String kind, byte[] token) {
+		if (GaeOAuthAccessToken.class.getSimpleName().equals(kind)) {
+			return codec.decodeAccessToken(token).getExpiration();
+		}
+		OAuth2RefreshToken refreshToken = codec.decodeRefreshToken(token);
+		return refreshToken instanceof ExpiringOAuth2RefreshToken
+				? ((ExpiringOAuth2RefreshToken) refreshToken).getExpiration() : null;
+	}
+
+	private Result reapExpired(String kind, String cursor) {
+		return reapExpired(kind, cursor, System.currentTimeMillis() + timeBudgetMillis);
+	}
+
+	private Result reapExpired(String kind, String cursor, long deadline) {
+		long cutoff = cutoffOf(cursor, System.currentTimeMillis());
+		String queryCursor = queryCursorOf(cursor);
+		// the lower bound excludes entities without an expiration from the results
+		Query query = new Query(kind).setKeysOnly().setFilter(CompositeFilterOperator.and(
+				new FilterPredicate(DatastoreTokenRepository.EXPIRATION, FilterOperator.GREATER_THAN_OR_EQUAL, new Date(0)),
+				new FilterPredicate(DatastoreTokenRepository.EXPIRATION, FilterOperator.LESS_THAN, new Date(cutoff))));
+		long deleted = 0;
+		do {
+			QueryResultList<Entity> entities = datastore.prepare(query).asQueryResultList(
+					DatastoreTokenRepository.fetchOptions(batchSize, queryCursor));
+			List<Key> keys = new ArrayList<Key>(entities.size());
+			for (Entity entity : entities) {
+				keys.add(entity.getKey());
+			}
+			datastore.delete(keys);
+			deleted += keys.size();
+			queryCursor = DatastoreTokenRepository.nextCursor(entities, batchSize);
+		} while (queryCursor != null && System.currentTimeMillis() < deadline);
+		return new Result(deleted, cursorOf(cutoff, queryCursor));
+	}
+
+	private List<Key> unreferenced(List<Key> keys) {
+		String[] kinds = { GaeOAuthAccessToken.class.getSimpleName(), GaeOAuthRefreshToken.class.getSimpleName() };
+		// queries of the async service start fetching when prepared, so all reference checks run concurrently
+		List<List<Entity>> references = new ArrayList<List<Entity>>(keys.size() * kinds.length);
+		for (Key key : keys) {
+			for (String kind : kinds) {
+				Query query = new Query(kind).setKeysOnly().setFilter(
+						new FilterPredicate(DatastoreTokenRepository.AUTHENTICATION_KEY, FilterOperator.EQUAL, key));
+				references.add(asyncDatastore.prepare(query).asList(FetchOptions.Builder.withLimit(1)));
+			}
+		}
+		List<Key> orphans = new ArrayList<Key>();
+		for (int i = 0; i < keys.size(); i++) {
+			boolean referenced = false;
+			for (int j = 0; j < kinds.length; j++) {
+				referenced |= !references.get(i * kinds.length + j).isEmpty();
+			}
+			if (!referenced) {
+				orphans.add(keys.get(i));
+			}
+		}
+		return orphans;
+	}
+
+	private static long cutoffOf(String cursor, long defaultCutoff) {
+		return cursor != null ? Long.parseLong(cursor.substring(0, cursor.indexOf(SEPARATOR))) : defaultCutoff;
+	}
+
+	private static String queryCursorOf(String cursor) {
+		if (cursor == null) {
+			return null;
+		}
+		String queryCursor = cursor.substring(cursor.indexOf(SEPARATOR) + 1);
+		return queryCursor.isEmpty() ? null : queryCursor;
+	}
+
+	private static String cursorOf(long cutoff, String queryCursor) {
+		return queryCursor != null ? cutoff + SEPARATOR + queryCursor : null;
+	}
+
+	/**
+	 * Result of one reaper run.
+	 */
+	public static class Result {
+
+		private final long deleted;
+
+		private final long updated;
+
+		private final String cursor;
+
+		Result(long deleted, String cursor) {
+			this(deleted, 0, cursor);
+		}
+
+		Result(long deleted, long updated, String cursor) {
+			this.deleted = deleted;
+			this.updated = updated;
+			this.cursor = cursor;
+		}
+
+		/**
+		 * Returns the number of entities deleted by the run.
+		 * @return Number of deleted entities.
+		 */
+		public long getDeleted() {
+			return deleted;
+		}
+
+		/**
+		 * Returns the number of entities given an expiration by a backfill run.
+		 * @return Number of updated entities.
+		 */
+		public long getUpdated() {
+			return updated;
+		}
+
+		/**
+		 * Returns the opaque cursor to resume the run from.
+		 * @return Cursor or {@code null} if the run is complete.
+		 */
+		public String getCursor() {
+			return cursor;
+		}
+
+		public boolean isDone() {
+			return cursor == null;
+		}
+	}
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthAccessToken;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthRefreshToken;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * Per instance Bloom filter of the keys of all stored access and refresh tokens, answering lookups of tokens that were
+ * never stored without a datastore call.
+ * <p>
+ * The filter is built by {@link #rebuild()}, typically from a cron handler, by a projection query on the indexed token
+ * ID of both token kinds. The bits are saved as a snapshot in the datastore and loaded by the other instances on first
+ * use and every reload period. Tokens stored after the snapshot are added through {@link #add(String)}, which sets the
+ * local bits and appends the key to a journal in memcache; instances merge the journal before reporting a token
+ * unknown, so a token stored on any instance is never reported unknown once its store call returned.
+ * <p>
+ * The filter stops answering, reporting every token as possibly known, when it cannot prove it has seen every journal
+ * entry since its snapshot: when memcache is unavailable, the journal counter was evicted or an entry is missing for
+ * longer than the gap period. It answers again once a newer snapshot is loaded. Every token store writing tokens must
+ * therefore use a filter with the same name, and journal entries must live longer than the rebuild period. Removed
+ * tokens remain in the filter until the next rebuild.
+ */
+public class TokenKeyFilter {
+
+	private static final Log LOG = LogFactory.getLog(TokenKeyFilter.class);
+
+	/** Kind of the snapshot entities. */
+	public static final String KIND = "TokenKeyFilter";
+
+	private static final String VERSION = "version";
+	private static final String BITS = "bits";
+	private static final String HASHES = "hashes";
+	private static final String POSITION = "position";
+	private static final String CHUNKS = "chunks";
+	private static final String KEYS = "keys";
+	private static final String DATA = "data";
+
+	/** Bytes of filter bits per snapshot chunk entity, below the entity size limit. */
+	private static final int CHUNK_BYTES = 900 * 1024;
+
+	private static final int SCAN_BATCH_SIZE = 1000;
+
+	private final String name;
+
+	private final long expectedTokens;
+
+	private final double falsePositiveRate;
+
+	private final DatastoreService datastore;
+
+	private final MemcacheService memcache;
+
+	private final String counterKey;
+
+	private final String journalPrefix;
+
+	private int journalExpirationSeconds = 3 * 60 * 60;
+
+	private long reloadMillis = 5 * 60 * 1000;
+
+	private long gapMillis = 5 * 1000;
+
+	private int maxJournalLag = 10000;
+
+	private int replayEntries = 1000;
+
+	private volatile BloomFilter bloomFilter;
+
+	private volatile boolean trusted;
+
+	private volatile long nextReload;
+
+	/** Version of the loaded snapshot, guarded by this. */
+	private long version;
+
+	/** Last journal position merged, guarded by this. */
+	private long position;
+
+	/** Time the journal entry after the position was first found missing or 0, guarded by this. */
+	private long gapSince;
+
+	/** Start of the last journal merge, guarded by this. */
+	private long lastSync;
+
+	/**
+	 * @param name Name of the filter, shared by all token stores of the application.
+	 * @param expectedTokens Number of stored access and refresh tokens the filter is sized for.
+	 * @param falsePositiveRate Share of unknown tokens still looked up at the expected number of tokens.
+	 */
+	public TokenKeyFilter(String name, long expectedTokens, double falsePositiveRate) {
+		this(name, expectedTokens, falsePositiveRate, DatastoreServiceFactory.getDatastoreService(),
+				MemcacheServiceFactory.getMemcacheService());
+		memcache.setErrorHandler(ErrorHandlers.getStrict());
+	}
+
+	/**
+	 * @param name Name of the filter, shared by all token stores of the application.
+	 * @param expectedTokens Number of stored access and refresh tokens the filter is sized for.
+	 * @param falsePositiveRate Share of unknown tokens still looked up at the expected number of tokens.
+	 * @param datastore Datastore service.
+	 * @param memcache Memcache service, which must throw on errors rather than log them, so that tokens whose key could
+	 *            not be journaled are not stored.
+	 */
+	public TokenKeyFilter(String name, long expectedTokens, double falsePositiveRate, DatastoreService datastore,
+			MemcacheService memcache) {
+		// validates the arguments
+		BloomFilter.create(expectedTokens, falsePositiveRate);
+		this.name = name;
+		this.expectedTokens = expectedTokens;
+		this.falsePositiveRate = falsePositiveRate;
+		this.datastore = datastore;
+		this.memcache = memcache;
+		this.counterKey = KIND + ":" + name + ":position";
+		this.journalPrefix = KIND + ":" + name + ":";
+		this.lastSync = System.nanoTime();
+	}
+
+	/**
+	 * Sets for how long journal entries are kept in memcache. It must exceed the rebuild period.
+	 * @param journalExpirationSeconds Expiration in seconds, 3 hours by default.
+	 */
+	public void setJournalExpirationSeconds(int journalExpirationSeconds) {
+		this.journalExpirationSeconds = journalExpirationSeconds;
+	}
+
+	/**
+	 * Sets how often the instance checks for a newer snapshot and merges the journal.
+	 * @param reloadMillis Period in milliseconds, 5 minutes by default.
+	 */
+	public void setReloadMillis(long reloadMillis) {
+		this.reloadMillis = reloadMillis;
+	}
+
+	/**
+	 * Sets for how long a missing journal entry is waited for before the filter stops answering. Entries go missing
+	 * while their store call is in progress and when memcache evicts them.
+	 * @param gapMillis Period in milliseconds, 5 seconds by default.
+	 */
+	public void setGapMillis(long gapMillis) {
+		this.gapMillis = gapMillis;
+	}
+
+	/**
+	 * Sets the number of journal entries an instance may fall behind before it stops answering until the next
+	 * snapshot.
+	 * @param maxJournalLag Number of entries, 10000 by default.
+	 */
+	public void setMaxJournalLag(int maxJournalLag) {
+		this.maxJournalLag = maxJournalLag;
+	}
+
+	/**
+	 * Sets the number of journal entries preceding a rebuild that are merged into the new snapshot, covering tokens
+	 * stored too shortly before the rebuild to be returned by its eventually consistent query.
+	 * @param replayEntries Number of entries, 1000 by default.
+	 */
+	public void setReplayEntries(int replayEntries) {
+		this.replayEntries = replayEntries;
+	}
+
+	/**
+	 * Tells whether a token key might belong to a stored token.
+	 * @param tokenKey Token key.
+	 * @return {@code false} only if no token with the key was stored before the call.
+	 */
+	public boolean mightContain(String tokenKey) {
+		if (System.currentTimeMillis() >= nextReload) {
+			reload();
+		}
+		BloomFilter bloomFilter = this.bloomFilter;
+		if (bloomFilter == null || !trusted || bloomFilter.mightContain(tokenKey)) {
+			return true;
+		}
+		// the key may have been stored on another instance since the journal was merged
+		return !sync(System.nanoTime()) || this.bloomFilter.mightContain(tokenKey);
+	}
+
+	/**
+	 * Adds the key of a token about to be stored. The key must be added before the store call returns.
+	 * @param tokenKey Token key.
+	 * @throws com.google.appengine.api.memcache.MemcacheServiceException If the key could not be journaled.
+	 */
+	public void add(String tokenKey) {
+		addAll(Collections.singletonList(tokenKey));
+	}
+
+	/**
+	 * Adds the keys of tokens about to be stored, journaling them by two memcache calls.
+	 * @param tokenKeys Token keys.
+	 * @throws com.google.appengine.api.memcache.MemcacheServiceException If the keys could not be journaled.
+	 */
+	public void addAll(Collection<String> tokenKeys) {
+		if (tokenKeys.isEmpty()) {
+			return;
+		}
+		BloomFilter bloomFilter = this.bloomFilter;
+		if (bloomFilter != null) {
+			for (String tokenKey : tokenKeys) {
+				bloomFilter.add(tokenKey);
+			}
+		}
+		long last = memcache.increment(counterKey, tokenKeys.size(), initialPosition());
+		Map<String, String> entries = new HashMap<String, String>();
+		long entry = last - tokenKeys.size();
+		for (String tokenKey : tokenKeys) {
+			entries.put(journalKey(++entry), tokenKey);
+		}
+		memcache.putAll(entries, Expiration.byDeltaSeconds(journalExpirationSeconds));
+	}
+
+	/**
+	 * Loads the latest snapshot unless it is loaded already and merges the journal. Called on first use and every
+	 * reload period; warmup requests may call it ahead of time.
+	 */
+	public void reload() {
+		synchronized (this) {
+			if (System.currentTimeMillis() < nextReload) {
+				return;
+			}
+			nextReload = System.currentTimeMillis() + reloadMillis;
+		}
+		try {
+			Entity head = getOrNull(KeyFactory.createKey(KIND, name));
+			if (head == null) {
+				return;
+			}
+			long headVersion = (Long) head.getProperty(VERSION);
+			synchronized (this) {
+				if (headVersion == version) {
+					sync(System.nanoTime());
+					return;
+				}
+			}
+			int chunks = ((Long) head.getProperty(CHUNKS)).intValue();
+			Map<Key, Entity> entities = datastore.get(chunkKeys(headVersion, chunks));
+			byte[] bytes = new byte[0];
+			for (Key key : chunkKeys(headVersion, chunks)) {
+				Entity chunk = entities.get(key);
+				if (chunk == null) {
+					// replaced by a concurrent rebuild
+					return;
+				}
+				byte[] data = ((Blob) chunk.getProperty(DATA)).getBytes();
+				int offset = bytes.length;
+				bytes = Arrays.copyOf(bytes, offset + data.length);
+				System.arraycopy(data, 0, bytes, offset, data.length);
+			}
+			BloomFilter loaded = BloomFilter.fromByteArray((Long) head.getProperty(BITS),
+					((Long) head.getProperty(HASHES)).intValue(), bytes);
+			install(loaded, headVersion, (Long) head.getProperty(POSITION));
+			sync(System.nanoTime());
+		} catch (RuntimeException e) {
+			LOG.warn("Failed to load token key filter " + name, e);
+		}
+	}
+
+	/**
+	 * Builds the filter from the token IDs of all stored tokens, saves it as the new snapshot and installs it on this
+	 * instance. The scan reads every token once by a projection query and takes about a second per 100,000 tokens, so
+	 * large stores should be rebuilt from a cron or task queue request.
+	 * @return Number of tokens scanned.
+	 */
+	public long rebuild() {
+		long rebuildPosition = currentPosition();
+		BloomFilter rebuilt = BloomFilter.create(expectedTokens, falsePositiveRate);
+		long keys = scan(rebuilt, GaeOAuthAccessToken.class.getSimpleName())
+				+ scan(rebuilt, GaeOAuthRefreshToken.class.getSimpleName());
+		if (keys > expectedTokens) {
+			LOG.warn("Token key filter " + name + " sized for " + expectedTokens + " tokens holds " + keys
+					+ ", its false positive rate exceeds " + falsePositiveRate);
+		}
+		replay(rebuilt, Math.max(0, rebuildPosition - replayEntries), rebuildPosition);
+
+		Entity previous = getOrNull(KeyFactory.createKey(KIND, name));
+		long rebuildVersion = Math.max(System.currentTimeMillis(), previous != null
+				? (Long) previous.getProperty(VERSION) + 1 : 0);
+		byte[] bytes = rebuilt.toByteArray();
+		int chunks = (bytes.length + CHUNK_BYTES - 1) / CHUNK_BYTES;
+		List<Key> chunkKeys = chunkKeys(rebuildVersion, chunks);
+		List<Entity> entities = new ArrayList<Entity>(chunks);
+		for (int i = 0; i < chunks; i++) {
+			Entity chunk = new Entity(chunkKeys.get(i));
+			chunk.setUnindexedProperty(DATA, new Blob(Arrays.copyOfRange(bytes, i * CHUNK_BYTES,
+					Math.min(bytes.length, (i + 1) * CHUNK_BYTES))));
+			entities.add(chunk);
+		}
+		datastore.put(entities);
+		Entity head = new Entity(KIND, name);
+		head.setUnindexedProperty(VERSION, rebuildVersion);
+		head.setUnindexedProperty(BITS, rebuilt.getBits());
+		head.setUnindexedProperty(HASHES, rebuilt.getHashes());
+		head.setUnindexedProperty(POSITION, rebuildPosition);
+		head.setUnindexedProperty(CHUNKS, chunks);
+		head.setUnindexedProperty(KEYS, keys);
+		datastore.put(head);
+		if (previous != null) {
+			datastore.delete(chunkKeys((Long) previous.getProperty(VERSION),
+					((Long) previous.getProperty(CHUNKS)).intValue()));
+		}
+
+		install(rebuilt, rebuildVersion, rebuildPosition);
+		sync(System.nanoTime());
+		if (LOG.isInfoEnabled()) {
+			LOG.info("Rebuilt token key filter " + name + " of " + keys + " tokens, " + bytes.length + " bytes");
+		}
+		return keys;
+	}
+
+	/**
+	 * Tells whether the filter answers lookups, that is a snapshot is loaded and the journal is merged without gaps.
+	 * @return {@code true} if unknown tokens are reported unknown.
+	 */
+	public boolean isTrusted() {
+		return bloomFilter != null && trusted;
+	}
+
+	private synchronized void install(BloomFilter loaded, long loadedVersion, long loadedPosition) {
+		bloomFilter = loaded;
+		version = loadedVersion;
+		position = loadedPosition;
+		gapSince = 0;
+		trusted = true;
+	}
+
+	/**
+	 * Merges the journal entries added since the last merge into the filter. Concurrent callers wait for one merge,
+	 * which suffices if it started after their lookup.
+	 * @param since Time of the lookup that needs the merge.
+	 * @return {@code true} if every journal entry is merged.
+	 */
+	private synchronized boolean sync(long since) {
+		if (lastSync - since > 0) {
+			return trusted && gapSince == 0;
+		}
+		lastSync = System.nanoTime();
+		if (bloomFilter == null || !trusted) {
+			return false;
+		}
+		try {
+			Long current = (Long) memcache.get(counterKey);
+			if (current == null || current < position || current - position > maxJournalLag) {
+				distrust("journal position " + current + " does not follow " + position);
+				return false;
+			}
+			if (current == position) {
+				return true;
+			}
+			List<String> keys = new ArrayList<String>((int) (current - position));
+			for (long entry = position + 1; entry <= current; entry++) {
+				keys.add(journalKey(entry));
+			}
+			Map<String, Object> entries = memcache.getAll(keys);
+			long merged = position;
+			boolean gap = false;
+			for (long entry = position + 1; entry <= current; entry++) {
+				String tokenKey = (String) entries.get(journalKey(entry));
+				if (tokenKey != null) {
+					bloomFilter.add(tokenKey);
+					if (!gap) {
+						merged = entry;
+					}
+				} else {
+					gap = true;
+				}
+			}
+			position = merged;
+			if (!gap) {
+				gapSince = 0;
+				return true;
+			}
+			long now = System.currentTimeMillis();
+			if (gapSince == 0) {
+				gapSince = now;
+			} else if (now - gapSince > gapMillis) {
+				distrust("journal entry " + (position + 1) + " is missing");
+			}
+			return false;
+		} catch (RuntimeException e) {
+			LOG.warn("Failed to read the journal of token key filter " + name, e);
+			return false;
+		}
+	}
+
+	private void distrust(String reason) {
+		trusted = false;
+		LOG.warn("Token key filter " + name + " stops answering until the next snapshot, " + reason);
+	}
+
+	private long scan(BloomFilter bloomFilter, String kind) {
+		Query query = new Query(kind).addProjection(new PropertyProjection(DatastoreTokenRepository.TOKEN_ID,
+				String.class));
+		long keys = 0;
+		for (Entity entity : datastore.prepare(query).asIterable(FetchOptions.Builder.withChunkSize(SCAN_BATCH_SIZE)
+				.prefetchSize(SCAN_BATCH_SIZE))) {
+			bloomFilter.add((String) entity.getProperty(DatastoreTokenRepository.TOKEN_ID));
+			keys++;
+		}
+		return keys;
+	}
+
+	private void replay(BloomFilter bloomFilter, long from, long to) {
+		for (long start = from; start < to; start += SCAN_BATCH_SIZE) {
+			List<String> keys = new ArrayList<String>();
+			for (long entry = start + 1; entry <= Math.min(to, start + SCAN_BATCH_SIZE); entry++) {
+				keys.add(journalKey(entry));
+			}
+			for (Object tokenKey : memcache.getAll(keys).values()) {
+				bloomFilter.add((String) tokenKey);
+			}
+		}
+	}
+
+	private long currentPosition() {
+		Long current = (Long) memcache.get(counterKey);
+		return current != null ? current : memcache.increment(counterKey, 0, initialPosition());
+	}
+
+	/**
+	 * Journal positions start at a multiple of the current time, so a counter recreated after eviction never returns to
+	 * positions instances have merged already.
+	 */
+	private static long initialPosition() {
+		return System.currentTimeMillis() * 1000;
+	}
+
+	private String journalKey(long entry) {
+		return journalPrefix + entry;
+	}
+
+	private List<Key> chunkKeys(long snapshotVersion, int chunks) {
+		List<Key> keys = new ArrayList<Key>(chunks);
+		for (int i = 0; i < chunks; i++) {
+			keys.add(KeyFactory.createKey(KIND, name + "@" + snapshotVersion + ":" + i));
+		}
+		return keys;
+	}
+
+	private Entity getOrNull(Key key) {
+		return datastore.get(Collections.singletonList(key)).get(key);
+	}
+}
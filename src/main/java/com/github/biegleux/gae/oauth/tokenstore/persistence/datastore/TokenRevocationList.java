@@ -0,0 +1,221 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.Batches;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+
+/**
+ * Per instance set of the keys of revoked access tokens that are not expired yet, letting signed access tokens be
+ * checked without a datastore call.
+ * <p>
+ * Revocations are stored as entities of their own kind, keyed by token key and holding the revocation time and the
+ * expiration of the token. The revoking instance adds them to its set immediately; the other instances load all of
+ * them on first use and then query the ones revoked since their last refresh every refresh period, so a token revoked
+ * on another instance is accepted for up to the refresh period plus the datastore's index latency. An instance whose
+ * set could not be refreshed for longer than the maximum staleness reports it as not current, and signed tokens are
+ * then looked up in the datastore again.
+ * <p>
+ * Revocations of expired tokens are dropped from the set; the entities are deleted by
+ * {@link ExpiredTokenReaper#reapRevokedTokens(String)}.
+ */
+public class TokenRevocationList {
+
+	private static final Log LOG = LogFactory.getLog(TokenRevocationList.class);
+
+	/** Kind of the revocation entities. */
+	public static final String KIND = "RevokedAccessToken";
+
+	static final String REVOKED = "revoked";
+
+	private static final int SCAN_BATCH_SIZE = 1000;
+
+	private final DatastoreService datastore;
+
+	private final Map<String, Long> revoked = new ConcurrentHashMap<String, Long>();
+
+	private long refreshMillis = 30 * 1000;
+
+	private long consistencyMillis = 60 * 1000;
+
+	private long maxStalenessMillis = 5 * 60 * 1000;
+
+	private volatile long nextRefresh;
+
+	/** Start of the last successful refresh or 0. */
+	private volatile long refreshedAt;
+
+	public TokenRevocationList() {
+		this(DatastoreServiceFactory.getDatastoreService());
+	}
+
+	public TokenRevocationList(DatastoreService datastore) {
+		this.datastore = datastore;
+	}
+
+	/**
+	 * Sets how often the instance queries revocations made on other instances.
+	 * @param refreshMillis Period in milliseconds, 30 seconds by default.
+	 */
+	public void setRefreshMillis(long refreshMillis) {
+		this.refreshMillis = refreshMillis;
+	}
+
+	/**
+	 * Sets by how much consecutive refresh queries overlap, covering revocations not yet visible to the previous query
+	 * and clock differences between instances.
+	 * @param consistencyMillis Overlap in milliseconds, 1 minute by default.
+	 */
+	public void setConsistencyMillis(long consistencyMillis) {
+		this.consistencyMillis = consistencyMillis;
+	}
+
+	/**
+	 * Sets for how long the set is used after the last successful refresh.
+	 * @param maxStalenessMillis Period in milliseconds, 5 minutes by default.
+	 */
+	public void setMaxStalenessMillis(long maxStalenessMillis) {
+		this.maxStalenessMillis = maxStalenessMillis;
+	}
+
+	/**
+	 * Tells whether the set is loaded and was refreshed recently enough to be used. Refreshes the set when the refresh
+	 * period has passed.
+	 * @return {@code true} if {@link #isRevoked(String)} can be relied on.
+	 */
+	public boolean isCurrent() {
+		if (System.currentTimeMillis() >= nextRefresh) {
+			refresh();
+		}
+		long refreshedAt = this.refreshedAt;
+		return refreshedAt != 0 && System.currentTimeMillis() - refreshedAt <= maxStalenessMillis;
+	}
+
+	/**
+	 * Tells whether the access token was revoked, as far as known to the instance.
+	 * @param tokenKey Token key of the access token.
+	 * @return {@code true} if the token was revoked.
+	 */
+	public boolean isRevoked(String tokenKey) {
+		return revoked.containsKey(tokenKey);
+	}
+
+	/**
+	 * Records the revocation of an access token.
+	 * @param tokenKey Token key of the access token.
+	 * @param expiration Expiration of the access token or {@code null} if it does not expire.
+	 */
+	public void revoke(String tokenKey, Date expiration) {
+		revokeAll(Collections.singletonMap(tokenKey, expiration));
+	}
+
+	/**
+	 * Records the revocation of access tokens by batched puts.
+	 * @param expirations Expirations of the access tokens by token key, {@code null} for tokens that do not expire.
+	 */
+	public void revokeAll(Map<String, Date> expirations) {
+		if (expirations.isEmpty()) {
+			return;
+		}
+		Date now = new Date();
+		List<Entity> entities = new ArrayList<Entity>(expirations.size());
+		for (Map.Entry<String, Date> entry : expirations.entrySet()) {
+			Entity entity = new Entity(KIND, entry.getKey());
+			entity.setProperty(REVOKED, now);
+			entity.setProperty(DatastoreTokenRepository.EXPIRATION, entry.getValue());
+			entities.add(entity);
+		}
+		for (List<Entity> batch : Batches.partition(entities, Batches.DEFAULT_BATCH_SIZE)) {
+			datastore.put(batch);
+		}
+		for (Map.Entry<String, Date> entry : expirations.entrySet()) {
+			revoked.put(entry.getKey(), expirationOf(entry.getValue()));
+		}
+	}
+
+	/**
+	 * Loads the revocations made since the last refresh, or all of them on first use, unless another thread is doing
+	 * so. Called every refresh period; warmup requests may call it ahead of time.
+	 */
+	public void refresh() {
+		long start;
+		long from;
+		synchronized (this) {
+			start = System.currentTimeMillis();
+			if (start < nextRefresh) {
+				return;
+			}
+			nextRefresh = start + refreshMillis;
+			from = refreshedAt;
+		}
+		try {
+			Query query = new Query(KIND);
+			if (from != 0) {
+				query.setFilter(new FilterPredicate(REVOKED, FilterOperator.GREATER_THAN_OR_EQUAL,
+						new Date(from - consistencyMillis)));
+			}
+			for (Entity entity : datastore.prepare(query).asIterable(FetchOptions.Builder
+					.withChunkSize(SCAN_BATCH_SIZE).prefetchSize(SCAN_BATCH_SIZE))) {
+				revoked.put(entity.getKey().getName(),
+						expirationOf((Date) entity.getProperty(DatastoreTokenRepository.EXPIRATION)));
+			}
+			for (Iterator<Long> expirations = revoked.values().iterator(); expirations.hasNext();) {
+				if (expirations.next() < start) {
+					expirations.remove();
+				}
+			}
+			synchronized (this) {
+				// a slow refresh may finish after a later one
+				if (start > refreshedAt) {
+					refreshedAt = start;
+				}
+			}
+		} catch (RuntimeException e) {
+			LOG.warn("Failed to refresh the revoked access tokens", e);
+		}
+	}
+
+	/**
+	 * Returns the number of revoked access tokens known to the instance.
+	 * @return Number of token keys.
+	 */
+	public int size() {
+		return revoked.size();
+	}
+
+	private static long expirationOf(Date expiration) {
+		return expiration != null ? expiration.getTime() : Long.MAX_VALUE;
+	}
+}
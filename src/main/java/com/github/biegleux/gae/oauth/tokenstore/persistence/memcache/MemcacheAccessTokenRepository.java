@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.memcache;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.AccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.Page;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthAccessToken;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * This class caches {@link GaeOAuthAccessToken} entities of another {@link AccessTokenRepository} in memcache.
+ */
+public class MemcacheAccessTokenRepository extends MemcacheTokenRepository<GaeOAuthAccessToken, AccessTokenRepository> implements AccessTokenRepository {
+
+	public MemcacheAccessTokenRepository(AccessTokenRepository delegate) {
+		this(delegate, MemcacheServiceFactory.getMemcacheService());
+	}
+
+	public MemcacheAccessTokenRepository(AccessTokenRepository delegate, MemcacheService memcache) {
+		super(delegate, memcache, GaeOAuthAccessToken.class);
+	}
+
+	@Override
+	public List<GaeOAuthAccessToken> findByClientId(String clientId) {
+		return delegate.findByClientId(clientId);
+	}
+
+	@Override
+	public List<GaeOAuthAccessToken> findByUsernameAndClientId(String username, String clientId) {
+		return delegate.findByUsernameAndClientId(username, clientId);
+	}
+
+	@Override
+	public Page<GaeOAuthAccessToken> findByClientId(String clientId, int pageSize, String cursor) {
+		return delegate.findByClientId(clientId, pageSize, cursor);
+	}
+
+	@Override
+	public Page<GaeOAuthAccessToken> findByUsernameAndClientId(String username, String clientId, int pageSize, String cursor) {
+		return delegate.findByUsernameAndClientId(username, clientId, pageSize, cursor);
+	}
+
+	@Override
+	public Page<Key> findKeysByClientId(String clientId, int pageSize, String cursor) {
+		return delegate.findKeysByClientId(clientId, pageSize, cursor);
+	}
+
+	@Override
+	public Page<Key> findKeysByUsernameAndClientId(String username, String clientId, int pageSize, String cursor) {
+		return delegate.findKeysByUsernameAndClientId(username, clientId, pageSize, cursor);
+	}
+
+	@Override
+	public List<GaeOAuthAccessToken> findByRefreshToken(String refreshToken) {
+		return delegate.findByRefreshToken(refreshToken);
+	}
+
+	/**
+	 * Deletes the {@link GaeOAuthAccessToken} entities with the given refresh token. The entities are looked up first
+	 * to invalidate their cache entries.
+	 */
+	@Override
+	public long deleteByRefreshToken(String refreshToken) {
+		List<GaeOAuthAccessToken> tokens = delegate.findByRefreshToken(refreshToken);
+		long count = delegate.deleteByRefreshToken(refreshToken);
+		List<String> tokenIds = new ArrayList<String>(tokens.size());
+		for (GaeOAuthAccessToken token : tokens) {
+			tokenIds.add(token.getTokenId());
+		}
+		invalidateAll(tokenIds);
+		return count;
+	}
+
+	@Override
+	protected Date getExpiration(GaeOAuthAccessToken entity) {
+		return entity.getToken() != null ? entity.getToken().getExpiration() : null;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.memcache;
+
+import java.util.Date;
+
+import org.springframework.security.oauth2.common.ExpiringOAuth2RefreshToken;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.RefreshTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthRefreshToken;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * This class caches {@link GaeOAuthRefreshToken} entities of another {@link RefreshTokenRepository} in memcache.
+ */
+public class MemcacheRefreshTokenRepository extends MemcacheTokenRepository<GaeOAuthRefreshToken, RefreshTokenRepository> implements RefreshTokenRepository {
+
+	public MemcacheRefreshTokenRepository(RefreshTokenRepository delegate) {
+		this(delegate, MemcacheServiceFactory.getMemcacheService());
+	}
+
+	public MemcacheRefreshTokenRepository(RefreshTokenRepository delegate, MemcacheService memcache) {
+		super(delegate, memcache, GaeOAuthRefreshToken.class);
+	}
+
+	@Override
+	protected Date getExpiration(GaeOAuthRefreshToken entity) {
+		if (entity.getToken() instanceof ExpiringOAuth2RefreshToken) {
+			return ((ExpiringOAuth2RefreshToken) entity.getToken()).getExpiration();
+		}
+		return null;
+	}
+}
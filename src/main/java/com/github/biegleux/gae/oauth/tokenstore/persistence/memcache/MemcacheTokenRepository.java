@@ -0,0 +1,321 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.memcache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import com.github.biegleux.gae.oauth.tokenstore.cache.CacheStatistics;
+import com.github.biegleux.gae.oauth.tokenstore.metrics.Counter;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.BatchResult;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.TokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.TokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthToken;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.utils.FutureWrapper;
+
+/**
+ * This base class adds a memcache read-through cache in front of another {@link TokenRepository}.
+ * <p>
+ * Lookups by token ID are cached under the token ID until the token expires. Every save and delete going through the
+ * repository invalidates the affected entries. Invalidated entries cannot be added back for a short period, so that a
+ * lookup racing with the invalidation does not cache the stale entity again.
+ *
+ * @param <T> Subclass of {@link GaeOAuthToken} stored by the repository.
+ * @param <R> Type of the decorated repository.
+ */
+public abstract class MemcacheTokenRepository<T extends GaeOAuthToken<?>, R extends TokenRepository<T>> implements TokenRepository<T> {
+
+	protected final R delegate;
+
+	protected final MemcacheService memcache;
+
+	private final String keyPrefix;
+
+	private final CacheStatistics statistics = new CacheStatistics(Counter.MEMCACHE_HITS, Counter.MEMCACHE_MISSES);
+
+	private int invalidationMillis = 1000;
+
+	private TokenCodec codec;
+
+	public MemcacheTokenRepository(R delegate, MemcacheService memcache, Class<T> clazz) {
+		this.delegate = delegate;
+		this.memcache = memcache;
+		this.keyPrefix = clazz.getSimpleName() + ":";
+	}
+
+	/**
+	 * Sets for how long an invalidated entry cannot be cached again.
+	 * @param invalidationMillis Period in milliseconds, 1000 by default.
+	 */
+	public void setInvalidationMillis(int invalidationMillis) {
+		this.invalidationMillis = invalidationMillis;
+	}
+
+	/**
+	 * Returns hit and miss counts of lookups by token ID.
+	 * @return Cache statistics.
+	 */
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+
+	@Override
+	public void setTokenKeyNames(boolean tokenKeyNames) {
+		delegate.setTokenKeyNames(tokenKeyNames);
+	}
+
+	@Override
+	public void setLegacyLookup(boolean legacyLookup) {
+		delegate.setLegacyLookup(legacyLookup);
+	}
+
+	@Override
+	public void setCodec(TokenCodec codec) {
+		this.codec = codec;
+		delegate.setCodec(codec);
+	}
+
+	@Override
+	public void setBatchSize(int batchSize) {
+		delegate.setBatchSize(batchSize);
+	}
+
+	@Override
+	public void warmUp() {
+		delegate.warmUp();
+	}
+
+	@Override
+	public T findByAuthenticationId(String authenticationId) {
+		return delegate.findByAuthenticationId(authenticationId);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T findByTokenId(String tokenId) {
+		if (tokenId == null) {
+			return delegate.findByTokenId(tokenId);
+		}
+		String key = keyPrefix + tokenId;
+		T token = (T) memcache.get(key);
+		if (token != null) {
+			statistics.hit();
+			token.setCodec(codec);
+			return token;
+		}
+		statistics.miss();
+		token = delegate.findByTokenId(tokenId);
+		if (token != null) {
+			cache(key, token);
+		}
+		return token;
+	}
+
+	/**
+	 * Looks up the cached entities by one batch get from memcache and the others from the decorated repository,
+	 * caching them.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public BatchResult<String, T> findByTokenIds(Collection<String> tokenIds) {
+		List<String> keys = new ArrayList<String>(tokenIds.size());
+		for (String tokenId : tokenIds) {
+			keys.add(keyPrefix + tokenId);
+		}
+		Map<String, Object> cached = memcache.getAll(keys);
+		List<String> missed = new ArrayList<String>();
+		for (String tokenId : tokenIds) {
+			if (cached.containsKey(keyPrefix + tokenId)) {
+				statistics.hit();
+			} else {
+				statistics.miss();
+				missed.add(tokenId);
+			}
+		}
+		BatchResult<String, T> loaded = missed.isEmpty() ? new BatchResult<String, T>() : delegate.findByTokenIds(missed);
+		for (Map.Entry<String, T> entry : loaded.getResults().entrySet()) {
+			cache(keyPrefix + entry.getKey(), entry.getValue());
+		}
+		BatchResult<String, T> result = new BatchResult<String, T>();
+		for (String tokenId : tokenIds) {
+			T token = (T) cached.get(keyPrefix + tokenId);
+			if (token != null) {
+				token.setCodec(codec);
+				result.succeeded(tokenId, token);
+			} else if (loaded.getResults().containsKey(tokenId)) {
+				result.succeeded(tokenId, loaded.getResults().get(tokenId));
+			} else if (loaded.getFailures().containsKey(tokenId)) {
+				result.failed(tokenId, loaded.getFailures().get(tokenId));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Looks up the entities stored under key names in memcache first and gets the others from the decorated
+	 * repository, without caching them.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<T> findTokensByKeys(List<Key> keys) {
+		List<String> cacheKeys = new ArrayList<String>(keys.size());
+		for (Key key : keys) {
+			if (key.getName() != null) {
+				cacheKeys.add(keyPrefix + key.getName());
+			}
+		}
+		Map<String, Object> cached = cacheKeys.isEmpty() ? null : memcache.getAll(cacheKeys);
+		List<Key> missed = new ArrayList<Key>();
+		for (Key key : keys) {
+			if (cached == null || key.getName() == null || !cached.containsKey(keyPrefix + key.getName())) {
+				missed.add(key);
+			}
+		}
+		Iterator<T> loaded = delegate.findTokensByKeys(missed).iterator();
+		T next = loaded.hasNext() ? loaded.next() : null;
+		List<T> tokens = new ArrayList<T>(keys.size());
+		for (Key key : keys) {
+			T token = key.getName() != null && cached != null ? (T) cached.get(keyPrefix + key.getName()) : null;
+			if (token != null) {
+				statistics.hit();
+				token.setCodec(codec);
+				tokens.add(token);
+			} else if (next != null && key.equals(next.getKey())) {
+				statistics.miss();
+				tokens.add(next);
+				next = loaded.hasNext() ? loaded.next() : null;
+			}
+		}
+		return tokens;
+	}
+
+	@Override
+	public T save(T entity) {
+		T result = delegate.save(entity);
+		invalidate(entity.getTokenId());
+		return result;
+	}
+
+	@Override
+	public T upsert(T entity) {
+		T result = delegate.upsert(entity);
+		invalidate(entity.getTokenId());
+		return result;
+	}
+
+	@Override
+	public BatchResult<String, T> upsertAll(Collection<T> entities) {
+		BatchResult<String, T> result = delegate.upsertAll(entities);
+		List<String> tokenIds = new ArrayList<String>(entities.size());
+		for (T entity : entities) {
+			tokenIds.add(entity.getTokenId());
+		}
+		invalidateAll(tokenIds);
+		return result;
+	}
+
+	@Override
+	public long deleteByTokenId(String tokenId) {
+		long count = delegate.deleteByTokenId(tokenId);
+		invalidate(tokenId);
+		return count;
+	}
+
+	@Override
+	public BatchResult<String, Long> deleteByTokenIds(Collection<String> tokenIds) {
+		BatchResult<String, Long> result = delegate.deleteByTokenIds(tokenIds);
+		invalidateAll(tokenIds);
+		return result;
+	}
+
+	/**
+	 * Returns the expiration of the token held by the entity, for entities stored without the expiration property.
+	 * @param entity Token entity.
+	 * @return Expiration date or {@code null} if the token does not expire.
+	 */
+	protected abstract Date getExpiration(T entity);
+
+	/**
+	 * Removes the cached entity with the given token ID.
+	 * @param tokenId Token ID.
+	 */
+	protected void invalidate(String tokenId) {
+		if (tokenId != null) {
+			memcache.delete(keyPrefix + tokenId, invalidationMillis);
+		}
+	}
+
+	/**
+	 * Removes the cached entities with the given token IDs by one batch delete.
+	 * @param tokenIds Token IDs.
+	 */
+	protected void invalidateAll(Collection<String> tokenIds) {
+		List<String> keys = new ArrayList<String>(tokenIds.size());
+		for (String tokenId : tokenIds) {
+			if (tokenId != null) {
+				keys.add(keyPrefix + tokenId);
+			}
+		}
+		if (!keys.isEmpty()) {
+			memcache.deleteAll(keys, invalidationMillis);
+		}
+	}
+
+	private void cache(String key, T token) {
+		Date expiration = token.getExpiration() != null ? token.getExpiration() : getExpiration(token);
+		if (expiration == null) {
+			memcache.put(key, token, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		} else if (expiration.getTime() > System.currentTimeMillis()) {
+			memcache.put(key, token, Expiration.onDate(expiration), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		}
+	}
+
+	/**
+	 * Future of a write through the decorated repository that invalidates the cache entries of its tokens once the
+	 * write completes.
+	 */
+	protected class Invalidating<V> extends FutureWrapper<V, V> {
+
+		private final Collection<String> tokenIds;
+
+		public Invalidating(Future<V> parent, Collection<String> tokenIds) {
+			super(parent);
+			this.tokenIds = tokenIds;
+		}
+
+		@Override
+		protected V wrap(V result) {
+			invalidateAll(tokenIds);
+			return result;
+		}
+
+		@Override
+		protected Throwable convertException(Throwable cause) {
+			return cause;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.memcache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.TransactionalAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthAccessToken;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * This class caches {@link GaeOAuthAccessToken} entities of another {@link TransactionalAccessTokenRepository} in
+ * memcache and passes transactions through to it. Reads within a transaction bypass the cache, and writes within a
+ * transaction invalidate the cached entities once they complete, before the commit, so the invalidation period keeps
+ * lookups racing with the commit from caching the entities again.
+ */
+public class MemcacheTransactionalAccessTokenRepository extends MemcacheAccessTokenRepository implements TransactionalAccessTokenRepository {
+
+	private final TransactionalAccessTokenRepository transactional;
+
+	public MemcacheTransactionalAccessTokenRepository(TransactionalAccessTokenRepository delegate) {
+		this(delegate, MemcacheServiceFactory.getMemcacheService());
+	}
+
+	public MemcacheTransactionalAccessTokenRepository(TransactionalAccessTokenRepository delegate, MemcacheService memcache) {
+		super(delegate, memcache);
+		this.transactional = delegate;
+	}
+
+	@Override
+	public Transaction beginTransaction() {
+		return transactional.beginTransaction();
+	}
+
+	@Override
+	public Future<GaeOAuthAccessToken> findByTokenIdAsync(Transaction txn, String tokenId) {
+		return transactional.findByTokenIdAsync(txn, tokenId);
+	}
+
+	@Override
+	public Future<GaeOAuthAccessToken> saveAsync(Transaction txn, GaeOAuthAccessToken entity) {
+		return new Invalidating<GaeOAuthAccessToken>(transactional.saveAsync(txn, entity),
+				Collections.singletonList(entity.getTokenId()));
+	}
+
+	@Override
+	public Future<Long> deleteByTokenIdAsync(Transaction txn, String tokenId) {
+		return new Invalidating<Long>(transactional.deleteByTokenIdAsync(txn, tokenId), Collections.singletonList(tokenId));
+	}
+
+	/**
+	 * Deletes the {@link GaeOAuthAccessToken} entities with the given refresh token in the transaction. The entities
+	 * are looked up first to invalidate their cache entries once the delete completes.
+	 */
+	@Override
+	public Future<Long> deleteByRefreshTokenAsync(Transaction txn, String refreshToken) {
+		List<GaeOAuthAccessToken> tokens = transactional.findByRefreshToken(refreshToken);
+		List<String> tokenIds = new ArrayList<String>(tokens.size());
+		for (GaeOAuthAccessToken token : tokens) {
+			tokenIds.add(token.getTokenId());
+		}
+		return new Invalidating<Long>(transactional.deleteByRefreshTokenAsync(txn, refreshToken), tokenIds);
+	}
+}
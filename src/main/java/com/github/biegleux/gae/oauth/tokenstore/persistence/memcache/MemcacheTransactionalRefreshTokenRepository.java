@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.memcache;
+
+import java.util.Collections;
+import java.util.concurrent.Future;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.TransactionalRefreshTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthRefreshToken;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * This class caches {@link GaeOAuthRefreshToken} entities of another {@link TransactionalRefreshTokenRepository} in
+ * memcache and passes transactions through to it. Reads within a transaction bypass the cache.
+ */
+public class MemcacheTransactionalRefreshTokenRepository extends MemcacheRefreshTokenRepository implements TransactionalRefreshTokenRepository {
+
+	private final TransactionalRefreshTokenRepository transactional;
+
+	public MemcacheTransactionalRefreshTokenRepository(TransactionalRefreshTokenRepository delegate) {
+		this(delegate, MemcacheServiceFactory.getMemcacheService());
+	}
+
+	public MemcacheTransactionalRefreshTokenRepository(TransactionalRefreshTokenRepository delegate, MemcacheService memcache) {
+		super(delegate, memcache);
+		this.transactional = delegate;
+	}
+
+	@Override
+	public Transaction beginTransaction() {
+		return transactional.beginTransaction();
+	}
+
+	@Override
+	public Future<GaeOAuthRefreshToken> findByTokenIdAsync(Transaction txn, String tokenId) {
+		return transactional.findByTokenIdAsync(txn, tokenId);
+	}
+
+	@Override
+	public Future<GaeOAuthRefreshToken> saveAsync(Transaction txn, GaeOAuthRefreshToken entity) {
+		return new Invalidating<GaeOAuthRefreshToken>(transactional.saveAsync(txn, entity),
+				Collections.singletonList(entity.getTokenId()));
+	}
+
+	@Override
+	public Future<Long> deleteByTokenIdAsync(Transaction txn, String tokenId) {
+		return new Invalidating<Long>(transactional.deleteByTokenIdAsync(txn, tokenId), Collections.singletonList(tokenId));
+	}
+}
@@ -17,18 +17,24 @@
 
 package com.github.biegleux.gae.oauth.tokenstore.persistence.model;
 
+import java.util.Date;
+
 import javax.jdo.annotations.IdentityType;
 import javax.jdo.annotations.PersistenceCapable;
 import javax.jdo.annotations.Persistent;
 
 import org.springframework.security.oauth2.common.OAuth2AccessToken;
 
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.TokenCodec;
+
 /**
  * This class represents the persistent entity for storing {@link OAuth2AccessToken}.
  */
-@PersistenceCapable(identityType = IdentityType.DATASTORE)
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
 public class GaeOAuthAccessToken extends GaeOAuthToken<OAuth2AccessToken> {
 
+	private static final long serialVersionUID = 1L;
+
 	@Persistent
 	private String authenticationId;
 
@@ -75,4 +81,19 @@ public class GaeOAuthAccessToken extends GaeOAuthToken<OAuth2AccessToken> {
 	public String getRefreshToken() {
 		return refreshToken;
 	}
+
+	@Override
+	protected Date expirationOf(OAuth2AccessToken token) {
+		return token.getExpiration();
+	}
+
+	@Override
+	protected OAuth2AccessToken decodeToken(TokenCodec codec, byte[] bytes) {
+		return codec.decodeAccessToken(bytes);
+	}
+
+	@Override
+	protected byte[] encodeToken(TokenCodec codec, OAuth2AccessToken token) {
+		return codec.encodeAccessToken(token);
+	}
 }
@@ -17,17 +17,39 @@
 
 package com.github.biegleux.gae.oauth.tokenstore.persistence.model;
 
+import java.util.Date;
+
 import javax.jdo.annotations.IdentityType;
 import javax.jdo.annotations.PersistenceCapable;
 
+import org.springframework.security.oauth2.common.ExpiringOAuth2RefreshToken;
 import org.springframework.security.oauth2.common.OAuth2RefreshToken;
 
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.TokenCodec;
+
 /**
  * This class represents the persistent entity for storing {@link OAuth2RefreshToken}.
  */
-@PersistenceCapable(identityType = IdentityType.DATASTORE)
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
 public class GaeOAuthRefreshToken extends GaeOAuthToken<OAuth2RefreshToken> {
 
+	private static final long serialVersionUID = 1L;
+
 	public GaeOAuthRefreshToken() {
 	}
+
+	@Override
+	protected Date expirationOf(OAuth2RefreshToken token) {
+		return token instanceof ExpiringOAuth2RefreshToken ? ((ExpiringOAuth2RefreshToken) token).getExpiration() : null;
+	}
+
+	@Override
+	protected OAuth2RefreshToken decodeToken(TokenCodec codec, byte[] bytes) {
+		return codec.decodeRefreshToken(bytes);
+	}
+
+	@Override
+	protected byte[] encodeToken(TokenCodec codec, OAuth2RefreshToken token) {
+		return codec.encodeRefreshToken(token);
+	}
 }
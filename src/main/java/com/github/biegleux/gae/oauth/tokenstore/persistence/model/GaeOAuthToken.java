@@ -17,31 +17,99 @@
 
 package com.github.biegleux.gae.oauth.tokenstore.persistence.model;
 
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.jdo.annotations.Column;
+import javax.jdo.annotations.IdGeneratorStrategy;
 import javax.jdo.annotations.IdentityType;
 import javax.jdo.annotations.Inheritance;
 import javax.jdo.annotations.InheritanceStrategy;
+import javax.jdo.annotations.NotPersistent;
 import javax.jdo.annotations.PersistenceCapable;
 import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
 
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
 
+import com.github.biegleux.gae.oauth.tokenstore.metrics.Counter;
+import com.github.biegleux.gae.oauth.tokenstore.metrics.Metrics;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.SerializationTokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.TokenCodec;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Key;
+
 /**
  * This is the base class for representing persistent token entity.
+ * <p>
+ * The token and the authentication are persisted as blobs encoded by a {@link TokenCodec}. They are decoded lazily on
+ * first access, so reading only the token never decodes the authentication.
  *
  * @param <T> The type of the token stored in this entity.
  */
-@PersistenceCapable(identityType = IdentityType.DATASTORE)
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
 @Inheritance(strategy = InheritanceStrategy.SUBCLASS_TABLE)
-public abstract class GaeOAuthToken<T> {
+public abstract class GaeOAuthToken<T> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final TokenCodec DEFAULT_CODEC = new SerializationTokenCodec();
+
+	/**
+	 * Datastore key of the entity. When {@code null} the datastore allocates a numeric ID (layout used by 0.2),
+	 * otherwise the key name is the token ID.
+	 */
+	@PrimaryKey
+	@Persistent(valueStrategy = IdGeneratorStrategy.IDENTITY)
+	private Key key;
 
 	@Persistent
 	private String tokenId;
 
-	@Persistent(serialized = "true", defaultFetchGroup = "true")
-	private T token;
+	/**
+	 * Expiration of the token, indexed so that expired tokens can be found. {@code null} for tokens that do not expire
+	 * and for entities written by 0.2.
+	 */
+	@Persistent
+	private Date expiration;
+
+	@Persistent(defaultFetchGroup = "true")
+	@Column(name = "token")
+	private Blob tokenBlob;
+
+	@Persistent(defaultFetchGroup = "true")
+	@Column(name = "authentication")
+	private Blob authenticationBlob;
+
+	@NotPersistent
+	private transient T token;
+
+	@NotPersistent
+	private transient OAuth2Authentication authentication;
+
+	@NotPersistent
+	private transient TokenCodec codec;
 
-	@Persistent(serialized = "true", defaultFetchGroup = "true")
-	private OAuth2Authentication authentication;
+	/**
+	 * Key of the shared authentication entity when authentications are stored in their own kind, {@code null} when the
+	 * authentication is embedded.
+	 */
+	@Persistent
+	private Key authenticationKey;
+
+	/**
+	 * Encoded shared authentication looked up through {@link #authenticationKey}.
+	 */
+	@NotPersistent
+	private Blob resolvedAuthenticationBlob;
+
+	public void setKey(Key key) {
+		this.key = key;
+	}
+
+	public Key getKey() {
+		return key;
+	}
 
 	public void setTokenId(String tokenId) {
 		this.tokenId = tokenId;
@@ -51,19 +119,144 @@ public abstract class GaeOAuthToken<T> {
 		return tokenId;
 	}
 
+	/**
+	 * Sets the codec used to encode and decode the blobs of this entity.
+	 * @param codec Token codec, {@link SerializationTokenCodec} when {@code null}.
+	 */
+	public void setCodec(TokenCodec codec) {
+		this.codec = codec;
+	}
+
+	public TokenCodec getCodec() {
+		return codec != null ? codec : DEFAULT_CODEC;
+	}
+
+	public void setExpiration(Date expiration) {
+		this.expiration = expiration;
+	}
+
+	public Date getExpiration() {
+		return expiration;
+	}
+
+	/**
+	 * Sets the token along with its expiration.
+	 * @param token Token.
+	 */
 	public void setToken(T token) {
 		this.token = token;
+		this.tokenBlob = null;
+		this.expiration = token != null ? expirationOf(token) : null;
 	}
 
+	/**
+	 * Returns the token, decoding it on first access.
+	 * @return Token.
+	 * @throws com.github.biegleux.gae.oauth.tokenstore.persistence.TokenDeserializationException if the token blob
+	 *             cannot be decoded.
+	 */
 	public T getToken() {
+		if (token == null && tokenBlob != null) {
+			byte[] bytes = tokenBlob.getBytes();
+			token = decodeToken(getCodec(), bytes);
+			Metrics.count(Counter.BYTES_DECODED, bytes.length);
+		}
 		return token;
 	}
 
+	public void setTokenBlob(Blob tokenBlob) {
+		this.tokenBlob = tokenBlob;
+		this.token = null;
+	}
+
+	/**
+	 * Returns the encoded token, encoding it on first access.
+	 * @return Token blob.
+	 */
+	public Blob getTokenBlob() {
+		if (tokenBlob == null && token != null) {
+			byte[] bytes = encodeToken(getCodec(), token);
+			Metrics.count(Counter.BYTES_ENCODED, bytes.length);
+			tokenBlob = new Blob(bytes);
+		}
+		return tokenBlob;
+	}
+
 	public void setAuthentication(OAuth2Authentication authentication) {
 		this.authentication = authentication;
+		this.authenticationBlob = null;
+		this.resolvedAuthenticationBlob = null;
 	}
 
+	/**
+	 * Returns the authentication, decoding it on first access.
+	 * @return Authentication.
+	 * @throws com.github.biegleux.gae.oauth.tokenstore.persistence.TokenDeserializationException if the authentication
+	 *             blob cannot be decoded.
+	 */
 	public OAuth2Authentication getAuthentication() {
+		Blob blob = authenticationBlob != null ? authenticationBlob : resolvedAuthenticationBlob;
+		if (authentication == null && blob != null) {
+			byte[] bytes = blob.getBytes();
+			authentication = getCodec().decodeAuthentication(bytes);
+			Metrics.count(Counter.BYTES_DECODED, bytes.length);
+		}
 		return authentication;
 	}
+
+	public void setAuthenticationBlob(Blob authenticationBlob) {
+		this.authenticationBlob = authenticationBlob;
+		this.resolvedAuthenticationBlob = null;
+		this.authentication = null;
+	}
+
+	public void setAuthenticationKey(Key authenticationKey) {
+		this.authenticationKey = authenticationKey;
+	}
+
+	public Key getAuthenticationKey() {
+		return authenticationKey;
+	}
+
+	/**
+	 * Sets the encoded shared authentication referenced by the authentication key. Unlike
+	 * {@link #setAuthenticationBlob(Blob)} it leaves the persistent fields alone, so a managed JDO instance is not
+	 * written back.
+	 * @param resolvedAuthenticationBlob Encoded authentication.
+	 */
+	public void setResolvedAuthenticationBlob(Blob resolvedAuthenticationBlob) {
+		this.resolvedAuthenticationBlob = resolvedAuthenticationBlob;
+		this.authentication = null;
+	}
+
+	/**
+	 * Returns the encoded authentication, encoding it on first access. The resolved shared authentication is returned
+	 * when none is embedded.
+	 * @return Authentication blob.
+	 */
+	public Blob getAuthenticationBlob() {
+		if (authenticationBlob == null && resolvedAuthenticationBlob != null) {
+			return resolvedAuthenticationBlob;
+		}
+		if (authenticationBlob == null && authentication != null) {
+			byte[] bytes = getCodec().encodeAuthentication(authentication);
+			Metrics.count(Counter.BYTES_ENCODED, bytes.length);
+			authenticationBlob = new Blob(bytes);
+		}
+		return authenticationBlob;
+	}
+
+	/**
+	 * Encodes the token and the authentication into their blobs unless they are encoded already.
+	 */
+	public void encode() {
+		getTokenBlob();
+		getAuthenticationBlob();
+	}
+
+	protected abstract Date expirationOf(T token);
+
+	protected abstract T decodeToken(TokenCodec codec, byte[] bytes);
+
+	protected abstract byte[] encodeToken(TokenCodec codec, T token);
 }
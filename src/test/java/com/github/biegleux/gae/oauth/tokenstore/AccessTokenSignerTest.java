@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+public class AccessTokenSignerTest extends LocalServiceTestSupport {
+
+	private static final String BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+	@Test
+	public void verifiesSignedTokenAndAuthentication() {
+		AccessTokenSigner signer = new AccessTokenSigner("k1", key(1));
+		DefaultOAuth2AccessToken accessToken = accessToken("random", "refresh");
+		String value = signer.enhance(accessToken, authentication("alice")).getValue();
+
+		assertTrue(signer.isSigned(value));
+		AccessTokenSigner.SignedAccessToken signed = signer.verify(value);
+		assertNotNull(signed);
+		assertEquals(value, signed.getAccessToken().getValue());
+		assertEquals(accessToken.getExpiration(), signed.getAccessToken().getExpiration());
+		assertEquals(accessToken.getScope(), signed.getAccessToken().getScope());
+		assertNull(signed.getAccessToken().getRefreshToken());
+		assertTrue(signed.hasRefreshToken());
+		assertEquals("alice", signed.getAuthentication().getName());
+		assertFalse(value.contains("refresh"));
+	}
+
+	@Test
+	public void doesNotTakeRandomValuesForSigned() {
+		AccessTokenSigner signer = new AccessTokenSigner("k1", key(1));
+		assertFalse(signer.isSigned(UUID.randomUUID().toString()));
+		assertNull(signer.verify("payload.signature"));
+	}
+
+	@Test
+	public void rejectsTamperedValues() {
+		AccessTokenSigner signer = new AccessTokenSigner("k1", key(1));
+		String value = signer.enhance(accessToken("random", null), authentication("alice")).getValue();
+
+		assertNull(signer.verify(replace(value, 10)));
+		assertNull(signer.verify(replace(value, value.length() - 5)));
+		assertNull(signer.verify(value.substring(0, value.length() - 1)));
+		// same bits with other unused trailing bits
+		char last = value.charAt(value.length() - 1);
+		assertNull(signer.verify(value.substring(0, value.length() - 1) + BASE64.charAt(BASE64.indexOf(last) ^ 1)));
+	}
+
+	@Test
+	public void rejectsValuesSignedWithOtherKey() {
+		String value = new AccessTokenSigner("k1", key(1)).enhance(accessToken("random", null),
+				authentication("alice")).getValue();
+		assertNull(new AccessTokenSigner("k1", key(2)).verify(value));
+		assertNull(new AccessTokenSigner("k2", key(1)).verify(value));
+	}
+
+	@Test
+	public void verifiesValuesOfPreviousKeyAfterRotation() {
+		AccessTokenSigner signer = new AccessTokenSigner("k1", key(1));
+		String previous = signer.enhance(accessToken("previous", null), authentication("alice")).getValue();
+		signer.addVerificationKey("k2", key(2));
+		signer.setSigningKeyId("k2");
+		String current = signer.enhance(accessToken("current", null), authentication("alice")).getValue();
+
+		assertNotNull(signer.verify(previous));
+		assertNotNull(signer.verify(current));
+		assertNull(new AccessTokenSigner("k1", key(1)).verify(current));
+		signer.removeVerificationKey("k1");
+		assertNull(signer.verify(previous));
+		assertNotNull(signer.verify(current));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsShortKeys() {
+		new AccessTokenSigner("k1", new byte[16]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsRemovingSigningKey() {
+		new AccessTokenSigner("k1", key(1)).removeVerificationKey("k1");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsSigningWithUnknownKey() {
+		new AccessTokenSigner("k1", key(1)).setSigningKeyId("k2");
+	}
+
+	@Test
+	public void keepsTokenInformationAddedBeforeSigning() {
+		AccessTokenSigner signer = new AccessTokenSigner("k1", key(1));
+		DefaultOAuth2AccessToken accessToken = accessToken("random", null);
+		accessToken.setAdditionalInformation(Collections.<String, Object> singletonMap("tenant", "acme"));
+		OAuth2AccessToken enhanced = signer.enhance(accessToken, authentication("alice"));
+
+		assertEquals("acme", signer.verify(enhanced.getValue()).getAccessToken().getAdditionalInformation()
+				.get("tenant"));
+	}
+
+	private static byte[] key(int seed) {
+		byte[] key = new byte[32];
+		Arrays.fill(key, (byte) seed);
+		return key;
+	}
+
+	private static String replace(String value, int index) {
+		char replacement = value.charAt(index) == 'A' ? 'B' : 'A';
+		return value.substring(0, index) + replacement + value.substring(index + 1);
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+
+/**
+ * {@link Delegate} recording the API calls passed on to the local services, e.g. {@code datastore_v3.Put}.
+ */
+public final class ApiCallRecorder implements Delegate<Environment> {
+
+	private static final String DATASTORE = "datastore_v3";
+
+	private final Delegate<Environment> delegate;
+
+	private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+	private ApiCallRecorder(Delegate<Environment> delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Wraps the current delegate, which must be set up by the test helper already.
+	 */
+	@SuppressWarnings("unchecked")
+	static ApiCallRecorder install() {
+		ApiCallRecorder recorder = new ApiCallRecorder((Delegate<Environment>) ApiProxy.getDelegate());
+		ApiProxy.setDelegate(recorder);
+		return recorder;
+	}
+
+	void uninstall() {
+		if (ApiProxy.getDelegate() == this) {
+			ApiProxy.setDelegate(delegate);
+		}
+	}
+
+	/**
+	 * Returns the calls recorded so far as {@code package.method}.
+	 */
+	public List<String> getCalls() {
+		synchronized (calls) {
+			return new ArrayList<String>(calls);
+		}
+	}
+
+	/**
+	 * Returns the datastore calls recorded so far, by method name only.
+	 */
+	public List<String> getDatastoreCalls() {
+		List<String> datastoreCalls = new ArrayList<String>();
+		for (String call : getCalls()) {
+			if (call.startsWith(DATASTORE + ".")) {
+				datastoreCalls.add(call.substring(DATASTORE.length() + 1));
+			}
+		}
+		return datastoreCalls;
+	}
+
+	/**
+	 * Returns how many datastore calls of the given method were recorded, e.g. {@code Put}.
+	 */
+	public int countDatastoreCalls(String methodName) {
+		return Collections.frequency(getDatastoreCalls(), methodName);
+	}
+
+	public void clear() {
+		calls.clear();
+	}
+
+	@Override
+	public byte[] makeSyncCall(Environment environment, String packageName, String methodName, byte[] request)
+			throws ApiProxyException {
+		calls.add(packageName + "." + methodName);
+		return delegate.makeSyncCall(environment, packageName, methodName, request);
+	}
+
+	@Override
+	public Future<byte[]> makeAsyncCall(Environment environment, String packageName, String methodName,
+			byte[] request, ApiConfig apiConfig) {
+		calls.add(packageName + "." + methodName);
+		return delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+	}
+
+	@Override
+	public void log(Environment environment, LogRecord record) {
+		delegate.log(environment, record);
+	}
+
+	@Override
+	public void flushLogs(Environment environment) {
+		delegate.flushLogs(environment);
+	}
+
+	@Override
+	public List<Thread> getRequestThreads(Environment environment) {
+		return delegate.getRequestThreads(environment);
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreRefreshTokenRepository;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+
+public class AsyncGaeTokenStoreTest extends LocalServiceTestSupport {
+
+	private DatastoreService datastore;
+
+	private DatastoreAccessTokenRepository accessTokens;
+
+	private AsyncGaeTokenStore tokenStore;
+
+	@Before
+	public void setUpTokenStore() {
+		datastore = DatastoreServiceFactory.getDatastoreService();
+		accessTokens = new DatastoreAccessTokenRepository();
+		tokenStore = new AsyncGaeTokenStore(accessTokens, new DatastoreRefreshTokenRepository());
+		tokenStore.setTokenKeyNames(true);
+	}
+
+	@Test
+	public void storesAndReadsTokens() throws Exception {
+		Future<Void> refreshStored = tokenStore.storeRefreshTokenAsync(new DefaultOAuth2RefreshToken("refresh"),
+				authentication("alice"));
+		Future<Void> accessStored = tokenStore.storeAccessTokenAsync(accessToken("token", "refresh"),
+				authentication("alice"));
+		refreshStored.get();
+		accessStored.get();
+		assertEquals(1, count("GaeOAuthAccessToken"));
+		assertEquals(1, count("GaeOAuthRefreshToken"));
+
+		Future<OAuth2AccessToken> accessToken = tokenStore.readAccessTokenAsync("token");
+		Future<?> refreshToken = tokenStore.readRefreshTokenAsync("refresh");
+		assertEquals("token", accessToken.get().getValue());
+		assertNotNull(refreshToken.get());
+		assertEquals("alice", tokenStore.readAuthenticationAsync("token").get().getName());
+		assertEquals("alice", tokenStore.readAuthenticationForRefreshTokenAsync("refresh").get().getName());
+		assertEquals("token", tokenStore.getAccessTokenAsync(authentication("alice")).get().getValue());
+	}
+
+	@Test
+	public void removesCopiesStoredUnderAllocatedIds() throws Exception {
+		GaeTokenStore legacyStore = new GaeTokenStore(new DatastoreAccessTokenRepository(),
+				new DatastoreRefreshTokenRepository());
+		legacyStore.storeRefreshToken(new DefaultOAuth2RefreshToken("refresh"), authentication("alice"));
+		legacyStore.storeAccessToken(accessToken("token", null), authentication("alice"));
+
+		Future<Void> accessRemoved = tokenStore.removeAccessTokenAsync("token");
+		Future<Void> refreshRemoved = tokenStore.removeRefreshTokenAsync("refresh");
+		accessRemoved.get();
+		refreshRemoved.get();
+		assertEquals(0, count("GaeOAuthAccessToken"));
+		assertEquals(0, count("GaeOAuthRefreshToken"));
+	}
+
+	@Test
+	public void removesAccessTokensOfRefreshTokenThroughIndex() throws Exception {
+		accessTokens.setIndexEntities(true);
+		tokenStore.setLegacyLookup(false);
+		tokenStore.storeRefreshToken(new DefaultOAuth2RefreshToken("refresh"), authentication("alice"));
+		tokenStore.storeAccessToken(accessToken("token1", "refresh"), authentication("alice", "client1"));
+		tokenStore.storeAccessToken(accessToken("token2", "refresh"), authentication("alice", "client2"));
+		assertEquals(2, count(DatastoreAccessTokenRepository.REFRESH_TOKEN_INDEX_KIND));
+
+		tokenStore.removeAccessTokenUsingRefreshTokenAsync("refresh").get();
+		assertEquals(0, count("GaeOAuthAccessToken"));
+		assertEquals(0, count(DatastoreAccessTokenRepository.REFRESH_TOKEN_INDEX_KIND));
+		assertNull(tokenStore.readAccessToken("token1"));
+	}
+
+	@Test
+	public void removesAccessTokensOfRefreshTokenStoredUnderAllocatedIds() throws Exception {
+		GaeTokenStore legacyStore = new GaeTokenStore(new DatastoreAccessTokenRepository(),
+				new DatastoreRefreshTokenRepository());
+		legacyStore.storeAccessToken(accessToken("token1", "refresh"), authentication("alice", "client1"));
+		tokenStore.storeAccessToken(accessToken("token2", "refresh"), authentication("alice", "client2"));
+
+		tokenStore.removeAccessTokenUsingRefreshTokenAsync("refresh").get();
+		assertEquals(0, count("GaeOAuthAccessToken"));
+	}
+
+	@Test
+	public void removesUnreadableAccessToken() throws Exception {
+		tokenStore.storeAccessToken(accessToken("token", null), authentication("alice"));
+		corrupt("GaeOAuthAccessToken");
+
+		assertNull(tokenStore.readAccessTokenAsync("token").get());
+		assertEquals(0, count("GaeOAuthAccessToken"));
+	}
+
+	@Test
+	public void removesUnreadableRefreshToken() throws Exception {
+		tokenStore.storeRefreshToken(new DefaultOAuth2RefreshToken("refresh"), authentication("alice"));
+		corrupt("GaeOAuthRefreshToken");
+
+		assertNull(tokenStore.readRefreshTokenAsync("refresh").get());
+		assertEquals(0, count("GaeOAuthRefreshToken"));
+	}
+
+	private void corrupt(String kind) {
+		Entity entity = datastore.prepare(new Query(kind)).asSingleEntity();
+		entity.setUnindexedProperty("token", new Blob(new byte[] { 1, 2, 3 }));
+		datastore.put(entity);
+	}
+
+	private int count(String kind) {
+		return datastore.prepare(new Query(kind)).countEntities(FetchOptions.Builder.withDefaults());
+	}
+}
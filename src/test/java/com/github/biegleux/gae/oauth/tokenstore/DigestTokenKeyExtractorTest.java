@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class DigestTokenKeyExtractorTest {
+
+	@Test
+	public void md5KeysMatchTheLegacyKeys() throws Exception {
+		DigestTokenKeyExtractor extractor = new DigestTokenKeyExtractor();
+		for (String value : values()) {
+			assertEquals(value, legacyKey(value), extractor.extractKey(value));
+		}
+	}
+
+	@Test
+	public void md5KeysKeepLeadingZeros() throws Exception {
+		DigestTokenKeyExtractor extractor = new DigestTokenKeyExtractor();
+		String value = valueWithLeadingZeroByte(DigestTokenKeyExtractor.MD5);
+		byte[] md5 = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+
+		String key = extractor.extractKey(value);
+		assertTrue(key, key.startsWith("00"));
+		assertEquals(32, key.length());
+		assertEquals(String.format("%032x", new BigInteger(1, md5)), key);
+		assertEquals(key.replaceFirst("^0+", ""), new BigInteger(1, md5).toString(16));
+	}
+
+	@Test
+	public void sha256KeysAreTheHexDigest() throws Exception {
+		DigestTokenKeyExtractor extractor = new DigestTokenKeyExtractor(DigestTokenKeyExtractor.SHA_256);
+		List<String> values = values();
+		values.add(valueWithLeadingZeroByte(DigestTokenKeyExtractor.SHA_256));
+		for (String value : values) {
+			byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+			String key = extractor.extractKey(value);
+			assertEquals(64, key.length());
+			assertEquals(value, String.format("%064x", new BigInteger(1, sha256)), key);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rejectsUnknownAlgorithms() {
+		new DigestTokenKeyExtractor("MD-unknown");
+	}
+
+	/**
+	 * The key derivation of 0.2.
+	 */
+	private static String legacyKey(String value) throws Exception {
+		byte[] bytes = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+		return String.format("%032x", new BigInteger(1, bytes));
+	}
+
+	/**
+	 * Values of varying length, including non-ASCII ones and ones exceeding the retained input buffer.
+	 */
+	private static List<String> values() {
+		Random random = new Random(42);
+		List<String> values = new ArrayList<String>();
+		values.add("");
+		values.add(UUID.randomUUID().toString());
+		values.add("t\u00f6k\u00e9n-\u20ac-\ud83d\ude00");
+		for (int length : new int[] { 1, 63, 64, 65, 4096, 5000 }) {
+			StringBuilder value = new StringBuilder(length);
+			for (int i = 0; i < length; i++) {
+				value.append((char) (random.nextInt(10) == 0 ? 0xa0 + random.nextInt(0x2000) : 0x21 + random.nextInt(0x5e)));
+			}
+			values.add(value.toString());
+		}
+		return values;
+	}
+
+	private static String valueWithLeadingZeroByte(String algorithm) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance(algorithm);
+		for (int i = 0;; i++) {
+			String value = "token" + i;
+			if (digest.digest(value.getBytes(StandardCharsets.UTF_8))[0] == 0) {
+				return value;
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.BatchResult;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.GaeOAuthAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.GaeOAuthRefreshTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreRefreshTokenRepository;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+
+@RunWith(Parameterized.class)
+public class GaeTokenStoreBatchTest extends LocalServiceTestSupport {
+
+	private static final int TOKENS = 25;
+
+	private static final int BATCH_SIZE = 7;
+
+	@Parameters(name = "jdo={0}, tokenKeyNames={1}")
+	public static Collection<Object[]> parameters() {
+		return Arrays.asList(new Object[][] { { true, false }, { true, true }, { false, false }, { false, true } });
+	}
+
+	private final boolean jdo;
+
+	private final boolean tokenKeyNames;
+
+	private final DigestTokenKeyExtractor keys = new DigestTokenKeyExtractor();
+
+	private GaeTokenStore tokenStore;
+
+	public GaeTokenStoreBatchTest(boolean jdo, boolean tokenKeyNames) {
+		this.jdo = jdo;
+		this.tokenKeyNames = tokenKeyNames;
+	}
+
+	@Before
+	public void setUpTokenStore() {
+		tokenStore = jdo ? new GaeTokenStore(new GaeOAuthAccessTokenRepository(), new GaeOAuthRefreshTokenRepository())
+				: new GaeTokenStore(new DatastoreAccessTokenRepository(), new DatastoreRefreshTokenRepository());
+		tokenStore.setTokenKeyNames(tokenKeyNames);
+		tokenStore.setBatchSize(BATCH_SIZE);
+	}
+
+	@Test
+	public void storesReadsAndRemovesAccessTokens() {
+		Map<OAuth2AccessToken, OAuth2Authentication> tokens = accessTokens("a");
+		BatchResult<String, OAuth2AccessToken> stored = tokenStore.storeAccessTokens(tokens);
+		assertFalse(stored.hasFailures());
+		assertEquals(TOKENS, stored.getResults().size());
+		assertEquals(TOKENS, count("GaeOAuthAccessToken"));
+
+		List<String> values = values("a");
+		values.add("unknown");
+		BatchResult<String, OAuth2AccessToken> read = tokenStore.readAccessTokens(values);
+		assertFalse(read.hasFailures());
+		assertEquals(TOKENS, read.getResults().size());
+		assertFalse(read.getResults().containsKey("unknown"));
+		assertEquals("a3", read.getResults().get("a3").getValue());
+		assertEquals(authentication("alice"), tokenStore.readAuthentication("a3"));
+
+		BatchResult<String, Long> removed = tokenStore.removeAccessTokens(values("a").subList(0, 20));
+		assertEquals(20, removed.getResults().size());
+		assertEquals(Long.valueOf(1), removed.getResults().get("a0"));
+		assertEquals(TOKENS - 20, tokenStore.readAccessTokens(values).getResults().size());
+		assertNull(tokenStore.readAccessToken("a1"));
+		assertNotNull(tokenStore.readAccessToken("a21"));
+	}
+
+	@Test
+	public void storingAgainReplacesAccessTokens() {
+		tokenStore.storeAccessTokens(accessTokens("a"));
+		assertFalse(tokenStore.storeAccessTokens(accessTokens("a")).hasFailures());
+		assertEquals(TOKENS, count("GaeOAuthAccessToken"));
+	}
+
+	@Test
+	public void storesReadsAndRemovesRefreshTokens() {
+		Map<OAuth2RefreshToken, OAuth2Authentication> tokens = new LinkedHashMap<OAuth2RefreshToken, OAuth2Authentication>();
+		for (String value : values("r")) {
+			tokens.put(new DefaultOAuth2RefreshToken(value), authentication("alice"));
+		}
+		assertEquals(TOKENS, tokenStore.storeRefreshTokens(tokens).getResults().size());
+
+		BatchResult<String, OAuth2RefreshToken> read = tokenStore.readRefreshTokens(values("r"));
+		assertEquals(TOKENS, read.getResults().size());
+		assertEquals("r5", read.getResults().get("r5").getValue());
+
+		assertEquals(TOKENS, tokenStore.removeRefreshTokens(values("r")).getResults().size());
+		assertTrue(tokenStore.readRefreshTokens(values("r")).getResults().isEmpty());
+		assertEquals(0, count("GaeOAuthRefreshToken"));
+	}
+
+	@Test
+	public void unreadableTokensAreReportedAndRemoved() {
+		tokenStore.storeAccessTokens(accessTokens("a"));
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		Entity corrupted = datastore.prepare(new Query("GaeOAuthAccessToken").setFilter(
+				new FilterPredicate("tokenId", FilterOperator.EQUAL, keys.extractKey("a4")))).asSingleEntity();
+		corrupted.setUnindexedProperty("token", new Blob(new byte[] { 1, 2, 3 }));
+		datastore.put(corrupted);
+
+		BatchResult<String, OAuth2AccessToken> read = tokenStore.readAccessTokens(values("a"));
+		assertEquals(TOKENS - 1, read.getResults().size());
+		assertEquals(1, read.getFailures().size());
+		assertTrue(read.getFailures().containsKey("a4"));
+		assertEquals(TOKENS - 1, count("GaeOAuthAccessToken"));
+	}
+
+	@Test
+	public void failingBatchIsRetriedTokenByToken() {
+		Map<OAuth2AccessToken, OAuth2Authentication> tokens = accessTokens("a");
+		DefaultOAuth2AccessToken oversized = new DefaultOAuth2AccessToken("oversized");
+		char[] padding = new char[1100 * 1000];
+		Arrays.fill(padding, 'x');
+		oversized.setAdditionalInformation(
+				Collections.<String, Object> singletonMap("padding", new String(padding)));
+		tokens.put(oversized, authentication("alice"));
+
+		BatchResult<String, OAuth2AccessToken> stored = tokenStore.storeAccessTokens(tokens);
+		assertEquals(TOKENS, stored.getResults().size());
+		assertEquals(1, stored.getFailures().size());
+		assertTrue(stored.getFailures().containsKey("oversized"));
+		assertEquals(TOKENS, count("GaeOAuthAccessToken"));
+	}
+
+	@Test
+	public void keyNamedBatchesTakeOneCallPerBatch() {
+		if (jdo || !tokenKeyNames) {
+			return;
+		}
+		tokenStore.setLegacyLookup(false);
+		ApiCallRecorder calls = recordApiCalls();
+		tokenStore.storeAccessTokens(accessTokens("a"));
+		int batches = (TOKENS + BATCH_SIZE - 1) / BATCH_SIZE;
+		assertEquals(batches, calls.countDatastoreCalls("Put"));
+		assertEquals(0, calls.countDatastoreCalls("RunQuery"));
+
+		calls.clear();
+		tokenStore.readAccessTokens(values("a"));
+		assertEquals(batches, calls.countDatastoreCalls("Get"));
+		assertEquals(0, calls.countDatastoreCalls("RunQuery"));
+
+		calls.clear();
+		tokenStore.removeAccessTokens(values("a"));
+		assertEquals(batches, calls.countDatastoreCalls("Delete"));
+	}
+
+	private static Map<OAuth2AccessToken, OAuth2Authentication> accessTokens(String prefix) {
+		Map<OAuth2AccessToken, OAuth2Authentication> tokens = new LinkedHashMap<OAuth2AccessToken, OAuth2Authentication>();
+		for (String value : values(prefix)) {
+			tokens.put(accessToken(value, null), authentication("alice"));
+		}
+		return tokens;
+	}
+
+	private static List<String> values(String prefix) {
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < TOKENS; i++) {
+			values.add(prefix + i);
+		}
+		return values;
+	}
+
+	private static int count(String kind) {
+		return DatastoreServiceFactory.getDatastoreService().prepare(new Query(kind))
+				.countEntities(FetchOptions.Builder.withDefaults());
+	}
+}
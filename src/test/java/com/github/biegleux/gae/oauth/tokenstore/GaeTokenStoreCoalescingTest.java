@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import com.github.biegleux.gae.oauth.tokenstore.cache.LookupCoalescer;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreRefreshTokenRepository;
+import com.google.apphosting.api.ApiProxy;
+
+public class GaeTokenStoreCoalescingTest extends LocalServiceTestSupport {
+
+	private static final int THREADS = 16;
+
+	@Test
+	public void concurrentReadsReturnTheirOwnResults() throws Exception {
+		final GaeTokenStore tokenStore = new GaeTokenStore(new DatastoreAccessTokenRepository(),
+				new DatastoreRefreshTokenRepository());
+		LookupCoalescer coalescer = new LookupCoalescer();
+		tokenStore.setLookupCoalescer(coalescer);
+		tokenStore.storeAccessToken(accessToken("access", null), authentication("alice"));
+
+		final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+		final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<Object[]>> results = new ArrayList<Future<Object[]>>();
+			for (int i = 0; i < THREADS; i++) {
+				results.add(executor.submit(new Callable<Object[]>() {
+					@Override
+					public Object[] call() throws Exception {
+						ApiProxy.setEnvironmentForCurrentThread(environment);
+						barrier.await();
+						return new Object[] { tokenStore.readAccessToken("access"),
+								tokenStore.readAuthentication("access"), tokenStore.readAccessToken("unknown") };
+					}
+				}));
+			}
+			for (Future<Object[]> result : results) {
+				Object[] values = result.get();
+				assertEquals("access", ((OAuth2AccessToken) values[0]).getValue());
+				assertEquals("alice", ((OAuth2Authentication) values[1]).getName());
+				assertNull(values[2]);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(3 * THREADS, coalescer.getStatistics().getHitCount() + coalescer.getStatistics().getMissCount()
+				+ coalescer.getTimeoutCount());
+	}
+}
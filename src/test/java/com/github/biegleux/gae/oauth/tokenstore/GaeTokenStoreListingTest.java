@@ -0,0 +1,278 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.AccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.GaeOAuthAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.GaeOAuthRefreshTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.Page;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.BinaryTokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreRefreshTokenRepository;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+
+@RunWith(Parameterized.class)
+public class GaeTokenStoreListingTest extends LocalServiceTestSupport {
+
+	private static final String CLIENT = "listed";
+
+	@Parameters(name = "jdo={0}")
+	public static Collection<Object[]> parameters() {
+		return Arrays.asList(new Object[][] { { true }, { false } });
+	}
+
+	private final boolean jdo;
+
+	private AccessTokenRepository accessTokens;
+
+	private CountingCodec codec;
+
+	private GaeTokenStore tokenStore;
+
+	public GaeTokenStoreListingTest(boolean jdo) {
+		this.jdo = jdo;
+	}
+
+	@Before
+	public void setUpTokenStore() {
+		if (jdo) {
+			GaeOAuthAccessTokenRepository accessTokens = new GaeOAuthAccessTokenRepository();
+			tokenStore = new GaeTokenStore(accessTokens, new GaeOAuthRefreshTokenRepository());
+			this.accessTokens = accessTokens;
+		} else {
+			DatastoreAccessTokenRepository accessTokens = new DatastoreAccessTokenRepository();
+			tokenStore = new GaeTokenStore(accessTokens, new DatastoreRefreshTokenRepository());
+			this.accessTokens = accessTokens;
+		}
+		tokenStore.setTokenKeyNames(!jdo);
+		codec = new CountingCodec();
+		tokenStore.setTokenCodec(codec);
+	}
+
+	@Test
+	public void continuesPagesFromTheCursor() {
+		Set<String> stored = storeTokens("t", 7);
+		tokenStore.storeAccessToken(accessToken("other", null), authentication("alice", "other"));
+
+		Page<OAuth2AccessToken> first = tokenStore.findTokensByClientId(CLIENT, 3, null);
+		assertEquals(3, first.getItems().size());
+		assertNotNull(first.getCursor());
+		Page<OAuth2AccessToken> second = tokenStore.findTokensByClientId(CLIENT, 3, first.getCursor());
+		assertEquals(3, second.getItems().size());
+		assertNotNull(second.getCursor());
+		Page<OAuth2AccessToken> last = tokenStore.findTokensByClientId(CLIENT, 3, second.getCursor());
+		assertEquals(1, last.getItems().size());
+		assertNull(last.getCursor());
+		assertFalse(last.hasNext());
+
+		List<String> listed = new ArrayList<String>();
+		listed.addAll(values(first));
+		listed.addAll(values(second));
+		listed.addAll(values(last));
+		assertEquals(7, listed.size());
+		assertEquals(stored, new HashSet<String>(listed));
+	}
+
+	@Test
+	public void endsWithTheLastPage() {
+		Set<String> stored = storeTokens("t", 6);
+
+		Set<String> listed = new HashSet<String>();
+		String cursor = null;
+		int pages = 0;
+		do {
+			Page<OAuth2AccessToken> page = tokenStore.findTokensByClientId(CLIENT, 3, cursor);
+			assertTrue(page.getItems().size() <= 3);
+			listed.addAll(values(page));
+			cursor = page.getCursor();
+			pages++;
+		} while (cursor != null);
+		assertEquals(stored, listed);
+		// a full last page may be followed by an empty one
+		assertTrue(pages == 2 || pages == 3);
+	}
+
+	@Test
+	public void listsNothingForUnknownClient() {
+		storeTokens("t", 2);
+
+		Page<OAuth2AccessToken> page = tokenStore.findTokensByClientId("unknown", 3, null);
+		assertTrue(page.getItems().isEmpty());
+		assertNull(page.getCursor());
+		assertFalse(tokenStore.iterateTokensByClientId("unknown", 3).hasNext());
+		assertTrue(tokenStore.findTokensByClientId("unknown").isEmpty());
+	}
+
+	@Test
+	public void iteratesAcrossChunks() {
+		Set<String> stored = storeTokens("t", 7);
+
+		Iterator<OAuth2AccessToken> tokens = tokenStore.iterateTokensByClientId(CLIENT, 3);
+		Set<String> listed = new HashSet<String>();
+		while (tokens.hasNext()) {
+			assertTrue(listed.add(tokens.next().getValue()));
+		}
+		assertEquals(stored, listed);
+		try {
+			tokens.next();
+		} catch (NoSuchElementException e) {
+			return;
+		}
+		throw new AssertionError("expected the iterator to be exhausted");
+	}
+
+	@Test
+	public void pagesTokensOfUser() {
+		for (int i = 0; i < 5; i++) {
+			tokenStore.storeAccessToken(accessToken("alice" + i, null), authentication("alice", CLIENT));
+		}
+		storeTokens("bob", 3);
+
+		Page<OAuth2AccessToken> first = tokenStore.findTokensByClientIdAndUserName(CLIENT, "alice", 4, null);
+		assertEquals(4, first.getItems().size());
+		Page<OAuth2AccessToken> last = tokenStore.findTokensByClientIdAndUserName(CLIENT, "alice", 4, first.getCursor());
+		assertEquals(1, last.getItems().size());
+		assertNull(last.getCursor());
+
+		Set<String> listed = new HashSet<String>();
+		Iterator<OAuth2AccessToken> tokens = tokenStore.iterateTokensByClientIdAndUserName(CLIENT, "alice", 2);
+		while (tokens.hasNext()) {
+			listed.add(tokens.next().getValue());
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("alice0", "alice1", "alice2", "alice3", "alice4")), listed);
+	}
+
+	@Test
+	public void listsWithoutDecodingAuthentications() {
+		storeTokens("t", 5);
+		tokenStore.storeAccessToken(accessToken("alice", null), authentication("alice", CLIENT));
+		codec.authentications = 0;
+		codec.accessTokens = 0;
+
+		assertEquals(6, tokenStore.findTokensByClientId(CLIENT).size());
+		assertEquals(1, tokenStore.findTokensByClientIdAndUserName(CLIENT, "alice").size());
+		assertEquals(6, tokenStore.findTokensByClientId(CLIENT, 10, null).getItems().size());
+		assertEquals(0, codec.authentications);
+		assertEquals(13, codec.accessTokens);
+	}
+
+	@Test
+	public void keysOnlyQueriesFindTheKeysOfTheFullQuery() {
+		storeTokens("t", 5);
+		tokenStore.storeAccessToken(accessToken("alice", null), authentication("alice", CLIENT));
+		tokenStore.storeAccessToken(accessToken("other", null), authentication("alice", "other"));
+
+		Set<Key> keys = new HashSet<Key>();
+		String cursor = null;
+		do {
+			Page<Key> page = accessTokens.findKeysByClientId(CLIENT, 4, cursor);
+			keys.addAll(page.getItems());
+			cursor = page.getCursor();
+		} while (cursor != null);
+		assertEquals(keys(new FilterPredicate("clientId", FilterOperator.EQUAL, CLIENT)), keys);
+		assertEquals(6, keys.size());
+
+		Page<Key> page = accessTokens.findKeysByUsernameAndClientId("alice", CLIENT, 10, null);
+		assertEquals(keys(CompositeFilterOperator.and(new FilterPredicate("username", FilterOperator.EQUAL, "alice"),
+				new FilterPredicate("clientId", FilterOperator.EQUAL, CLIENT))), new HashSet<Key>(page.getItems()));
+		assertEquals(1, page.getItems().size());
+	}
+
+	private static Set<Key> keys(Filter filter) {
+		Set<Key> keys = new HashSet<Key>();
+		Query query = new Query("GaeOAuthAccessToken").setFilter(filter);
+		for (Entity entity : DatastoreServiceFactory.getDatastoreService().prepare(query)
+				.asIterable(FetchOptions.Builder.withDefaults())) {
+			keys.add(entity.getKey());
+		}
+		return keys;
+	}
+
+	/**
+	 * Stores tokens of distinct users of {@link #CLIENT}.
+	 */
+	private Set<String> storeTokens(String prefix, int count) {
+		Set<String> values = new HashSet<String>();
+		for (int i = 0; i < count; i++) {
+			tokenStore.storeAccessToken(accessToken(prefix + i, null), authentication(prefix + "-user" + i, CLIENT));
+			values.add(prefix + i);
+		}
+		return values;
+	}
+
+	/**
+	 * Counts the decoded access tokens and authentications.
+	 */
+	private static class CountingCodec extends BinaryTokenCodec {
+
+		int accessTokens;
+
+		int authentications;
+
+		@Override
+		public OAuth2AccessToken decodeAccessToken(byte[] bytes) {
+			accessTokens++;
+			return super.decodeAccessToken(bytes);
+		}
+
+		@Override
+		public OAuth2Authentication decodeAuthentication(byte[] bytes) {
+			authentications++;
+			return super.decodeAuthentication(bytes);
+		}
+	}
+
+	private static List<String> values(Page<OAuth2AccessToken> page) {
+		List<String> values = new ArrayList<String>();
+		for (OAuth2AccessToken token : page.getItems()) {
+			values.add(token.getValue());
+		}
+		return values;
+	}
+}
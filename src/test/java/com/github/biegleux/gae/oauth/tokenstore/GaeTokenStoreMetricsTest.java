@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import com.github.biegleux.gae.oauth.tokenstore.cache.AccessTokenCache;
+import com.github.biegleux.gae.oauth.tokenstore.metrics.Counter;
+import com.github.biegleux.gae.oauth.tokenstore.metrics.JmxMetricsSink;
+import com.github.biegleux.gae.oauth.tokenstore.metrics.Metrics;
+import com.github.biegleux.gae.oauth.tokenstore.metrics.Operation;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreRefreshTokenRepository;
+
+public class GaeTokenStoreMetricsTest extends LocalServiceTestSupport {
+
+	private JmxMetricsSink sink;
+
+	private GaeTokenStore tokenStore;
+
+	@Before
+	public void setUpTokenStore() {
+		sink = new JmxMetricsSink();
+		tokenStore = new GaeTokenStore(new DatastoreAccessTokenRepository(), new DatastoreRefreshTokenRepository());
+		tokenStore.setTokenKeyNames(true);
+		tokenStore.setLegacyLookup(false);
+		tokenStore.setMetricsSink(sink);
+	}
+
+	@After
+	public void uninstallRpcCounter() {
+		Metrics.uninstallRpcCounter();
+	}
+
+	@Test
+	public void countsDatastoreRpcsPerOperation() {
+		OAuth2Authentication authentication = authentication("user");
+		DefaultOAuth2AccessToken accessToken = accessToken("access", "refresh");
+		tokenStore.storeRefreshToken(accessToken.getRefreshToken(), authentication);
+		tokenStore.storeAccessToken(accessToken, authentication);
+		tokenStore.readAccessToken("access");
+		tokenStore.findTokensByClientId(CLIENT_ID);
+		tokenStore.removeAccessTokenUsingRefreshToken(accessToken.getRefreshToken());
+
+		Map<String, Long> store = sink.getStatistics(Operation.STORE_ACCESS_TOKEN).getCounters();
+		assertEquals(1, sink.getStatistics(Operation.STORE_ACCESS_TOKEN).getCalls());
+		assertTrue(store.get("DATASTORE_PUTS") >= 1);
+		assertTrue(store.get("BYTES_ENCODED") > 0);
+		Map<String, Long> read = sink.getStatistics(Operation.READ_ACCESS_TOKEN).getCounters();
+		assertEquals(Long.valueOf(1), read.get("DATASTORE_GETS"));
+		assertTrue(read.get("BYTES_DECODED") > 0);
+		assertTrue(sink.getStatistics(Operation.FIND_TOKENS_BY_CLIENT_ID).getCounters().get("DATASTORE_QUERIES") >= 1);
+		assertTrue(sink.getStatistics(Operation.REMOVE_ACCESS_TOKEN_USING_REFRESH_TOKEN).getCounters()
+				.get("DATASTORE_DELETES") >= 1);
+	}
+
+	@Test
+	public void countsCacheHitsAndMisses() {
+		tokenStore.setAccessTokenCache(new AccessTokenCache());
+		tokenStore.storeAccessToken(accessToken("access", null), authentication("user"));
+		tokenStore.readAccessToken("access");
+		tokenStore.readAccessToken("access");
+		tokenStore.readAccessToken("missing");
+
+		Map<String, Long> read = sink.getStatistics(Operation.READ_ACCESS_TOKEN).getCounters();
+		assertEquals(3, sink.getStatistics(Operation.READ_ACCESS_TOKEN).getCalls());
+		assertEquals(Long.valueOf(1), read.get("CACHE_HITS"));
+		assertEquals(Long.valueOf(2), read.get("CACHE_MISSES"));
+		assertEquals(Long.valueOf(2), read.get("DATASTORE_GETS"));
+	}
+
+	@Test
+	public void recordsNestedCallsForOutermostOperation() {
+		OAuth2Authentication authentication = authentication("user");
+		tokenStore.storeAccessToken(accessToken("access", null), authentication);
+		tokenStore.getAccessToken(authentication);
+
+		assertEquals(1, sink.getStatistics(Operation.GET_ACCESS_TOKEN).getCalls());
+		assertEquals(1, sink.getStatistics(Operation.STORE_ACCESS_TOKEN).getCalls());
+		assertEquals(0, sink.getStatistics(Operation.READ_ACCESS_TOKEN).getCalls());
+	}
+
+	@Test
+	public void doesNotCountCallsOfStoresWithoutSink() {
+		GaeTokenStore plain = new GaeTokenStore(new DatastoreAccessTokenRepository(),
+				new DatastoreRefreshTokenRepository());
+		tokenStore.readAccessToken("missing");
+		long gets = sink.getCounter(Counter.DATASTORE_GETS);
+		plain.storeAccessToken(accessToken("access", null), authentication("user"));
+		plain.readAccessToken("access");
+
+		assertEquals(gets, sink.getCounter(Counter.DATASTORE_GETS));
+		assertEquals(0, sink.getCounter(Counter.DATASTORE_PUTS));
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.DefaultTokenServices;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreRefreshTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.TokenRevocationList;
+
+public class GaeTokenStoreSignedTest extends LocalServiceTestSupport {
+
+	private AccessTokenSigner signer;
+
+	private GaeTokenStore tokenStore;
+
+	private DefaultTokenServices tokenServices;
+
+	@Before
+	public void setUpTokenStore() {
+		byte[] key = new byte[32];
+		Arrays.fill(key, (byte) 7);
+		signer = new AccessTokenSigner("k1", key);
+		tokenStore = tokenStore(new TokenRevocationList());
+		tokenServices = new DefaultTokenServices();
+		tokenServices.setTokenStore(tokenStore);
+		tokenServices.setSupportRefreshToken(true);
+		tokenServices.setTokenEnhancer(signer);
+	}
+
+	@Test
+	public void readsAuthenticationOfSignedTokenWithoutDatastoreGets() {
+		OAuth2AccessToken accessToken = tokenServices.createAccessToken(authentication("alice"));
+		tokenStore.readAuthentication(accessToken.getValue());
+
+		ApiCallRecorder recorder = recordApiCalls();
+		OAuth2Authentication authentication = tokenStore.readAuthentication(accessToken.getValue());
+		assertEquals("alice", authentication.getName());
+		assertEquals(0, recorder.countDatastoreCalls("Get"));
+	}
+
+	@Test
+	public void readsSignedTokenWithoutRefreshTokenWithoutDatastoreGets() {
+		tokenServices.setSupportRefreshToken(false);
+		OAuth2AccessToken accessToken = tokenServices.createAccessToken(clientAuthentication(CLIENT_ID));
+		tokenStore.readAccessToken(accessToken.getValue());
+
+		ApiCallRecorder recorder = recordApiCalls();
+		OAuth2AccessToken read = tokenStore.readAccessToken(accessToken.getValue());
+		assertEquals(accessToken.getValue(), read.getValue());
+		assertEquals(accessToken.getExpiration(), read.getExpiration());
+		assertEquals(0, recorder.countDatastoreCalls("Get"));
+	}
+
+	@Test
+	public void readsRefreshTokenOfSignedTokenFromStoredToken() {
+		OAuth2AccessToken accessToken = tokenServices.createAccessToken(authentication("alice"));
+
+		OAuth2AccessToken read = tokenStore.readAccessToken(accessToken.getValue());
+		assertEquals(accessToken.getRefreshToken(), read.getRefreshToken());
+		assertEquals(accessToken.getRefreshToken().hashCode(), read.getRefreshToken().hashCode());
+		assertEquals(accessToken.getRefreshToken().getValue(), read.getRefreshToken().toString());
+	}
+
+	@Test
+	public void readsRefreshTokenOfSignedTokenOnlyWhenAskedFor() {
+		OAuth2AccessToken accessToken = tokenServices.createAccessToken(authentication("alice"));
+
+		ApiCallRecorder recorder = recordApiCalls();
+		OAuth2AccessToken read = tokenStore.readAccessToken(accessToken.getValue());
+		assertEquals(accessToken, read);
+		assertEquals(accessToken.getValue(), read.toString());
+		assertEquals(0, recorder.countDatastoreCalls("Get"));
+
+		assertEquals(accessToken.getRefreshToken(), read.getRefreshToken());
+		assertTrue(recorder.countDatastoreCalls("Get") > 0);
+	}
+
+	@Test
+	public void rejectsRevokedTokens() {
+		TokenRevocationList otherList = new TokenRevocationList();
+		otherList.setRefreshMillis(0);
+		GaeTokenStore other = tokenStore(otherList);
+		OAuth2AccessToken accessToken = tokenServices.createAccessToken(authentication("alice"));
+		assertNotNull(other.readAuthentication(accessToken.getValue()));
+
+		assertTrue(tokenServices.revokeToken(accessToken.getValue()));
+		assertNull(tokenStore.readAuthentication(accessToken.getValue()));
+		assertNull(tokenStore.readAccessToken(accessToken.getValue()));
+		assertNull(other.readAuthentication(accessToken.getValue()));
+		assertNull(other.readAccessToken(accessToken.getValue()));
+	}
+
+	@Test
+	public void looksUpTokensWhileRevocationListIsStale() {
+		OAuth2AccessToken accessToken = tokenServices.createAccessToken(authentication("alice"));
+		TokenRevocationList stale = new TokenRevocationList();
+		stale.setMaxStalenessMillis(-1);
+		GaeTokenStore other = tokenStore(stale);
+
+		ApiCallRecorder recorder = recordApiCalls();
+		assertEquals("alice", other.readAuthentication(accessToken.getValue()).getName());
+		assertTrue(recorder.countDatastoreCalls("Get") > 0);
+	}
+
+	@Test
+	public void looksUpUnsignedTokens() {
+		tokenStore.storeAccessToken(accessToken("unsigned", null), authentication("bob"));
+		assertEquals("bob", tokenStore.readAuthentication("unsigned").getName());
+		assertNotNull(tokenStore.readAccessToken("unsigned"));
+	}
+
+	private GaeTokenStore tokenStore(TokenRevocationList tokenRevocationList) {
+		GaeTokenStore tokenStore = new GaeTokenStore(new DatastoreAccessTokenRepository(),
+				new DatastoreRefreshTokenRepository());
+		tokenStore.setTokenKeyNames(true);
+		tokenStore.setAccessTokenSigner(signer);
+		tokenStore.setTokenRevocationList(tokenRevocationList);
+		return tokenStore;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.BinaryTokenCodec;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreRefreshTokenRepository;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+
+public class GaeTokenStoreWarmupTest extends LocalServiceTestSupport {
+
+	@Test
+	public void warmsUpJdoStoreByWritingThrowawayTokens() {
+		assertWarmsUpWithWrites(new GaeTokenStore());
+	}
+
+	@Test
+	public void warmsUpDatastoreStoreByWritingThrowawayTokens() {
+		assertWarmsUpWithWrites(datastoreTokenStore());
+	}
+
+	@Test
+	public void warmsUpJdoStoreWithoutWriting() {
+		GaeTokenStore tokenStore = new GaeTokenStore();
+		tokenStore.setWarmupWrites(false);
+		assertWarmsUpWithoutWriting(tokenStore);
+	}
+
+	@Test
+	public void warmsUpDatastoreStoreWithoutWriting() {
+		GaeTokenStore tokenStore = datastoreTokenStore();
+		tokenStore.setWarmupWrites(false);
+		assertWarmsUpWithoutWriting(tokenStore);
+	}
+
+	private static GaeTokenStore datastoreTokenStore() {
+		GaeTokenStore tokenStore = new GaeTokenStore(new DatastoreAccessTokenRepository(),
+				new DatastoreRefreshTokenRepository());
+		tokenStore.setTokenKeyNames(true);
+		tokenStore.setTokenCodec(new BinaryTokenCodec());
+		return tokenStore;
+	}
+
+	private void assertWarmsUpWithWrites(GaeTokenStore tokenStore) {
+		ApiCallRecorder recorder = recordApiCalls();
+		Map<String, Long> phases = tokenStore.warmUp();
+
+		assertEquals(Arrays.asList("persistence", "keys", "write", "read", "remove"),
+				new ArrayList<String>(phases.keySet()));
+		assertTrue(recorder.countDatastoreCalls("Put") >= 2);
+		assertTrue(recorder.countDatastoreCalls("Delete") >= 2);
+		assertTrue(recorder.countDatastoreCalls("Get") + recorder.countDatastoreCalls("RunQuery") > 0);
+		// the throwaway tokens are removed again
+		assertEquals(0, countEntities());
+	}
+
+	private void assertWarmsUpWithoutWriting(GaeTokenStore tokenStore) {
+		ApiCallRecorder recorder = recordApiCalls();
+		Map<String, Long> phases = tokenStore.warmUp();
+
+		assertEquals(Arrays.asList("persistence", "keys", "codec", "read"), new ArrayList<String>(phases.keySet()));
+		assertEquals(0, recorder.countDatastoreCalls("Put"));
+		assertEquals(0, recorder.countDatastoreCalls("Delete"));
+		assertEquals(0, recorder.countDatastoreCalls("Commit"));
+		assertTrue(recorder.countDatastoreCalls("Get") + recorder.countDatastoreCalls("RunQuery") > 0);
+		assertEquals(0, countEntities());
+	}
+
+	private static int countEntities() {
+		return DatastoreServiceFactory.getDatastoreService().prepare(new Query().setKeysOnly())
+				.countEntities(FetchOptions.Builder.withDefaults());
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * Base class of tests running against the local datastore and memcache services, with factories of tokens and
+ * authentications.
+ * <p>
+ * The datastore applies every write immediately, so queries see the entities written before them. Subclasses testing
+ * eventual consistency or other services override {@link #createHelper()}.
+ */
+public abstract class LocalServiceTestSupport {
+
+	protected static final String CLIENT_ID = "client";
+
+	protected LocalServiceTestHelper helper;
+
+	private ApiCallRecorder apiCalls;
+
+	@Before
+	public void setUpServices() {
+		helper = createHelper();
+		helper.setUp();
+	}
+
+	@After
+	public void tearDownServices() {
+		if (apiCalls != null) {
+			apiCalls.uninstall();
+			apiCalls = null;
+		}
+		helper.tearDown();
+	}
+
+	protected LocalServiceTestHelper createHelper() {
+		return new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(),
+				new LocalMemcacheServiceTestConfig());
+	}
+
+	/**
+	 * Starts recording the API calls made by the current test. Recording stops when the test ends.
+	 */
+	protected ApiCallRecorder recordApiCalls() {
+		if (apiCalls == null) {
+			apiCalls = ApiCallRecorder.install();
+		}
+		apiCalls.clear();
+		return apiCalls;
+	}
+
+	/**
+	 * Creates the authentication of a user authorized through {@link #CLIENT_ID}.
+	 */
+	protected static OAuth2Authentication authentication(String username) {
+		return authentication(username, CLIENT_ID);
+	}
+
+	protected static OAuth2Authentication authentication(String username, String clientId) {
+		List<GrantedAuthority> authorities = Collections.<GrantedAuthority> singletonList(
+				new SimpleGrantedAuthority("ROLE_USER"));
+		UsernamePasswordAuthenticationToken user = new UsernamePasswordAuthenticationToken(username, null, authorities);
+		return new OAuth2Authentication(request(clientId), user);
+	}
+
+	/**
+	 * Creates the authentication of a client acting on its own behalf.
+	 */
+	protected static OAuth2Authentication clientAuthentication(String clientId) {
+		return new OAuth2Authentication(request(clientId), null);
+	}
+
+	private static OAuth2Request request(String clientId) {
+		List<GrantedAuthority> authorities = Collections.<GrantedAuthority> singletonList(
+				new SimpleGrantedAuthority("ROLE_CLIENT"));
+		return new OAuth2Request(Collections.singletonMap("grant_type", "password"), clientId, authorities, true,
+				new HashSet<String>(Arrays.asList("read", "write")), Collections.singleton("api"), null,
+				Collections.<String> emptySet(), Collections.<String, Serializable> emptyMap());
+	}
+
+	/**
+	 * Creates an access token expiring after the given time, with a refresh token if its value is not {@code null}.
+	 */
+	protected static DefaultOAuth2AccessToken accessToken(String value, String refreshTokenValue, long expiresInMillis) {
+		DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(value);
+		accessToken.setExpiration(new Date(System.currentTimeMillis() + expiresInMillis));
+		accessToken.setScope(new HashSet<String>(Arrays.asList("read", "write")));
+		if (refreshTokenValue != null) {
+			accessToken.setRefreshToken(new DefaultOAuth2RefreshToken(refreshTokenValue));
+		}
+		return accessToken;
+	}
+
+	protected static DefaultOAuth2AccessToken accessToken(String value, String refreshTokenValue) {
+		return accessToken(value, refreshTokenValue, 60 * 60 * 1000);
+	}
+
+	protected static OAuth2RefreshToken expiringRefreshToken(String value, long expiresInMillis) {
+		return new DefaultExpiringOAuth2RefreshToken(value, new Date(System.currentTimeMillis() + expiresInMillis));
+	}
+}
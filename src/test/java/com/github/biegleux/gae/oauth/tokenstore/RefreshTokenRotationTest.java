@@ -0,0 +1,377 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import com.github.biegleux.gae.oauth.tokenstore.persistence.GaeOAuthAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.GaeOAuthRefreshTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreRefreshTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DeferredFuture;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.memcache.MemcacheTransactionalAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.memcache.MemcacheTransactionalRefreshTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthAccessToken;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.apphosting.api.ApiProxy;
+
+public class RefreshTokenRotationTest extends LocalServiceTestSupport {
+
+	private static final String RACE = "race";
+
+	@Test
+	public void replacesRefreshTokenAndItsAccessTokens() {
+		GaeTokenStore tokenStore = datastoreTokenStore(new DatastoreAccessTokenRepository());
+		store(tokenStore, "access0", "refresh0");
+
+		OAuth2AccessToken accessToken = tokenStore.rotateRefreshToken("refresh0", rotation("access1", "refresh1"));
+		assertEquals("access1", accessToken.getValue());
+		assertNull(tokenStore.readAccessToken("access0"));
+		assertNull(tokenStore.readRefreshToken("refresh0"));
+		assertNotNull(tokenStore.readAccessToken("access1"));
+		assertNotNull(tokenStore.readRefreshToken("refresh1"));
+		assertEquals("alice", tokenStore.readAuthenticationForRefreshToken("refresh1").getName());
+		assertNull(tokenStore.rotateRefreshToken("refresh0", rotation("access2", "refresh2")));
+	}
+
+	@Test
+	public void keepsReusedRefreshToken() {
+		GaeTokenStore tokenStore = datastoreTokenStore(new DatastoreAccessTokenRepository());
+		store(tokenStore, "access0", "refresh0");
+
+		tokenStore.rotateRefreshToken("refresh0", rotation("access1", "refresh0"));
+		assertNull(tokenStore.readAccessToken("access0"));
+		assertNotNull(tokenStore.readAccessToken("access1"));
+		assertNotNull(tokenStore.readRefreshToken("refresh0"));
+	}
+
+	@Test
+	public void removesExpiredRefreshToken() {
+		GaeTokenStore tokenStore = datastoreTokenStore(new DatastoreAccessTokenRepository());
+		tokenStore.storeRefreshToken(new DefaultExpiringOAuth2RefreshToken("expired", new Date(1000)),
+				authentication("alice"));
+
+		assertNull(tokenStore.rotateRefreshToken("expired", rotation("access1", "refresh1")));
+		assertNull(tokenStore.readRefreshToken("expired"));
+		assertNull(tokenStore.readAccessToken("access1"));
+	}
+
+	@Test
+	public void failedRotationLeavesOldTokensIntact() {
+		GaeTokenStore tokenStore = datastoreTokenStore(new DatastoreAccessTokenRepository() {
+
+			@Override
+			public Future<GaeOAuthAccessToken> saveAsync(Transaction txn, GaeOAuthAccessToken token) {
+				super.saveAsync(txn, token);
+				throw new DatastoreFailureException("injected");
+			}
+		});
+		store(tokenStore, "access0", "refresh0");
+
+		try {
+			tokenStore.rotateRefreshToken("refresh0", rotation("access1", "refresh1"));
+			fail();
+		} catch (DatastoreFailureException e) {
+			assertEquals("injected", e.getMessage());
+		}
+		assertNotNull(tokenStore.readAccessToken("access0"));
+		assertNotNull(tokenStore.readRefreshToken("refresh0"));
+		assertNull(tokenStore.readAccessToken("access1"));
+		assertNull(tokenStore.readRefreshToken("refresh1"));
+	}
+
+	@Test
+	public void rotationOfARotatedRefreshTokenFails() {
+		final GaeTokenStore tokenStore = datastoreTokenStore(new DatastoreAccessTokenRepository());
+		store(tokenStore, "access0", "refresh0");
+
+		try {
+			tokenStore.rotateRefreshToken("refresh0", new Racing(rotation("access1", "refresh1")) {
+
+				@Override
+				protected void race() {
+					assertNotNull(tokenStore.rotateRefreshToken("refresh0", rotation("access2", "refresh2")));
+				}
+			});
+			fail();
+		} catch (ConcurrentModificationException e) {
+			// the other rotation committed before the transaction began
+		}
+		assertNull(tokenStore.readRefreshToken("refresh0"));
+		assertNull(tokenStore.readAccessToken("access0"));
+		assertNull(tokenStore.readAccessToken("access1"));
+		assertNull(tokenStore.readRefreshToken("refresh1"));
+		assertNotNull(tokenStore.readAccessToken("access2"));
+		assertNotNull(tokenStore.readRefreshToken("refresh2"));
+	}
+
+	@Test
+	public void rotationCommittedDuringTheTransactionFailsIt() {
+		final GaeTokenStore[] tokenStore = new GaeTokenStore[1];
+		tokenStore[0] = datastoreTokenStore(new RacingAccessTokenRepository() {
+
+			@Override
+			protected void race() {
+				assertNotNull(tokenStore[0].rotateRefreshToken("refresh0", rotation("access2", "refresh2")));
+			}
+		});
+		store(tokenStore[0], "access0", "refresh0");
+
+		try {
+			tokenStore[0].rotateRefreshToken("refresh0", rotation("access1", "refresh1"));
+			fail();
+		} catch (ConcurrentModificationException e) {
+			// the refresh token was read by the transaction
+		}
+		assertNull(tokenStore[0].readRefreshToken("refresh0"));
+		assertNull(tokenStore[0].readAccessToken("access0"));
+		assertNull(tokenStore[0].readAccessToken("access1"));
+		assertNull(tokenStore[0].readRefreshToken("refresh1"));
+		assertNotNull(tokenStore[0].readAccessToken("access2"));
+		assertNotNull(tokenStore[0].readRefreshToken("refresh2"));
+	}
+
+	@Test
+	public void accessTokenStoredDuringTheTransactionFailsIt() {
+		final GaeTokenStore[] tokenStore = new GaeTokenStore[1];
+		RacingAccessTokenRepository accessTokens = new RacingAccessTokenRepository() {
+
+			@Override
+			protected void race() {
+				tokenStore[0].storeAccessToken(accessToken("other", "refresh0"), authentication("bob"));
+			}
+		};
+		tokenStore[0] = datastoreTokenStore(accessTokens);
+		accessTokens.setRefreshTokenGroups(true);
+		store(tokenStore[0], "access0", "refresh0");
+
+		try {
+			tokenStore[0].rotateRefreshToken("refresh0", rotation("access1", "refresh1"));
+			fail();
+		} catch (ConcurrentModificationException e) {
+			// the access tokens of the refresh token were read by the transaction
+		}
+		assertNotNull(tokenStore[0].readRefreshToken("refresh0"));
+		assertNotNull(tokenStore[0].readAccessToken("access0"));
+		assertNotNull(tokenStore[0].readAccessToken("other"));
+		assertNull(tokenStore[0].readAccessToken("access1"));
+	}
+
+	@Test
+	public void fallsBackWithoutTransactionForTooManyEntityGroups() {
+		GaeTokenStore tokenStore = datastoreTokenStore(new DatastoreAccessTokenRepository());
+		tokenStore.storeRefreshToken(new DefaultOAuth2RefreshToken("refresh0"), authentication("alice"));
+		for (int i = 0; i < 30; i++) {
+			tokenStore.storeAccessToken(accessToken("access" + i, "refresh0"), authentication("alice", "client" + i));
+		}
+
+		tokenStore.rotateRefreshToken("refresh0", rotation("next", "refresh1"));
+		for (int i = 0; i < 30; i++) {
+			assertNull(tokenStore.readAccessToken("access" + i));
+		}
+		assertNull(tokenStore.readRefreshToken("refresh0"));
+		assertNotNull(tokenStore.readAccessToken("next"));
+	}
+
+	@Test
+	public void invalidatesMemcacheEntries() {
+		DatastoreAccessTokenRepository accessTokens = new DatastoreAccessTokenRepository();
+		DatastoreRefreshTokenRepository refreshTokens = new DatastoreRefreshTokenRepository();
+		GaeTokenStore tokenStore = new GaeTokenStore(new MemcacheTransactionalAccessTokenRepository(accessTokens),
+				new MemcacheTransactionalRefreshTokenRepository(refreshTokens));
+		tokenStore.setTokenKeyNames(true);
+		store(tokenStore, "access0", "refresh0");
+		assertNotNull(tokenStore.readAccessToken("access0"));
+		assertNotNull(tokenStore.readRefreshToken("refresh0"));
+
+		tokenStore.rotateRefreshToken("refresh0", rotation("access1", "refresh1"));
+		assertNull(tokenStore.readAccessToken("access0"));
+		assertNull(tokenStore.readRefreshToken("refresh0"));
+		assertNotNull(tokenStore.readAccessToken("access1"));
+	}
+
+	@Test
+	public void concurrentRotationsThroughJdoBothSucceed() {
+		final GaeTokenStore tokenStore = new GaeTokenStore();
+		store(tokenStore, "access0", "refresh0");
+
+		OAuth2AccessToken accessToken = tokenStore.rotateRefreshToken("refresh0", new Racing(rotation("access1", "refresh1")) {
+
+			@Override
+			protected void race() {
+				assertNotNull(tokenStore.rotateRefreshToken("refresh0", rotation("access2", "refresh2")));
+			}
+		});
+		assertNotNull(accessToken);
+		assertNotNull(tokenStore.readRefreshToken("refresh1"));
+		assertNotNull(tokenStore.readRefreshToken("refresh2"));
+	}
+
+	@Test
+	public void failedRotationThroughJdoIsNotRolledBack() {
+		GaeTokenStore tokenStore = new GaeTokenStore(new GaeOAuthAccessTokenRepository() {
+
+			@Override
+			public GaeOAuthAccessToken save(GaeOAuthAccessToken entity) {
+				if ("access1".equals(entity.getToken().getValue())) {
+					throw new DatastoreFailureException("injected");
+				}
+				return super.save(entity);
+			}
+		}, new GaeOAuthRefreshTokenRepository());
+		store(tokenStore, "access0", "refresh0");
+
+		try {
+			tokenStore.rotateRefreshToken("refresh0", rotation("access1", "refresh1"));
+			fail();
+		} catch (DatastoreFailureException e) {
+			assertEquals("injected", e.getMessage());
+		}
+		assertNull(tokenStore.readAccessToken("access0"));
+		assertNull(tokenStore.readRefreshToken("refresh0"));
+		assertNotNull(tokenStore.readRefreshToken("refresh1"));
+		assertNull(tokenStore.readAccessToken("access1"));
+	}
+
+	@Test
+	public void rotatesThroughJdoWithoutTransaction() {
+		GaeTokenStore tokenStore = new GaeTokenStore();
+		store(tokenStore, "access0", "refresh0");
+
+		tokenStore.rotateRefreshToken("refresh0", rotation("access1", "refresh1"));
+		assertNull(tokenStore.readAccessToken("access0"));
+		assertNull(tokenStore.readRefreshToken("refresh0"));
+		assertNotNull(tokenStore.readAccessToken("access1"));
+		assertNotNull(tokenStore.readRefreshToken("refresh1"));
+	}
+
+	private static GaeTokenStore datastoreTokenStore(DatastoreAccessTokenRepository accessTokens) {
+		GaeTokenStore tokenStore = new GaeTokenStore(accessTokens, new DatastoreRefreshTokenRepository());
+		tokenStore.setTokenKeyNames(true);
+		return tokenStore;
+	}
+
+	private static void store(GaeTokenStore tokenStore, String accessTokenValue, String refreshTokenValue) {
+		DefaultOAuth2AccessToken accessToken = accessToken(accessTokenValue, refreshTokenValue);
+		tokenStore.storeRefreshToken(accessToken.getRefreshToken(), authentication("alice"));
+		tokenStore.storeAccessToken(accessToken, authentication("alice"));
+	}
+
+	/**
+	 * Rotation running another request against the same tokens after the refresh token was read and before the new
+	 * tokens are written.
+	 */
+	private abstract static class Racing implements RefreshTokenRotation {
+
+		private final RefreshTokenRotation rotation;
+
+		Racing(RefreshTokenRotation rotation) {
+			this.rotation = rotation;
+		}
+
+		protected abstract void race();
+
+		@Override
+		public OAuth2Authentication refreshAuthentication(OAuth2RefreshToken refreshToken,
+				OAuth2Authentication authentication) {
+			return rotation.refreshAuthentication(refreshToken, authentication);
+		}
+
+		@Override
+		public OAuth2AccessToken createAccessToken(OAuth2Authentication authentication, OAuth2RefreshToken refreshToken) {
+			race();
+			return rotation.createAccessToken(authentication, refreshToken);
+		}
+	}
+
+	/**
+	 * Repository running another request once the access tokens to remove were read by the transaction of a rotation.
+	 * The request runs in its own thread, so that its datastore calls do not join the transaction.
+	 */
+	private abstract static class RacingAccessTokenRepository extends DatastoreAccessTokenRepository {
+
+		protected abstract void race();
+
+		@Override
+		public Future<Long> deleteByRefreshTokenAsync(Transaction txn, String refreshToken) {
+			Future<Long> deleted = super.deleteByRefreshTokenAsync(txn, refreshToken);
+			if (txn != null && !Thread.currentThread().getName().equals(RACE)) {
+				DeferredFuture.getResult(deleted);
+				final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+				final RuntimeException[] failure = new RuntimeException[1];
+				Thread thread = new Thread(RACE) {
+
+					@Override
+					public void run() {
+						ApiProxy.setEnvironmentForCurrentThread(environment);
+						try {
+							race();
+						} catch (RuntimeException e) {
+							failure[0] = e;
+						}
+					}
+				};
+				thread.start();
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+				if (failure[0] != null) {
+					throw failure[0];
+				}
+			}
+			return deleted;
+		}
+	}
+
+	private static RefreshTokenRotation rotation(final String accessTokenValue, final String refreshTokenValue) {
+		return new RefreshTokenRotation() {
+
+			@Override
+			public OAuth2Authentication refreshAuthentication(OAuth2RefreshToken refreshToken,
+					OAuth2Authentication authentication) {
+				return authentication;
+			}
+
+			@Override
+			public OAuth2AccessToken createAccessToken(OAuth2Authentication authentication,
+					OAuth2RefreshToken refreshToken) {
+				DefaultOAuth2AccessToken accessToken = accessToken(accessTokenValue, null);
+				accessToken.setRefreshToken(refreshTokenValue.equals(refreshToken.getValue()) ? refreshToken
+						: new DefaultOAuth2RefreshToken(refreshTokenValue));
+				return accessToken;
+			}
+		};
+	}
+}
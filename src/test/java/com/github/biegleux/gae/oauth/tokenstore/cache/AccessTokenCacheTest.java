@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+public class AccessTokenCacheTest {
+
+	private static final long MINUTE = 60 * 1000;
+
+	// equal hash codes, so the keys share a segment
+	private static final String KEY1 = "AaAa";
+	private static final String KEY2 = "AaBB";
+	private static final String KEY3 = "BBAa";
+
+	private final OAuth2AccessToken accessToken = new DefaultOAuth2AccessToken("token");
+
+	private final OAuth2Authentication authentication = authentication("alice");
+
+	private final long weight = AccessTokenCache.estimateWeight(KEY1, accessToken, authentication);
+
+	@Test
+	public void expiresTokensAfterTheirTtl() throws Exception {
+		AccessTokenCache cache = new AccessTokenCache(1024 * 1024, 50, MINUTE);
+		cache.put(KEY1, accessToken, authentication, null, cache.version(KEY1));
+
+		AccessTokenCache.Entry entry = cache.get(KEY1);
+		assertNotNull(entry);
+		assertFalse(entry.isMissing());
+		assertSame(accessToken, entry.getAccessToken());
+		assertSame(authentication, entry.getAuthentication());
+
+		Thread.sleep(100);
+		assertNull(cache.get(KEY1));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.weight());
+	}
+
+	@Test
+	public void expiresMissingTokensAfterTheirOwnTtl() throws Exception {
+		AccessTokenCache cache = new AccessTokenCache(1024 * 1024, MINUTE, 50);
+		cache.putMissing(KEY1, cache.version(KEY1));
+
+		AccessTokenCache.Entry entry = cache.get(KEY1);
+		assertNotNull(entry);
+		assertTrue(entry.isMissing());
+		assertNull(entry.getAuthentication());
+
+		Thread.sleep(100);
+		assertNull(cache.get(KEY1));
+	}
+
+	@Test
+	public void doesNotCacheMissingTokensWithoutTtl() {
+		AccessTokenCache cache = new AccessTokenCache(1024 * 1024, MINUTE, 0);
+		cache.putMissing(KEY1, cache.version(KEY1));
+		assertNull(cache.get(KEY1));
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedEntriesByWeight() {
+		// room for two entries per segment
+		AccessTokenCache cache = new AccessTokenCache(16 * (2 * weight + weight / 2), MINUTE, MINUTE);
+		cache.put(KEY1, accessToken, authentication, null, cache.version(KEY1));
+		cache.put(KEY2, accessToken, authentication, null, cache.version(KEY2));
+		assertNotNull(cache.get(KEY1));
+
+		cache.put(KEY3, accessToken, authentication, null, cache.version(KEY3));
+		assertNotNull(cache.get(KEY1));
+		assertNull(cache.get(KEY2));
+		assertNotNull(cache.get(KEY3));
+		assertEquals(2, cache.size());
+		assertEquals(2 * weight, cache.weight());
+	}
+
+	@Test
+	public void rejectsEntriesLargerThanASegment() {
+		AccessTokenCache cache = new AccessTokenCache(16 * (weight - 1), MINUTE, MINUTE);
+		cache.put(KEY1, accessToken, authentication, null, cache.version(KEY1));
+
+		assertNull(cache.get(KEY1));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.weight());
+	}
+
+	@Test
+	public void putAfterInvalidateDoesNotRestoreToken() {
+		AccessTokenCache cache = new AccessTokenCache();
+		long version = cache.version(KEY1);
+		cache.invalidate(KEY1);
+		cache.put(KEY1, accessToken, authentication, null, version);
+		assertNull(cache.get(KEY1));
+
+		version = cache.version(KEY1);
+		cache.invalidateByRefreshToken("refresh");
+		cache.putMissing(KEY1, version);
+		assertNull(cache.get(KEY1));
+
+		cache.put(KEY1, accessToken, authentication, null, cache.version(KEY1));
+		assertNotNull(cache.get(KEY1));
+	}
+
+	@Test
+	public void concurrentPutAfterInvalidateDoesNotRestoreRevokedToken() throws Exception {
+		for (int round = 0; round < 50; round++) {
+			final AccessTokenCache cache = new AccessTokenCache();
+			final AtomicBoolean revoked = new AtomicBoolean();
+			final AtomicBoolean stop = new AtomicBoolean();
+			List<Thread> loaders = new ArrayList<Thread>();
+			for (int i = 0; i < 4; i++) {
+				Thread loader = new Thread() {
+
+					@Override
+					public void run() {
+						while (!stop.get()) {
+							// the version is taken before the datastore is read
+							long version = cache.version(KEY1);
+							if (revoked.get()) {
+								cache.putMissing(KEY1, version);
+							} else {
+								cache.put(KEY1, accessToken, authentication, null, version);
+							}
+						}
+					}
+				};
+				loaders.add(loader);
+				loader.start();
+			}
+			Thread.sleep(2);
+			revoked.set(true);
+			cache.invalidate(KEY1);
+			Thread.sleep(2);
+			stop.set(true);
+			for (Thread loader : loaders) {
+				loader.join();
+			}
+			AccessTokenCache.Entry entry = cache.get(KEY1);
+			assertTrue(entry == null || entry.isMissing());
+		}
+	}
+
+	@Test
+	public void invalidatesTokensOfRefreshToken() {
+		AccessTokenCache cache = new AccessTokenCache();
+		cache.put(KEY1, accessToken, authentication, "refresh1", cache.version(KEY1));
+		cache.put(KEY2, accessToken, authentication, "refresh2", cache.version(KEY2));
+
+		cache.invalidateByRefreshToken("refresh1");
+		assertNull(cache.get(KEY1));
+		assertNotNull(cache.get(KEY2));
+		assertEquals(weight, cache.weight());
+	}
+
+	private static OAuth2Authentication authentication(String username) {
+		List<GrantedAuthority> authorities = Collections.<GrantedAuthority> singletonList(
+				new SimpleGrantedAuthority("ROLE_USER"));
+		OAuth2Request request = new OAuth2Request(Collections.<String, String> emptyMap(), "client", authorities,
+				true, Collections.singleton("read"), null, null, null, Collections.<String, Serializable> emptyMap());
+		return new OAuth2Authentication(request, new UsernamePasswordAuthenticationToken(username, null, authorities));
+	}
+}
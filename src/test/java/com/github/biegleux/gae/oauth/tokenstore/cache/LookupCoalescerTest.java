@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LookupCoalescerTest {
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUpExecutor() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDownExecutor() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void performsOneLookupForConcurrentCallers() throws Exception {
+		final LookupCoalescer coalescer = new LookupCoalescer(10000);
+		final AtomicInteger lookups = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final LookupCoalescer.Lookup<String> lookup = new LookupCoalescer.Lookup<String>() {
+			@Override
+			public String lookup() {
+				lookups.incrementAndGet();
+				started.countDown();
+				await(release);
+				return "value";
+			}
+		};
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		results.add(submit(coalescer, "key", lookup));
+		started.await();
+		for (int i = 0; i < 7; i++) {
+			results.add(submit(coalescer, "key", lookup));
+		}
+		// lets the callers join the lookup in progress
+		Thread.sleep(200);
+		release.countDown();
+
+		for (Future<String> result : results) {
+			assertEquals("value", result.get());
+		}
+		assertEquals(1, lookups.get());
+		assertEquals(7, coalescer.getStatistics().getHitCount());
+		assertEquals(1, coalescer.getStatistics().getMissCount());
+	}
+
+	@Test
+	public void rethrowsFailureToWaitingCallers() throws Exception {
+		final LookupCoalescer coalescer = new LookupCoalescer(10000);
+		final IllegalStateException failure = new IllegalStateException("lookup failed");
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Future<String> first = submit(coalescer, "key", new LookupCoalescer.Lookup<String>() {
+			@Override
+			public String lookup() {
+				started.countDown();
+				await(release);
+				throw failure;
+			}
+		});
+		started.await();
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				sleep(200);
+				release.countDown();
+			}
+		});
+
+		try {
+			coalescer.get("key", new LookupCoalescer.Lookup<String>() {
+				@Override
+				public String lookup() {
+					throw new AssertionError("Lookup should have been coalesced.");
+				}
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			assertSame(failure, e);
+		}
+		try {
+			first.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+	}
+
+	@Test
+	public void performsLookupAfterWaitingTooLong() throws Exception {
+		final LookupCoalescer coalescer = new LookupCoalescer(50);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Future<String> first = submit(coalescer, "key", new LookupCoalescer.Lookup<String>() {
+			@Override
+			public String lookup() {
+				started.countDown();
+				await(release);
+				return "slow";
+			}
+		});
+		started.await();
+
+		assertEquals("own", coalescer.get("key", constant("own")));
+		assertEquals(1, coalescer.getTimeoutCount());
+		release.countDown();
+		assertEquals("slow", first.get());
+	}
+
+	@Test
+	public void looksUpAgainOnceLookupCompleted() {
+		LookupCoalescer coalescer = new LookupCoalescer();
+		assertEquals("first", coalescer.get("key", constant("first")));
+		assertEquals("second", coalescer.get("key", constant("second")));
+		assertEquals("other", coalescer.get("other", constant("other")));
+		assertEquals(0, coalescer.getStatistics().getHitCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNegativeMaximumWait() {
+		new LookupCoalescer(-1);
+	}
+
+	private Future<String> submit(final LookupCoalescer coalescer, final String key,
+			final LookupCoalescer.Lookup<String> lookup) {
+		return executor.submit(new Callable<String>() {
+			@Override
+			public String call() {
+				return coalescer.get(key, lookup);
+			}
+		});
+	}
+
+	private static LookupCoalescer.Lookup<String> constant(final String value) {
+		return new LookupCoalescer.Lookup<String>() {
+			@Override
+			public String lookup() {
+				return value;
+			}
+		};
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			if (!latch.await(10, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("Timed out.");
+			}
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
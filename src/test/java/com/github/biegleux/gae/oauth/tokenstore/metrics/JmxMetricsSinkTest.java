@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+public class JmxMetricsSinkTest {
+
+	@Test
+	public void recordsCallStatistics() {
+		JmxMetricsSink sink = new JmxMetricsSink();
+		for (int i = 0; i < 9; i++) {
+			sink.recordCall(Operation.READ_ACCESS_TOKEN, TimeUnit.MICROSECONDS.toNanos(100));
+		}
+		sink.recordCall(Operation.READ_ACCESS_TOKEN, TimeUnit.MICROSECONDS.toNanos(5000));
+
+		OperationStatistics statistics = sink.getStatistics(Operation.READ_ACCESS_TOKEN);
+		assertEquals(10, statistics.getCalls());
+		assertEquals(590.0, statistics.getMeanMicros(), 0.001);
+		assertEquals(128, statistics.getP50Micros());
+		assertEquals(128, statistics.getP90Micros());
+		assertEquals(5000, statistics.getP99Micros());
+		assertEquals(5000, statistics.getMaxMicros());
+		assertEquals(0, sink.getStatistics(Operation.STORE_ACCESS_TOKEN).getCalls());
+	}
+
+	@Test
+	public void listsOnlyCalledOperations() {
+		JmxMetricsSink sink = new JmxMetricsSink();
+		sink.recordCall(Operation.STORE_ACCESS_TOKEN, 1000);
+
+		Map<String, OperationStatistics> operations = sink.getOperations();
+		assertEquals(1, operations.size());
+		assertEquals(1, operations.get("STORE_ACCESS_TOKEN").getCalls());
+	}
+
+	@Test
+	public void sumsCountersOverOperations() {
+		JmxMetricsSink sink = new JmxMetricsSink();
+		sink.increment(Operation.READ_ACCESS_TOKEN, Counter.DATASTORE_GETS, 2);
+		sink.increment(Operation.READ_AUTHENTICATION, Counter.DATASTORE_GETS, 3);
+
+		assertEquals(5, sink.getCounter(Counter.DATASTORE_GETS));
+		assertEquals(Long.valueOf(5), sink.getCounters().get("DATASTORE_GETS"));
+		assertEquals(Long.valueOf(0), sink.getCounters().get("DATASTORE_PUTS"));
+		Map<String, Long> counters = sink.getStatistics(Operation.READ_ACCESS_TOKEN).getCounters();
+		assertEquals(Long.valueOf(2), counters.get("DATASTORE_GETS"));
+		assertNull(counters.get("DATASTORE_PUTS"));
+	}
+
+	@Test
+	public void resetClearsStatisticsAndCounters() {
+		JmxMetricsSink sink = new JmxMetricsSink();
+		sink.recordCall(Operation.READ_ACCESS_TOKEN, 1000);
+		sink.increment(Operation.READ_ACCESS_TOKEN, Counter.CACHE_HITS, 1);
+		sink.reset();
+
+		assertTrue(sink.getOperations().isEmpty());
+		assertEquals(0, sink.getCounter(Counter.CACHE_HITS));
+		assertEquals(0, sink.getStatistics(Operation.READ_ACCESS_TOKEN).getMaxMicros());
+	}
+
+	@Test
+	public void exposesStatisticsThroughJmx() throws Exception {
+		JmxMetricsSink sink = new JmxMetricsSink();
+		sink.recordCall(Operation.READ_ACCESS_TOKEN, 1000);
+		sink.increment(Operation.READ_ACCESS_TOKEN, Counter.CACHE_MISSES, 1);
+		sink.register("test");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName(JmxMetricsSink.DOMAIN + ":type=TokenStoreMetrics,name=\"test\"");
+		try {
+			assertTrue(server.isRegistered(objectName));
+			TabularData counters = (TabularData) server.getAttribute(objectName, "Counters");
+			assertEquals(1L, counters.get(new Object[] { "CACHE_MISSES" }).get("value"));
+			server.invoke(objectName, "reset", null, null);
+			assertEquals(0, sink.getCounter(Counter.CACHE_MISSES));
+		} finally {
+			sink.unregister();
+		}
+		assertFalse(server.isRegistered(objectName));
+	}
+
+	@Test
+	public void mapsDatastoreAndMemcacheRpcsToCounters() {
+		assertEquals(Counter.DATASTORE_GETS, RpcCounter.counterOf("datastore_v3", "Get"));
+		assertEquals(Counter.DATASTORE_PUTS, RpcCounter.counterOf("datastore_v3", "Put"));
+		assertEquals(Counter.DATASTORE_DELETES, RpcCounter.counterOf("datastore_v3", "Delete"));
+		assertEquals(Counter.DATASTORE_QUERIES, RpcCounter.counterOf("datastore_v3", "RunQuery"));
+		assertEquals(Counter.DATASTORE_QUERY_BATCHES, RpcCounter.counterOf("datastore_v3", "Next"));
+		assertEquals(Counter.DATASTORE_COMMITS, RpcCounter.counterOf("datastore_v3", "Commit"));
+		assertEquals(Counter.MEMCACHE_CALLS, RpcCounter.counterOf("memcache", "Get"));
+		assertNull(RpcCounter.counterOf("datastore_v3", "BeginTransaction"));
+		assertNull(RpcCounter.counterOf("urlfetch", "Fetch"));
+	}
+}
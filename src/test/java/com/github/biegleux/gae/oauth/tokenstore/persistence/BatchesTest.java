@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BatchesTest {
+
+	@Test
+	public void partitionsInOrder() {
+		List<List<Integer>> batches = Batches.partition(Arrays.asList(1, 2, 3, 4, 5, 6, 7), 3);
+		assertEquals(Arrays.asList(Arrays.asList(1, 2, 3), Arrays.asList(4, 5, 6), Arrays.asList(7)), batches);
+	}
+
+	@Test
+	public void exactMultipleHasNoEmptyBatch() {
+		assertEquals(2, Batches.partition(Arrays.asList(1, 2, 3, 4), 2).size());
+	}
+
+	@Test
+	public void emptyInputHasNoBatches() {
+		assertTrue(Batches.partition(Collections.<Integer> emptyList(), 10).isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNonPositiveBatchSize() {
+		Batches.partition(Arrays.asList(1), 0);
+	}
+
+	@Test
+	public void batchResultMergesResultsAndFailures() {
+		BatchResult<String, Long> first = new BatchResult<String, Long>();
+		first.succeeded("a", 1L);
+		BatchResult<String, Long> second = new BatchResult<String, Long>();
+		second.failed("b", new IllegalStateException());
+		first.addAll(second);
+		assertEquals(Long.valueOf(1), first.getResults().get("a"));
+		assertTrue(first.hasFailures());
+		assertTrue(first.getFailures().get("b") instanceof IllegalStateException);
+	}
+}
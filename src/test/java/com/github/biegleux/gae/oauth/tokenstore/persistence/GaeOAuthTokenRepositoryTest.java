@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import com.github.biegleux.gae.oauth.tokenstore.ApiCallRecorder;
+import com.github.biegleux.gae.oauth.tokenstore.LocalServiceTestSupport;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthAccessToken;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+
+public class GaeOAuthTokenRepositoryTest extends LocalServiceTestSupport {
+
+	@Test
+	public void upsertReplacesTokenWithAllocatedId() {
+		GaeOAuthAccessTokenRepository repository = new GaeOAuthAccessTokenRepository();
+		repository.save(model("token", "first"));
+		repository.upsert(model("token", "second"));
+
+		List<Entity> entities = entities();
+		assertEquals(1, entities.size());
+		assertEquals("second", repository.findByTokenId("token").getToken().getValue());
+	}
+
+	@Test
+	public void upsertWithKeyNamesAndNoLegacyLookupIsSinglePut() {
+		GaeOAuthAccessTokenRepository repository = new GaeOAuthAccessTokenRepository();
+		repository.setTokenKeyNames(true);
+		repository.setLegacyLookup(false);
+		repository.upsert(model("token", "first"));
+
+		ApiCallRecorder calls = recordApiCalls();
+		repository.upsert(model("token", "second"));
+		assertEquals(Arrays.asList("Put"), calls.getDatastoreCalls());
+
+		List<Entity> entities = entities();
+		assertEquals(1, entities.size());
+		assertEquals("token", entities.get(0).getKey().getName());
+		assertEquals("second", repository.findByTokenId("token").getToken().getValue());
+	}
+
+	@Test
+	public void upsertWithKeyNamesRemovesCopiesWithAllocatedIds() {
+		new GaeOAuthAccessTokenRepository().save(model("token", "legacy"));
+		GaeOAuthAccessTokenRepository repository = new GaeOAuthAccessTokenRepository();
+		repository.setTokenKeyNames(true);
+
+		ApiCallRecorder calls = recordApiCalls();
+		repository.upsert(model("token", "current"));
+		assertEquals(1, calls.countDatastoreCalls("Put"));
+		assertEquals(1, calls.countDatastoreCalls("Delete"));
+
+		List<Entity> entities = entities();
+		assertEquals(1, entities.size());
+		assertEquals("token", entities.get(0).getKey().getName());
+	}
+
+	@Test
+	public void deleteWithinScopeIsNotHiddenByCachedEntity() {
+		GaeOAuthAccessTokenRepository repository = new GaeOAuthAccessTokenRepository();
+		repository.setTokenKeyNames(true);
+		repository.setLegacyLookup(false);
+		repository.upsert(model("token", "value"));
+
+		PersistenceScope.begin();
+		try {
+			assertNotNull(repository.findByTokenId("token"));
+			assertEquals(1, repository.deleteByTokenId("token"));
+			assertNull(repository.findByTokenId("token"));
+		} finally {
+			PersistenceScope.end();
+		}
+		assertEquals(0, entities().size());
+	}
+
+	private static GaeOAuthAccessToken model(String tokenId, String value) {
+		OAuth2Authentication authentication = authentication("alice");
+		DefaultOAuth2AccessToken accessToken = accessToken(value, null);
+		GaeOAuthAccessToken model = new GaeOAuthAccessToken();
+		model.setTokenId(tokenId);
+		model.setToken(accessToken);
+		model.setAuthentication(authentication);
+		model.setAuthenticationId("authentication");
+		model.setClientId(CLIENT_ID);
+		model.setUsername("alice");
+		return model;
+	}
+
+	private static List<Entity> entities() {
+		return DatastoreServiceFactory.getDatastoreService().prepare(new Query("GaeOAuthAccessToken"))
+				.asList(FetchOptions.Builder.withDefaults());
+	}
+}
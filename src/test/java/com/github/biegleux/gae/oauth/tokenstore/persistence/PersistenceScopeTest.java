@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore.persistence;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import javax.jdo.PersistenceManager;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.junit.Test;
+
+import com.github.biegleux.gae.oauth.tokenstore.LocalServiceTestSupport;
+import com.github.biegleux.gae.oauth.tokenstore.PersistenceScopeFilter;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.model.GaeOAuthAccessToken;
+
+public class PersistenceScopeTest extends LocalServiceTestSupport {
+
+	@Test
+	public void closesPersistenceManagersOutsideOfScope() {
+		PersistenceManager pm = PersistenceScope.getPersistenceManager();
+		assertNotSame(pm, PersistenceScope.getPersistenceManager());
+		PersistenceScope.release(pm);
+		assertTrue(pm.isClosed());
+	}
+
+	@Test
+	public void nestedScopesShareOnePersistenceManager() {
+		PersistenceScope.begin();
+		PersistenceManager pm;
+		try {
+			pm = PersistenceScope.getPersistenceManager();
+			PersistenceScope.release(pm);
+			PersistenceScope.begin();
+			try {
+				assertSame(pm, PersistenceScope.getPersistenceManager());
+				PersistenceScope.release(pm);
+			} finally {
+				PersistenceScope.end();
+			}
+			assertFalse(pm.isClosed());
+			assertTrue(PersistenceScope.isActive());
+		} finally {
+			PersistenceScope.end();
+		}
+		assertTrue(pm.isClosed());
+		assertFalse(PersistenceScope.isActive());
+	}
+
+	@Test
+	public void closesPersistenceManagerOnException() throws IOException {
+		final PersistenceManager[] pm = new PersistenceManager[1];
+		try {
+			new PersistenceScopeFilter().doFilter(null, null, new FilterChain() {
+
+				@Override
+				public void doFilter(ServletRequest request, ServletResponse response) throws ServletException {
+					PersistenceScope.begin();
+					try {
+						pm[0] = PersistenceScope.getPersistenceManager();
+						throw new ServletException("failed");
+					} finally {
+						PersistenceScope.end();
+					}
+				}
+			});
+			fail();
+		} catch (ServletException e) {
+			assertNotNull(pm[0]);
+			assertTrue(pm[0].isClosed());
+			assertFalse(PersistenceScope.isActive());
+		}
+	}
+
+	@Test
+	public void writesEndSharedPersistenceManager() {
+		PersistenceScope.begin();
+		try {
+			PersistenceManager pm = PersistenceScope.getPersistenceManager();
+			PersistenceScope.invalidate();
+			assertTrue(pm.isClosed());
+			assertNotSame(pm, PersistenceScope.getPersistenceManager());
+		} finally {
+			PersistenceScope.end();
+		}
+	}
+
+	@Test
+	public void repositoryReadsReuseLoadedEntities() {
+		GaeOAuthAccessTokenRepository repository = new GaeOAuthAccessTokenRepository();
+		repository.setTokenKeyNames(true);
+		GaeOAuthAccessToken token = new GaeOAuthAccessToken();
+		token.setTokenId("token");
+		token.setToken(accessToken("token", null));
+		token.setAuthentication(authentication("alice"));
+		repository.save(token);
+
+		PersistenceScope.begin();
+		try {
+			GaeOAuthAccessToken loaded = repository.findByTokenId("token");
+			assertNotNull(loaded);
+			assertSame(loaded, repository.findByTokenId("token"));
+			repository.upsert(loaded);
+			assertNotSame(loaded, repository.findByTokenId("token"));
+		} finally {
+			PersistenceScope.end();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rejectsEndWithoutBegin() {
+		PersistenceScope.end();
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import com.github.biegleux.gae.oauth.tokenstore.DigestTokenKeyExtractor;
+import com.github.biegleux.gae.oauth.tokenstore.GaeTokenStore;
+import com.github.biegleux.gae.oauth.tokenstore.LocalServiceTestSupport;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreAuthenticationRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreRefreshTokenRepository;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * Tokens stored with shared authentications by the low-level repositories and read through JDO.
+ */
+public class SharedAuthenticationJdoTest extends LocalServiceTestSupport {
+
+	private final DigestTokenKeyExtractor keys = new DigestTokenKeyExtractor();
+
+	private GaeTokenStore datastoreStore;
+
+	private GaeTokenStore jdoStore;
+
+	@Before
+	public void setUpStores() {
+		DatastoreAuthenticationRepository authentications = new DatastoreAuthenticationRepository();
+		DatastoreAccessTokenRepository datastoreAccessTokens = new DatastoreAccessTokenRepository();
+		DatastoreRefreshTokenRepository datastoreRefreshTokens = new DatastoreRefreshTokenRepository();
+		datastoreAccessTokens.setTokenKeyNames(true);
+		datastoreRefreshTokens.setTokenKeyNames(true);
+		datastoreAccessTokens.setAuthentications(authentications);
+		datastoreRefreshTokens.setAuthentications(authentications);
+		datastoreStore = new GaeTokenStore(datastoreAccessTokens, datastoreRefreshTokens);
+
+		GaeOAuthAccessTokenRepository accessTokens = new GaeOAuthAccessTokenRepository();
+		GaeOAuthRefreshTokenRepository refreshTokens = new GaeOAuthRefreshTokenRepository();
+		accessTokens.setTokenKeyNames(true);
+		refreshTokens.setTokenKeyNames(true);
+		jdoStore = new GaeTokenStore(accessTokens, refreshTokens);
+	}
+
+	@Test
+	public void readsSharedAuthentications() {
+		OAuth2Authentication authentication = authentication("alice");
+		DefaultOAuth2AccessToken accessToken = accessToken("access", "refresh");
+		datastoreStore.storeAccessToken(accessToken, authentication);
+		datastoreStore.storeRefreshToken(accessToken.getRefreshToken(), authentication);
+
+		assertEquals(authentication, jdoStore.readAuthentication("access"));
+		assertEquals(authentication, jdoStore.readAuthenticationForRefreshToken(accessToken.getRefreshToken()));
+		Collection<OAuth2AccessToken> tokens = jdoStore.findTokensByClientIdAndUserName(CLIENT_ID, "alice");
+		assertEquals(1, tokens.size());
+		assertEquals("access", tokens.iterator().next().getValue());
+	}
+
+	@Test
+	public void getAccessTokenDoesNotRewriteSharedAuthentications() throws EntityNotFoundException {
+		OAuth2Authentication authentication = authentication("alice");
+		datastoreStore.storeAccessToken(accessToken("access", null), authentication);
+
+		OAuth2AccessToken found = jdoStore.getAccessToken(authentication);
+		assertNotNull(found);
+		assertEquals("access", found.getValue());
+
+		Entity entity = DatastoreServiceFactory.getDatastoreService().get(
+				KeyFactory.createKey("GaeOAuthAccessToken", keys.extractKey("access")));
+		assertFalse(entity.hasProperty("authentication") && entity.getProperty("authentication") != null);
+		assertTrue(entity.getProperty("authenticationKey") != null);
+	}
+}
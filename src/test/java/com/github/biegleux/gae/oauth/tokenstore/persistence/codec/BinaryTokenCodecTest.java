@@ -0,0 +1,239 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore.persistence.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import com.github.biegleux.gae.oauth.tokenstore.LocalServiceTestSupport;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.TokenDeserializationException;
+
+public class BinaryTokenCodecTest extends LocalServiceTestSupport {
+
+	private final BinaryTokenCodec codec = new BinaryTokenCodec();
+
+	@Test
+	public void accessTokenRoundTrip() {
+		DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken("access");
+		accessToken.setExpiration(new Date(1400000000000L));
+		accessToken.setRefreshToken(new DefaultExpiringOAuth2RefreshToken("refresh", new Date(1500000000000L)));
+		accessToken.setScope(Collections.singleton("read"));
+		Map<String, Object> additionalInformation = new LinkedHashMap<String, Object>();
+		additionalInformation.put("string", "value");
+		additionalInformation.put("int", 42);
+		additionalInformation.put("long", 1L << 40);
+		additionalInformation.put("double", 0.5d);
+		additionalInformation.put("boolean", Boolean.TRUE);
+		additionalInformation.put("date", new Date(1300000000000L));
+		additionalInformation.put("list", Arrays.<Object> asList("a", 1));
+		additionalInformation.put("decimal", new BigDecimal("1.25"));
+		accessToken.setAdditionalInformation(additionalInformation);
+
+		byte[] bytes = codec.encodeAccessToken(accessToken);
+		assertEquals((byte) BinaryTokenCodec.MAGIC, bytes[0]);
+
+		OAuth2AccessToken decoded = codec.decodeAccessToken(bytes);
+		assertSame(DefaultOAuth2AccessToken.class, decoded.getClass());
+		assertEquals("access", decoded.getValue());
+		assertEquals(accessToken.getExpiration(), decoded.getExpiration());
+		assertEquals(accessToken.getTokenType(), decoded.getTokenType());
+		assertEquals(accessToken.getScope(), decoded.getScope());
+		assertEquals(additionalInformation, decoded.getAdditionalInformation());
+		DefaultExpiringOAuth2RefreshToken refreshToken = (DefaultExpiringOAuth2RefreshToken) decoded.getRefreshToken();
+		assertEquals("refresh", refreshToken.getValue());
+		assertEquals(new Date(1500000000000L), refreshToken.getExpiration());
+	}
+
+	@Test
+	public void accessTokenWithoutOptionalFields() {
+		OAuth2AccessToken decoded = codec.decodeAccessToken(codec.encodeAccessToken(new DefaultOAuth2AccessToken("a")));
+		assertEquals("a", decoded.getValue());
+		assertNull(decoded.getExpiration());
+		assertNull(decoded.getRefreshToken());
+		assertTrue(decoded.getAdditionalInformation().isEmpty());
+	}
+
+	@Test
+	public void refreshTokenRoundTrip() {
+		OAuth2RefreshToken decoded = codec.decodeRefreshToken(codec.encodeRefreshToken(
+				new DefaultOAuth2RefreshToken("refresh")));
+		assertSame(DefaultOAuth2RefreshToken.class, decoded.getClass());
+		assertEquals("refresh", decoded.getValue());
+
+		Date expiration = new Date(1500000000000L);
+		decoded = codec.decodeRefreshToken(codec.encodeRefreshToken(
+				new DefaultExpiringOAuth2RefreshToken("expiring", expiration)));
+		assertEquals("expiring", decoded.getValue());
+		assertEquals(expiration, ((DefaultExpiringOAuth2RefreshToken) decoded).getExpiration());
+	}
+
+	@Test
+	public void userAuthenticationRoundTrip() {
+		List<GrantedAuthority> authorities = Collections.<GrantedAuthority> singletonList(
+				new SimpleGrantedAuthority("ROLE_USER"));
+		User user = new User("alice", "secret", true, true, false, true, authorities);
+		user.eraseCredentials();
+		UsernamePasswordAuthenticationToken userAuthentication = new UsernamePasswordAuthenticationToken(user, null,
+				authorities);
+		userAuthentication.setDetails("details");
+		OAuth2Authentication authentication = new OAuth2Authentication(
+				clientAuthentication("client").getOAuth2Request(), userAuthentication);
+
+		byte[] bytes = codec.encodeAuthentication(authentication);
+		assertEquals((byte) BinaryTokenCodec.MAGIC, bytes[0]);
+
+		OAuth2Authentication decoded = codec.decodeAuthentication(bytes);
+		assertEquals(authentication, decoded);
+		assertEquals(authentication.getOAuth2Request().getScope(), decoded.getOAuth2Request().getScope());
+		assertEquals(authentication.getOAuth2Request().getResourceIds(), decoded.getOAuth2Request().getResourceIds());
+		assertTrue(decoded.getOAuth2Request().isApproved());
+		User principal = (User) decoded.getPrincipal();
+		assertEquals("alice", principal.getUsername());
+		assertNull(principal.getPassword());
+		assertFalse(principal.isCredentialsNonExpired());
+		assertEquals(authorities, decoded.getUserAuthentication().getAuthorities());
+		assertEquals("details", decoded.getUserAuthentication().getDetails());
+	}
+
+	@Test
+	public void clientAuthenticationRoundTrip() {
+		OAuth2Authentication authentication = clientAuthentication("client");
+		OAuth2Authentication decoded = codec.decodeAuthentication(codec.encodeAuthentication(authentication));
+		assertEquals(authentication, decoded);
+		assertTrue(decoded.isClientOnly());
+		assertEquals("client", decoded.getOAuth2Request().getClientId());
+	}
+
+	@Test
+	public void otherClassesFallBackToJavaSerialization() {
+		CustomAccessToken accessToken = new CustomAccessToken("custom");
+		byte[] bytes = codec.encodeAccessToken(accessToken);
+		assertTrue(JavaSerialization.isSerialized(bytes));
+		assertSame(CustomAccessToken.class, codec.decodeAccessToken(bytes).getClass());
+
+		DefaultOAuth2AccessToken withCustomRefreshToken = new DefaultOAuth2AccessToken("access");
+		withCustomRefreshToken.setRefreshToken(new CustomRefreshToken("custom"));
+		OAuth2AccessToken decoded = codec.decodeAccessToken(codec.encodeAccessToken(withCustomRefreshToken));
+		assertSame(CustomRefreshToken.class, decoded.getRefreshToken().getClass());
+		assertEquals("custom", decoded.getRefreshToken().getValue());
+	}
+
+	@Test
+	public void decodesSerializationCodecBlobs() {
+		SerializationTokenCodec serialization = new SerializationTokenCodec();
+		OAuth2AccessToken accessToken = accessToken("access", "refresh");
+		OAuth2Authentication authentication = authentication("alice");
+
+		assertEquals(accessToken, codec.decodeAccessToken(serialization.encodeAccessToken(accessToken)));
+		assertEquals(authentication, codec.decodeAuthentication(serialization.encodeAuthentication(authentication)));
+		assertEquals(authentication, serialization.decodeAuthentication(codec.encodeAuthentication(authentication)));
+		assertEquals(accessToken.getRefreshToken().getValue(), codec.decodeRefreshToken(
+				serialization.encodeRefreshToken(accessToken.getRefreshToken())).getValue());
+	}
+
+	@Test
+	public void binaryBlobsAreSmallerThanJavaSerialization() {
+		OAuth2Authentication authentication = authentication("alice");
+		assertTrue(codec.encodeAuthentication(authentication).length
+				< JavaSerialization.serialize(authentication).length);
+	}
+
+	@Test
+	public void truncatedBlobsAreRejected() {
+		byte[] bytes = codec.encodeAuthentication(authentication("alice"));
+		for (int length = 0; length < bytes.length; length++) {
+			try {
+				codec.decodeAuthentication(Arrays.copyOf(bytes, length));
+				fail("Decoded a blob truncated to " + length + " bytes");
+			} catch (TokenDeserializationException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test(expected = TokenDeserializationException.class)
+	public void unknownVersionIsRejected() {
+		byte[] bytes = codec.encodeRefreshToken(new DefaultOAuth2RefreshToken("refresh"));
+		bytes[1] = (byte) (BinaryTokenCodec.VERSION + 1);
+		codec.decodeRefreshToken(bytes);
+	}
+
+	@Test(expected = TokenDeserializationException.class)
+	public void unexpectedTypeIsRejected() {
+		codec.decodeAccessToken(codec.encodeRefreshToken(new DefaultOAuth2RefreshToken("refresh")));
+	}
+
+	@Test(expected = TokenDeserializationException.class)
+	public void serializedBlobOfAnotherTypeIsRejected() {
+		codec.decodeAccessToken(JavaSerialization.serialize(new DefaultOAuth2RefreshToken("refresh")));
+	}
+
+	@Test
+	public void encodingIsDeterministic() {
+		OAuth2Authentication authentication = authentication("alice");
+		assertArrayEquals(codec.encodeAuthentication(authentication), codec.encodeAuthentication(authentication));
+	}
+
+	@SuppressWarnings("serial")
+	private static class CustomAccessToken extends DefaultOAuth2AccessToken {
+
+		CustomAccessToken(String value) {
+			super(value);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class CustomRefreshToken implements OAuth2RefreshToken, Serializable {
+
+		private final String value;
+
+		CustomRefreshToken(String value) {
+			this.value = value;
+		}
+
+		@Override
+		public String getValue() {
+			return value;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BloomFilterTest {
+
+	@Test
+	public void hasNoFalseNegatives() {
+		BloomFilter bloomFilter = BloomFilter.create(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			bloomFilter.add("token" + i);
+		}
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(bloomFilter.mightContain("token" + i));
+		}
+	}
+
+	@Test
+	public void keepsFalsePositiveRateNearTarget() {
+		BloomFilter bloomFilter = BloomFilter.create(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			bloomFilter.add("token" + i);
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (bloomFilter.mightContain("unknown" + i)) {
+				falsePositives++;
+			}
+		}
+		assertTrue("false positives: " + falsePositives, falsePositives < 200);
+	}
+
+	@Test
+	public void emptyFilterContainsNothing() {
+		assertFalse(BloomFilter.create(100, 0.01).mightContain("token"));
+	}
+
+	@Test
+	public void restoresFromBytes() {
+		BloomFilter bloomFilter = BloomFilter.create(1000, 0.01);
+		bloomFilter.add("token");
+		BloomFilter restored = BloomFilter.fromByteArray(bloomFilter.getBits(), bloomFilter.getHashes(),
+				bloomFilter.toByteArray());
+
+		assertEquals(bloomFilter.getBits(), restored.getBits());
+		assertEquals(bloomFilter.getHashes(), restored.getHashes());
+		assertTrue(restored.mightContain("token"));
+		assertFalse(restored.mightContain("unknown"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsBytesOfOtherSize() {
+		BloomFilter bloomFilter = BloomFilter.create(1000, 0.01);
+		BloomFilter.fromByteArray(bloomFilter.getBits() * 2, bloomFilter.getHashes(), bloomFilter.toByteArray());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidFalsePositiveRate() {
+		BloomFilter.create(1000, 1);
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+import com.github.biegleux.gae.oauth.tokenstore.ApiCallRecorder;
+import com.github.biegleux.gae.oauth.tokenstore.GaeTokenStore;
+import com.github.biegleux.gae.oauth.tokenstore.LocalServiceTestSupport;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+
+public class DatastoreAccessTokenRepositoryIndexTest extends LocalServiceTestSupport {
+
+	private static final long EXPIRED = -60 * 1000;
+
+	private DatastoreService datastore;
+
+	private DatastoreAccessTokenRepository accessTokens;
+
+	private GaeTokenStore tokenStore;
+
+	@Before
+	public void setUpTokenStore() {
+		datastore = DatastoreServiceFactory.getDatastoreService();
+		accessTokens = new DatastoreAccessTokenRepository();
+		tokenStore = new GaeTokenStore(accessTokens, new DatastoreRefreshTokenRepository());
+		tokenStore.setTokenKeyNames(true);
+		accessTokens.setIndexEntities(true);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void indexEntitiesRequireKeyNames() {
+		new DatastoreAccessTokenRepository().setIndexEntities(true);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void refreshTokenGroupsRequireKeyNames() {
+		new DatastoreAccessTokenRepository().setRefreshTokenGroups(true);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void keyNamesCannotBeDisabledWithIndexEntities() {
+		accessTokens.setTokenKeyNames(false);
+	}
+
+	@Test
+	public void storesEachIndexInItsOwnKind() {
+		tokenStore.storeRefreshToken(new DefaultOAuth2RefreshToken("refresh"), authentication("alice"));
+		tokenStore.storeAccessToken(accessToken("token", "refresh"), authentication("alice"));
+
+		assertEquals(1, count(DatastoreAccessTokenRepository.AUTHENTICATION_INDEX_KIND));
+		assertEquals(1, count(DatastoreAccessTokenRepository.REFRESH_TOKEN_INDEX_KIND));
+		assertEquals(0, count(DatastoreAccessTokenRepository.TOKEN_INDEX_KIND));
+	}
+
+	@Test
+	public void findsTokenByAuthenticationWithoutQuery() {
+		tokenStore.setLegacyLookup(false);
+		OAuth2AccessToken token = accessToken("token", null);
+		tokenStore.storeAccessToken(token, authentication("alice"));
+
+		ApiCallRecorder recorder = recordApiCalls();
+		OAuth2AccessToken found = tokenStore.getAccessToken(authentication("alice"));
+		assertNotNull(found);
+		assertEquals("token", found.getValue());
+		assertEquals(0, recorder.countDatastoreCalls("RunQuery"));
+		assertTrue(recorder.countDatastoreCalls("Get") > 0);
+	}
+
+	@Test
+	public void removesTokensByRefreshTokenThroughIndex() {
+		tokenStore.setLegacyLookup(false);
+		DefaultOAuth2RefreshToken refreshToken = new DefaultOAuth2RefreshToken("refresh");
+		tokenStore.storeRefreshToken(refreshToken, authentication("alice"));
+		tokenStore.storeAccessToken(accessToken("token", "refresh"), authentication("alice"));
+
+		ApiCallRecorder recorder = recordApiCalls();
+		tokenStore.removeAccessTokenUsingRefreshToken(refreshToken);
+		// a single ancestor query over the refresh token's index entities
+		assertEquals(1, recorder.countDatastoreCalls("RunQuery"));
+		assertNull(tokenStore.readAccessToken("token"));
+		assertEquals(0, count(DatastoreAccessTokenRepository.REFRESH_TOKEN_INDEX_KIND));
+	}
+
+	@Test
+	public void ignoresStaleIndexEntities() {
+		tokenStore.storeAccessToken(accessToken("token", null), authentication("alice"));
+		tokenStore.removeAccessToken(accessToken("token", null));
+
+		assertNull(tokenStore.getAccessToken(authentication("alice")));
+	}
+
+	@Test
+	public void reaperDeletesExpiredIndexEntitiesOfAllKinds() {
+		tokenStore.storeRefreshToken(new DefaultOAuth2RefreshToken("refresh"), authentication("alice"));
+		tokenStore.storeAccessToken(accessToken("expired", "refresh", EXPIRED), authentication("alice"));
+		tokenStore.storeAccessToken(accessToken("live", null), authentication("bob"));
+
+		ExpiredTokenReaper.Result result = new ExpiredTokenReaper().reapIndexEntities(null);
+		assertTrue(result.isDone());
+		assertEquals(2, result.getDeleted());
+		assertEquals(1, count(DatastoreAccessTokenRepository.AUTHENTICATION_INDEX_KIND));
+		assertEquals(0, count(DatastoreAccessTokenRepository.REFRESH_TOKEN_INDEX_KIND));
+	}
+
+	@Test
+	public void reaperResumesIndexEntitiesFromCursor() {
+		for (int i = 0; i < 3; i++) {
+			tokenStore.storeAccessToken(accessToken("expired" + i, null, EXPIRED), authentication("user" + i));
+		}
+		ExpiredTokenReaper reaper = new ExpiredTokenReaper();
+		reaper.setBatchSize(1);
+		reaper.setTimeBudgetMillis(0);
+
+		ExpiredTokenReaper.Result result = reaper.reapIndexEntities(null);
+		long deleted = result.getDeleted();
+		int runs = 1;
+		while (!result.isDone()) {
+			result = reaper.reapIndexEntities(result.getCursor());
+			deleted += result.getDeleted();
+			runs++;
+		}
+		assertEquals(3, deleted);
+		assertTrue(runs > 1);
+		assertEquals(0, count(DatastoreAccessTokenRepository.AUTHENTICATION_INDEX_KIND));
+		assertNull(result.getCursor());
+	}
+
+	private int count(String kind) {
+		return datastore.prepare(new Query(kind).setKeysOnly()).countEntities(FetchOptions.Builder.withDefaults());
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+import com.github.biegleux.gae.oauth.tokenstore.ApiCallRecorder;
+import com.github.biegleux.gae.oauth.tokenstore.GaeTokenStore;
+import com.github.biegleux.gae.oauth.tokenstore.LocalServiceTestSupport;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+
+public class DatastoreRefreshTokenGroupTest extends LocalServiceTestSupport {
+
+	private DatastoreService datastore;
+
+	private DatastoreAccessTokenRepository accessTokens;
+
+	private GaeTokenStore tokenStore;
+
+	@Before
+	public void setUpTokenStore() {
+		datastore = DatastoreServiceFactory.getDatastoreService();
+		accessTokens = new DatastoreAccessTokenRepository();
+		tokenStore = new GaeTokenStore(accessTokens, new DatastoreRefreshTokenRepository());
+		tokenStore.setTokenKeyNames(true);
+		accessTokens.setRefreshTokenGroups(true);
+		tokenStore.storeRefreshToken(new DefaultOAuth2RefreshToken("refresh"), authentication("alice"));
+	}
+
+	@Test
+	public void storesTokensAsChildrenOfTheirRefreshToken() {
+		tokenStore.storeAccessToken(accessToken("token", "refresh"), authentication("alice"));
+		tokenStore.storeAccessToken(accessToken("plain", null), authentication("bob"));
+
+		Key group = datastore.prepare(new Query("GaeOAuthRefreshToken").setKeysOnly()).asSingleEntity().getKey();
+		List<Entity> children = datastore.prepare(new Query("GaeOAuthAccessToken").setAncestor(group))
+				.asList(FetchOptions.Builder.withDefaults());
+		assertEquals(1, children.size());
+		List<Entity> index = datastore.prepare(new Query(DatastoreAccessTokenRepository.TOKEN_INDEX_KIND))
+				.asList(FetchOptions.Builder.withDefaults());
+		assertEquals(1, index.size());
+		assertEquals(children.get(0).getKey(), index.get(0).getProperty(DatastoreAccessTokenRepository.ACCESS_TOKEN));
+		assertEquals(children.get(0).getKey().getName(), index.get(0).getKey().getName());
+		assertEquals(2, count("GaeOAuthAccessToken"));
+	}
+
+	@Test
+	public void findsChildrenByTokenValue() {
+		tokenStore.storeAccessToken(accessToken("token", "refresh"), authentication("alice"));
+
+		OAuth2AccessToken token = tokenStore.readAccessToken("token");
+		assertNotNull(token);
+		assertEquals("refresh", token.getRefreshToken().getValue());
+		assertEquals("alice", tokenStore.readAuthentication("token").getName());
+	}
+
+	@Test
+	public void revokesChildrenWithAncestorQuery() {
+		tokenStore.setLegacyLookup(false);
+		tokenStore.storeAccessToken(accessToken("token1", "refresh"), authentication("alice", "client1"));
+		tokenStore.storeAccessToken(accessToken("token2", "refresh"), authentication("alice", "client2"));
+
+		ApiCallRecorder recorder = recordApiCalls();
+		tokenStore.removeAccessTokenUsingRefreshToken(new DefaultOAuth2RefreshToken("refresh"));
+		assertEquals(1, recorder.countDatastoreCalls("RunQuery"));
+		assertNull(tokenStore.readAccessToken("token1"));
+		assertNull(tokenStore.readAccessToken("token2"));
+		assertEquals(0, count("GaeOAuthAccessToken"));
+		assertEquals(0, count(DatastoreAccessTokenRepository.TOKEN_INDEX_KIND));
+	}
+
+	@Test
+	public void removingChildDeletesItsIndexEntity() {
+		OAuth2AccessToken token = accessToken("token", "refresh");
+		tokenStore.storeAccessToken(token, authentication("alice"));
+
+		tokenStore.removeAccessToken(token);
+		assertNull(tokenStore.readAccessToken("token"));
+		assertEquals(0, count("GaeOAuthAccessToken"));
+		assertEquals(0, count(DatastoreAccessTokenRepository.TOKEN_INDEX_KIND));
+	}
+
+	@Test
+	public void listsChildrenByClientId() {
+		tokenStore.storeAccessToken(accessToken("token", "refresh"), authentication("alice"));
+
+		Collection<OAuth2AccessToken> tokens = tokenStore.findTokensByClientId(CLIENT_ID);
+		assertEquals(1, tokens.size());
+		assertEquals("token", tokens.iterator().next().getValue());
+	}
+
+	private int count(String kind) {
+		return datastore.prepare(new Query(kind).setKeysOnly()).countEntities(FetchOptions.Builder.withDefaults());
+	}
+}
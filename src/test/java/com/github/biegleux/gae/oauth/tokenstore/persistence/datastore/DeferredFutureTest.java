@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class DeferredFutureTest {
+
+	private int computations;
+
+	@Test
+	public void elapsedTimeoutDoesNotStartTheComputation() throws Exception {
+		DeferredFuture<String> future = counting(0);
+		try {
+			future.get(0, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			assertFalse(future.isDone());
+			assertEquals(0, computations);
+			assertEquals("value", future.get());
+			return;
+		}
+		throw new AssertionError("expected a timeout");
+	}
+
+	@Test
+	public void resultComputedPastTheTimeoutIsKept() throws Exception {
+		DeferredFuture<String> future = counting(50);
+		try {
+			future.get(1, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			assertTrue(future.isDone());
+			assertEquals("value", future.get(1, TimeUnit.MILLISECONDS));
+			assertEquals(1, computations);
+			return;
+		}
+		throw new AssertionError("expected a timeout");
+	}
+
+	@Test
+	public void resultWithinTheTimeoutIsReturned() throws Exception {
+		assertEquals("value", counting(0).get(1, TimeUnit.MINUTES));
+	}
+
+	private DeferredFuture<String> counting(final long millis) {
+		return new DeferredFuture<String>() {
+
+			@Override
+			protected String compute() throws InterruptedException {
+				computations++;
+				Thread.sleep(millis);
+				return "value";
+			}
+		};
+	}
+}
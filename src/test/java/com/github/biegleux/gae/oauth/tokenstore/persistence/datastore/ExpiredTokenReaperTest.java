@@ -0,0 +1,248 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+
+import com.github.biegleux.gae.oauth.tokenstore.DigestTokenKeyExtractor;
+import com.github.biegleux.gae.oauth.tokenstore.GaeTokenStore;
+import com.github.biegleux.gae.oauth.tokenstore.LocalServiceTestSupport;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.codec.SerializationTokenCodec;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+
+public class ExpiredTokenReaperTest extends LocalServiceTestSupport {
+
+	private static final long EXPIRED = -60 * 1000;
+
+	private DatastoreService datastore;
+
+	private GaeTokenStore tokenStore;
+
+	private ExpiredTokenReaper reaper;
+
+	@Before
+	public void setUpReaper() {
+		datastore = DatastoreServiceFactory.getDatastoreService();
+		DatastoreAuthenticationRepository authentications = new DatastoreAuthenticationRepository();
+		DatastoreAccessTokenRepository accessTokens = new DatastoreAccessTokenRepository();
+		DatastoreRefreshTokenRepository refreshTokens = new DatastoreRefreshTokenRepository();
+		accessTokens.setAuthentications(authentications);
+		refreshTokens.setAuthentications(authentications);
+		tokenStore = new GaeTokenStore(accessTokens, refreshTokens);
+		tokenStore.setTokenKeyNames(true);
+		reaper = new ExpiredTokenReaper();
+	}
+
+	@Test
+	public void deletesExpiredAndKeepsLiveTokens() {
+		for (int i = 0; i < 3; i++) {
+			tokenStore.storeAccessToken(accessToken("expired" + i, null, EXPIRED), authentication("alice"));
+		}
+		tokenStore.storeAccessToken(accessToken("live", null), authentication("alice"));
+
+		ExpiredTokenReaper.Result result = reaper.reapAccessTokens(null);
+		assertEquals(3, result.getDeleted());
+		assertTrue(result.isDone());
+		assertEquals(1, count("GaeOAuthAccessToken"));
+		assertNotNull(tokenStore.readAccessToken("live"));
+		assertNull(tokenStore.readAccessToken("expired0"));
+	}
+
+	@Test
+	public void resumesFromCursor() {
+		for (int i = 0; i < 5; i++) {
+			tokenStore.storeAccessToken(accessToken("expired" + i, null, EXPIRED), authentication("alice"));
+		}
+		reaper.setBatchSize(2);
+		reaper.setTimeBudgetMillis(0);
+
+		ExpiredTokenReaper.Result result = reaper.reapAccessTokens(null);
+		assertEquals(2, result.getDeleted());
+		assertFalse(result.isDone());
+		long deleted = result.getDeleted();
+		int runs = 1;
+		while (!result.isDone()) {
+			result = reaper.reapAccessTokens(result.getCursor());
+			deleted += result.getDeleted();
+			runs++;
+		}
+		assertEquals(5, deleted);
+		assertEquals(3, runs);
+		assertEquals(0, count("GaeOAuthAccessToken"));
+	}
+
+	@Test
+	public void resumedRunKeepsItsCutoff() {
+		tokenStore.storeAccessToken(accessToken("expired0", null, EXPIRED), authentication("alice"));
+		tokenStore.storeAccessToken(accessToken("expired1", null, EXPIRED), authentication("alice"));
+		tokenStore.storeAccessToken(accessToken("soon", null, 1000), authentication("alice"));
+		reaper.setBatchSize(1);
+		reaper.setTimeBudgetMillis(0);
+		ExpiredTokenReaper.Result result = reaper.reapAccessTokens(null);
+		sleep(1500);
+
+		long deleted = result.getDeleted();
+		while (!result.isDone()) {
+			result = reaper.reapAccessTokens(result.getCursor());
+			deleted += result.getDeleted();
+		}
+		assertEquals(2, deleted);
+		assertEquals(1, count("GaeOAuthAccessToken"));
+	}
+
+	@Test
+	public void reapsExpiringRefreshTokensOnly() {
+		tokenStore.storeRefreshToken(expiringRefreshToken("expired", EXPIRED), authentication("alice"));
+		tokenStore.storeRefreshToken(expiringRefreshToken("live", 60 * 1000), authentication("alice"));
+		tokenStore.storeRefreshToken(new DefaultOAuth2RefreshToken("permanent"), authentication("alice"));
+
+		assertEquals(1, reaper.reapRefreshTokens(null).getDeleted());
+		assertNull(tokenStore.readRefreshToken("expired"));
+		assertNotNull(tokenStore.readRefreshToken("live"));
+		assertNotNull(tokenStore.readRefreshToken("permanent"));
+	}
+
+	@Test
+	public void reapsTokensStoredThroughJdo() {
+		GaeTokenStore jdoStore = new GaeTokenStore();
+		jdoStore.storeAccessToken(accessToken("expired", null, EXPIRED), authentication("alice"));
+		jdoStore.storeAccessToken(accessToken("live", null), authentication("alice"));
+
+		assertEquals(1, reaper.reapAccessTokens(null).getDeleted());
+		assertNotNull(jdoStore.readAccessToken("live"));
+	}
+
+	@Test
+	public void leavesTokensWithoutExpirationUntilBackfilled() {
+		legacyAccessToken("legacy-expired", EXPIRED);
+		legacyAccessToken("legacy-live", 60 * 60 * 1000);
+
+		assertEquals(0, reaper.reapAccessTokens(null).getDeleted());
+		assertEquals(2, count("GaeOAuthAccessToken"));
+
+		ExpiredTokenReaper.Result backfilled = reaper.backfillAccessTokens(null);
+		assertEquals(2, backfilled.getUpdated());
+		assertTrue(backfilled.isDone());
+		assertEquals(0, reaper.backfillAccessTokens(null).getUpdated());
+
+		assertEquals(1, reaper.reapAccessTokens(null).getDeleted());
+		assertNotNull(tokenStore.readAccessToken("legacy-live"));
+	}
+
+	@Test
+	public void backfillResumesFromCursor() {
+		for (int i = 0; i < 5; i++) {
+			legacyAccessToken("legacy" + i, EXPIRED);
+		}
+		reaper.setBatchSize(2);
+		reaper.setTimeBudgetMillis(0);
+		ExpiredTokenReaper.Result result = reaper.backfillAccessTokens(null);
+		long updated = result.getUpdated();
+		while (!result.isDone()) {
+			result = reaper.backfillAccessTokens(result.getCursor());
+			updated += result.getUpdated();
+		}
+		assertEquals(5, updated);
+	}
+
+	@Test
+	public void backfillGivesPermanentRefreshTokensNullExpiration() {
+		Entity entity = new Entity("GaeOAuthRefreshToken", "legacy");
+		entity.setProperty("tokenId", "legacy");
+		entity.setUnindexedProperty("token",
+				new Blob(new SerializationTokenCodec().encodeRefreshToken(new DefaultOAuth2RefreshToken("legacy"))));
+		datastore.put(entity);
+
+		assertEquals(1, reaper.backfillRefreshTokens(null).getUpdated());
+		assertEquals(0, reaper.reapRefreshTokens(null).getDeleted());
+		assertEquals(0, reaper.backfillRefreshTokens(null).getUpdated());
+		assertEquals(1, count("GaeOAuthRefreshToken"));
+	}
+
+	@Test
+	public void backfillSkipsUndecodableTokens() {
+		Entity entity = new Entity("GaeOAuthAccessToken", "corrupt");
+		entity.setUnindexedProperty("token", new Blob(new byte[] { 1, 2, 3 }));
+		datastore.put(entity);
+
+		assertEquals(0, reaper.backfillAccessTokens(null).getUpdated());
+		assertEquals(1, count("GaeOAuthAccessToken"));
+	}
+
+	@Test
+	public void deletesOrphanAuthenticationsAfterGracePeriod() {
+		tokenStore.storeAccessToken(accessToken("expired", null, EXPIRED), authentication("alice"));
+		tokenStore.storeAccessToken(accessToken("live", null), authentication("bob"));
+		reaper.reapAccessTokens(null);
+		assertEquals(2, count(DatastoreAuthenticationRepository.KIND));
+
+		assertEquals(0, reaper.reapAuthentications(null).getDeleted());
+
+		reaper.setAuthenticationGraceMillis(0);
+		sleep(10);
+		ExpiredTokenReaper.Result result = reaper.reapAuthentications(null);
+		assertEquals(1, result.getDeleted());
+		assertTrue(result.isDone());
+		assertEquals(1, count(DatastoreAuthenticationRepository.KIND));
+		assertEquals(authentication("bob"), tokenStore.readAuthentication("live"));
+	}
+
+	@Test
+	public void keepsAuthenticationsReferencedByRefreshTokens() {
+		tokenStore.storeRefreshToken(new DefaultOAuth2RefreshToken("refresh"), authentication("alice"));
+		reaper.setAuthenticationGraceMillis(0);
+		sleep(10);
+		assertEquals(0, reaper.reapAuthentications(null).getDeleted());
+		assertEquals(1, count(DatastoreAuthenticationRepository.KIND));
+	}
+
+	private void legacyAccessToken(String value, long expiresInMillis) {
+		// layout of 0.2: allocated ID, serialized blobs and no expiration property
+		SerializationTokenCodec codec = new SerializationTokenCodec();
+		Entity entity = new Entity("GaeOAuthAccessToken");
+		entity.setProperty("tokenId", new DigestTokenKeyExtractor().extractKey(value));
+		entity.setUnindexedProperty("token", new Blob(codec.encodeAccessToken(accessToken(value, null, expiresInMillis))));
+		entity.setUnindexedProperty("authentication", new Blob(codec.encodeAuthentication(authentication("alice"))));
+		entity.setProperty("clientId", CLIENT_ID);
+		datastore.put(entity);
+	}
+
+	private int count(String kind) {
+		return datastore.prepare(new Query(kind)).countEntities(FetchOptions.Builder.withDefaults());
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
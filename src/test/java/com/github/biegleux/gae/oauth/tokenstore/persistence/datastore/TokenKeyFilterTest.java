@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.biegleux.gae.oauth.tokenstore.ApiCallRecorder;
+import com.github.biegleux.gae.oauth.tokenstore.GaeTokenStore;
+import com.github.biegleux.gae.oauth.tokenstore.LocalServiceTestSupport;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+public class TokenKeyFilterTest extends LocalServiceTestSupport {
+
+	private static final String NAME = "test";
+
+	private MemcacheService memcache;
+
+	@Before
+	public void setUpMemcache() {
+		memcache = MemcacheServiceFactory.getMemcacheService();
+	}
+
+	@Test
+	public void answersNothingBeforeFirstSnapshot() {
+		TokenKeyFilter filter = new TokenKeyFilter(NAME, 1000, 0.01);
+		assertTrue(filter.mightContain("unknown"));
+		assertFalse(filter.isTrusted());
+	}
+
+	@Test
+	public void rebuildsFromStoredAndJournaledTokens() {
+		TokenKeyFilter writer = new TokenKeyFilter(NAME, 1000, 0.01);
+		GaeTokenStore tokenStore = tokenStore(writer);
+		tokenStore.storeAccessToken(accessToken("access", "refresh"), authentication("alice"));
+		tokenStore.storeRefreshToken(accessToken("access", "refresh").getRefreshToken(), authentication("alice"));
+		// journaled by a store call still in progress
+		writer.add("pending");
+
+		assertEquals(2, writer.rebuild());
+		assertTrue(writer.isTrusted());
+		assertTrue(writer.mightContain("pending"));
+		assertFalse(writer.mightContain("unknown"));
+		assertNotNull(tokenStore.readAccessToken("access"));
+		assertNotNull(tokenStore.readRefreshToken("refresh"));
+	}
+
+	@Test
+	public void loadsSnapshotAndMergesJournalOfOtherInstances() {
+		TokenKeyFilter writer = new TokenKeyFilter(NAME, 1000, 0.01);
+		writer.rebuild();
+		TokenKeyFilter reader = new TokenKeyFilter(NAME, 1000, 0.01);
+		assertFalse(reader.mightContain("unknown"));
+		assertTrue(reader.isTrusted());
+
+		// stored on the writer after the reader loaded the snapshot
+		for (int i = 0; i < 100; i++) {
+			writer.add("key" + i);
+		}
+		for (int i = 0; i < 100; i++) {
+			assertTrue(reader.mightContain("key" + i));
+		}
+		assertTrue(reader.isTrusted());
+	}
+
+	@Test
+	public void answersUnknownTokensWithoutDatastoreCalls() {
+		TokenKeyFilter writer = new TokenKeyFilter(NAME, 1000, 0.01);
+		GaeTokenStore writerStore = tokenStore(writer);
+		writerStore.storeAccessToken(accessToken("old", null), authentication("alice"));
+		writer.rebuild();
+		GaeTokenStore readerStore = tokenStore(new TokenKeyFilter(NAME, 1000, 0.01));
+		readerStore.readAccessToken("unknown");
+		writerStore.storeAccessToken(accessToken("new", null), authentication("alice"));
+
+		ApiCallRecorder recorder = recordApiCalls();
+		for (int i = 0; i < 50; i++) {
+			assertNull(readerStore.readAccessToken("unknown" + i));
+		}
+		assertTrue(recorder.countDatastoreCalls("Get") <= 2);
+		assertEquals(0, recorder.countDatastoreCalls("RunQuery"));
+		assertNotNull(readerStore.readAccessToken("old"));
+		assertNotNull(readerStore.readAccessToken("new"));
+	}
+
+	@Test
+	public void stopsAnsweringWhenJournalEntryStaysMissing() throws InterruptedException {
+		TokenKeyFilter writer = new TokenKeyFilter(NAME, 1000, 0.01);
+		writer.rebuild();
+		TokenKeyFilter reader = new TokenKeyFilter(NAME, 1000, 0.01);
+		reader.setGapMillis(50);
+		reader.setReloadMillis(0);
+		assertFalse(reader.mightContain("unknown"));
+
+		long position = (Long) memcache.get(TokenKeyFilter.KIND + ":" + NAME + ":position");
+		writer.add("evicted");
+		memcache.delete(TokenKeyFilter.KIND + ":" + NAME + ":" + (position + 1));
+		assertTrue(reader.mightContain("unknown"));
+		assertTrue(reader.isTrusted());
+		Thread.sleep(100);
+		assertTrue(reader.mightContain("unknown"));
+		assertFalse(reader.isTrusted());
+
+		writer.rebuild();
+		assertFalse(reader.mightContain("unknown"));
+		assertTrue(reader.isTrusted());
+	}
+
+	@Test
+	public void stopsAnsweringWhenJournalCounterIsEvicted() {
+		TokenKeyFilter writer = new TokenKeyFilter(NAME, 1000, 0.01);
+		writer.rebuild();
+		TokenKeyFilter reader = new TokenKeyFilter(NAME, 1000, 0.01);
+		assertFalse(reader.mightContain("unknown"));
+
+		memcache.delete(TokenKeyFilter.KIND + ":" + NAME + ":position");
+		writer.add("added");
+		assertTrue(reader.mightContain("added"));
+		assertTrue(reader.mightContain("unknown"));
+		assertFalse(reader.isTrusted());
+	}
+
+	private static GaeTokenStore tokenStore(TokenKeyFilter filter) {
+		GaeTokenStore tokenStore = new GaeTokenStore(new DatastoreAccessTokenRepository(),
+				new DatastoreRefreshTokenRepository());
+		tokenStore.setTokenKeyNames(true);
+		tokenStore.setLegacyLookup(false);
+		tokenStore.setTokenKeyFilter(filter);
+		return tokenStore;
+	}
+}
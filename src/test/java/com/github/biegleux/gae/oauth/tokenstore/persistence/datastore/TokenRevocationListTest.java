@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.biegleux.gae.oauth.tokenstore.persistence.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.github.biegleux.gae.oauth.tokenstore.LocalServiceTestSupport;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+
+public class TokenRevocationListTest extends LocalServiceTestSupport {
+
+	@Test
+	public void rejectsRevokedTokensAtOnceOnRevokingInstance() {
+		TokenRevocationList list = new TokenRevocationList();
+		assertTrue(list.isCurrent());
+		list.revoke("key", future());
+
+		assertTrue(list.isRevoked("key"));
+		assertFalse(list.isRevoked("other"));
+	}
+
+	@Test
+	public void loadsRevocationsOfOtherInstancesOnRefresh() {
+		TokenRevocationList reader = new TokenRevocationList();
+		reader.setRefreshMillis(0);
+		assertTrue(reader.isCurrent());
+		new TokenRevocationList().revoke("key", future());
+
+		assertFalse(reader.isRevoked("key"));
+		reader.refresh();
+		assertTrue(reader.isRevoked("key"));
+	}
+
+	@Test
+	public void loadsAllRevocationsOnFirstUse() {
+		Map<String, Date> expirations = new HashMap<String, Date>();
+		for (int i = 0; i < 10; i++) {
+			expirations.put("key" + i, future());
+		}
+		expirations.put("forever", null);
+		new TokenRevocationList().revokeAll(expirations);
+
+		TokenRevocationList reader = new TokenRevocationList();
+		assertTrue(reader.isCurrent());
+		assertEquals(11, reader.size());
+		assertTrue(reader.isRevoked("forever"));
+		assertEquals(11, DatastoreServiceFactory.getDatastoreService().prepare(new Query(TokenRevocationList.KIND))
+				.countEntities(FetchOptions.Builder.withDefaults()));
+	}
+
+	@Test
+	public void forgetsExpiredTokensOnRefresh() {
+		new TokenRevocationList().revoke("expired", new Date(System.currentTimeMillis() - 1000));
+
+		TokenRevocationList reader = new TokenRevocationList();
+		reader.refresh();
+		assertFalse(reader.isRevoked("expired"));
+		assertEquals(0, reader.size());
+	}
+
+	@Test
+	public void isNotCurrentOnceStale() {
+		TokenRevocationList list = new TokenRevocationList();
+		list.setMaxStalenessMillis(-1);
+		assertFalse(list.isCurrent());
+	}
+
+	private static Date future() {
+		return new Date(System.currentTimeMillis() + 60 * 60 * 1000);
+	}
+}
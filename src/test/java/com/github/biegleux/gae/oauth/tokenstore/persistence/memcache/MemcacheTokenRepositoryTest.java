@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014 Tibor Bombiak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.biegleux.gae.oauth.tokenstore.persistence.memcache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import com.github.biegleux.gae.oauth.tokenstore.DigestTokenKeyExtractor;
+import com.github.biegleux.gae.oauth.tokenstore.GaeTokenStore;
+import com.github.biegleux.gae.oauth.tokenstore.LocalServiceTestSupport;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreAccessTokenRepository;
+import com.github.biegleux.gae.oauth.tokenstore.persistence.datastore.DatastoreRefreshTokenRepository;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+public class MemcacheTokenRepositoryTest extends LocalServiceTestSupport {
+
+	private final DigestTokenKeyExtractor keys = new DigestTokenKeyExtractor();
+
+	private MemcacheService memcache;
+
+	private MemcacheAccessTokenRepository accessTokens;
+
+	private MemcacheRefreshTokenRepository refreshTokens;
+
+	private GaeTokenStore tokenStore;
+
+	private OAuth2Authentication authentication;
+
+	@Before
+	public void setUp() {
+		memcache = MemcacheServiceFactory.getMemcacheService();
+		accessTokens = new MemcacheAccessTokenRepository(new DatastoreAccessTokenRepository());
+		refreshTokens = new MemcacheRefreshTokenRepository(new DatastoreRefreshTokenRepository());
+		// invalidated entries may be cached again right away, so that reads after a write are cached
+		accessTokens.setInvalidationMillis(0);
+		refreshTokens.setInvalidationMillis(0);
+		tokenStore = new GaeTokenStore(accessTokens, refreshTokens);
+		// saving a refresh token again overwrites it only when addressed by key name
+		tokenStore.setTokenKeyNames(true);
+		authentication = authentication("alice");
+	}
+
+	@Test
+	public void readsThroughAndServesHits() {
+		tokenStore.storeAccessToken(accessToken("access", null), authentication);
+
+		assertNotNull(tokenStore.readAccessToken("access"));
+		assertTrue(memcache.contains(accessTokenKey("access")));
+		deleteAllEntities();
+
+		assertEquals("access", tokenStore.readAccessToken("access").getValue());
+		assertEquals("alice", tokenStore.readAuthentication("access").getName());
+		assertEquals(2, accessTokens.getStatistics().getHitCount());
+		assertEquals(1, accessTokens.getStatistics().getMissCount());
+	}
+
+	@Test
+	public void unknownTokensAreNotCached() {
+		assertNull(tokenStore.readAccessToken("unknown"));
+		assertFalse(memcache.contains(accessTokenKey("unknown")));
+	}
+
+	@Test
+	public void storeAccessTokenInvalidates() {
+		tokenStore.storeAccessToken(accessToken("access", null), authentication);
+		tokenStore.readAccessToken("access");
+
+		DefaultOAuth2AccessToken updated = accessToken("access", null);
+		updated.setScope(Collections.singleton("admin"));
+		tokenStore.storeAccessToken(updated, authentication);
+
+		assertEquals(Collections.singleton("admin"), tokenStore.readAccessToken("access").getScope());
+	}
+
+	@Test
+	public void storeAccessTokensInvalidates() {
+		tokenStore.storeAccessToken(accessToken("access", null), authentication);
+		tokenStore.readAccessToken("access");
+
+		DefaultOAuth2AccessToken updated = accessToken("access", null);
+		updated.setScope(Collections.singleton("admin"));
+		tokenStore.storeAccessTokens(Collections.<OAuth2AccessToken, OAuth2Authentication> singletonMap(updated,
+				authentication));
+
+		assertEquals(Collections.singleton("admin"), tokenStore.readAccessToken("access").getScope());
+	}
+
+	@Test
+	public void storeRefreshTokenInvalidates() {
+		tokenStore.storeRefreshToken(new DefaultOAuth2RefreshToken("refresh"), authentication);
+		assertEquals("alice", tokenStore.readAuthenticationForRefreshToken("refresh").getName());
+
+		tokenStore.storeRefreshToken(new DefaultOAuth2RefreshToken("refresh"), authentication("bob"));
+		assertEquals("bob", tokenStore.readAuthenticationForRefreshToken("refresh").getName());
+
+		tokenStore.storeRefreshTokens(Collections.<OAuth2RefreshToken, OAuth2Authentication> singletonMap(
+				new DefaultOAuth2RefreshToken("refresh"), authentication("carol")));
+		assertEquals("carol", tokenStore.readAuthenticationForRefreshToken("refresh").getName());
+	}
+
+	@Test
+	public void removeAccessTokenInvalidates() {
+		tokenStore.storeAccessToken(accessToken("access", null), authentication);
+		tokenStore.readAccessToken("access");
+
+		tokenStore.removeAccessToken("access");
+
+		assertFalse(memcache.contains(accessTokenKey("access")));
+		assertNull(tokenStore.readAccessToken("access"));
+	}
+
+	@Test
+	public void removeAccessTokensInvalidates() {
+		tokenStore.storeAccessToken(accessToken("a1", null), authentication);
+		tokenStore.storeAccessToken(accessToken("a2", null), authentication("bob"));
+		tokenStore.readAccessTokens(Arrays.asList("a1", "a2"));
+		assertTrue(memcache.contains(accessTokenKey("a2")));
+
+		tokenStore.removeAccessTokens(Arrays.asList("a1", "a2"));
+
+		assertTrue(tokenStore.readAccessTokens(Arrays.asList("a1", "a2")).getResults().isEmpty());
+	}
+
+	@Test
+	public void removeRefreshTokenInvalidates() {
+		tokenStore.storeRefreshToken(new DefaultOAuth2RefreshToken("refresh"), authentication);
+		tokenStore.readRefreshToken("refresh");
+		assertTrue(memcache.contains(refreshTokenKey("refresh")));
+
+		tokenStore.removeRefreshToken("refresh");
+
+		assertNull(tokenStore.readRefreshToken("refresh"));
+		assertNull(tokenStore.readAuthenticationForRefreshToken("refresh"));
+	}
+
+	@Test
+	public void removeAccessTokenUsingRefreshTokenInvalidates() {
+		tokenStore.storeRefreshToken(new DefaultOAuth2RefreshToken("refresh"), authentication);
+		tokenStore.storeAccessToken(accessToken("access", "refresh"), authentication);
+		tokenStore.readAccessToken("access");
+		assertTrue(memcache.contains(accessTokenKey("access")));
+
+		tokenStore.removeAccessTokenUsingRefreshToken("refresh");
+
+		assertFalse(memcache.contains(accessTokenKey("access")));
+		assertNull(tokenStore.readAccessToken("access"));
+		assertNotNull(tokenStore.readRefreshToken("refresh"));
+	}
+
+	@Test
+	public void entriesExpireWithTheToken() throws InterruptedException {
+		tokenStore.storeAccessToken(accessToken("access", null, 2000), authentication);
+		tokenStore.readAccessToken("access");
+		assertTrue(memcache.contains(accessTokenKey("access")));
+
+		Thread.sleep(2500);
+
+		assertFalse(memcache.contains(accessTokenKey("access")));
+	}
+
+	@Test
+	public void expiredTokensAreNotCached() {
+		DefaultOAuth2AccessToken expired = accessToken("access", null);
+		expired.setExpiration(new Date(System.currentTimeMillis() - 1000));
+		tokenStore.storeAccessToken(expired, authentication);
+
+		assertNotNull(tokenStore.readAccessToken("access"));
+		assertFalse(memcache.contains(accessTokenKey("access")));
+	}
+
+	@Test
+	public void reportsHitRatio() {
+		tokenStore.storeAccessToken(accessToken("access", null), authentication);
+		assertEquals(0, accessTokens.getStatistics().getHitRatio(), 0);
+
+		for (int i = 0; i < 4; i++) {
+			tokenStore.readAccessToken("access");
+		}
+
+		assertEquals(0.75, accessTokens.getStatistics().getHitRatio(), 0.0001);
+		accessTokens.getStatistics().reset();
+		assertEquals(0, accessTokens.getStatistics().getHitCount());
+	}
+
+	private String accessTokenKey(String value) {
+		return "GaeOAuthAccessToken:" + keys.extractKey(value);
+	}
+
+	private String refreshTokenKey(String value) {
+		return "GaeOAuthRefreshToken:" + keys.extractKey(value);
+	}
+
+	private void deleteAllEntities() {
+		for (String kind : Arrays.asList("GaeOAuthAccessToken", "GaeOAuthRefreshToken")) {
+			for (Entity entity : DatastoreServiceFactory.getDatastoreService().prepare(new Query(kind).setKeysOnly())
+					.asIterable(FetchOptions.Builder.withDefaults())) {
+				DatastoreServiceFactory.getDatastoreService().delete(entity.getKey());
+			}
+		}
+	}
+}